@@ -0,0 +1,77 @@
+package com.amannmalik.acp.server.security;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/// Per-request signature checks with the provider looked up and the key scheduled on every call,
+/// as the authenticator used to do, against the prepared [CryptoEngine] path.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class CryptoEngineBenchmark {
+    private byte[] secret;
+    private byte[] payload;
+    private byte[] hmacSignature;
+    private PublicKey publicKey;
+    private byte[] ed25519Signature;
+    private CryptoEngine engine;
+    private CryptoEngine.SignedContent content;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        secret = "benchmark-hmac-secret-0123456789".getBytes(StandardCharsets.UTF_8);
+        payload = ("2025-01-01T00:00:00Z.{\"buyer\":{\"email\":\"buyer@example.com\"},"
+                + "\"items\":[{\"id\":\"item_123\",\"quantity\":1}]}").getBytes(StandardCharsets.UTF_8);
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        hmacSignature = mac.doFinal(payload);
+
+        var pair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        publicKey = pair.getPublic();
+        ed25519Signature = sign(pair.getPrivate(), payload);
+
+        engine = new CryptoEngine(Map.of(
+                "hmac", new SecurityConfiguration.SigningKey.HmacSha256(secret),
+                "ed", new SecurityConfiguration.SigningKey.Ed25519(publicKey)));
+        content = sink -> sink.write(payload, 0, payload.length);
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] message) throws GeneralSecurityException {
+        var signer = Signature.getInstance("Ed25519");
+        signer.initSign(key);
+        signer.update(message);
+        return signer.sign();
+    }
+
+    @Benchmark
+    public boolean hmacPerRequestInit() throws GeneralSecurityException {
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.clone(), "HmacSHA256"));
+        return MessageDigest.isEqual(mac.doFinal(payload), hmacSignature);
+    }
+
+    @Benchmark
+    public boolean hmacPrepared() {
+        return engine.verify("hmac", content, hmacSignature);
+    }
+
+    @Benchmark
+    public boolean ed25519PerRequestInit() throws GeneralSecurityException {
+        var verifier = Signature.getInstance("Ed25519");
+        verifier.initVerify(publicKey);
+        verifier.update(payload);
+        return verifier.verify(ed25519Signature);
+    }
+
+    @Benchmark
+    public boolean ed25519Pooled() {
+        return engine.verify("ed", content, ed25519Signature);
+    }
+}
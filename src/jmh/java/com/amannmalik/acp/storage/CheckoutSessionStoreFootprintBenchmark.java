@@ -0,0 +1,119 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.codec.CheckoutSessionBinaryCodec;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/// Heap footprint and full-collection pause with a million and ten million live sessions, kept as
+/// Java objects (what the heap store does) or in an [OffHeapCheckoutSessionStore].
+///
+/// Every stored session is decoded afresh, so heap copies share no structure. The retained heap
+/// after a full collection is printed at tear-down; `fullGc` measures the pause the collector pays
+/// to trace the live set. Ten million heap sessions need a large heap, hence `-Xmx32g`; run with
+/// `-prof gc` for allocation rates as well.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms32g", "-Xmx32g"})
+public class CheckoutSessionStoreFootprintBenchmark {
+    @Param({"1000000", "10000000"})
+    private int sessions;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    private String store;
+
+    private Map<String, CheckoutSession> heap;
+    private OffHeapCheckoutSessionStore offHeap;
+    private Function<String, CheckoutSession> reader;
+
+    private static String id(int i) {
+        return "csn_%09d".formatted(i);
+    }
+
+    private static CheckoutSession withId(CheckoutSession session, String id) {
+        return new CheckoutSession(
+                new CheckoutSessionId(id),
+                session.buyer(),
+                session.paymentProvider(),
+                session.status(),
+                session.currency(),
+                session.lineItems(),
+                session.fulfillmentAddress(),
+                session.fulfillmentOptions(),
+                session.fulfillmentOptionId(),
+                session.totals(),
+                session.messages(),
+                session.links(),
+                session.order());
+    }
+
+    private static long heapUsedAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var codec = new CheckoutSessionBinaryCodec();
+        byte[] template;
+        try (var service = new InMemoryCheckoutSessionService(
+                Map.of("item_a", 1200L, "item_b", 800L), Clock.systemUTC(), new CurrencyCode("usd"), OrderWebhookPublisher.NOOP)) {
+            template = codec.writeCheckoutSession(service.create(
+                    new CheckoutSessionCreateRequest(List.of(new Item("item_a", 1), new Item("item_b", 2)), null, null),
+                    "benchmark-template"));
+        }
+        var baseline = heapUsedAfterGc();
+        if (store.equals("HEAP")) {
+            heap = new ConcurrentHashMap<>(sessions * 2);
+            for (var i = 0; i < sessions; i++) {
+                heap.put(id(i), withId(codec.readCheckoutSession(ByteBuffer.wrap(template)), id(i)));
+            }
+            reader = heap::get;
+        } else {
+            offHeap = new OffHeapCheckoutSessionStore(OffHeapCheckoutSessionStore.Configuration.anonymous());
+            for (var i = 0; i < sessions; i++) {
+                offHeap.put(withId(codec.readCheckoutSession(ByteBuffer.wrap(template)), id(i)));
+            }
+            reader = offHeap::get;
+        }
+        var retained = heapUsedAfterGc() - baseline;
+        System.out.printf("%n%s with %,d sessions retains %,d heap bytes (%,d per session)%s%n",
+                store,
+                sessions,
+                retained,
+                retained / sessions,
+                offHeap == null ? "" : "; off-heap " + offHeap.stats());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (offHeap != null) {
+            offHeap.close();
+        }
+        heap = null;
+    }
+
+    @Benchmark
+    public void fullGc() {
+        System.gc();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public CheckoutSession retrieve() {
+        return reader.apply(id(ThreadLocalRandom.current().nextInt(sessions)));
+    }
+}
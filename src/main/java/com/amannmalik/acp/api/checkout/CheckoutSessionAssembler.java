@@ -0,0 +1,516 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.api.shared.MinorUnitAmount;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.util.Ensure;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URI;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/// Pure checkout rules shared by the service engines: pricing, totals, readiness, status
+/// transitions and the order webhooks they raise. Holds no session state beyond the id sequences,
+/// so callers decide how transitions are serialized and persisted.
+final class CheckoutSessionAssembler {
+    static final PaymentProvider PAYMENT_PROVIDER = new PaymentProvider(
+            PaymentProvider.Provider.STRIPE,
+            List.of(PaymentProvider.PaymentMethod.CARD));
+    private static final List<Link> DEFAULT_LINKS = List.of(
+            new Link(Link.LinkType.TERMS_OF_USE, URI.create("https://merchant.example.com/legal/terms-of-use")),
+            new Link(Link.LinkType.PRIVACY_POLICY, URI.create("https://merchant.example.com/legal/privacy")));
+    private static final BigDecimal TAX_RATE = new BigDecimal("0.0825");
+
+    static final int HTTP_BAD_REQUEST = 400;
+    private static final String SESSION_ID_PREFIX = "csn_";
+    private static final int SESSION_ID_DIGITS = 6;
+
+    private final AtomicLong sessionSequence = new AtomicLong(1);
+    private final AtomicLong lineItemSequence = new AtomicLong(1);
+    private final AtomicLong orderSequence = new AtomicLong(1);
+    private final Map<String, Long> priceBook;
+    private final Clock clock;
+    private final CurrencyCode currency;
+
+    CheckoutSessionAssembler(Map<String, Long> priceBook, Clock clock, CurrencyCode currency) {
+        this.priceBook = validatePriceBook(priceBook);
+        this.clock = Objects.requireNonNullElse(clock, Clock.systemUTC());
+        this.currency = currency == null ? new CurrencyCode("usd") : currency;
+    }
+
+    static Map<String, Long> defaultPriceBook() {
+        return Map.of(
+                "item_123", 1500L,
+                "item_456", 3000L,
+                "item_789", 5000L);
+    }
+
+    private static List<Item> extractItems(CheckoutSession session) {
+        return session.lineItems().stream().map(LineItem::item).toList();
+    }
+
+    private static long sum(List<LineItem> lineItems, ToLongFunction<LineItem> mapper) {
+        return lineItems.stream().mapToLong(mapper).sum();
+    }
+
+    private static Map<String, Long> validatePriceBook(Map<String, Long> source) {
+        if (source == null || source.isEmpty()) {
+            throw new IllegalArgumentException("price_book MUST include at least one item");
+        }
+        var normalized = new LinkedHashMap<String, Long>(source.size());
+        source.forEach((rawId, rawPrice) -> {
+            if (rawId == null) {
+                throw new IllegalArgumentException("price_book item id MUST NOT be null");
+            }
+            var id = rawId.trim();
+            if (id.isEmpty()) {
+                throw new IllegalArgumentException("price_book item id MUST be non-blank");
+            }
+            if (normalized.containsKey(id)) {
+                throw new IllegalArgumentException("Duplicate price_book item id: " + id);
+            }
+            if (rawPrice == null) {
+                throw new IllegalArgumentException("price_book[" + id + "] MUST NOT be null");
+            }
+            Ensure.nonNegative("price_book[" + id + "]", rawPrice);
+            normalized.put(id, rawPrice);
+        });
+        return Map.copyOf(normalized);
+    }
+
+    private static OrderWebhookEvent.OrderStatus webhookStatusFor(CheckoutSessionStatus status) {
+        return switch (status) {
+            case COMPLETED -> OrderWebhookEvent.OrderStatus.CREATED;
+            case CANCELED -> OrderWebhookEvent.OrderStatus.CANCELED;
+            default -> throw new IllegalStateException("Unsupported checkout status for order webhook: " + status);
+        };
+    }
+
+    private static long nextSequence(Stream<String> ids, String prefix) {
+        return ids.filter(id -> id.startsWith(prefix))
+                .map(id -> id.substring(prefix.length()))
+                .mapToLong(suffix -> {
+                    try {
+                        return Long.parseLong(suffix);
+                    } catch (NumberFormatException e) {
+                        return 0L;
+                    }
+                })
+                .max()
+                .orElse(0L) + 1;
+    }
+
+    /// Sequence number of a session id exactly as [#nextSessionId()] formats it, or `0` for any
+    /// other id. Parses in place, so hot lookups avoid hashing or copying the id.
+    static long sessionNumber(String id) {
+        var digits = id.length() - SESSION_ID_PREFIX.length();
+        if (digits < SESSION_ID_DIGITS || digits > 18 || !id.startsWith(SESSION_ID_PREFIX)
+                || (digits > SESSION_ID_DIGITS && id.charAt(SESSION_ID_PREFIX.length()) == '0')) {
+            return 0L;
+        }
+        var number = 0L;
+        for (var i = SESSION_ID_PREFIX.length(); i < id.length(); i++) {
+            var digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return 0L;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    CurrencyCode currency() {
+        return currency;
+    }
+
+    /// Moves every id sequence past the ids used by `session`. Safe to call concurrently.
+    void restoreSequences(CheckoutSession session) {
+        sessionSequence.accumulateAndGet(nextSequence(Stream.of(session.id().value()), SESSION_ID_PREFIX), Math::max);
+        lineItemSequence.accumulateAndGet(
+                nextSequence(session.lineItems().stream().map(LineItem::id), "line_"), Math::max);
+        orderSequence.accumulateAndGet(
+                nextSequence(Stream.ofNullable(session.order()).map(Order::id), "ord_"), Math::max);
+    }
+
+    /// Moves every id sequence to at least the values in `sequences`. Safe to call concurrently.
+    void restoreSequences(Sequences sequences) {
+        sessionSequence.accumulateAndGet(sequences.session(), Math::max);
+        lineItemSequence.accumulateAndGet(sequences.lineItem(), Math::max);
+        orderSequence.accumulateAndGet(sequences.order(), Math::max);
+    }
+
+    /// Next value of every id sequence, so ids of sessions that have left memory are never reused.
+    Sequences sequences() {
+        return new Sequences(sessionSequence.get(), lineItemSequence.get(), orderSequence.get());
+    }
+
+    CheckoutSession create(CheckoutSessionCreateRequest request) {
+        var id = new CheckoutSessionId(nextSessionId());
+        return assemble(
+                id,
+                request.buyer(),
+                request.fulfillmentAddress(),
+                null,
+                request.items(),
+                StatusOverride.AUTO,
+                null);
+    }
+
+    CheckoutSession update(CheckoutSession current, CheckoutSessionUpdateRequest request) {
+        ensureMutable(current);
+        var buyer = request.buyer() != null ? request.buyer() : current.buyer();
+        var fulfillmentAddress = request.fulfillmentAddress() != null
+                ? request.fulfillmentAddress()
+                : current.fulfillmentAddress();
+        var items = request.items() != null ? request.items() : extractItems(current);
+        var fulfillmentOptionId = request.fulfillmentOptionId() != null
+                ? request.fulfillmentOptionId()
+                : current.fulfillmentOptionId();
+        return assemble(
+                current.id(), buyer, fulfillmentAddress, fulfillmentOptionId, items, StatusOverride.AUTO, current.order());
+    }
+
+    CheckoutSession cancel(CheckoutSession current) {
+        if (current.status() == CheckoutSessionStatus.COMPLETED) {
+            throw new CheckoutSessionMethodNotAllowedException("Cannot cancel a completed session");
+        }
+        if (current.status() == CheckoutSessionStatus.CANCELED) {
+            throw new CheckoutSessionMethodNotAllowedException("Checkout session already canceled");
+        }
+        return assemble(
+                current.id(),
+                current.buyer(),
+                current.fulfillmentAddress(),
+                current.fulfillmentOptionId(),
+                extractItems(current),
+                StatusOverride.CANCELED,
+                null);
+    }
+
+    /// Rejects completion of `current` with `request` unless the session is open, uses the supported
+    /// payment provider and satisfies every readiness requirement. Already completed sessions are the
+    /// caller's concern.
+    void ensureCompletable(CheckoutSession current, CheckoutSessionCompleteRequest request) {
+        if (current.status() == CheckoutSessionStatus.CANCELED) {
+            throw new CheckoutSessionConflictException("Cannot complete a canceled session");
+        }
+        if (request.paymentData().provider() != PAYMENT_PROVIDER.provider()) {
+            throw new CheckoutSessionConflictException("Unsupported payment provider: " + request.paymentData().provider());
+        }
+        var readiness = evaluateReadiness(
+                current.fulfillmentAddress(),
+                current.fulfillmentOptionId(),
+                current.fulfillmentOptions());
+        if (!readiness.ready()) {
+            var message = readiness.missing().isEmpty()
+                    ? "Checkout session is not ready for payment"
+                    : readiness.missing().stream()
+                    .map(MissingRequirement::message)
+                    .collect(Collectors.joining("; "));
+            var param = readiness.missing().isEmpty()
+                    ? "$.status"
+                    : readiness.missing().getFirst().param();
+            throw new CheckoutSessionValidationException(message, "session_not_ready", param);
+        }
+    }
+
+    CheckoutSession complete(CheckoutSession current, CheckoutSessionCompleteRequest request) {
+        var id = current.id();
+        var buyer = request.buyer() != null ? request.buyer() : current.buyer();
+        var orderId = nextOrderId();
+        var order = new Order(orderId, id, URI.create("https://merchant.example.com/orders/" + orderId));
+        return assemble(
+                id,
+                buyer,
+                current.fulfillmentAddress(),
+                current.fulfillmentOptionId(),
+                extractItems(current),
+                StatusOverride.COMPLETED,
+                order);
+    }
+
+    /// Webhooks raised when `completed` becomes an order.
+    List<OrderWebhookEvent> completionEvents(CheckoutSession completed) {
+        return List.of(
+                orderCreatedEvent(completed),
+                orderUpdateEvent(completed, OrderWebhookEvent.OrderStatus.CONFIRMED, List.of()));
+    }
+
+    MinorUnitAmount grandTotal(CheckoutSession session) {
+        return session.totals().stream()
+                .filter(total -> total.type() == Total.TotalType.TOTAL)
+                .map(Total::amount)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("checkout_session.totals missing TOTAL entry"));
+    }
+
+    private CheckoutSession assemble(
+            CheckoutSessionId id,
+            Buyer buyer,
+            Address fulfillmentAddress,
+            FulfillmentOptionId requestedFulfillmentOptionId,
+            List<Item> items,
+            StatusOverride override,
+            Order order) {
+        var normalizedItems = List.copyOf(items);
+        var lineItems = priceItems(normalizedItems);
+        var fulfillmentOptions = buildFulfillmentOptions();
+        var fulfillmentOptionId = resolveFulfillmentOptionId(fulfillmentOptions, requestedFulfillmentOptionId);
+        var totals = computeTotals(lineItems, fulfillmentOptions, fulfillmentOptionId);
+        var readiness = evaluateReadiness(fulfillmentAddress, fulfillmentOptionId, fulfillmentOptions);
+        var status = switch (override) {
+            case COMPLETED -> CheckoutSessionStatus.COMPLETED;
+            case CANCELED -> CheckoutSessionStatus.CANCELED;
+            case AUTO -> readiness.ready()
+                    ? CheckoutSessionStatus.READY_FOR_PAYMENT
+                    : CheckoutSessionStatus.NOT_READY_FOR_PAYMENT;
+        };
+        var messages = messagesForStatus(status, readiness);
+        return new CheckoutSession(
+                id,
+                buyer,
+                PAYMENT_PROVIDER,
+                status,
+                currency,
+                lineItems,
+                fulfillmentAddress,
+                fulfillmentOptions,
+                fulfillmentOptionId,
+                totals,
+                messages,
+                DEFAULT_LINKS,
+                order);
+    }
+
+    private List<LineItem> priceItems(List<Item> items) {
+        var result = new ArrayList<LineItem>(items.size());
+        for (var index = 0; index < items.size(); index++) {
+            var item = items.get(index);
+            var unitPrice = priceForItem(item.id(), index);
+            var baseAmount = unitPrice * item.quantity();
+            var discount = 0L;
+            var subtotal = baseAmount - discount;
+            var tax = calculateTax(subtotal);
+            var total = subtotal + tax;
+            result.add(new LineItem(
+                    "line_%06d".formatted(lineItemSequence.getAndIncrement()),
+                    item,
+                    new MinorUnitAmount(baseAmount),
+                    new MinorUnitAmount(discount),
+                    new MinorUnitAmount(subtotal),
+                    new MinorUnitAmount(tax),
+                    new MinorUnitAmount(total)));
+        }
+        return List.copyOf(result);
+    }
+
+    private long calculateTax(long subtotal) {
+        var amount = TAX_RATE.multiply(BigDecimal.valueOf(subtotal));
+        return amount.setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    private List<FulfillmentOption> buildFulfillmentOptions() {
+        var now = Instant.now(clock);
+        return List.of(
+                new FulfillmentOption.Shipping(
+                        "fulfillment_option_standard",
+                        "Standard",
+                        "Arrives in 4-5 days",
+                        "USPS",
+                        now.plus(Duration.ofDays(4)),
+                        now.plus(Duration.ofDays(5)),
+                        new MinorUnitAmount(500),
+                        MinorUnitAmount.zero(),
+                        new MinorUnitAmount(500)),
+                new FulfillmentOption.Shipping(
+                        "fulfillment_option_express",
+                        "Express",
+                        "Arrives in 1-2 days",
+                        "UPS",
+                        now.plus(Duration.ofDays(2)),
+                        now.plus(Duration.ofDays(3)),
+                        new MinorUnitAmount(1500),
+                        MinorUnitAmount.zero(),
+                        new MinorUnitAmount(1500)),
+                new FulfillmentOption.Digital(
+                        "fulfillment_option_digital",
+                        "Instant download",
+                        null,
+                        MinorUnitAmount.zero(),
+                        MinorUnitAmount.zero(),
+                        MinorUnitAmount.zero()));
+    }
+
+    private FulfillmentOptionId resolveFulfillmentOptionId(
+            List<FulfillmentOption> options,
+            FulfillmentOptionId requested) {
+        if (requested != null) {
+            var exists = options.stream().anyMatch(option -> option.id().equals(requested.value()));
+            if (!exists) {
+                throw new CheckoutSessionConflictException("Unknown fulfillment_option_id: " + requested.value());
+            }
+            return requested;
+        }
+        if (options.isEmpty()) {
+            return null;
+        }
+        return new FulfillmentOptionId(options.getFirst().id());
+    }
+
+    private List<Total> computeTotals(
+            List<LineItem> lineItems,
+            List<FulfillmentOption> options,
+            FulfillmentOptionId fulfillmentOptionId) {
+        var baseAmount = sum(lineItems, line -> line.baseAmount().value());
+        var discount = sum(lineItems, line -> line.discount().value());
+        var subtotal = sum(lineItems, line -> line.subtotal().value());
+        var tax = sum(lineItems, line -> line.tax().value());
+        var fulfillment = fulfillmentTotal(options, fulfillmentOptionId);
+        var total = subtotal + tax + fulfillment;
+        return List.of(
+                new Total(Total.TotalType.ITEMS_BASE_AMOUNT, "Item(s) total", new MinorUnitAmount(baseAmount)),
+                new Total(Total.TotalType.ITEMS_DISCOUNT, "Item discount", new MinorUnitAmount(discount)),
+                new Total(Total.TotalType.SUBTOTAL, "Subtotal", new MinorUnitAmount(subtotal)),
+                new Total(Total.TotalType.TAX, "Tax", new MinorUnitAmount(tax)),
+                new Total(Total.TotalType.FULFILLMENT, "Fulfillment", new MinorUnitAmount(fulfillment)),
+                new Total(Total.TotalType.TOTAL, "Total", new MinorUnitAmount(total)));
+    }
+
+    private long fulfillmentTotal(List<FulfillmentOption> options, FulfillmentOptionId fulfillmentOptionId) {
+        if (fulfillmentOptionId == null) {
+            return 0L;
+        }
+        var target = fulfillmentOptionId.value();
+        return options.stream()
+                .filter(option -> option.id().equals(target))
+                .findFirst()
+                .map(option -> option.total().value())
+                .orElse(0L);
+    }
+
+    private Readiness evaluateReadiness(
+            Address fulfillmentAddress,
+            FulfillmentOptionId fulfillmentOptionId,
+            List<FulfillmentOption> fulfillmentOptions) {
+        var requirements = new ArrayList<MissingRequirement>();
+        if (fulfillmentOptionId == null) {
+            requirements.add(new MissingRequirement(
+                    "$.fulfillment_option_id",
+                    "Select a fulfillment option before completing checkout."));
+        }
+        var requiresAddress = requiresShippingAddress(fulfillmentOptions, fulfillmentOptionId);
+        if (requiresAddress && fulfillmentAddress == null) {
+            requirements.add(new MissingRequirement(
+                    "$.fulfillment_address",
+                    "Provide fulfillment_address for shipping fulfillment."));
+        }
+        return new Readiness(requirements.isEmpty(), List.copyOf(requirements));
+    }
+
+    private boolean requiresShippingAddress(
+            List<FulfillmentOption> fulfillmentOptions, FulfillmentOptionId fulfillmentOptionId) {
+        if (fulfillmentOptions.isEmpty()) {
+            return false;
+        }
+        if (fulfillmentOptionId == null) {
+            return fulfillmentOptions.stream().allMatch(option -> option instanceof FulfillmentOption.Shipping);
+        }
+        var target = fulfillmentOptionId.value();
+        return fulfillmentOptions.stream()
+                .filter(option -> option.id().equals(target))
+                .anyMatch(option -> option instanceof FulfillmentOption.Shipping);
+    }
+
+    private List<Message> messagesForStatus(CheckoutSessionStatus status, Readiness readiness) {
+        if (status == CheckoutSessionStatus.CANCELED) {
+            return List.of(new Message.Info(null, Message.ContentType.PLAIN, "Checkout session has been canceled."));
+        }
+        if (status == CheckoutSessionStatus.NOT_READY_FOR_PAYMENT) {
+            var infos = new ArrayList<Message>(readiness.missing().size());
+            for (var requirement : readiness.missing()) {
+                infos.add(new Message.Info(
+                        requirement.param(),
+                        Message.ContentType.PLAIN,
+                        requirement.message()));
+            }
+            return List.copyOf(infos);
+        }
+        return List.of();
+    }
+
+    private void ensureMutable(CheckoutSession session) {
+        if (session.status() == CheckoutSessionStatus.COMPLETED || session.status() == CheckoutSessionStatus.CANCELED) {
+            throw new CheckoutSessionConflictException("Checkout session is immutable in status " + session.status());
+        }
+    }
+
+    private String nextSessionId() {
+        return "csn_%06d".formatted(sessionSequence.getAndIncrement());
+    }
+
+    private String nextOrderId() {
+        return "ord_%06d".formatted(orderSequence.getAndIncrement());
+    }
+
+    private long priceForItem(String itemId, int index) {
+        var price = priceBook.get(itemId);
+        if (price == null) {
+            var param = "$.items[%d].id".formatted(index);
+            throw new CheckoutSessionValidationException(
+                    "Unknown item id: " + itemId, "unknown_item", param, HTTP_BAD_REQUEST);
+        }
+        return price;
+    }
+
+    private OrderWebhookEvent orderCreatedEvent(CheckoutSession session) {
+        return new OrderWebhookEvent(
+                OrderWebhookEvent.Type.ORDER_CREATE,
+                session.id().value(),
+                webhookStatusFor(session.status()),
+                session.order().permalinkUrl(),
+                List.of());
+    }
+
+    private OrderWebhookEvent orderUpdateEvent(
+            CheckoutSession session, OrderWebhookEvent.OrderStatus status, List<OrderWebhookEvent.Refund> refunds) {
+        return new OrderWebhookEvent(
+                OrderWebhookEvent.Type.ORDER_UPDATE,
+                session.id().value(),
+                status,
+                session.order().permalinkUrl(),
+                refunds == null ? List.of() : refunds);
+    }
+
+    record Sequences(long session, long lineItem, long order) {
+    }
+
+    private enum StatusOverride {
+        AUTO,
+        COMPLETED,
+        CANCELED
+    }
+
+    private record MissingRequirement(String param, String message) {
+        MissingRequirement {
+            if (param != null && param.isBlank()) {
+                throw new IllegalArgumentException("missing requirement param MUST be non-blank when provided");
+            }
+            if (message == null || message.isBlank()) {
+                throw new IllegalArgumentException("missing requirement message MUST be non-blank");
+            }
+        }
+    }
+
+    private record Readiness(boolean ready, List<MissingRequirement> missing) {
+        Readiness {
+            missing = List.copyOf(missing);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.spi.storage.CheckoutSessionArchive;
+import com.amannmalik.acp.util.Ensure;
+
+import java.time.Duration;
+
+/// How long checkout sessions stay in memory.
+///
+/// Open sessions expire `abandonAfter` their last write and are dropped. Completed and canceled
+/// sessions are kept for `retainTerminalFor` after reaching that status, then moved to `archive`,
+/// which [CheckoutSessionService#retrieve] still consults. A zero duration keeps the matching
+/// sessions for as long as the process runs.
+public record CheckoutSessionExpiry(Duration abandonAfter, Duration retainTerminalFor, CheckoutSessionArchive archive) {
+    public CheckoutSessionExpiry {
+        abandonAfter = nonNegative("checkout_expiry.abandon_after", abandonAfter);
+        retainTerminalFor = nonNegative("checkout_expiry.retain_terminal_for", retainTerminalFor);
+        archive = archive == null ? CheckoutSessionArchive.NOOP : archive;
+    }
+
+    public static CheckoutSessionExpiry never() {
+        return new CheckoutSessionExpiry(Duration.ZERO, Duration.ZERO, CheckoutSessionArchive.NOOP);
+    }
+
+    private static Duration nonNegative(String field, Duration value) {
+        Ensure.notNull(field, value);
+        if (value.isNegative()) {
+            throw new IllegalArgumentException(field + " MUST be >= 0");
+        }
+        return value;
+    }
+
+    public boolean isEnabled() {
+        return !abandonAfter.isZero() || !retainTerminalFor.isZero();
+    }
+}
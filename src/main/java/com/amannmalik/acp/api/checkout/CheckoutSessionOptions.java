@@ -0,0 +1,81 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.IdempotencyTable;
+
+/// Collaborators and policies shared by the checkout service engines. Start from [#defaults()] and
+/// replace only what differs through the `with` methods, so every call site names the settings it
+/// changes rather than relying on argument position.
+///
+/// @param webhookPublisher receives order webhooks; inline without a journal, through the durable
+/// outbox with one
+/// @param tokenValidator reserves delegated payment tokens on completion
+/// @param journal restored from on construction and appended to by every mutation; calls return only
+/// once their records are durable
+/// @param idempotencyRetention how long idempotency records are kept, on the service's clock
+/// @param expiry when sessions leave memory, on the service's clock
+/// @param store where live sessions are kept, or `null` for the heap. The caller owns it
+/// @param webhookDeadLetters takes webhooks a named endpoint keeps refusing through the outbox, or
+/// refuses once when published inline, filed under that endpoint, or `null` to retry outbox webhooks
+/// forever and drop refused inline ones. The caller owns it
+public record CheckoutSessionOptions(
+        OrderWebhookPublisher webhookPublisher,
+        DelegatePaymentTokenValidator tokenValidator,
+        CheckoutSessionJournal journal,
+        IdempotencyTable.Retention idempotencyRetention,
+        CheckoutSessionExpiry expiry,
+        CheckoutSessionStore store,
+        DeadLetterStore webhookDeadLetters) {
+    public CheckoutSessionOptions {
+        webhookPublisher = webhookPublisher == null ? OrderWebhookPublisher.NOOP : webhookPublisher;
+        tokenValidator = tokenValidator == null ? DelegatePaymentTokenValidator.NOOP : tokenValidator;
+        journal = journal == null ? CheckoutSessionJournal.NOOP : journal;
+        idempotencyRetention = idempotencyRetention == null ? IdempotencyTable.Retention.defaults() : idempotencyRetention;
+        expiry = expiry == null ? CheckoutSessionExpiry.never() : expiry;
+    }
+
+    /// No webhooks, no token validation, no journal, default idempotency retention, sessions kept
+    /// forever on the heap.
+    public static CheckoutSessionOptions defaults() {
+        return new CheckoutSessionOptions(null, null, null, null, null, null, null);
+    }
+
+    public CheckoutSessionOptions withWebhookPublisher(OrderWebhookPublisher webhookPublisher) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+
+    public CheckoutSessionOptions withTokenValidator(DelegatePaymentTokenValidator tokenValidator) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+
+    public CheckoutSessionOptions withJournal(CheckoutSessionJournal journal) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+
+    public CheckoutSessionOptions withIdempotencyRetention(IdempotencyTable.Retention idempotencyRetention) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+
+    public CheckoutSessionOptions withExpiry(CheckoutSessionExpiry expiry) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+
+    public CheckoutSessionOptions withStore(CheckoutSessionStore store) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+
+    public CheckoutSessionOptions withWebhookDeadLetters(DeadLetterStore webhookDeadLetters) {
+        return new CheckoutSessionOptions(
+                webhookPublisher, tokenValidator, journal, idempotencyRetention, expiry, store, webhookDeadLetters);
+    }
+}
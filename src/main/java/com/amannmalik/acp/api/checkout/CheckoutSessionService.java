@@ -1,15 +1,90 @@
 package com.amannmalik.acp.api.checkout;
 
 import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
 
-public interface CheckoutSessionService {
+import java.util.Map;
+import java.util.function.Function;
+
+public interface CheckoutSessionService extends AutoCloseable {
     CheckoutSession create(CheckoutSessionCreateRequest request, String idempotencyKey);
 
+    /// As above, with the request's [Fingerprint] already computed by the caller. The default
+    /// ignores it.
+    default CheckoutSession create(CheckoutSessionCreateRequest request, String idempotencyKey, Fingerprint fingerprint) {
+        return create(request, idempotencyKey);
+    }
+
+    /// As above, answered with what `respond` makes of the new session. That reply is recorded and
+    /// journaled under the key, so every retry, after a restart too, gets the same status and bytes
+    /// back without encoding anything. The default records nothing.
+    default IdempotentReply.Encoded create(
+            CheckoutSessionCreateRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return respond.apply(create(request, idempotencyKey, fingerprint));
+    }
+
+    /// The reply recorded for a `create` under `idempotencyKey`, waiting for one still in progress,
+    /// or `null` if there is none. Never creates anything; `respond` only encodes a reply recorded
+    /// through the Java API. The default records nothing.
+    default IdempotentReply.Encoded replayCreate(
+            String idempotencyKey, Fingerprint fingerprint, Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return null;
+    }
+
     CheckoutSession update(CheckoutSessionId id, CheckoutSessionUpdateRequest request);
 
     CheckoutSession retrieve(CheckoutSessionId id);
 
     CheckoutSession complete(CheckoutSessionId id, CheckoutSessionCompleteRequest request, String idempotencyKey);
 
+    /// As above, with the request's [Fingerprint] already computed by the caller. The default
+    /// ignores it.
+    default CheckoutSession complete(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint) {
+        return complete(id, request, idempotencyKey);
+    }
+
+    /// As [#create(CheckoutSessionCreateRequest, String, Fingerprint, Function)], for `complete`.
+    default IdempotentReply.Encoded complete(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return respond.apply(complete(id, request, idempotencyKey, fingerprint));
+    }
+
+    /// As [#replayCreate(String, Fingerprint, Function)], for `complete`.
+    default IdempotentReply.Encoded replayComplete(
+            CheckoutSessionId id,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return null;
+    }
+
     CheckoutSession cancel(CheckoutSessionId id);
+
+    /// Size and eviction counters of the idempotency tables by operation. The default has none.
+    default Map<String, IdempotencyTable.Stats> idempotencyStats() {
+        return Map.of();
+    }
+
+    /// Order webhooks a receiver refused when published inline, without a journal, since startup.
+    /// The default has none.
+    default long inlineWebhookFailures() {
+        return 0;
+    }
+
+    /// Releases background resources such as webhook delivery workers. The default does nothing.
+    @Override
+    default void close() {
+    }
 }
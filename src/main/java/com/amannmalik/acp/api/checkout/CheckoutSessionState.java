@@ -0,0 +1,442 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.api.checkout.model.CheckoutSessionId;
+import com.amannmalik.acp.api.checkout.model.CheckoutSessionStatus;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.spi.storage.JournalRecord;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
+import com.amannmalik.acp.util.TimingWheel;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/// Session and idempotency maps shared by the service engines, together with the journal that
+/// persists them and the outbox that carries their order webhooks. Engines decide how mutations are
+/// serialized; this class only guarantees that whatever they append is recoverable and that
+/// compaction never snapshots a map that lags the log.
+///
+/// Session lifetimes from [CheckoutSessionExpiry] are tracked on a [TimingWheel] keyed by session
+/// id. Engines restart a session's lifetime whenever they store it and remove the sessions the wheel
+/// reports as due through [#expire(PendingCommit, CheckoutSession)], under the same serialization as
+/// their other mutations of that session.
+final class CheckoutSessionState implements AutoCloseable {
+    private static final System.Logger LOG = System.getLogger(CheckoutSessionState.class.getName());
+    /// How long a duplicate request waits for the original to finish before reporting a conflict.
+    private static final Duration IDEMPOTENCY_WAIT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration EXPIRY_TICK = Duration.ofSeconds(1);
+    /// Delay before retrying a session whose expiry failed, e.g. because the archive was unwritable.
+    private static final Duration EXPIRY_RETRY = Duration.ofMinutes(1);
+    /// Rough retained size of a session snapshot, for replies that keep one.
+    private static final long SNAPSHOT_BYTES = 2048;
+
+    final CheckoutSessionStore sessions;
+    /// Idempotency entries keep the request [Fingerprint] and the [IdempotentReply] the call answered,
+    /// journaled together, so a retry gets that reply back after a restart or compaction too.
+    final IdempotencyTable<String, Fingerprint, IdempotentReply> createIdempotency;
+    final IdempotencyTable<CompleteIdempotencyKey, Fingerprint, IdempotentReply> completeIdempotency;
+    private final OrderWebhookPublisher webhookPublisher;
+    /// Receivers published to on the calling thread when there is no outbox, by endpoint name; `""`
+    /// names a publisher that is a single unnamed receiver.
+    private final Map<String, OrderWebhookPublisher> inlineReceivers;
+    private final DeadLetterStore webhookDeadLetters;
+    private final LongAdder inlineWebhookFailures = new LongAdder();
+    private final CheckoutSessionJournal journal;
+    private final OrderWebhookOutbox outbox;
+    /// Mutations hold the read side from append through the map update; compaction takes the write
+    /// side once so every record in a rolled segment is visible in the maps before the snapshot is read.
+    private final ReadWriteLock journalBarrier = new ReentrantReadWriteLock();
+    private final CheckoutSessionExpiry expiry;
+    private final Clock clock;
+    private final CheckoutSessionAssembler assembler;
+    private final ReentrantLock lifetimeLock = new ReentrantLock();
+    private final TimingWheel<String> lifetimes;
+    private ScheduledExecutorService sweeper;
+
+    /// Restores state from the journal in `options`, then resumes delivery of any webhooks still in
+    /// its outbox. A [CheckoutSessionStore#durable()] store is then scanned once, so ids are never
+    /// handed out twice and its sessions expire even when no journal record mentions them.
+    /// Idempotency entries and sessions restored from the journal or the store start a fresh
+    /// retention period.
+    CheckoutSessionState(CheckoutSessionAssembler assembler, CheckoutSessionOptions options, Clock clock) {
+        this.sessions = options.store() == null ? new HeapCheckoutSessionStore() : options.store();
+        this.assembler = assembler;
+        this.expiry = options.expiry();
+        this.clock = clock;
+        this.lifetimes = new TimingWheel<>(EXPIRY_TICK, clock.instant());
+        var retention = options.idempotencyRetention();
+        this.createIdempotency = new IdempotencyTable<>(
+                IDEMPOTENCY_WAIT_TIMEOUT,
+                CheckoutSessionIdempotencyConflictException::new,
+                retention,
+                clock,
+                CheckoutSessionState::weigh);
+        this.completeIdempotency = new IdempotencyTable<>(
+                IDEMPOTENCY_WAIT_TIMEOUT,
+                CheckoutSessionIdempotencyConflictException::new,
+                retention,
+                clock,
+                CheckoutSessionState::weigh);
+        this.webhookPublisher = options.webhookPublisher();
+        var endpoints = this.webhookPublisher.endpoints();
+        this.inlineReceivers = endpoints.isEmpty() ? Map.of("", this.webhookPublisher) : endpoints;
+        this.webhookDeadLetters = options.webhookDeadLetters();
+        this.journal = options.journal();
+        this.outbox = this.journal == CheckoutSessionJournal.NOOP
+                ? null
+                : new OrderWebhookOutbox(this.webhookPublisher, this.journal, options.webhookDeadLetters());
+        this.journal.replay(this::apply);
+        if (sessions.durable()) {
+            try (var stored = sessions.values()) {
+                stored.forEach(session -> {
+                    assembler.restoreSequences(session);
+                    track(session);
+                });
+            }
+        }
+        this.journal.compactFrom(this::liveState);
+        if (outbox != null) {
+            outbox.start();
+        }
+    }
+
+    private static boolean terminal(CheckoutSession session) {
+        return session.status() == CheckoutSessionStatus.COMPLETED || session.status() == CheckoutSessionStatus.CANCELED;
+    }
+
+    private static long weigh(IdempotentReply reply) {
+        return switch (reply) {
+            case IdempotentReply.Snapshot ignored -> SNAPSHOT_BYTES;
+            case IdempotentReply.Encoded encoded -> 2L * encoded.sessionId().value().length() + encoded.body().length;
+            case IdempotentReply.Unrecorded unrecorded -> 2L * unrecorded.sessionId().value().length();
+        };
+    }
+
+    Map<String, IdempotencyTable.Stats> idempotencyStats() {
+        return Map.of("create", createIdempotency.stats(), "complete", completeIdempotency.stats());
+    }
+
+    /// Restarts the lifetime of `session` from now, as an open or terminal session according to its
+    /// status. Call whenever the session is stored, under the engine's serialization for it.
+    void track(CheckoutSession session) {
+        var id = session.id().value();
+        var ttl = terminal(session) ? expiry.retainTerminalFor() : expiry.abandonAfter();
+        lifetimeLock.lock();
+        try {
+            if (ttl.isZero()) {
+                lifetimes.cancel(id);
+            } else {
+                lifetimes.schedule(id, clock.instant().plus(ttl));
+            }
+        } finally {
+            lifetimeLock.unlock();
+        }
+    }
+
+    /// Ids of sessions whose lifetime has run out. Each is unscheduled and MUST be passed to
+    /// [#expire(PendingCommit, CheckoutSession)] or [#retryExpiry(String)].
+    List<String> dueSessions() {
+        var due = new ArrayList<String>();
+        lifetimeLock.lock();
+        try {
+            lifetimes.advance(clock.instant(), due::add);
+        } finally {
+            lifetimeLock.unlock();
+        }
+        return due;
+    }
+
+    /// Archives `current` if it is terminal and journals its removal, returning `true` if the caller
+    /// should now drop it from the map. Returns `false` without side effects when the session was
+    /// stored again after it fell due. Call under the barrier and the engine's serialization for it.
+    boolean expire(PendingCommit commit, CheckoutSession current) {
+        var id = current.id().value();
+        lifetimeLock.lock();
+        try {
+            if (lifetimes.contains(id)) {
+                return false;
+            }
+        } finally {
+            lifetimeLock.unlock();
+        }
+        if (terminal(current)) {
+            expiry.archive().store(current);
+        }
+        commit.position = journal.append(new JournalRecord.SessionExpired(id));
+        return true;
+    }
+
+    /// Schedules another expiry attempt for a due session whose removal failed.
+    void retryExpiry(String id) {
+        lifetimeLock.lock();
+        try {
+            if (!lifetimes.contains(id)) {
+                lifetimes.schedule(id, clock.instant().plus(EXPIRY_RETRY));
+            }
+        } finally {
+            lifetimeLock.unlock();
+        }
+    }
+
+    /// The session a caller of the Java API gets back for `reply`: the snapshot it recorded, or else
+    /// the session as it is now.
+    CheckoutSession replayed(IdempotentReply reply) {
+        if (reply instanceof IdempotentReply.Snapshot(var session)) {
+            return session;
+        }
+        var session = sessions.get(reply.sessionId().value());
+        return session == null ? archived(reply.sessionId()) : session;
+    }
+
+    /// The HTTP response for `reply`: the bytes it recorded, or else what `respond` makes of
+    /// [#replayed(IdempotentReply)].
+    IdempotentReply.Encoded replayed(IdempotentReply reply, Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return reply instanceof IdempotentReply.Encoded encoded ? encoded : respond.apply(replayed(reply));
+    }
+
+    /// Looks `id` up in the archive once it is no longer in memory.
+    CheckoutSession archived(CheckoutSessionId id) {
+        return expiry.archive().find(id.value()).orElseThrow(() -> new CheckoutSessionNotFoundException(id));
+    }
+
+    /// Runs `sweep` every tick on a daemon thread, if any lifetime is configured. Call once, after
+    /// the engine is fully constructed.
+    void startSweeper(Runnable sweep) {
+        if (!expiry.isEnabled()) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("acp-session-expiry").daemon().factory());
+        var tick = EXPIRY_TICK.toMillis();
+        sweeper.scheduleWithFixedDelay(sweep, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /// Runs `mutation` under the journal barrier, then blocks until the position it recorded in the
+    /// supplied holder is durable. Waiting happens outside every map lock so commits can group.
+    <T> T journaled(Function<PendingCommit, T> mutation) {
+        var commit = new PendingCommit();
+        T result;
+        try {
+            result = underBarrier(() -> mutation.apply(commit));
+        } catch (RuntimeException e) {
+            abandon(commit);
+            throw e;
+        }
+        settle(commit);
+        return result;
+    }
+
+    /// Runs `step`, which appends and then applies the matching map update, so compaction cannot
+    /// observe one without the other.
+    <T> T underBarrier(Supplier<T> step) {
+        journalBarrier.readLock().lock();
+        try {
+            return step.get();
+        } finally {
+            journalBarrier.readLock().unlock();
+        }
+    }
+
+    long append(JournalRecord... records) {
+        return journal.append(records);
+    }
+
+    /// Appends `records` together with an outbox entry per event as one journal frame and remembers
+    /// the entries in `commit`. Without an outbox nothing is staged and [#settle(PendingCommit)]
+    /// publishes the events on the calling thread instead.
+    void appendWithWebhooks(PendingCommit commit, List<JournalRecord> records, List<OrderWebhookEvent> events) {
+        var frame = new ArrayList<JournalRecord>(records.size() + events.size());
+        frame.addAll(records);
+        if (outbox != null) {
+            for (var event : events) {
+                var enqueued = outbox.stage(event);
+                commit.webhooks.add(enqueued.sequence());
+                frame.add(enqueued);
+            }
+        } else {
+            commit.inlineWebhooks.addAll(events);
+        }
+        commit.position = journal.append(frame.toArray(JournalRecord[]::new));
+    }
+
+    /// Blocks until `commit` is durable, then hands its webhooks to the outbox, or publishes them on
+    /// the calling thread when there is none. Engines call this outside every session lock and
+    /// mailbox, so a publisher that blocks for capacity never stalls other requests for the session.
+    /// A receiver that refuses an inline webhook never fails the call, whose transition is already
+    /// committed: see [#publishInline(OrderWebhookEvent)].
+    void settle(PendingCommit commit) {
+        try {
+            journal.await(commit.position);
+        } catch (RuntimeException e) {
+            abandon(commit);
+            throw e;
+        }
+        if (outbox != null) {
+            outbox.release(commit.webhooks);
+        }
+        commit.inlineWebhooks.forEach(this::publishInline);
+    }
+
+    /// Inline webhooks a receiver refused, e.g. because its queue was full, since startup.
+    long inlineWebhookFailures() {
+        return inlineWebhookFailures.sum();
+    }
+
+    /// Publishes `event` to each receiver in turn. A refusal is logged and counted, and the event is
+    /// dead-lettered under the receiver's name when there is a store for it; otherwise it is lost.
+    private void publishInline(OrderWebhookEvent event) {
+        inlineReceivers.forEach((name, receiver) -> {
+            try {
+                receiver.publish(event);
+            } catch (RuntimeException e) {
+                inlineWebhookFailures.increment();
+                if (webhookDeadLetters == null || name.isEmpty()) {
+                    LOG.log(System.Logger.Level.ERROR, "Dropped webhook for " + event.checkoutSessionId(), e);
+                    return;
+                }
+                try {
+                    webhookDeadLetters.forEndpoint(name).deadLetter(event, 1, e);
+                    LOG.log(System.Logger.Level.WARNING,
+                            "Dead-lettered webhook for " + event.checkoutSessionId() + " refused by " + name, e);
+                } catch (RuntimeException deadLetterFailure) {
+                    deadLetterFailure.addSuppressed(e);
+                    LOG.log(System.Logger.Level.ERROR,
+                            "Failed to dead-letter webhook for " + event.checkoutSessionId(), deadLetterFailure);
+                }
+            }
+        });
+    }
+
+    /// Drops webhooks staged by a mutation that did not commit.
+    void abandon(PendingCommit commit) {
+        if (outbox != null) {
+            outbox.discard(commit.webhooks);
+        }
+    }
+
+    private void apply(JournalRecord record) {
+        switch (record) {
+            case JournalRecord.SessionWritten(var session) -> {
+                sessions.put(session);
+                assembler.restoreSequences(session);
+                track(session);
+            }
+            case JournalRecord.SessionExpired(var sessionId) -> {
+                sessions.remove(sessionId);
+                lifetimeLock.lock();
+                try {
+                    lifetimes.cancel(sessionId);
+                } finally {
+                    lifetimeLock.unlock();
+                }
+            }
+            case JournalRecord.CreateIdempotencyRecorded(var key, var fingerprint, var reply) ->
+                    createIdempotency.restore(key, fingerprint, reply);
+            case JournalRecord.CompleteIdempotencyRecorded(var sessionId, var key, var fingerprint, var reply) ->
+                    completeIdempotency.restore(new CompleteIdempotencyKey(sessionId, key), fingerprint, reply);
+            case JournalRecord.WebhookEnqueued enqueued -> outbox.restore(enqueued);
+            case JournalRecord.WebhookDelivered delivered -> outbox.restore(delivered);
+            case JournalRecord.WebhookAcknowledged acknowledged -> outbox.restore(acknowledged);
+            case JournalRecord.SequencesReserved(var session, var lineItem, var order) ->
+                    assembler.restoreSequences(new CheckoutSessionAssembler.Sequences(session, lineItem, order));
+        }
+    }
+
+    /// A durable store is checkpointed instead of copied, so snapshots stay proportional to what
+    /// only the journal holds.
+    private Stream<JournalRecord> liveState() {
+        journalBarrier.writeLock().lock();
+        journalBarrier.writeLock().unlock();
+        var durable = sessions.durable();
+        if (durable) {
+            sessions.checkpoint();
+        }
+        var sequences = assembler.sequences();
+        return Stream.of(
+                Stream.<JournalRecord>of(new JournalRecord.SequencesReserved(
+                        sequences.session(), sequences.lineItem(), sequences.order())),
+                outbox == null ? Stream.<JournalRecord>empty() : outbox.liveState(),
+                durable
+                        ? Stream.<JournalRecord>empty()
+                        : sessions.values().<JournalRecord>map(JournalRecord.SessionWritten::new),
+                createIdempotency.completed()
+                        .<JournalRecord>map(entry -> new JournalRecord.CreateIdempotencyRecorded(
+                                entry.key(), entry.fingerprint(), entry.value())),
+                completeIdempotency.completed()
+                        .<JournalRecord>map(entry -> new JournalRecord.CompleteIdempotencyRecorded(
+                                entry.key().sessionId(), entry.key().idempotencyKey(), entry.fingerprint(), entry.value())))
+                .flatMap(Function.identity());
+    }
+
+    /// Stops the expiry sweeper and background webhook delivery. Undelivered outbox entries stay in
+    /// the journal and resume on the next start.
+    @Override
+    public void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /// Per-call scratch state filled in by a mutation and settled once it is durable.
+    static final class PendingCommit {
+        private final List<Long> webhooks = new ArrayList<>();
+        private final List<OrderWebhookEvent> inlineWebhooks = new ArrayList<>();
+        long position;
+    }
+
+    record CompleteIdempotencyKey(String sessionId, String idempotencyKey) {
+    }
+
+    /// An owned `complete` idempotency claim, journaled in the same frame as the completion it
+    /// answers: append [#record(CheckoutSession)], then [#commit()] once the append succeeded.
+    static final class RecordedCompletion {
+        private final IdempotencyTable.Claim<CompleteIdempotencyKey, Fingerprint, IdempotentReply> claim;
+        private final CompleteIdempotencyKey key;
+        private final Fingerprint fingerprint;
+        private final Function<CheckoutSession, ? extends IdempotentReply> respond;
+        private IdempotentReply reply;
+
+        RecordedCompletion(
+                IdempotencyTable.Claim<CompleteIdempotencyKey, Fingerprint, IdempotentReply> claim,
+                CompleteIdempotencyKey key,
+                Fingerprint fingerprint,
+                Function<CheckoutSession, ? extends IdempotentReply> respond) {
+            this.claim = claim;
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.respond = respond;
+        }
+
+        JournalRecord record(CheckoutSession session) {
+            reply = respond.apply(session);
+            return new JournalRecord.CompleteIdempotencyRecorded(key.sessionId(), key.idempotencyKey(), fingerprint, reply);
+        }
+
+        void commit() {
+            claim.commit(reply);
+        }
+
+        IdempotentReply reply() {
+            return reply;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.util.ConcurrentLongHashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/// Default [CheckoutSessionStore]. Ids minted by [CheckoutSessionAssembler] are keyed by their
+/// sequence number in a [ConcurrentLongHashMap], so lookups neither hash the id string nor allocate
+/// a node per session; any other id format falls back to a `ConcurrentHashMap`. Both make
+/// [#compute(String, UnaryOperator)] atomic per id.
+final class HeapCheckoutSessionStore implements CheckoutSessionStore {
+    private final ConcurrentLongHashMap<CheckoutSession> sequential = new ConcurrentLongHashMap<>();
+    private final ConcurrentMap<String, CheckoutSession> foreign = new ConcurrentHashMap<>();
+
+    @Override
+    public CheckoutSession get(String sessionId) {
+        var number = CheckoutSessionAssembler.sessionNumber(sessionId);
+        return number > 0 ? sequential.get(number) : foreign.get(sessionId);
+    }
+
+    @Override
+    public void put(CheckoutSession session) {
+        var sessionId = session.id().value();
+        var number = CheckoutSessionAssembler.sessionNumber(sessionId);
+        if (number > 0) {
+            sequential.put(number, session);
+        } else {
+            foreign.put(sessionId, session);
+        }
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        var number = CheckoutSessionAssembler.sessionNumber(sessionId);
+        if (number > 0) {
+            sequential.remove(number);
+        } else {
+            foreign.remove(sessionId);
+        }
+    }
+
+    @Override
+    public CheckoutSession compute(String sessionId, UnaryOperator<CheckoutSession> remapping) {
+        var number = CheckoutSessionAssembler.sessionNumber(sessionId);
+        return number > 0
+                ? sequential.compute(number, remapping)
+                : foreign.compute(sessionId, (key, current) -> remapping.apply(current));
+    }
+
+    @Override
+    public int size() {
+        return sequential.size() + foreign.size();
+    }
+
+    @Override
+    public Stream<CheckoutSession> values() {
+        return Stream.concat(sequential.values(), foreign.values().stream());
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,44 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.api.checkout.model.CheckoutSessionId;
+import com.amannmalik.acp.util.Ensure;
+
+/// What an idempotent `create` or `complete` answered, recorded under its key and journaled with
+/// it, so a retry is answered with exactly the same thing, after a restart too, rather than with the
+/// session's current state.
+public sealed interface IdempotentReply permits
+        IdempotentReply.Snapshot,
+        IdempotentReply.Encoded,
+        IdempotentReply.Unrecorded {
+
+    CheckoutSessionId sessionId();
+
+    /// The session as a caller of the Java API got it back.
+    record Snapshot(CheckoutSession session) implements IdempotentReply {
+        public Snapshot {
+            session = Ensure.notNull("idempotency.session", session);
+        }
+
+        @Override
+        public CheckoutSessionId sessionId() {
+            return session.id();
+        }
+    }
+
+    /// The response as sent over HTTP: its status code and exact body bytes. `body` is shared with
+    /// every replay and MUST NOT be modified.
+    record Encoded(CheckoutSessionId sessionId, int status, byte[] body) implements IdempotentReply {
+        public Encoded {
+            sessionId = Ensure.notNull("idempotency.session_id", sessionId);
+            body = Ensure.notNull("idempotency.body", body);
+        }
+    }
+
+    /// Journaled before replies were recorded; answered with the session's current state.
+    record Unrecorded(CheckoutSessionId sessionId) implements IdempotentReply {
+        public Unrecorded {
+            sessionId = Ensure.notNull("idempotency.session_id", sessionId);
+        }
+    }
+}
@@ -1,52 +1,38 @@
 package com.amannmalik.acp.api.checkout;
 
+import com.amannmalik.acp.api.checkout.CheckoutSessionState.CompleteIdempotencyKey;
+import com.amannmalik.acp.api.checkout.CheckoutSessionState.PendingCommit;
+import com.amannmalik.acp.api.checkout.CheckoutSessionState.RecordedCompletion;
 import com.amannmalik.acp.api.checkout.model.*;
 import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenException;
 import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator;
 import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator.TokenReservation;
 import com.amannmalik.acp.api.shared.CurrencyCode;
-import com.amannmalik.acp.api.shared.MinorUnitAmount;
-import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.spi.storage.JournalRecord;
 import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
-import com.amannmalik.acp.util.Ensure;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.net.URI;
-import java.time.*;
+import java.time.Clock;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.ToLongFunction;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
+/// Checkout service that serializes each session mutation inside a [CheckoutSessionStore#compute]
+/// on the session, a `ConcurrentHashMap.compute` with the default heap store. Simple and
+/// allocation-light, but the store's lock is held across token reservation; see [MailboxCheckoutSessionService] for an engine that never holds a
+/// lock across external calls. Duplicate idempotent requests wait on the original's
+/// [IdempotencyTable] entry rather than on a map lock.
 public final class InMemoryCheckoutSessionService implements CheckoutSessionService {
-    private static final PaymentProvider PAYMENT_PROVIDER = new PaymentProvider(
-            PaymentProvider.Provider.STRIPE,
-            List.of(PaymentProvider.PaymentMethod.CARD));
-    private static final List<Link> DEFAULT_LINKS = List.of(
-            new Link(Link.LinkType.TERMS_OF_USE, URI.create("https://merchant.example.com/legal/terms-of-use")),
-            new Link(Link.LinkType.PRIVACY_POLICY, URI.create("https://merchant.example.com/legal/privacy")));
-    private static final BigDecimal TAX_RATE = new BigDecimal("0.0825");
-
-    private static final int HTTP_BAD_REQUEST = 400;
-
-    private final ConcurrentMap<String, CheckoutSession> sessions = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, StoredCreateRequest> createIdempotency = new ConcurrentHashMap<>();
-    private final ConcurrentMap<CompleteIdempotencyKey, StoredCompleteRequest> completeIdempotency =
-            new ConcurrentHashMap<>();
-    private final AtomicLong sessionSequence = new AtomicLong(1);
-    private final AtomicLong lineItemSequence = new AtomicLong(1);
-    private final AtomicLong orderSequence = new AtomicLong(1);
-    private final Map<String, Long> priceBook;
-    private final Clock clock;
-    private final CurrencyCode currency;
-    private final OrderWebhookPublisher webhookPublisher;
+    private static final int HTTP_BAD_REQUEST = CheckoutSessionAssembler.HTTP_BAD_REQUEST;
+
+    private final CheckoutSessionAssembler assembler;
     private final DelegatePaymentTokenValidator tokenValidator;
+    private final CheckoutSessionState state;
+    private final CheckoutSessionStore sessions;
+
     public InMemoryCheckoutSessionService(Map<String, Long> priceBook, Clock clock, CurrencyCode currency) {
-        this(priceBook, clock, currency, OrderWebhookPublisher.NOOP, DelegatePaymentTokenValidator.NOOP);
+        this(priceBook, clock, currency, CheckoutSessionOptions.defaults());
     }
 
     public InMemoryCheckoutSessionService(
@@ -54,7 +40,7 @@ public final class InMemoryCheckoutSessionService implements CheckoutSessionServ
             Clock clock,
             CurrencyCode currency,
             OrderWebhookPublisher webhookPublisher) {
-        this(priceBook, clock, currency, webhookPublisher, DelegatePaymentTokenValidator.NOOP);
+        this(priceBook, clock, currency, CheckoutSessionOptions.defaults().withWebhookPublisher(webhookPublisher));
     }
 
     public InMemoryCheckoutSessionService(
@@ -63,82 +49,53 @@ public final class InMemoryCheckoutSessionService implements CheckoutSessionServ
             CurrencyCode currency,
             OrderWebhookPublisher webhookPublisher,
             DelegatePaymentTokenValidator tokenValidator) {
-        this.priceBook = validatePriceBook(priceBook);
-        this.clock = Objects.requireNonNullElse(clock, Clock.systemUTC());
-        this.currency = currency == null ? new CurrencyCode("usd") : currency;
-        this.webhookPublisher = webhookPublisher == null ? OrderWebhookPublisher.NOOP : webhookPublisher;
-        this.tokenValidator = tokenValidator == null ? DelegatePaymentTokenValidator.NOOP : tokenValidator;
+        this(priceBook, clock, currency, CheckoutSessionOptions.defaults()
+                .withWebhookPublisher(webhookPublisher)
+                .withTokenValidator(tokenValidator));
+    }
+
+    /// With a journal in `options`, state is restored from it before returning and every subsequent
+    /// mutation is persisted to it; calls return only once their journal records are durable, and
+    /// order webhooks go through a durable outbox and are delivered in the background instead of
+    /// inline.
+    public InMemoryCheckoutSessionService(
+            Map<String, Long> priceBook,
+            Clock clock,
+            CurrencyCode currency,
+            CheckoutSessionOptions options) {
+        this.assembler = new CheckoutSessionAssembler(priceBook, clock, currency);
+        this.tokenValidator = options.tokenValidator();
+        this.state = new CheckoutSessionState(assembler, options, clock);
+        this.sessions = state.sessions;
+        state.startSweeper(this::expireSessions);
     }
 
     public InMemoryCheckoutSessionService() {
-        this(defaultPriceBook(), Clock.systemUTC(), new CurrencyCode("usd"));
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), new CurrencyCode("usd"));
     }
 
     public InMemoryCheckoutSessionService(OrderWebhookPublisher webhookPublisher) {
-        this(defaultPriceBook(), Clock.systemUTC(), new CurrencyCode("usd"), webhookPublisher);
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), new CurrencyCode("usd"), webhookPublisher);
     }
 
     public InMemoryCheckoutSessionService(CurrencyCode currency) {
-        this(defaultPriceBook(), Clock.systemUTC(), currency);
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), currency);
     }
 
     public InMemoryCheckoutSessionService(CurrencyCode currency, OrderWebhookPublisher webhookPublisher) {
-        this(defaultPriceBook(), Clock.systemUTC(), currency, webhookPublisher);
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), currency, webhookPublisher);
     }
 
     public InMemoryCheckoutSessionService(
             CurrencyCode currency,
             OrderWebhookPublisher webhookPublisher,
             DelegatePaymentTokenValidator tokenValidator) {
-        this(defaultPriceBook(), Clock.systemUTC(), currency, webhookPublisher, tokenValidator);
-    }
-
-    private static List<Item> extractItems(CheckoutSession session) {
-        return session.lineItems().stream().map(LineItem::item).toList();
-    }
-
-    private static long sum(List<LineItem> lineItems, ToLongFunction<LineItem> mapper) {
-        return lineItems.stream().mapToLong(mapper).sum();
-    }
-
-    private static Map<String, Long> defaultPriceBook() {
-        return Map.of(
-                "item_123", 1500L,
-                "item_456", 3000L,
-                "item_789", 5000L);
-    }
-
-    private static Map<String, Long> validatePriceBook(Map<String, Long> source) {
-        if (source == null || source.isEmpty()) {
-            throw new IllegalArgumentException("price_book MUST include at least one item");
-        }
-        var normalized = new LinkedHashMap<String, Long>(source.size());
-        source.forEach((rawId, rawPrice) -> {
-            if (rawId == null) {
-                throw new IllegalArgumentException("price_book item id MUST NOT be null");
-            }
-            var id = rawId.trim();
-            if (id.isEmpty()) {
-                throw new IllegalArgumentException("price_book item id MUST be non-blank");
-            }
-            if (normalized.containsKey(id)) {
-                throw new IllegalArgumentException("Duplicate price_book item id: " + id);
-            }
-            if (rawPrice == null) {
-                throw new IllegalArgumentException("price_book[" + id + "] MUST NOT be null");
-            }
-            Ensure.nonNegative("price_book[" + id + "]", rawPrice);
-            normalized.put(id, rawPrice);
-        });
-        return Map.copyOf(normalized);
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), currency, webhookPublisher, tokenValidator);
     }
 
-    private static OrderWebhookEvent.OrderStatus webhookStatusFor(CheckoutSessionStatus status) {
-        return switch (status) {
-            case COMPLETED -> OrderWebhookEvent.OrderStatus.CREATED;
-            case CANCELED -> OrderWebhookEvent.OrderStatus.CANCELED;
-            default -> throw new IllegalStateException("Unsupported checkout status for order webhook: " + status);
-        };
+    /// As above, with the default price book on the system clock.
+    public InMemoryCheckoutSessionService(CurrencyCode currency, CheckoutSessionOptions options) {
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), currency, options);
     }
 
     private static String normalizeIdempotencyKey(String key) {
@@ -151,387 +108,188 @@ public final class InMemoryCheckoutSessionService implements CheckoutSessionServ
 
     @Override
     public CheckoutSession create(CheckoutSessionCreateRequest request, String idempotencyKey) {
+        return create(request, idempotencyKey, Fingerprint.of(request));
+    }
+
+    @Override
+    public CheckoutSession create(CheckoutSessionCreateRequest request, String idempotencyKey, Fingerprint fingerprint) {
+        return state.replayed(createRecorded(request, idempotencyKey, fingerprint, IdempotentReply.Snapshot::new));
+    }
+
+    @Override
+    public IdempotentReply.Encoded create(
+            CheckoutSessionCreateRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return state.replayed(createRecorded(request, idempotencyKey, fingerprint, respond), respond);
+    }
+
+    @Override
+    public IdempotentReply.Encoded replayCreate(
+            String idempotencyKey, Fingerprint fingerprint, Function<CheckoutSession, IdempotentReply.Encoded> respond) {
         var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
-        if (normalizedKey == null) {
-            throw new CheckoutSessionValidationException(
-                    "Idempotency-Key is required for this endpoint",
-                    "missing_idempotency_key",
-                    "$.headers.Idempotency-Key",
-                    HTTP_BAD_REQUEST);
-        }
-        var createdSession = new AtomicReference<CheckoutSession>();
-        var stored = createIdempotency.compute(normalizedKey, (key, existing) -> {
-            if (existing == null) {
-                var session = createNewSession(request);
-                createdSession.set(session);
-                return new StoredCreateRequest(request, session);
-            }
-            if (!existing.request().equals(request)) {
-                throw new CheckoutSessionIdempotencyConflictException(
-                        "Same Idempotency-Key used with different parameters");
-            }
-            return existing;
-        });
-        if (createdSession.get() != null) {
-            return createdSession.get();
-        }
-        return stored.snapshot();
+        var reply = normalizedKey == null ? null : state.createIdempotency.replay(normalizedKey, fingerprint);
+        return reply == null ? null : state.replayed(reply, respond);
     }
 
     @Override
     public CheckoutSession update(CheckoutSessionId id, CheckoutSessionUpdateRequest request) {
-        return sessions.compute(id.value(), (key, current) -> {
+        return state.journaled(commit -> sessions.compute(id.value(), current -> {
             if (current == null) {
                 throw new CheckoutSessionNotFoundException(id);
             }
-            ensureMutable(current);
-            var buyer = request.buyer() != null ? request.buyer() : current.buyer();
-            var fulfillmentAddress = request.fulfillmentAddress() != null
-                    ? request.fulfillmentAddress()
-                    : current.fulfillmentAddress();
-            var items = request.items() != null ? request.items() : extractItems(current);
-            var fulfillmentOptionId = request.fulfillmentOptionId() != null
-                    ? request.fulfillmentOptionId()
-                    : current.fulfillmentOptionId();
-            return assemble(id, buyer, fulfillmentAddress, fulfillmentOptionId, items, StatusOverride.AUTO, current.order());
-        });
+            var updated = assembler.update(current, request);
+            commit.position = state.append(new JournalRecord.SessionWritten(updated));
+            state.track(updated);
+            return updated;
+        }));
     }
 
     @Override
     public CheckoutSession retrieve(CheckoutSessionId id) {
         var session = sessions.get(id.value());
-        if (session == null) {
-            throw new CheckoutSessionNotFoundException(id);
-        }
-        return session;
+        return session == null ? state.archived(id) : session;
     }
 
     @Override
     public CheckoutSession complete(
             CheckoutSessionId id, CheckoutSessionCompleteRequest request, String idempotencyKey) {
-        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
-        if (normalizedKey == null) {
-            return completeInternal(id, request);
-        }
-        var completedSession = new AtomicReference<CheckoutSession>();
-        var key = new CompleteIdempotencyKey(id.value(), normalizedKey);
-        completeIdempotency.compute(key, (k, existing) -> {
-            if (existing == null) {
-                completedSession.set(completeInternal(id, request));
-                return new StoredCompleteRequest(request);
-            }
-            if (!existing.request().equals(request)) {
-                throw new CheckoutSessionIdempotencyConflictException(
-                        "Same Idempotency-Key used with different parameters");
-            }
-            return existing;
-        });
-        var session = completedSession.get();
-        if (session != null) {
-            return session;
-        }
-        return retrieve(id);
+        return complete(id, request, idempotencyKey, Fingerprint.of(request));
     }
 
     @Override
-    public CheckoutSession cancel(CheckoutSessionId id) {
-        return sessions.compute(id.value(), (key, current) -> {
-            if (current == null) {
-                throw new CheckoutSessionNotFoundException(id);
-            }
-            if (current.status() == CheckoutSessionStatus.COMPLETED) {
-                throw new CheckoutSessionMethodNotAllowedException("Cannot cancel a completed session");
-            }
-            if (current.status() == CheckoutSessionStatus.CANCELED) {
-                throw new CheckoutSessionMethodNotAllowedException("Checkout session already canceled");
-            }
-            return assemble(
-                    id,
-                    current.buyer(),
-                    current.fulfillmentAddress(),
-                    current.fulfillmentOptionId(),
-                    extractItems(current),
-                    StatusOverride.CANCELED,
-                    null);
-        });
-    }
-
-    private CheckoutSession assemble(
+    public CheckoutSession complete(
             CheckoutSessionId id,
-            Buyer buyer,
-            Address fulfillmentAddress,
-            FulfillmentOptionId requestedFulfillmentOptionId,
-            List<Item> items,
-            StatusOverride override,
-            Order order) {
-        var normalizedItems = List.copyOf(items);
-        var lineItems = priceItems(normalizedItems);
-        var fulfillmentOptions = buildFulfillmentOptions();
-        var fulfillmentOptionId = resolveFulfillmentOptionId(fulfillmentOptions, requestedFulfillmentOptionId);
-        var totals = computeTotals(lineItems, fulfillmentOptions, fulfillmentOptionId);
-        var readiness = evaluateReadiness(fulfillmentAddress, fulfillmentOptionId, fulfillmentOptions);
-        var status = switch (override) {
-            case COMPLETED -> CheckoutSessionStatus.COMPLETED;
-            case CANCELED -> CheckoutSessionStatus.CANCELED;
-            case AUTO -> readiness.ready()
-                    ? CheckoutSessionStatus.READY_FOR_PAYMENT
-                    : CheckoutSessionStatus.NOT_READY_FOR_PAYMENT;
-        };
-        var messages = messagesForStatus(status, readiness);
-        return new CheckoutSession(
-                id,
-                buyer,
-                PAYMENT_PROVIDER,
-                status,
-                currency,
-                lineItems,
-                fulfillmentAddress,
-                fulfillmentOptions,
-                fulfillmentOptionId,
-                totals,
-                messages,
-                DEFAULT_LINKS,
-                order);
-    }
-
-    private List<LineItem> priceItems(List<Item> items) {
-        var result = new ArrayList<LineItem>(items.size());
-        for (var index = 0; index < items.size(); index++) {
-            var item = items.get(index);
-            var unitPrice = priceForItem(item.id(), index);
-            var baseAmount = unitPrice * item.quantity();
-            var discount = 0L;
-            var subtotal = baseAmount - discount;
-            var tax = calculateTax(subtotal);
-            var total = subtotal + tax;
-            result.add(new LineItem(
-                    "line_%06d".formatted(lineItemSequence.getAndIncrement()),
-                    item,
-                    new MinorUnitAmount(baseAmount),
-                    new MinorUnitAmount(discount),
-                    new MinorUnitAmount(subtotal),
-                    new MinorUnitAmount(tax),
-                    new MinorUnitAmount(total)));
-        }
-        return List.copyOf(result);
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint) {
+        return state.replayed(completeRecorded(id, request, idempotencyKey, fingerprint, IdempotentReply.Snapshot::new));
     }
 
-    private long calculateTax(long subtotal) {
-        var amount = TAX_RATE.multiply(BigDecimal.valueOf(subtotal));
-        return amount.setScale(0, RoundingMode.HALF_UP).longValueExact();
+    @Override
+    public IdempotentReply.Encoded complete(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return state.replayed(completeRecorded(id, request, idempotencyKey, fingerprint, respond), respond);
     }
 
-    private List<FulfillmentOption> buildFulfillmentOptions() {
-        var now = Instant.now(clock);
-        return List.of(
-                new FulfillmentOption.Shipping(
-                        "fulfillment_option_standard",
-                        "Standard",
-                        "Arrives in 4-5 days",
-                        "USPS",
-                        now.plus(Duration.ofDays(4)),
-                        now.plus(Duration.ofDays(5)),
-                        new MinorUnitAmount(500),
-                        MinorUnitAmount.zero(),
-                        new MinorUnitAmount(500)),
-                new FulfillmentOption.Shipping(
-                        "fulfillment_option_express",
-                        "Express",
-                        "Arrives in 1-2 days",
-                        "UPS",
-                        now.plus(Duration.ofDays(2)),
-                        now.plus(Duration.ofDays(3)),
-                        new MinorUnitAmount(1500),
-                        MinorUnitAmount.zero(),
-                        new MinorUnitAmount(1500)),
-                new FulfillmentOption.Digital(
-                        "fulfillment_option_digital",
-                        "Instant download",
-                        null,
-                        MinorUnitAmount.zero(),
-                        MinorUnitAmount.zero(),
-                        MinorUnitAmount.zero()));
+    @Override
+    public IdempotentReply.Encoded replayComplete(
+            CheckoutSessionId id,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        var reply = normalizedKey == null
+                ? null
+                : state.completeIdempotency.replay(new CompleteIdempotencyKey(id.value(), normalizedKey), fingerprint);
+        return reply == null ? null : state.replayed(reply, respond);
     }
 
-    private FulfillmentOptionId resolveFulfillmentOptionId(
-            List<FulfillmentOption> options,
-            FulfillmentOptionId requested) {
-        if (requested != null) {
-            var exists = options.stream().anyMatch(option -> option.id().equals(requested.value()));
-            if (!exists) {
-                throw new CheckoutSessionConflictException("Unknown fulfillment_option_id: " + requested.value());
+    @Override
+    public CheckoutSession cancel(CheckoutSessionId id) {
+        return state.journaled(commit -> sessions.compute(id.value(), current -> {
+            if (current == null) {
+                throw new CheckoutSessionNotFoundException(id);
             }
-            return requested;
-        }
-        if (options.isEmpty()) {
-            return null;
-        }
-        return new FulfillmentOptionId(options.getFirst().id());
-    }
-
-    private List<Total> computeTotals(
-            List<LineItem> lineItems,
-            List<FulfillmentOption> options,
-            FulfillmentOptionId fulfillmentOptionId) {
-        var baseAmount = sum(lineItems, line -> line.baseAmount().value());
-        var discount = sum(lineItems, line -> line.discount().value());
-        var subtotal = sum(lineItems, line -> line.subtotal().value());
-        var tax = sum(lineItems, line -> line.tax().value());
-        var fulfillment = fulfillmentTotal(options, fulfillmentOptionId);
-        var total = subtotal + tax + fulfillment;
-        return List.of(
-                new Total(Total.TotalType.ITEMS_BASE_AMOUNT, "Item(s) total", new MinorUnitAmount(baseAmount)),
-                new Total(Total.TotalType.ITEMS_DISCOUNT, "Item discount", new MinorUnitAmount(discount)),
-                new Total(Total.TotalType.SUBTOTAL, "Subtotal", new MinorUnitAmount(subtotal)),
-                new Total(Total.TotalType.TAX, "Tax", new MinorUnitAmount(tax)),
-                new Total(Total.TotalType.FULFILLMENT, "Fulfillment", new MinorUnitAmount(fulfillment)),
-                new Total(Total.TotalType.TOTAL, "Total", new MinorUnitAmount(total)));
-    }
-
-    private long fulfillmentTotal(List<FulfillmentOption> options, FulfillmentOptionId fulfillmentOptionId) {
-        if (fulfillmentOptionId == null) {
-            return 0L;
-        }
-        var target = fulfillmentOptionId.value();
-        return options.stream()
-                .filter(option -> option.id().equals(target))
-                .findFirst()
-                .map(option -> option.total().value())
-                .orElse(0L);
-    }
-
-    private Readiness evaluateReadiness(
-            Address fulfillmentAddress,
-            FulfillmentOptionId fulfillmentOptionId,
-            List<FulfillmentOption> fulfillmentOptions) {
-        var requirements = new ArrayList<MissingRequirement>();
-        if (fulfillmentOptionId == null) {
-            requirements.add(new MissingRequirement(
-                    "$.fulfillment_option_id",
-                    "Select a fulfillment option before completing checkout."));
-        }
-        var requiresAddress = requiresShippingAddress(fulfillmentOptions, fulfillmentOptionId);
-        if (requiresAddress && fulfillmentAddress == null) {
-            requirements.add(new MissingRequirement(
-                    "$.fulfillment_address",
-                    "Provide fulfillment_address for shipping fulfillment."));
-        }
-        return new Readiness(requirements.isEmpty(), List.copyOf(requirements));
-    }
-
-    private boolean requiresShippingAddress(
-            List<FulfillmentOption> fulfillmentOptions, FulfillmentOptionId fulfillmentOptionId) {
-        if (fulfillmentOptions.isEmpty()) {
-            return false;
-        }
-        if (fulfillmentOptionId == null) {
-            return fulfillmentOptions.stream().allMatch(option -> option instanceof FulfillmentOption.Shipping);
-        }
-        var target = fulfillmentOptionId.value();
-        return fulfillmentOptions.stream()
-                .filter(option -> option.id().equals(target))
-                .anyMatch(option -> option instanceof FulfillmentOption.Shipping);
-    }
-
-    private List<Message> messagesForStatus(CheckoutSessionStatus status, Readiness readiness) {
-        if (status == CheckoutSessionStatus.CANCELED) {
-            return List.of(new Message.Info(null, Message.ContentType.PLAIN, "Checkout session has been canceled."));
+            var canceled = assembler.cancel(current);
+            commit.position = state.append(new JournalRecord.SessionWritten(canceled));
+            state.track(canceled);
+            return canceled;
+        }));
+    }
+
+    /// Creates a session unless `idempotencyKey` already has one, returning the reply recorded for
+    /// the key: what `respond` made of the new session, or the original's reply for a retry.
+    private IdempotentReply createRecorded(
+            CheckoutSessionCreateRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, ? extends IdempotentReply> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        if (normalizedKey == null) {
+            throw new CheckoutSessionValidationException(
+                    "Idempotency-Key is required for this endpoint",
+                    "missing_idempotency_key",
+                    "$.headers.Idempotency-Key",
+                    HTTP_BAD_REQUEST);
         }
-        if (status == CheckoutSessionStatus.NOT_READY_FOR_PAYMENT) {
-            var infos = new ArrayList<Message>(readiness.missing().size());
-            for (var requirement : readiness.missing()) {
-                infos.add(new Message.Info(
-                        requirement.param(),
-                        Message.ContentType.PLAIN,
-                        requirement.message()));
+        try (var claim = state.createIdempotency.claim(normalizedKey, fingerprint)) {
+            if (claim.isReplay()) {
+                return claim.replayed();
             }
-            return List.copyOf(infos);
+            return state.journaled(commit -> {
+                var session = assembler.create(request);
+                var reply = respond.apply(session);
+                sessions.put(session);
+                state.track(session);
+                commit.position = state.append(
+                        new JournalRecord.SessionWritten(session),
+                        new JournalRecord.CreateIdempotencyRecorded(normalizedKey, fingerprint, reply));
+                claim.commit(reply);
+                return reply;
+            });
         }
-        return List.of();
     }
 
-    private void ensureMutable(CheckoutSession session) {
-        if (session.status() == CheckoutSessionStatus.COMPLETED || session.status() == CheckoutSessionStatus.CANCELED) {
-            throw new CheckoutSessionConflictException("Checkout session is immutable in status " + session.status());
+    /// As [#createRecorded], for `complete`. Without a key nothing is recorded and the reply is
+    /// only returned.
+    private IdempotentReply completeRecorded(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, ? extends IdempotentReply> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        if (normalizedKey == null) {
+            return respond.apply(state.journaled(commit -> completeInternal(id, request, commit, null)));
         }
-    }
-
-    private String nextSessionId() {
-        return "csn_%06d".formatted(sessionSequence.getAndIncrement());
-    }
-
-    private String nextOrderId() {
-        return "ord_%06d".formatted(orderSequence.getAndIncrement());
-    }
-
-    private long priceForItem(String itemId, int index) {
-        var price = priceBook.get(itemId);
-        if (price == null) {
-            var param = "$.items[%d].id".formatted(index);
-            throw new CheckoutSessionValidationException(
-                    "Unknown item id: " + itemId, "unknown_item", param, HTTP_BAD_REQUEST);
+        var key = new CompleteIdempotencyKey(id.value(), normalizedKey);
+        try (var claim = state.completeIdempotency.claim(key, fingerprint)) {
+            if (claim.isReplay()) {
+                return claim.replayed();
+            }
+            var recording = new RecordedCompletion(claim, key, fingerprint, respond);
+            state.journaled(commit -> completeInternal(id, request, commit, recording));
+            return recording.reply();
         }
-        return price;
-    }
-
-    private CheckoutSession createNewSession(CheckoutSessionCreateRequest request) {
-        var id = new CheckoutSessionId(nextSessionId());
-        var session = assemble(
-                id,
-                request.buyer(),
-                request.fulfillmentAddress(),
-                null,
-                request.items(),
-                StatusOverride.AUTO,
-                null);
-        sessions.put(id.value(), session);
-        return session;
     }
 
-    private CheckoutSession completeInternal(CheckoutSessionId id, CheckoutSessionCompleteRequest request) {
-        return sessions.compute(id.value(), (key, current) -> {
+    private CheckoutSession completeInternal(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            PendingCommit commit,
+            RecordedCompletion recording) {
+        return sessions.compute(id.value(), current -> {
             if (current == null) {
                 throw new CheckoutSessionNotFoundException(id);
             }
-            if (current.status() == CheckoutSessionStatus.CANCELED) {
-                throw new CheckoutSessionConflictException("Cannot complete a canceled session");
-            }
             if (current.status() == CheckoutSessionStatus.COMPLETED) {
+                if (recording != null) {
+                    commit.position = state.append(recording.record(current));
+                    recording.commit();
+                }
                 return current;
             }
-            if (request.paymentData().provider() != PAYMENT_PROVIDER.provider()) {
-                throw new CheckoutSessionConflictException("Unsupported payment provider: " + request.paymentData().provider());
-            }
-            var readiness = evaluateReadiness(
-                    current.fulfillmentAddress(),
-                    current.fulfillmentOptionId(),
-                    current.fulfillmentOptions());
-            if (!readiness.ready()) {
-                var message = readiness.missing().isEmpty()
-                        ? "Checkout session is not ready for payment"
-                        : readiness.missing().stream()
-                        .map(MissingRequirement::message)
-                        .collect(Collectors.joining("; "));
-                var param = readiness.missing().isEmpty()
-                        ? "$.status"
-                        : readiness.missing().getFirst().param();
-                throw new CheckoutSessionValidationException(message, "session_not_ready", param);
-            }
+            assembler.ensureCompletable(current, request);
             try (var reservation = reserveDelegatedToken(request, id, current)) {
-                var buyer = request.buyer() != null ? request.buyer() : current.buyer();
-                var orderId = nextOrderId();
-                var order = new Order(orderId, id, URI.create("https://merchant.example.com/orders/" + orderId));
-                var updated = assemble(
-                        id,
-                        buyer,
-                        current.fulfillmentAddress(),
-                        current.fulfillmentOptionId(),
-                        extractItems(current),
-                        StatusOverride.COMPLETED,
-                        order);
+                var updated = assembler.complete(current, request);
+                var events = assembler.completionEvents(updated);
+                var records = new ArrayList<JournalRecord>(2);
+                records.add(new JournalRecord.SessionWritten(updated));
+                if (recording != null) {
+                    records.add(recording.record(updated));
+                }
+                state.appendWithWebhooks(commit, records, events);
                 reservation.commit();
-                publishOrderCreated(updated);
-                publishOrderUpdate(updated, OrderWebhookEvent.OrderStatus.CONFIRMED, List.of());
+                state.track(updated);
+                if (recording != null) {
+                    recording.commit();
+                }
                 return updated;
             }
         });
@@ -540,79 +298,41 @@ public final class InMemoryCheckoutSessionService implements CheckoutSessionServ
     private TokenReservation reserveDelegatedToken(
             CheckoutSessionCompleteRequest request, CheckoutSessionId id, CheckoutSession current) {
         try {
-            var total = resolveGrandTotal(current.totals());
-            return tokenValidator.reserve(request.paymentData().token(), id, total, currency);
+            var total = assembler.grandTotal(current);
+            return tokenValidator.reserve(request.paymentData().token(), id, total, assembler.currency());
         } catch (DelegatePaymentTokenException e) {
             throw new CheckoutSessionValidationException(e.getMessage(), e.code(), e.param(), HTTP_BAD_REQUEST);
         }
     }
 
-    private MinorUnitAmount resolveGrandTotal(List<Total> totals) {
-        return totals.stream()
-                .filter(total -> total.type() == Total.TotalType.TOTAL)
-                .map(Total::amount)
-                .findFirst()
-                .orElseThrow(() -> new IllegalStateException("checkout_session.totals missing TOTAL entry"));
-    }
-
-    private void publishOrderCreated(CheckoutSession session) {
-        var order = session.order();
-        if (order == null) {
-            return;
-        }
-        var event = new OrderWebhookEvent(
-                OrderWebhookEvent.Type.ORDER_CREATE,
-                session.id().value(),
-                webhookStatusFor(session.status()),
-                order.permalinkUrl(),
-                List.of());
-        webhookPublisher.publish(event);
-    }
-
-    private void publishOrderUpdate(
-            CheckoutSession session, OrderWebhookEvent.OrderStatus status, List<OrderWebhookEvent.Refund> refunds) {
-        var order = session.order();
-        if (order == null) {
-            return;
-        }
-        var event = new OrderWebhookEvent(
-                OrderWebhookEvent.Type.ORDER_UPDATE,
-                session.id().value(),
-                status,
-                order.permalinkUrl(),
-                refunds == null ? List.of() : refunds);
-        webhookPublisher.publish(event);
-    }
-
-    private enum StatusOverride {
-        AUTO,
-        COMPLETED,
-        CANCELED
-    }
-
-    private record MissingRequirement(String param, String message) {
-        MissingRequirement {
-            if (param != null && param.isBlank()) {
-                throw new IllegalArgumentException("missing requirement param MUST be non-blank when provided");
-            }
-            if (message == null || message.isBlank()) {
-                throw new IllegalArgumentException("missing requirement message MUST be non-blank");
+    /// Drops idle open sessions and archives terminal ones whose lifetime has run out. Runs every
+    /// second in the background when lifetimes are configured.
+    public void expireSessions() {
+        for (var id : state.dueSessions()) {
+            try {
+                state.journaled(commit -> sessions.compute(
+                        id, current -> current == null || state.expire(commit, current) ? null : current));
+            } catch (RuntimeException e) {
+                state.retryExpiry(id);
             }
         }
     }
 
-    private record Readiness(boolean ready, List<MissingRequirement> missing) {
-        Readiness {
-            missing = List.copyOf(missing);
-        }
-    }
-
-    private record StoredCreateRequest(CheckoutSessionCreateRequest request, CheckoutSession snapshot) {
+    /// Size and eviction counters of the `create` and `complete` idempotency tables.
+    @Override
+    public Map<String, IdempotencyTable.Stats> idempotencyStats() {
+        return state.idempotencyStats();
     }
 
-    private record StoredCompleteRequest(CheckoutSessionCompleteRequest request) {
+    @Override
+    public long inlineWebhookFailures() {
+        return state.inlineWebhookFailures();
     }
 
-    private record CompleteIdempotencyKey(String sessionId, String idempotencyKey) {
+    /// Stops background webhook delivery. Undelivered outbox entries stay in the journal and resume
+    /// on the next start.
+    @Override
+    public void close() {
+        state.close();
     }
 }
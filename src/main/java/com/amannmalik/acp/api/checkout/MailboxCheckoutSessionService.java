@@ -0,0 +1,322 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.api.checkout.CheckoutSessionState.CompleteIdempotencyKey;
+import com.amannmalik.acp.api.checkout.CheckoutSessionState.PendingCommit;
+import com.amannmalik.acp.api.checkout.CheckoutSessionState.RecordedCompletion;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenException;
+import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator;
+import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator.TokenReservation;
+import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.spi.storage.JournalRecord;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/// Checkout service that serializes mutations per session through [SessionMailboxes] instead of
+/// map locks.
+///
+/// Every mutation of a session runs as a task in that session's mailbox on a virtual thread, so
+/// token reservation only ever delays later requests for the same session. Creates need no mailbox because they mint a fresh session; duplicate idempotent creates
+/// and completes wait on the original's [IdempotencyTable] entry. Reads go straight to the session
+/// store, or to the archive once a session has expired, and never wait. The only lock a task takes
+/// is the shared side of the journal barrier, held just around each append and the store update it
+/// describes.
+public final class MailboxCheckoutSessionService implements CheckoutSessionService {
+    private static final int HTTP_BAD_REQUEST = CheckoutSessionAssembler.HTTP_BAD_REQUEST;
+
+    private final CheckoutSessionAssembler assembler;
+    private final DelegatePaymentTokenValidator tokenValidator;
+    private final CheckoutSessionState state;
+    private final CheckoutSessionStore sessions;
+    private final SessionMailboxes mailboxes = new SessionMailboxes();
+
+    public MailboxCheckoutSessionService(Map<String, Long> priceBook, Clock clock, CurrencyCode currency) {
+        this(priceBook, clock, currency, CheckoutSessionOptions.defaults());
+    }
+
+    /// Restores state from the journal in `options`, if any, before returning and persists every
+    /// subsequent mutation to it, exactly as [InMemoryCheckoutSessionService] does.
+    public MailboxCheckoutSessionService(
+            Map<String, Long> priceBook,
+            Clock clock,
+            CurrencyCode currency,
+            CheckoutSessionOptions options) {
+        this.assembler = new CheckoutSessionAssembler(priceBook, clock, currency);
+        this.tokenValidator = options.tokenValidator();
+        this.state = new CheckoutSessionState(assembler, options, clock);
+        this.sessions = state.sessions;
+        state.startSweeper(this::expireSessions);
+    }
+
+    /// As above, with the default price book on the system clock.
+    public MailboxCheckoutSessionService(CurrencyCode currency, CheckoutSessionOptions options) {
+        this(CheckoutSessionAssembler.defaultPriceBook(), Clock.systemUTC(), currency, options);
+    }
+
+    private static String normalizeIdempotencyKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        var trimmed = key.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    @Override
+    public CheckoutSession create(CheckoutSessionCreateRequest request, String idempotencyKey) {
+        return create(request, idempotencyKey, Fingerprint.of(request));
+    }
+
+    @Override
+    public CheckoutSession create(CheckoutSessionCreateRequest request, String idempotencyKey, Fingerprint fingerprint) {
+        return state.replayed(createRecorded(request, idempotencyKey, fingerprint, IdempotentReply.Snapshot::new));
+    }
+
+    @Override
+    public IdempotentReply.Encoded create(
+            CheckoutSessionCreateRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return state.replayed(createRecorded(request, idempotencyKey, fingerprint, respond), respond);
+    }
+
+    @Override
+    public IdempotentReply.Encoded replayCreate(
+            String idempotencyKey, Fingerprint fingerprint, Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        var reply = normalizedKey == null ? null : state.createIdempotency.replay(normalizedKey, fingerprint);
+        return reply == null ? null : state.replayed(reply, respond);
+    }
+
+    @Override
+    public CheckoutSession update(CheckoutSessionId id, CheckoutSessionUpdateRequest request) {
+        return mutate(id.value(), commit -> write(commit, assembler.update(current(id), request)));
+    }
+
+    @Override
+    public CheckoutSession retrieve(CheckoutSessionId id) {
+        var session = sessions.get(id.value());
+        return session == null ? state.archived(id) : session;
+    }
+
+    @Override
+    public CheckoutSession complete(
+            CheckoutSessionId id, CheckoutSessionCompleteRequest request, String idempotencyKey) {
+        return complete(id, request, idempotencyKey, Fingerprint.of(request));
+    }
+
+    @Override
+    public CheckoutSession complete(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint) {
+        return state.replayed(completeRecorded(id, request, idempotencyKey, fingerprint, IdempotentReply.Snapshot::new));
+    }
+
+    @Override
+    public IdempotentReply.Encoded complete(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        return state.replayed(completeRecorded(id, request, idempotencyKey, fingerprint, respond), respond);
+    }
+
+    @Override
+    public IdempotentReply.Encoded replayComplete(
+            CheckoutSessionId id,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, IdempotentReply.Encoded> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        var reply = normalizedKey == null
+                ? null
+                : state.completeIdempotency.replay(new CompleteIdempotencyKey(id.value(), normalizedKey), fingerprint);
+        return reply == null ? null : state.replayed(reply, respond);
+    }
+
+    @Override
+    public CheckoutSession cancel(CheckoutSessionId id) {
+        return mutate(id.value(), commit -> write(commit, assembler.cancel(current(id))));
+    }
+
+    /// Drops idle open sessions and archives terminal ones whose lifetime has run out, each in its
+    /// session's mailbox. Runs every second in the background when lifetimes are configured.
+    public void expireSessions() {
+        for (var id : state.dueSessions()) {
+            try {
+                mutate(id, commit -> state.underBarrier(() -> {
+                    var current = sessions.get(id);
+                    if (current != null && state.expire(commit, current)) {
+                        sessions.remove(id);
+                    }
+                    return null;
+                }));
+            } catch (RuntimeException e) {
+                state.retryExpiry(id);
+            }
+        }
+    }
+
+    /// Size and eviction counters of the `create` and `complete` idempotency tables.
+    @Override
+    public Map<String, IdempotencyTable.Stats> idempotencyStats() {
+        return state.idempotencyStats();
+    }
+
+    @Override
+    public long inlineWebhookFailures() {
+        return state.inlineWebhookFailures();
+    }
+
+    /// Stops accepting mutations, lets queued ones finish, then stops background webhook delivery.
+    @Override
+    public void close() {
+        mailboxes.close();
+        state.close();
+    }
+
+    /// Creates a session unless `idempotencyKey` already has one, returning the reply recorded for
+    /// the key: what `respond` made of the new session, or the original's reply for a retry.
+    private IdempotentReply createRecorded(
+            CheckoutSessionCreateRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, ? extends IdempotentReply> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        if (normalizedKey == null) {
+            throw new CheckoutSessionValidationException(
+                    "Idempotency-Key is required for this endpoint",
+                    "missing_idempotency_key",
+                    "$.headers.Idempotency-Key",
+                    HTTP_BAD_REQUEST);
+        }
+        try (var claim = state.createIdempotency.claim(normalizedKey, fingerprint)) {
+            if (claim.isReplay()) {
+                return claim.replayed();
+            }
+            var session = assembler.create(request);
+            var reply = respond.apply(session);
+            return state.journaled(commit -> {
+                commit.position = state.append(
+                        new JournalRecord.SessionWritten(session),
+                        new JournalRecord.CreateIdempotencyRecorded(normalizedKey, fingerprint, reply));
+                sessions.put(session);
+                state.track(session);
+                claim.commit(reply);
+                return reply;
+            });
+        }
+    }
+
+    /// As [#createRecorded], for `complete`. Without a key nothing is recorded and the reply is
+    /// only returned.
+    private IdempotentReply completeRecorded(
+            CheckoutSessionId id,
+            CheckoutSessionCompleteRequest request,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            Function<CheckoutSession, ? extends IdempotentReply> respond) {
+        var normalizedKey = normalizeIdempotencyKey(idempotencyKey);
+        if (normalizedKey == null) {
+            return respond.apply(completeInternal(id, request, null));
+        }
+        var key = new CompleteIdempotencyKey(id.value(), normalizedKey);
+        try (var claim = state.completeIdempotency.claim(key, fingerprint)) {
+            if (claim.isReplay()) {
+                return claim.replayed();
+            }
+            var recording = new RecordedCompletion(claim, key, fingerprint, respond);
+            completeInternal(id, request, recording);
+            return recording.reply();
+        }
+    }
+
+    private CheckoutSession completeInternal(
+            CheckoutSessionId id, CheckoutSessionCompleteRequest request, RecordedCompletion recording) {
+        return mutate(id.value(), commit -> {
+            var current = current(id);
+            if (current.status() == CheckoutSessionStatus.COMPLETED) {
+                if (recording != null) {
+                    var record = recording.record(current);
+                    state.underBarrier(() -> {
+                        commit.position = state.append(record);
+                        recording.commit();
+                        return null;
+                    });
+                }
+                return current;
+            }
+            assembler.ensureCompletable(current, request);
+            CheckoutSession updated;
+            try (var reservation = reserveDelegatedToken(request, id, current)) {
+                updated = assembler.complete(current, request);
+                var events = assembler.completionEvents(updated);
+                var records = recording == null
+                        ? List.<JournalRecord>of(new JournalRecord.SessionWritten(updated))
+                        : List.of(new JournalRecord.SessionWritten(updated), recording.record(updated));
+                state.underBarrier(() -> {
+                    state.appendWithWebhooks(commit, records, events);
+                    sessions.put(updated);
+                    state.track(updated);
+                    if (recording != null) {
+                        recording.commit();
+                    }
+                    return null;
+                });
+                reservation.commit();
+            }
+            return updated;
+        });
+    }
+
+    /// Runs `mutation` in `mailbox`, then blocks for its journal commit after the mailbox has moved
+    /// on to the next task, so a session's requests can share one group commit.
+    private <T> T mutate(String mailbox, Function<PendingCommit, T> mutation) {
+        var commit = new PendingCommit();
+        T result;
+        try {
+            result = mailboxes.call(mailbox, () -> mutation.apply(commit));
+        } catch (RuntimeException e) {
+            state.abandon(commit);
+            throw e;
+        }
+        state.settle(commit);
+        return result;
+    }
+
+    private CheckoutSession current(CheckoutSessionId id) {
+        var session = sessions.get(id.value());
+        if (session == null) {
+            throw new CheckoutSessionNotFoundException(id);
+        }
+        return session;
+    }
+
+    private CheckoutSession write(PendingCommit commit, CheckoutSession session) {
+        return state.underBarrier(() -> {
+            commit.position = state.append(new JournalRecord.SessionWritten(session));
+            sessions.put(session);
+            state.track(session);
+            return session;
+        });
+    }
+
+    private TokenReservation reserveDelegatedToken(
+            CheckoutSessionCompleteRequest request, CheckoutSessionId id, CheckoutSession current) {
+        try {
+            var total = assembler.grandTotal(current);
+            return tokenValidator.reserve(request.paymentData().token(), id, total, assembler.currency());
+        } catch (DelegatePaymentTokenException e) {
+            throw new CheckoutSessionValidationException(e.getMessage(), e.code(), e.param(), HTTP_BAD_REQUEST);
+        }
+    }
+}
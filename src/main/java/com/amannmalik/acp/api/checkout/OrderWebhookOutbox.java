@@ -0,0 +1,452 @@
+package com.amannmalik.acp.api.checkout;
+
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.storage.JournalRecord;
+import com.amannmalik.acp.spi.webhook.DeadLetterSink;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/// Journal-backed transactional outbox for order webhooks.
+///
+/// Events are staged while the owning session transition is being journaled, so the
+/// [JournalRecord.WebhookEnqueued] entry lands in the same frame as the session record. They are
+/// released for delivery only once that frame is durable and delivered with at-least-once
+/// semantics. A [JournalRecord.WebhookDelivered] record retires each entry once it is durable;
+/// compaction drops retired entries from the next snapshot.
+///
+/// Every receiver in [OrderWebhookPublisher#endpoints()] is owed each entry on its own. With several
+/// receivers, each acknowledgement is journaled as a [JournalRecord.WebhookAcknowledged] record and
+/// the entry is retired once the last one has it, so a failing receiver never holds back or repeats
+/// delivery to the others, across restarts too.
+///
+/// Entries are queued per receiver and checkout session in sequence order, and each such lane has
+/// at most one delivery in flight, started through [OrderWebhookPublisher#publishAsync] and
+/// continued from its completion, so lanes never wait on each other. The outbox is the only layer
+/// that retries: a failed delivery backs off exponentially on its own, holding back only later
+/// entries of the same lane. After [#MAX_ATTEMPTS] failures it is handed to the receiver's
+/// dead-letter sink, if there is one, and counts as delivered; without a sink it keeps retrying at
+/// the maximum backoff. Once a lane has had an entry dead-lettered, its later entries follow it
+/// there without being sent, so a receiver never sees an `order_update` for an `order_create` it
+/// missed.
+final class OrderWebhookOutbox implements AutoCloseable {
+    private static final System.Logger LOG = System.getLogger(OrderWebhookOutbox.class.getName());
+    private static final Duration INITIAL_BACKOFF = Duration.ofMillis(250);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(1);
+    private static final int MAX_ATTEMPTS = 16;
+    /// How many dead-lettered lanes are remembered so their later entries follow them.
+    private static final int ABANDONED_LANES = 1024;
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+    /// Name of the single receiver of a publisher without [OrderWebhookPublisher#endpoints()].
+    private static final String UNNAMED = "";
+
+    private final Map<String, OrderWebhookPublisher> receivers;
+    private final Map<String, DeadLetterSink> deadLetters;
+    private final CheckoutSessionJournal journal;
+    /// Every entry not yet retired, by sequence. Replay and snapshots go through this map.
+    private final ConcurrentSkipListMap<Long, OrderWebhookEvent> pending = new ConcurrentSkipListMap<>();
+    /// Receivers that already have a pending entry, for entries some receiver has acknowledged.
+    private final ConcurrentMap<Long, Set<String>> acknowledged = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong(1);
+    private final ReentrantLock lock = new ReentrantLock();
+    /// Live entries by sequence and their lanes, built by [#start()]. Guarded by `lock`.
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final Map<LaneKey, Lane> lanes = new HashMap<>();
+    private final Set<LaneKey> abandoned = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LaneKey, Boolean> eldest) {
+            return size() > ABANDONED_LANES;
+        }
+    });
+    private final ExecutorService deliveries = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("acp-webhook-outbox-", 0).factory());
+    private final ScheduledExecutorService backoffs = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("acp-webhook-outbox-retry").daemon().factory());
+    private volatile boolean closed;
+
+    /// Receivers that keep refusing an entry have it filed in `deadLetters` under their endpoint
+    /// name. `deadLetters` MAY be `null`, and a publisher without named endpoints has no sink, in
+    /// which case no entry is ever given up on.
+    OrderWebhookOutbox(OrderWebhookPublisher publisher, CheckoutSessionJournal journal, DeadLetterStore deadLetters) {
+        var endpoints = publisher.endpoints();
+        this.receivers = endpoints.isEmpty() ? Map.of(UNNAMED, publisher) : Map.copyOf(endpoints);
+        var sinks = new HashMap<String, DeadLetterSink>();
+        if (deadLetters != null) {
+            endpoints.keySet().forEach(name -> sinks.put(name, deadLetters.forEndpoint(name)));
+        }
+        this.deadLetters = Map.copyOf(sinks);
+        this.journal = journal;
+    }
+
+    private static Duration backoff(int attempts) {
+        var shift = Math.min(attempts - 1, 16);
+        var delay = INITIAL_BACKOFF.multipliedBy(1L << shift);
+        return delay.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : delay;
+    }
+
+    void restore(JournalRecord.WebhookEnqueued record) {
+        sequence.accumulateAndGet(record.sequence() + 1, Math::max);
+        pending.put(record.sequence(), record.event());
+    }
+
+    void restore(JournalRecord.WebhookAcknowledged record) {
+        sequence.accumulateAndGet(record.sequence() + 1, Math::max);
+        acknowledged.computeIfAbsent(record.sequence(), ignored -> ConcurrentHashMap.newKeySet()).add(record.endpoint());
+    }
+
+    void restore(JournalRecord.WebhookDelivered record) {
+        sequence.accumulateAndGet(record.sequence() + 1, Math::max);
+        pending.remove(record.sequence());
+        acknowledged.remove(record.sequence());
+    }
+
+    /// Queues everything restored from the journal for the receivers that do not have it yet and
+    /// starts delivering it. Entries every current receiver already has are retired straight away.
+    /// Call once, after replay.
+    void start() {
+        acknowledged.keySet().retainAll(pending.keySet());
+        var ready = new ArrayList<Lane>();
+        var complete = new ArrayList<Long>();
+        lock.lock();
+        try {
+            pending.forEach((sequence, event) -> {
+                var owed = new HashSet<>(receivers.keySet());
+                owed.removeAll(acknowledged.getOrDefault(sequence, Set.of()));
+                if (owed.isEmpty()) {
+                    complete.add(sequence);
+                } else {
+                    enqueue(new Entry(sequence, event, owed, false));
+                }
+            });
+            for (var lane : lanes.values()) {
+                if (lane.claim()) {
+                    ready.add(lane);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        complete.forEach(this::retire);
+        ready.forEach(this::dispatch);
+    }
+
+    /// Reserves a sequence for `event` and returns the record to append with the transition. The
+    /// entry is withheld from delivery until [#release(Collection)].
+    JournalRecord.WebhookEnqueued stage(OrderWebhookEvent event) {
+        var next = sequence.getAndIncrement();
+        pending.put(next, event);
+        lock.lock();
+        try {
+            enqueue(new Entry(next, event, new HashSet<>(receivers.keySet()), true));
+        } finally {
+            lock.unlock();
+        }
+        return new JournalRecord.WebhookEnqueued(next, event);
+    }
+
+    void release(Collection<Long> sequences) {
+        if (sequences.isEmpty()) {
+            return;
+        }
+        var ready = new ArrayList<Lane>();
+        lock.lock();
+        try {
+            for (var sequence : sequences) {
+                var entry = entries.get(sequence);
+                if (entry == null) {
+                    continue;
+                }
+                entry.staged = false;
+                for (var receiver : entry.owed) {
+                    var lane = lanes.get(new LaneKey(receiver, entry.event.checkoutSessionId()));
+                    if (lane.claim()) {
+                        ready.add(lane);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        ready.forEach(this::dispatch);
+    }
+
+    /// Drops entries whose transition failed before it reached the journal.
+    void discard(Collection<Long> sequences) {
+        if (sequences.isEmpty()) {
+            return;
+        }
+        var ready = new ArrayList<Lane>();
+        lock.lock();
+        try {
+            for (var sequence : sequences) {
+                pending.remove(sequence);
+                var entry = entries.remove(sequence);
+                if (entry == null) {
+                    continue;
+                }
+                for (var receiver : entry.owed) {
+                    var lane = lanes.get(new LaneKey(receiver, entry.event.checkoutSessionId()));
+                    lane.queue.remove(entry);
+                    if (lane.queue.isEmpty() && !lane.busy) {
+                        lanes.remove(lane.key);
+                    } else if (lane.claim()) {
+                        ready.add(lane);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        ready.forEach(this::dispatch);
+    }
+
+    Stream<JournalRecord> liveState() {
+        return pending.entrySet().stream().flatMap(entry -> {
+            var sequence = entry.getKey();
+            var enqueued = Stream.<JournalRecord>of(new JournalRecord.WebhookEnqueued(sequence, entry.getValue()));
+            var receivedBy = acknowledged.get(sequence);
+            return receivedBy == null
+                    ? enqueued
+                    : Stream.concat(enqueued, List.copyOf(receivedBy).stream()
+                            .map(receiver -> new JournalRecord.WebhookAcknowledged(sequence, receiver)));
+        });
+    }
+
+    /// Stops starting deliveries and waits briefly for the ones under way to be recorded. Whatever
+    /// is still owed stays in the journal and is delivered again on the next start.
+    @Override
+    public void close() {
+        closed = true;
+        backoffs.shutdownNow();
+        deliveries.shutdown();
+        try {
+            if (!deliveries.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                deliveries.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            deliveries.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /// Appends `entry` to the lane of every receiver it is owed to. Call under `lock`.
+    private void enqueue(Entry entry) {
+        entries.put(entry.sequence, entry);
+        for (var receiver : entry.owed) {
+            lanes.computeIfAbsent(new LaneKey(receiver, entry.event.checkoutSessionId()), Lane::new).queue.add(entry);
+        }
+    }
+
+    private void dispatch(Lane lane) {
+        if (closed) {
+            return;
+        }
+        try {
+            deliveries.execute(() -> attempt(lane));
+        } catch (RejectedExecutionException e) {
+            // Closing; the entry stays pending in the journal.
+        }
+    }
+
+    /// Sends the head of `lane`, which the caller has claimed, and continues from its completion.
+    private void attempt(Lane lane) {
+        Entry head;
+        boolean wasAbandoned;
+        lock.lock();
+        try {
+            head = lane.queue.peek();
+            wasAbandoned = abandoned.contains(lane.key);
+        } finally {
+            lock.unlock();
+        }
+        if (lane.received) {
+            received(lane, head);
+            return;
+        }
+        if (wasAbandoned) {
+            failed(lane, head, new IllegalStateException("An earlier webhook for checkout session "
+                    + lane.key.sessionId() + " was not delivered"), true);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        CompletableFuture<Void> sent;
+        try {
+            sent = receivers.get(lane.key.receiver()).publishAsync(head.event);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((ignored, error) -> {
+            if (error == null) {
+                received(lane, head);
+            } else {
+                failed(lane, head, error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error, false);
+            }
+        });
+    }
+
+    /// Dead-letters `head` once it has used up its attempts, or straight away when `giveUp`, and
+    /// otherwise schedules the next attempt after a backoff.
+    private void failed(Lane lane, Entry head, Throwable cause, boolean giveUp) {
+        var attempts = ++lane.attempts;
+        if ((giveUp || attempts >= MAX_ATTEMPTS) && deadLetter(lane.key.receiver(), head.event, attempts, cause)) {
+            lock.lock();
+            try {
+                abandoned.add(lane.key);
+            } finally {
+                lock.unlock();
+            }
+            received(lane, head);
+            return;
+        }
+        retryLater(lane, attempts);
+    }
+
+    private void retryLater(Lane lane, int attempts) {
+        if (closed) {
+            return;
+        }
+        try {
+            backoffs.schedule(() -> dispatch(lane), backoff(attempts).toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closing; the entry stays pending in the journal.
+        }
+    }
+
+    /// Hands `event` to the receiver's dead-letter sink, returning `false` if it has none or the sink
+    /// refused.
+    private boolean deadLetter(String receiver, OrderWebhookEvent event, int attempts, Throwable cause) {
+        var sink = deadLetters.get(receiver);
+        if (sink == null) {
+            return false;
+        }
+        try {
+            sink.deadLetter(event, attempts, cause);
+            return true;
+        } catch (RuntimeException e) {
+            LOG.log(System.Logger.Level.ERROR, "Failed to dead-letter webhook for " + event.checkoutSessionId(), e);
+            return false;
+        }
+    }
+
+    /// Records that the lane's receiver has `head`, then moves the lane on. The record is journaled
+    /// before memory forgets anything, so memory never runs ahead of the log: a
+    /// [JournalRecord.WebhookAcknowledged] with several receivers, and a
+    /// [JournalRecord.WebhookDelivered] once no receiver is owed the entry any more. If an append
+    /// fails only the append is retried, after a backoff.
+    private void received(Lane lane, Entry head) {
+        var receiver = lane.key.receiver();
+        try {
+            if (receivers.size() > 1) {
+                journal.append(new JournalRecord.WebhookAcknowledged(head.sequence, receiver));
+            } else {
+                journal.append(new JournalRecord.WebhookDelivered(head.sequence));
+            }
+        } catch (RuntimeException e) {
+            LOG.log(System.Logger.Level.ERROR, "Failed to journal webhook delivery; will retry", e);
+            lane.received = true;
+            retryLater(lane, ++lane.attempts);
+            return;
+        }
+        boolean complete;
+        boolean more;
+        lock.lock();
+        try {
+            head.owed.remove(receiver);
+            complete = head.owed.isEmpty();
+            if (complete) {
+                entries.remove(head.sequence);
+            } else {
+                acknowledged.computeIfAbsent(head.sequence, ignored -> ConcurrentHashMap.newKeySet()).add(receiver);
+            }
+            lane.queue.poll();
+            lane.attempts = 0;
+            lane.received = false;
+            lane.busy = false;
+            if (lane.queue.isEmpty()) {
+                lanes.remove(lane.key);
+            }
+            more = lane.claim();
+        } finally {
+            lock.unlock();
+        }
+        if (complete) {
+            if (receivers.size() > 1) {
+                retire(head.sequence);
+            } else {
+                pending.remove(head.sequence);
+            }
+        }
+        if (more) {
+            dispatch(lane);
+        }
+    }
+
+    /// Journals an entry no receiver is owed any more as delivered and forgets it. A failed append
+    /// is only logged: the acknowledgements already in the journal retire it on the next start.
+    private void retire(long sequence) {
+        try {
+            journal.append(new JournalRecord.WebhookDelivered(sequence));
+        } catch (RuntimeException e) {
+            LOG.log(System.Logger.Level.WARNING, "Failed to journal webhook retirement; it is retired on restart", e);
+        }
+        pending.remove(sequence);
+        acknowledged.remove(sequence);
+    }
+
+    private record LaneKey(String receiver, String sessionId) {
+    }
+
+    /// Entries one receiver is owed for one checkout session, in sequence order. `busy` while the
+    /// head is in flight or backing off; a lane exists only while it is non-empty or busy.
+    private static final class Lane {
+        private final LaneKey key;
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private boolean busy;
+        /// Failed attempts at the head. Touched only by the delivery that has claimed the lane.
+        private int attempts;
+        /// The receiver has the head; only its journal record is still missing.
+        private volatile boolean received;
+
+        private Lane(LaneKey key) {
+            this.key = key;
+        }
+
+        /// Marks the lane busy and returns `true` if its head is ready to go and nothing is in
+        /// flight. Call under the outbox lock.
+        private boolean claim() {
+            var head = queue.peek();
+            if (busy || head == null || head.staged) {
+                return false;
+            }
+            busy = true;
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final OrderWebhookEvent event;
+        /// Receivers still waiting for this entry. Guarded by the outbox lock.
+        private final Set<String> owed;
+        /// Withheld until its transition is durable. Guarded by the outbox lock.
+        private boolean staged;
+
+        private Entry(long sequence, OrderWebhookEvent event, Set<String> owed, boolean staged) {
+            this.sequence = sequence;
+            this.event = event;
+            this.owed = owed;
+            this.staged = staged;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.amannmalik.acp.api.checkout;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/// Single-writer executor keyed by checkout session.
+///
+/// Tasks submitted under the same key run one at a time, in submission order, on a virtual thread;
+/// tasks under different keys run in parallel. No lock is held while a task runs, so a task may block
+/// on I/O without stalling any other key. A mailbox exists only while it has work: the drainer that
+/// empties it retires it, and a submitter racing with retirement simply installs a fresh one.
+final class SessionMailboxes implements AutoCloseable {
+    private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("acp-session-", 0).factory());
+
+    /// Runs `task` in `key`'s mailbox and waits for it, rethrowing whatever it throws.
+    <T> T call(String key, Supplier<T> task) {
+        try {
+            return submit(key, task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    <T> CompletableFuture<T> submit(String key, Supplier<T> task) {
+        var result = new CompletableFuture<T>();
+        Runnable runnable = () -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        };
+        while (true) {
+            var mailbox = mailboxes.computeIfAbsent(key, Mailbox::new);
+            try {
+                if (mailbox.offer(runnable)) {
+                    return result;
+                }
+            } catch (RejectedExecutionException e) {
+                mailboxes.remove(key, mailbox);
+                return CompletableFuture.failedFuture(new IllegalStateException("Checkout service is closed", e));
+            }
+            mailboxes.remove(key, mailbox);
+        }
+    }
+
+    /// Mailboxes that currently hold queued or running work.
+    int active() {
+        return mailboxes.size();
+    }
+
+    /// Stops accepting work and waits for queued tasks to finish.
+    @Override
+    public void close() {
+        executor.close();
+    }
+
+    private final class Mailbox implements Runnable {
+        private static final int RETIRED = -1;
+
+        private final String key;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        /// Tasks offered but not yet finished, or [#RETIRED]. The offer that moves it off zero
+        /// schedules the drainer, so at most one drainer runs per mailbox.
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Mailbox(String key) {
+            this.key = key;
+        }
+
+        private boolean offer(Runnable task) {
+            while (true) {
+                var current = pending.get();
+                if (current == RETIRED) {
+                    return false;
+                }
+                if (pending.compareAndSet(current, current + 1)) {
+                    queue.add(task);
+                    if (current == 0) {
+                        try {
+                            executor.execute(this);
+                        } catch (RejectedExecutionException e) {
+                            queue.remove(task);
+                            pending.set(RETIRED);
+                            throw e;
+                        }
+                    }
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                while ((task = queue.poll()) == null) {
+                    // The offer that counted this task has not enqueued it yet.
+                    Thread.onSpinWait();
+                }
+                task.run();
+                if (pending.decrementAndGet() == 0) {
+                    // Either nothing arrived and the mailbox retires, or a new offer saw zero and
+                    // scheduled its own drainer; in both cases this one is done.
+                    if (pending.compareAndSet(0, RETIRED)) {
+                        mailboxes.remove(key, this);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -2,7 +2,14 @@ package com.amannmalik.acp.api.delegatepayment;
 
 import com.amannmalik.acp.api.delegatepayment.model.DelegatePaymentRequest;
 import com.amannmalik.acp.api.delegatepayment.model.DelegatePaymentResponse;
+import com.amannmalik.acp.util.Fingerprint;
 
 public interface DelegatePaymentService {
     DelegatePaymentResponse create(DelegatePaymentRequest request, String idempotencyKey);
+
+    /// As above, with the request's [Fingerprint] already computed by the caller. The default
+    /// ignores it.
+    default DelegatePaymentResponse create(DelegatePaymentRequest request, String idempotencyKey, Fingerprint fingerprint) {
+        return create(request, idempotencyKey);
+    }
 }
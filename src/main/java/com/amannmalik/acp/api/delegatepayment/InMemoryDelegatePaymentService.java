@@ -6,8 +6,11 @@ import com.amannmalik.acp.api.delegatepayment.model.DelegatePaymentRequest;
 import com.amannmalik.acp.api.delegatepayment.model.DelegatePaymentResponse;
 import com.amannmalik.acp.api.shared.CurrencyCode;
 import com.amannmalik.acp.api.shared.MinorUnitAmount;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -16,7 +19,9 @@ import java.util.concurrent.atomic.AtomicReference;
 public final class InMemoryDelegatePaymentService implements DelegatePaymentService, DelegatePaymentTokenValidator {
     private static final String TOKEN_PARAM = "$.payment_data.token";
 
-    private final ConcurrentMap<String, StoredRecord> idempotencyStore = new ConcurrentHashMap<>();
+    private static final Duration IDEMPOTENCY_WAIT_TIMEOUT = Duration.ofSeconds(10);
+
+    private final IdempotencyTable<String, Fingerprint, DelegatePaymentResponse> idempotencyStore;
     private final ConcurrentMap<String, StoredToken> tokens = new ConcurrentHashMap<>();
     private final Clock clock;
 
@@ -25,7 +30,17 @@ public final class InMemoryDelegatePaymentService implements DelegatePaymentServ
     }
 
     public InMemoryDelegatePaymentService(Clock clock) {
+        this(clock, IdempotencyTable.Retention.defaults());
+    }
+
+    public InMemoryDelegatePaymentService(Clock clock, IdempotencyTable.Retention idempotencyRetention) {
         this.clock = Objects.requireNonNullElse(clock, Clock.systemUTC());
+        this.idempotencyStore = new IdempotencyTable<>(
+                IDEMPOTENCY_WAIT_TIMEOUT,
+                DelegatePaymentIdempotencyConflictException::new,
+                Objects.requireNonNullElse(idempotencyRetention, IdempotencyTable.Retention.defaults()),
+                this.clock,
+                InMemoryDelegatePaymentService::estimatedBytes);
     }
 
     private static Map<String, String> responseMetadata(DelegatePaymentRequest request, String idempotencyKey) {
@@ -37,6 +52,11 @@ public final class InMemoryDelegatePaymentService implements DelegatePaymentServ
         return Map.copyOf(map);
     }
 
+    /// Rough retained size of a response, for idempotency footprint accounting.
+    private static long estimatedBytes(DelegatePaymentResponse response) {
+        return 256L + 128L * response.metadata().size();
+    }
+
     private static String nextTokenId() {
         var uuid = UUID.randomUUID().toString().replace("-", "");
         return "vt_%s".formatted(uuid.substring(0, 16));
@@ -44,21 +64,29 @@ public final class InMemoryDelegatePaymentService implements DelegatePaymentServ
 
     @Override
     public DelegatePaymentResponse create(DelegatePaymentRequest request, String idempotencyKey) {
+        return create(request, idempotencyKey, null);
+    }
+
+    /// `fingerprint` MAY be `null`, in which case it is computed here when an idempotency key is given.
+    @Override
+    public DelegatePaymentResponse create(DelegatePaymentRequest request, String idempotencyKey, Fingerprint fingerprint) {
         validateAllowance(request);
         if (idempotencyKey == null || idempotencyKey.isBlank()) {
             return issueToken(request, null);
         }
-        var stored = idempotencyStore.compute(idempotencyKey, (key, current) -> {
-            if (current == null) {
-                return new StoredRecord(request, issueToken(request, idempotencyKey));
-            }
-            if (!current.request().equals(request)) {
-                throw new DelegatePaymentIdempotencyConflictException(
-                        "Same Idempotency-Key used with different parameters");
+        try (var claim = idempotencyStore.claim(
+                idempotencyKey, fingerprint == null ? Fingerprint.of(request) : fingerprint)) {
+            if (claim.isReplay()) {
+                return claim.replayed();
             }
-            return current;
-        });
-        return stored.response();
+            var response = issueToken(request, idempotencyKey);
+            claim.commit(response);
+            return response;
+        }
+    }
+
+    public IdempotencyTable.Stats idempotencyStats() {
+        return idempotencyStore.stats();
     }
 
     private void validateAllowance(DelegatePaymentRequest request) {
@@ -137,9 +165,6 @@ public final class InMemoryDelegatePaymentService implements DelegatePaymentServ
         }
     }
 
-    private record StoredRecord(DelegatePaymentRequest request, DelegatePaymentResponse response) {
-    }
-
     private enum TokenState {
         AVAILABLE,
         RESERVED,
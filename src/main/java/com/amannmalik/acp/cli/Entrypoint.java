@@ -15,6 +15,8 @@ public final class Entrypoint {
     public static CommandLine commandLine() {
         var commandLine = new CommandLine(new RootCommand());
         commandLine.addSubcommand("serve", new ServeCommand());
+        commandLine.addSubcommand("webhooks", new CommandLine(new WebhooksCommand())
+                .addSubcommand("replay", new WebhookReplayCommand()));
         return commandLine;
     }
 
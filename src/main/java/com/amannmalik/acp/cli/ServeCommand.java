@@ -1,13 +1,30 @@
 package com.amannmalik.acp.cli;
 
+import com.amannmalik.acp.api.checkout.CheckoutSessionExpiry;
+import com.amannmalik.acp.api.checkout.CheckoutSessionOptions;
+import com.amannmalik.acp.api.checkout.CheckoutSessionService;
 import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.MailboxCheckoutSessionService;
 import com.amannmalik.acp.api.delegatepayment.InMemoryDelegatePaymentService;
 import com.amannmalik.acp.api.shared.CurrencyCode;
 import com.amannmalik.acp.server.JettyHttpServer;
+import com.amannmalik.acp.server.RateLimiter;
+import com.amannmalik.acp.server.RequestPipelining;
 import com.amannmalik.acp.server.TlsConfiguration;
 import com.amannmalik.acp.server.security.*;
-import com.amannmalik.acp.server.webhook.HttpOrderWebhookPublisher;
+import com.amannmalik.acp.server.webhook.*;
+import com.amannmalik.acp.spi.storage.CheckoutSessionArchive;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
 import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.storage.BTreeCheckoutSessionStore;
+import com.amannmalik.acp.storage.FileCheckoutSessionArchive;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import com.amannmalik.acp.storage.FileDeadLetterStore;
+import com.amannmalik.acp.storage.OffHeapCheckoutSessionStore;
+import com.amannmalik.acp.storage.SnapshotCheckoutSessionStore;
+import com.amannmalik.acp.util.IdempotencyTable;
 import picocli.CommandLine;
 
 import java.net.URI;
@@ -34,6 +51,25 @@ public final class ServeCommand implements Callable<Integer> {
     String tlsKeyPassword;
     @CommandLine.Option(names = "--tls-keystore-type", defaultValue = "PKCS12", description = "Keystore type (default: ${DEFAULT-VALUE})")
     String tlsKeystoreType;
+    @CommandLine.Option(names = "--tls-truststore", description = "Truststore of CAs accepted for client certificates; enables mutual TLS")
+    Path tlsTruststore;
+    @CommandLine.Option(names = "--tls-truststore-password", description = "Password for the client-certificate truststore")
+    String tlsTruststorePassword;
+    @CommandLine.Option(names = "--tls-truststore-type", defaultValue = "PKCS12", description = "Truststore type (default: ${DEFAULT-VALUE})")
+    String tlsTruststoreType;
+    @CommandLine.Option(
+            names = "--tls-client",
+            description = "Client certificate mapping clientId=subjectDN. Repeat per client.")
+    List<String> tlsClients;
+    @CommandLine.Option(
+            names = "--tls-client-pin",
+            description = "SHA-256 fingerprint (hex) a client certificate MUST match. Repeat to pin several.")
+    List<String> tlsClientPins;
+    @CommandLine.Option(
+            names = "--tls-client-auth-required",
+            defaultValue = "false",
+            description = "Refuse TLS connections without a trusted client certificate (default: ${DEFAULT-VALUE})")
+    boolean tlsClientAuthRequired;
     @CommandLine.Option(
             names = "--price",
             split = ",",
@@ -58,10 +94,20 @@ public final class ServeCommand implements Callable<Integer> {
             defaultValue = "PT5M",
             description = "Maximum allowed request timestamp skew (ISO-8601). Default: ${DEFAULT-VALUE}")
     Duration maxTimestampSkew;
+    @CommandLine.Option(
+            names = "--replay-cache-bytes",
+            defaultValue = "33554432",
+            description = "Memory for detecting replayed signatures within twice the timestamp skew; 0 disables (default: ${DEFAULT-VALUE})")
+    long replayCacheBytes;
+    @CommandLine.Option(
+            names = "--replay-false-positive-rate",
+            defaultValue = "1e-6",
+            description = "Chance that a fresh signed request is mistaken for a replay (default: ${DEFAULT-VALUE})")
+    double replayFalsePositiveRate;
     @CommandLine.Option(
             names = "--webhook-endpoint",
-            description = "Order webhook endpoint URL (enables webhook publishing when provided)")
-    String webhookEndpoint;
+            description = "Order webhook endpoint URL (enables webhook publishing when provided). Repeat to fan out to several receivers.")
+    List<String> webhookEndpoints;
     @CommandLine.Option(
             names = "--webhook-signature-key",
             description = "Base64url secret used to sign webhook payloads")
@@ -71,11 +117,139 @@ public final class ServeCommand implements Callable<Integer> {
             defaultValue = "Merchant-Signature",
             description = "Header name used for webhook signatures (default: ${DEFAULT-VALUE})")
     String webhookSignatureHeader;
+    @CommandLine.Option(
+            names = "--webhook-timeout",
+            defaultValue = "PT10S",
+            description = "Per-request webhook timeout (ISO-8601). Default: ${DEFAULT-VALUE}")
+    Duration webhookTimeout;
+    @CommandLine.Option(
+            names = "--webhook-queue-capacity",
+            defaultValue = "1024",
+            description = "Maximum webhook deliveries queued or in flight; ignored with --data-dir, whose outbox queues durably (default: ${DEFAULT-VALUE})")
+    int webhookQueueCapacity;
+    @CommandLine.Option(
+            names = "--webhook-overflow-policy",
+            description = "Behaviour when an endpoint's webhook queue is full: ${COMPLETION-CANDIDATES}; ignored with --data-dir (default: BLOCK with one endpoint, REJECT with several)")
+    AsyncOrderWebhookDispatcher.OverflowPolicy webhookOverflowPolicy;
+    @CommandLine.Option(
+            names = "--webhook-max-attempts",
+            defaultValue = "8",
+            description = "Delivery attempts per webhook before giving up; with --data-dir the outbox retries up to 16 times instead (default: ${DEFAULT-VALUE})")
+    int webhookMaxAttempts;
+    @CommandLine.Option(
+            names = "--webhook-batch-size",
+            defaultValue = "1",
+            description = "Deliver up to this many events per signed JSON-array request; 1 disables batching (default: ${DEFAULT-VALUE})")
+    int webhookBatchSize;
+    @CommandLine.Option(
+            names = "--webhook-batch-linger",
+            defaultValue = "PT0.05S",
+            description = "How long a webhook batch stays open for more events (ISO-8601). Default: ${DEFAULT-VALUE}")
+    Duration webhookBatchLinger;
+    @CommandLine.Option(
+            names = "--webhook-max-concurrency",
+            defaultValue = "16",
+            description = "Maximum concurrent requests per webhook endpoint (default: ${DEFAULT-VALUE})")
+    int webhookMaxConcurrency;
+    @CommandLine.Option(
+            names = "--webhook-breaker-failures",
+            defaultValue = "5",
+            description = "Consecutive failures that open an endpoint's circuit breaker (default: ${DEFAULT-VALUE})")
+    int webhookBreakerFailures;
+    @CommandLine.Option(
+            names = "--webhook-breaker-open",
+            defaultValue = "PT30S",
+            description = "How long an open circuit breaker refuses calls before probing (ISO-8601). Default: ${DEFAULT-VALUE}")
+    Duration webhookBreakerOpen;
+    @CommandLine.Option(
+            names = "--webhook-dead-letter-dir",
+            description = "Directory for webhooks that exhaust their attempts; replay them with 'acp webhooks replay'")
+    Path webhookDeadLetterDir;
+    @CommandLine.Option(
+            names = "--data-dir",
+            description = "Directory for the checkout write-ahead log and snapshots (state is in-memory only when omitted)")
+    Path dataDir;
+    @CommandLine.Option(
+            names = "--checkout-engine",
+            defaultValue = "COMPUTE",
+            description = "How checkout mutations are serialized: COMPUTE (map bin locks) or MAILBOX (per-session virtual-thread mailboxes). Default: ${DEFAULT-VALUE}")
+    CheckoutEngine checkoutEngine;
+    @CommandLine.Option(
+            names = "--request-pipelining",
+            defaultValue = "SEQUENTIAL",
+            description = "How signed request bodies are verified and decoded: SEQUENTIAL (one after the other) or PARALLEL (decoding on a virtual thread alongside signature verification). Default: ${DEFAULT-VALUE}")
+    RequestPipelining requestPipelining;
+    @CommandLine.Option(
+            names = "--rate-limit",
+            split = ",",
+            description = "Per-client rate limit override(s) as class=permitsPerSecond[:burst] or class=off, for classes create, update, complete, retrieve and delegate_payment")
+    List<String> rateLimits;
+    @CommandLine.Option(
+            names = "--rate-limit-clients",
+            defaultValue = "65536",
+            description = "Rate-limit buckets kept across all clients and endpoint classes (default: ${DEFAULT-VALUE})")
+    int rateLimitClients;
+    @CommandLine.Option(
+            names = "--rate-limit-per-address",
+            defaultValue = "false",
+            description = "Key rate limits by bearer token and client address rather than token alone (default: ${DEFAULT-VALUE})")
+    boolean rateLimitPerAddress;
+    @CommandLine.Option(
+            names = "--idempotency-ttl",
+            defaultValue = "PT24H",
+            description = "How long idempotent responses are kept for replay (ISO-8601). Default: ${DEFAULT-VALUE}")
+    Duration idempotencyTtl;
+    @CommandLine.Option(
+            names = "--idempotency-max-entries",
+            defaultValue = "0",
+            description = "Per-store cap on kept idempotency entries, evicting least recently used; 0 disables (default: ${DEFAULT-VALUE})")
+    int idempotencyMaxEntries;
+    @CommandLine.Option(
+            names = "--idempotency-max-bytes",
+            defaultValue = "0",
+            description = "Per-store cap on estimated idempotency bytes, evicting least recently used; 0 disables (default: ${DEFAULT-VALUE})")
+    long idempotencyMaxBytes;
+    @CommandLine.Option(
+            names = "--session-abandon-after",
+            defaultValue = "PT0S",
+            description = "Drop open checkout sessions idle for this long (ISO-8601); PT0S keeps them. Default: ${DEFAULT-VALUE}")
+    Duration sessionAbandonAfter;
+    @CommandLine.Option(
+            names = "--session-retention",
+            defaultValue = "PT0S",
+            description = "Keep completed and canceled sessions in memory for this long (ISO-8601); PT0S keeps them. Default: ${DEFAULT-VALUE}")
+    Duration sessionRetention;
+    @CommandLine.Option(
+            names = "--session-archive-dir",
+            description = "Directory for a compressed archive of sessions leaving memory after --session-retention (discarded when omitted)")
+    Path sessionArchiveDir;
+    @CommandLine.Option(
+            names = "--session-store",
+            defaultValue = "HEAP",
+            description = "Where live checkout sessions are kept: HEAP (Java objects), OFF_HEAP (compact binary records outside the Java heap), BTREE (a B+tree file paged in on demand, for histories larger than memory) or SNAPSHOT (a persistent hash trie with constant-time consistent snapshots). Default: ${DEFAULT-VALUE}")
+    SessionStore sessionStore;
+    @CommandLine.Option(
+            names = "--off-heap-dir",
+            description = "Memory-map off-heap session chunks from scratch files in this directory instead of anonymous memory")
+    Path offHeapDir;
+    @CommandLine.Option(
+            names = "--btree-file",
+            description = "Session B+tree file; required with --session-store BTREE. Every write is synced unless --data-dir journals it, in which case syncs are batched")
+    Path btreeFile;
+    @CommandLine.Option(
+            names = "--session-snapshot-dir",
+            description = "Periodically export consistent session snapshots into this directory; requires --session-store SNAPSHOT")
+    Path sessionSnapshotDir;
+    @CommandLine.Option(
+            names = "--session-snapshot-interval",
+            defaultValue = "PT15M",
+            description = "Interval between session snapshot exports (ISO-8601). Default: ${DEFAULT-VALUE}")
+    Duration sessionSnapshotInterval;
 
     public ServeCommand() {
     }
 
-    private static byte[] decodeBase64Url(String encoded) {
+    static byte[] decodeBase64Url(String encoded) {
         try {
             return Base64.getUrlDecoder().decode(encoded);
         } catch (IllegalArgumentException e) {
@@ -83,7 +257,7 @@ public final class ServeCommand implements Callable<Integer> {
         }
     }
 
-    private static URI parseUri(String value) {
+    static URI parseUri(String value) {
         try {
             return URI.create(value);
         } catch (IllegalArgumentException e) {
@@ -94,16 +268,27 @@ public final class ServeCommand implements Callable<Integer> {
     @Override
     public Integer call() throws Exception {
         var priceBook = parsePriceOverrides();
-        var orderPublisher = webhookPublisher();
+        var deadLetters = deadLetterStore();
+        var orderPublisher = webhookPublisher(deadLetters);
         var currency = new CurrencyCode(currencyCode);
-        var delegatePaymentService = new InMemoryDelegatePaymentService();
-        var checkoutService = priceBook.isEmpty()
-                ? new InMemoryCheckoutSessionService(currency, orderPublisher, delegatePaymentService)
-                : new InMemoryCheckoutSessionService(
-                        priceBook, Clock.systemUTC(), currency, orderPublisher, delegatePaymentService);
+        var idempotencyRetention = new IdempotencyTable.Retention(idempotencyTtl, idempotencyMaxEntries, idempotencyMaxBytes);
+        var delegatePaymentService = new InMemoryDelegatePaymentService(Clock.systemUTC(), idempotencyRetention);
         var authenticator = authenticator();
         var serverConfig = serverConfiguration();
-        try (var server = new JettyHttpServer(serverConfig, checkoutService, delegatePaymentService, authenticator)) {
+        try (var journal = journal();
+             var archive = sessionArchive();
+             var store = sessionStore();
+             var checkoutService = checkoutService(priceBook, currency, CheckoutSessionOptions.defaults()
+                     .withWebhookPublisher(orderPublisher)
+                     .withTokenValidator(delegatePaymentService)
+                     .withJournal(journal)
+                     .withIdempotencyRetention(idempotencyRetention)
+                     .withExpiry(new CheckoutSessionExpiry(sessionAbandonAfter, sessionRetention, archive))
+                     .withStore(store)
+                     .withWebhookDeadLetters(deadLetters));
+             var server = new JettyHttpServer(
+                     serverConfig, checkoutService, delegatePaymentService, authenticator, idempotencyRetention,
+                     requestPipelining, rateLimitConfiguration())) {
             server.start();
             if (server.hasHttps()) {
                 System.out.printf("ACP server listening on https://localhost:%d%n", server.httpsPort());
@@ -112,10 +297,81 @@ public final class ServeCommand implements Callable<Integer> {
                 System.out.printf("(insecure) HTTP listener enabled at http://localhost:%d%n", server.httpPort());
             }
             server.join();
+        } finally {
+            try {
+                if (orderPublisher instanceof AutoCloseable closeable) {
+                    closeable.close();
+                }
+            } finally {
+                if (deadLetters != null) {
+                    deadLetters.close();
+                }
+            }
         }
         return 0;
     }
 
+    private CheckoutSessionService checkoutService(
+            Map<String, Long> priceBook, CurrencyCode currency, CheckoutSessionOptions options) {
+        return switch (checkoutEngine) {
+            case COMPUTE -> priceBook.isEmpty()
+                    ? new InMemoryCheckoutSessionService(currency, options)
+                    : new InMemoryCheckoutSessionService(priceBook, Clock.systemUTC(), currency, options);
+            case MAILBOX -> priceBook.isEmpty()
+                    ? new MailboxCheckoutSessionService(currency, options)
+                    : new MailboxCheckoutSessionService(priceBook, Clock.systemUTC(), currency, options);
+        };
+    }
+
+    /// `null` for the heap store, which the service creates and owns itself.
+    private CheckoutSessionStore sessionStore() {
+        if (offHeapDir != null && sessionStore != SessionStore.OFF_HEAP) {
+            throw new IllegalArgumentException("--off-heap-dir requires --session-store OFF_HEAP");
+        }
+        if (btreeFile != null && sessionStore != SessionStore.BTREE) {
+            throw new IllegalArgumentException("--btree-file requires --session-store BTREE");
+        }
+        if (btreeFile == null && sessionStore == SessionStore.BTREE) {
+            throw new IllegalArgumentException("--session-store BTREE requires --btree-file");
+        }
+        if (sessionSnapshotDir != null && sessionStore != SessionStore.SNAPSHOT) {
+            throw new IllegalArgumentException("--session-snapshot-dir requires --session-store SNAPSHOT");
+        }
+        return switch (sessionStore) {
+            case HEAP -> null;
+            case OFF_HEAP -> new OffHeapCheckoutSessionStore(offHeapDir == null
+                    ? OffHeapCheckoutSessionStore.Configuration.anonymous()
+                    : OffHeapCheckoutSessionStore.Configuration.mapped(offHeapDir));
+            case BTREE -> new BTreeCheckoutSessionStore(dataDir == null
+                    ? BTreeCheckoutSessionStore.Configuration.defaults(btreeFile)
+                    : BTreeCheckoutSessionStore.Configuration.journaled(btreeFile));
+            case SNAPSHOT -> new SnapshotCheckoutSessionStore(sessionSnapshotDir == null
+                    ? SnapshotCheckoutSessionStore.Configuration.onDemand()
+                    : SnapshotCheckoutSessionStore.Configuration.exporting(sessionSnapshotDir, sessionSnapshotInterval));
+        };
+    }
+
+    private CheckoutSessionArchive sessionArchive() {
+        if (sessionArchiveDir == null) {
+            return CheckoutSessionArchive.NOOP;
+        }
+        return new FileCheckoutSessionArchive(FileCheckoutSessionArchive.Configuration.defaults(sessionArchiveDir));
+    }
+
+    private CheckoutSessionJournal journal() {
+        if (dataDir == null) {
+            return CheckoutSessionJournal.NOOP;
+        }
+        return new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(dataDir));
+    }
+
+    private DeadLetterStore deadLetterStore() {
+        if (webhookDeadLetterDir == null) {
+            return null;
+        }
+        return new FileDeadLetterStore(FileDeadLetterStore.Configuration.defaults(webhookDeadLetterDir), Clock.systemUTC());
+    }
+
     private JettyHttpServer.Configuration serverConfiguration() {
         var tls = tlsConfiguration();
         if (tls != null && allowInsecureHttp) {
@@ -130,6 +386,33 @@ public final class ServeCommand implements Callable<Integer> {
         throw new IllegalArgumentException("TLS configuration required unless --allow-insecure-http is specified");
     }
 
+    /// The default limits with any `--rate-limit` overrides applied.
+    private RateLimiter.Configuration rateLimitConfiguration() {
+        var limits = new EnumMap<>(RateLimiter.Configuration.defaults().limits());
+        for (var entry : rateLimits == null ? List.<String>of() : rateLimits) {
+            var parts = entry.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid --rate-limit format: " + entry);
+            }
+            RateLimiter.EndpointClass endpoint;
+            try {
+                endpoint = RateLimiter.EndpointClass.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown --rate-limit endpoint class: " + parts[0], e);
+            }
+            var value = parts[1].trim();
+            if ("off".equalsIgnoreCase(value)) {
+                limits.remove(endpoint);
+                continue;
+            }
+            var rate = value.split(":", 2);
+            var permitsPerSecond = Double.parseDouble(rate[0]);
+            var burst = rate.length == 2 ? Integer.parseInt(rate[1]) : (int) Math.max(1, Math.ceil(permitsPerSecond));
+            limits.put(endpoint, new RateLimiter.Limit(permitsPerSecond, burst));
+        }
+        return new RateLimiter.Configuration(limits, rateLimitClients, rateLimitPerAddress);
+    }
+
     private Map<String, Long> parsePriceOverrides() {
         if (priceOverrides == null || priceOverrides.isEmpty()) {
             return Map.of();
@@ -148,12 +431,16 @@ public final class ServeCommand implements Callable<Integer> {
     private RequestAuthenticator authenticator() {
         var tokens = parseBearerTokens();
         var signingKeys = parseSignatureSecrets();
-        var configuration = new SecurityConfiguration(tokens, signingKeys, maxTimestampSkew);
+        var replayProtection = new SecurityConfiguration.ReplayProtection(replayCacheBytes, replayFalsePositiveRate);
+        var configuration = new SecurityConfiguration(tokens, signingKeys, maxTimestampSkew, replayProtection);
         return new ConfigurableRequestAuthenticator(configuration, Clock.systemUTC());
     }
 
     private TlsConfiguration tlsConfiguration() {
         if (tlsKeystore == null && tlsKeystorePassword == null && tlsKeyPassword == null) {
+            if (tlsTruststore != null || tlsClients != null) {
+                throw new IllegalArgumentException("Mutual TLS options require --tls-keystore");
+            }
             return null;
         }
         if (tlsKeystore == null || tlsKeystorePassword == null) {
@@ -162,7 +449,8 @@ public final class ServeCommand implements Callable<Integer> {
         var keystorePasswordChars = tlsKeystorePassword.toCharArray();
         var keyPasswordChars = tlsKeyPassword != null ? tlsKeyPassword.toCharArray() : null;
         try {
-            return new TlsConfiguration(tlsKeystore, keystorePasswordChars, keyPasswordChars, tlsKeystoreType, httpsPort);
+            return new TlsConfiguration(
+                    tlsKeystore, keystorePasswordChars, keyPasswordChars, tlsKeystoreType, httpsPort, clientAuthentication());
         } finally {
             Arrays.fill(keystorePasswordChars, '\0');
             if (keyPasswordChars != null) {
@@ -171,6 +459,36 @@ public final class ServeCommand implements Callable<Integer> {
         }
     }
 
+    private TlsConfiguration.ClientAuthentication clientAuthentication() {
+        if (tlsTruststore == null && tlsTruststorePassword == null && tlsClients == null && tlsClientPins == null) {
+            return null;
+        }
+        if (tlsTruststore == null || tlsTruststorePassword == null || tlsClients == null) {
+            throw new IllegalArgumentException(
+                    "--tls-truststore, --tls-truststore-password and --tls-client MUST be provided together");
+        }
+        var clients = new LinkedHashMap<String, String>();
+        for (var entry : tlsClients) {
+            var separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid --tls-client format (expected clientId=subjectDN): " + entry);
+            }
+            var clientId = entry.substring(0, separator).trim();
+            var subject = entry.substring(separator + 1).trim();
+            if (clients.put(subject, clientId) != null) {
+                throw new IllegalArgumentException("Duplicate --tls-client subject provided: " + subject);
+            }
+        }
+        var pins = tlsClientPins == null ? Set.<String>of() : Set.copyOf(tlsClientPins);
+        var truststorePasswordChars = tlsTruststorePassword.toCharArray();
+        try {
+            return new TlsConfiguration.ClientAuthentication(
+                    tlsTruststore, truststorePasswordChars, tlsTruststoreType, clients, pins, tlsClientAuthRequired);
+        } finally {
+            Arrays.fill(truststorePasswordChars, '\0');
+        }
+    }
+
     private Set<String> parseBearerTokens() {
         if (authTokens == null || authTokens.isEmpty()) {
             throw new IllegalArgumentException("At least one --auth-token MUST be provided");
@@ -188,17 +506,81 @@ public final class ServeCommand implements Callable<Integer> {
         return SigningKeyParser.parse(signatureKeys);
     }
 
-    private OrderWebhookPublisher webhookPublisher() {
-        if (webhookEndpoint == null && webhookSignatureKey == null) {
+    private OrderWebhookPublisher webhookPublisher(DeadLetterStore deadLetters) {
+        var endpoints = webhookEndpoints == null ? List.<String>of() : webhookEndpoints;
+        if (endpoints.isEmpty() && webhookSignatureKey == null) {
             return OrderWebhookPublisher.NOOP;
         }
-        if (webhookEndpoint == null || webhookSignatureKey == null) {
+        if (endpoints.isEmpty() || webhookSignatureKey == null) {
             throw new IllegalArgumentException(
                     "--webhook-endpoint and --webhook-signature-key MUST be provided together");
         }
-        var endpointUri = parseUri(webhookEndpoint);
         var secret = decodeBase64Url(webhookSignatureKey);
-        var client = HttpClient.newHttpClient();
-        return new HttpOrderWebhookPublisher(client, endpointUri, webhookSignatureHeader, secret, Clock.systemUTC());
+        var client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(webhookTimeout)
+                .build();
+        var overflowPolicy = webhookOverflowPolicy != null
+                ? webhookOverflowPolicy
+                : endpoints.size() == 1
+                ? AsyncOrderWebhookDispatcher.OverflowPolicy.BLOCK
+                : AsyncOrderWebhookDispatcher.OverflowPolicy.REJECT;
+        var pipelines = new LinkedHashMap<String, OrderWebhookPublisher>();
+        for (var endpoint : endpoints) {
+            if (pipelines.containsKey(endpoint)) {
+                throw new IllegalArgumentException("Duplicate --webhook-endpoint provided: " + endpoint);
+            }
+            pipelines.put(endpoint, endpointPipeline(client, endpoint, secret, overflowPolicy, deadLetters));
+        }
+        if (pipelines.size() == 1) {
+            return pipelines.values().iterator().next();
+        }
+        return new FanOutOrderWebhookPublisher(pipelines);
+    }
+
+    /// With `--data-dir` the checkout outbox already queues, orders and retries every event durably,
+    /// so the endpoint is used without an [AsyncOrderWebhookDispatcher] and retries live in exactly
+    /// one layer.
+    private OrderWebhookPublisher endpointPipeline(
+            HttpClient client,
+            String endpoint,
+            byte[] secret,
+            AsyncOrderWebhookDispatcher.OverflowPolicy overflowPolicy,
+            DeadLetterStore deadLetters) {
+        OrderWebhookPublisher transport = new HttpOrderWebhookPublisher(
+                client, parseUri(endpoint), webhookSignatureHeader, secret, Clock.systemUTC(), null, webhookTimeout);
+        var batching = webhookBatchSize > 1;
+        if (batching) {
+            transport = new BatchingOrderWebhookPublisher(
+                    transport, new BatchingOrderWebhookPublisher.Configuration(webhookBatchSize, webhookBatchLinger));
+        }
+        var breaker = new CircuitBreaker(
+                new CircuitBreaker.Configuration(webhookBreakerFailures, webhookBreakerOpen), Clock.systemUTC());
+        var guarded = new GuardedOrderWebhookPublisher(endpoint, transport, webhookMaxConcurrency, breaker);
+        if (dataDir != null) {
+            return guarded;
+        }
+        var defaults = AsyncOrderWebhookDispatcher.Configuration.defaults();
+        return new AsyncOrderWebhookDispatcher(guarded, new AsyncOrderWebhookDispatcher.Configuration(
+                webhookQueueCapacity,
+                overflowPolicy,
+                webhookMaxAttempts,
+                defaults.initialBackoff(),
+                defaults.maxBackoff(),
+                defaults.drainTimeout(),
+                batching),
+                deadLetters == null ? null : deadLetters.forEndpoint(endpoint));
+    }
+
+    enum CheckoutEngine {
+        COMPUTE,
+        MAILBOX
+    }
+
+    enum SessionStore {
+        HEAP,
+        OFF_HEAP,
+        BTREE,
+        SNAPSHOT
     }
 }
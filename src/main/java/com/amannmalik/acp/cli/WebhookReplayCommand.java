@@ -0,0 +1,87 @@
+package com.amannmalik.acp.cli;
+
+import com.amannmalik.acp.server.webhook.DeadLetterReplayer;
+import com.amannmalik.acp.server.webhook.HttpOrderWebhookPublisher;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.storage.FileDeadLetterStore;
+import picocli.CommandLine;
+
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+@CommandLine.Command(name = "replay", description = "Re-deliver dead-lettered order webhooks")
+public final class WebhookReplayCommand implements Callable<Integer> {
+    @CommandLine.Option(
+            names = "--dead-letter-dir",
+            required = true,
+            description = "Dead-letter directory written by serve --webhook-dead-letter-dir; serve may keep running")
+    Path deadLetterDir;
+    @CommandLine.Option(
+            names = "--webhook-endpoint",
+            description = "Deliver every dead letter to this URL instead of the endpoint it was recorded for")
+    String webhookEndpoint;
+    @CommandLine.Option(
+            names = "--webhook-signature-key",
+            required = true,
+            description = "Base64url secret used to sign webhook payloads")
+    String webhookSignatureKey;
+    @CommandLine.Option(
+            names = "--webhook-signature-header",
+            defaultValue = "Merchant-Signature",
+            description = "Header name used for webhook signatures (default: ${DEFAULT-VALUE})")
+    String webhookSignatureHeader;
+    @CommandLine.Option(
+            names = "--webhook-timeout",
+            defaultValue = "PT10S",
+            description = "Per-request webhook timeout (ISO-8601). Default: ${DEFAULT-VALUE}")
+    Duration webhookTimeout;
+    @CommandLine.Option(
+            names = "--rate",
+            defaultValue = "100",
+            description = "Maximum dead letters sent per second; 0 disables pacing (default: ${DEFAULT-VALUE})")
+    int rate;
+    @CommandLine.Option(
+            names = "--workers",
+            defaultValue = "16",
+            description = "Parallel delivery workers; events for one checkout session stay on one worker (default: ${DEFAULT-VALUE})")
+    int workers;
+
+    public WebhookReplayCommand() {
+    }
+
+    @Override
+    public Integer call() {
+        var secret = ServeCommand.decodeBase64Url(webhookSignatureKey);
+        var client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(webhookTimeout)
+                .build();
+        var publishers = new ConcurrentHashMap<String, OrderWebhookPublisher>();
+        try (client;
+             var store = new FileDeadLetterStore(FileDeadLetterStore.Configuration.defaults(deadLetterDir), Clock.systemUTC())) {
+            var replayer = new DeadLetterReplayer(
+                    store,
+                    endpoint -> publishers.computeIfAbsent(
+                            webhookEndpoint != null ? webhookEndpoint : endpoint,
+                            target -> new HttpOrderWebhookPublisher(
+                                    client,
+                                    ServeCommand.parseUri(target),
+                                    webhookSignatureHeader,
+                                    secret,
+                                    Clock.systemUTC(),
+                                    null,
+                                    webhookTimeout)),
+                    DeadLetterReplayer.Configuration.of(workers, rate),
+                    Clock.systemUTC());
+            var result = replayer.replay();
+            System.out.printf(
+                    "Replayed %d dead letter(s) from %d segment(s); %d failed again or were held back and were re-recorded%n",
+                    result.replayed(), result.segments(), result.failed());
+            return result.failed() == 0 ? 0 : 1;
+        }
+    }
+}
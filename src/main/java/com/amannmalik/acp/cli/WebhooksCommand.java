@@ -0,0 +1,18 @@
+package com.amannmalik.acp.cli;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Model.CommandSpec;
+
+@CommandLine.Command(name = "webhooks", description = "Order webhook maintenance")
+public final class WebhooksCommand implements Runnable {
+    @CommandLine.Spec
+    CommandSpec spec;
+
+    public WebhooksCommand() {
+    }
+
+    @Override
+    public void run() {
+        spec.commandLine().usage(spec.commandLine().getOut());
+    }
+}
@@ -4,6 +4,9 @@ import com.amannmalik.acp.api.checkout.model.Address;
 import jakarta.json.*;
 
 final class AddressJson {
+    static final JsonPullReader.Names FIELDS = JsonPullReader.Names.of(
+            "name", "line_one", "line_two", "city", "state", "country", "postal_code");
+
     private AddressJson() {
     }
 
@@ -25,17 +28,51 @@ final class AddressJson {
         return read(parent.getJsonObject(key));
     }
 
-    static JsonObjectBuilder write(Address address) {
-        var builder = Json.createObjectBuilder()
-                .add("name", address.name())
-                .add("line_one", address.lineOne());
+    /// The address object at the reader's position, or `null` for a JSON `null`.
+    static Address read(JsonPullReader reader, String key) {
+        if (!reader.beginObjectOrNull(key)) {
+            return null;
+        }
+        String name = null;
+        String lineOne = null;
+        String lineTwo = null;
+        String city = null;
+        String state = null;
+        String country = null;
+        String postalCode = null;
+        for (var field = reader.nextName(); field != null; field = reader.nextName()) {
+            switch (field) {
+                case "name" -> name = reader.stringOrNull(field);
+                case "line_one" -> lineOne = reader.stringOrNull(field);
+                case "line_two" -> lineTwo = reader.stringOrNull(field);
+                case "city" -> city = reader.stringOrNull(field);
+                case "state" -> state = reader.stringOrNull(field);
+                case "country" -> country = reader.stringOrNull(field);
+                case "postal_code" -> postalCode = reader.stringOrNull(field);
+                default -> reader.skipValue();
+            }
+        }
+        return new Address(
+                JsonSupport.requireString(name, "name"),
+                JsonSupport.requireString(lineOne, "line_one"),
+                lineTwo,
+                JsonSupport.requireString(city, "city"),
+                JsonSupport.requireString(state, "state"),
+                JsonSupport.requireString(country, "country"),
+                JsonSupport.requireString(postalCode, "postal_code"));
+    }
+
+    static void write(JsonByteWriter json, Address address) {
+        json.beginObject()
+                .field("name", address.name())
+                .field("line_one", address.lineOne());
         if (address.lineTwo() != null) {
-            builder.add("line_two", address.lineTwo());
+            json.field("line_two", address.lineTwo());
         }
-        builder.add("city", address.city());
-        return builder
-                .add("state", address.state())
-                .add("country", address.country())
-                .add("postal_code", address.postalCode());
+        json.field("city", address.city())
+                .field("state", address.state())
+                .field("country", address.country())
+                .field("postal_code", address.postalCode())
+                .endObject();
     }
 }
@@ -0,0 +1,110 @@
+package com.amannmalik.acp.codec;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/// Counterpart of [BinaryWriter]; consumes values from the current position of a [ByteBuffer].
+final class BinaryReader {
+    private final ByteBuffer buffer;
+
+    BinaryReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    int readByte() {
+        try {
+            return buffer.get() & 0xFF;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary record");
+        }
+    }
+
+    boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    int readVarInt() {
+        var result = 0;
+        for (var shift = 0; shift < 35; shift += 7) {
+            var b = readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in binary record");
+    }
+
+    long readVarLong() {
+        var result = 0L;
+        for (var shift = 0; shift < 70; shift += 7) {
+            var b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varlong in binary record");
+    }
+
+    long readSignedVarLong() {
+        var raw = readVarLong();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    int readCount() {
+        var count = readVarInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid element count in binary record: " + count);
+        }
+        return count;
+    }
+
+    String readString() {
+        var prefix = readVarInt();
+        if (prefix == 0) {
+            return null;
+        }
+        var length = prefix - 1;
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length in binary record: " + length);
+        }
+        if (buffer.hasArray()) {
+            var offset = buffer.arrayOffset() + buffer.position();
+            var value = new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    byte[] readBytes(int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid byte length in binary record: " + length);
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    Instant readInstant() {
+        if (!readBoolean()) {
+            return null;
+        }
+        var seconds = readSignedVarLong();
+        var nanos = readVarInt();
+        return Instant.ofEpochSecond(seconds, nanos);
+    }
+
+    <E extends Enum<E>> E readEnum(E[] values) {
+        var ordinal = readByte();
+        if (ordinal >= values.length) {
+            throw new IllegalArgumentException("Unknown enum ordinal in binary record: " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
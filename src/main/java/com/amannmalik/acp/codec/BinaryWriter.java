@@ -0,0 +1,87 @@
+package com.amannmalik.acp.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/// Growable little-endian byte sink used by the binary codecs. Variable-length integers use LEB128;
+/// signed values are zig-zag encoded so small negative amounts stay compact.
+final class BinaryWriter {
+    private byte[] buffer;
+    private int size;
+
+    BinaryWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    void writeVarInt(int value) {
+        ensureCapacity(5);
+        var remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            buffer[size++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer[size++] = (byte) remaining;
+    }
+
+    void writeVarLong(long value) {
+        ensureCapacity(10);
+        var remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer[size++] = (byte) remaining;
+    }
+
+    void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /// Strings are length-prefixed with `length + 1` so that `0` can encode `null`.
+    void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        writeBytes(bytes);
+    }
+
+    void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    void writeInstant(Instant instant) {
+        if (instant == null) {
+            writeBoolean(false);
+            return;
+        }
+        writeBoolean(true);
+        writeSignedVarLong(instant.getEpochSecond());
+        writeVarInt(instant.getNano());
+    }
+
+    private void ensureCapacity(int additional) {
+        var required = size + additional;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.amannmalik.acp.codec;
+
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.api.shared.MinorUnitAmount;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Compact, schema-ordered binary form of the checkout models used for durable storage.
+///
+/// Enums are stored by ordinal, so constants MUST only ever be appended. Readers consume from the
+/// buffer's current position and leave it just past the decoded value, which lets callers
+/// concatenate several values without extra framing.
+public final class CheckoutSessionBinaryCodec {
+    private static final int SHIPPING = 0;
+    private static final int DIGITAL = 1;
+    private static final int INFO = 0;
+    private static final int ERROR = 1;
+
+    public CheckoutSessionBinaryCodec() {
+    }
+
+    private static void writeBuyer(BinaryWriter out, Buyer buyer) {
+        out.writeBoolean(buyer != null);
+        if (buyer == null) {
+            return;
+        }
+        out.writeString(buyer.firstName());
+        out.writeString(buyer.lastName());
+        out.writeString(buyer.email());
+        out.writeString(buyer.phoneNumber());
+    }
+
+    private static Buyer readBuyer(BinaryReader in) {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new Buyer(in.readString(), in.readString(), in.readString(), in.readString());
+    }
+
+    private static void writeAddress(BinaryWriter out, Address address) {
+        out.writeBoolean(address != null);
+        if (address == null) {
+            return;
+        }
+        out.writeString(address.name());
+        out.writeString(address.lineOne());
+        out.writeString(address.lineTwo());
+        out.writeString(address.city());
+        out.writeString(address.state());
+        out.writeString(address.country());
+        out.writeString(address.postalCode());
+    }
+
+    private static Address readAddress(BinaryReader in) {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new Address(
+                in.readString(),
+                in.readString(),
+                in.readString(),
+                in.readString(),
+                in.readString(),
+                in.readString(),
+                in.readString());
+    }
+
+    private static void writeItems(BinaryWriter out, List<Item> items) {
+        out.writeVarInt(items.size());
+        for (var item : items) {
+            out.writeString(item.id());
+            out.writeVarInt(item.quantity());
+        }
+    }
+
+    private static List<Item> readItems(BinaryReader in) {
+        var count = in.readCount();
+        var items = new ArrayList<Item>(count);
+        for (var i = 0; i < count; i++) {
+            items.add(new Item(in.readString(), in.readVarInt()));
+        }
+        return items;
+    }
+
+    private static void writeAmount(BinaryWriter out, MinorUnitAmount amount) {
+        out.writeSignedVarLong(amount.value());
+    }
+
+    private static MinorUnitAmount readAmount(BinaryReader in) {
+        return new MinorUnitAmount(in.readSignedVarLong());
+    }
+
+    private static void writePaymentProvider(BinaryWriter out, PaymentProvider provider) {
+        out.writeByte(provider.provider().ordinal());
+        out.writeVarInt(provider.supportedPaymentMethods().size());
+        for (var method : provider.supportedPaymentMethods()) {
+            out.writeByte(method.ordinal());
+        }
+    }
+
+    private static PaymentProvider readPaymentProvider(BinaryReader in) {
+        var provider = in.readEnum(PaymentProvider.Provider.values());
+        var count = in.readCount();
+        var methods = new ArrayList<PaymentProvider.PaymentMethod>(count);
+        for (var i = 0; i < count; i++) {
+            methods.add(in.readEnum(PaymentProvider.PaymentMethod.values()));
+        }
+        return new PaymentProvider(provider, methods);
+    }
+
+    private static void writeLineItems(BinaryWriter out, List<LineItem> lineItems) {
+        out.writeVarInt(lineItems.size());
+        for (var lineItem : lineItems) {
+            out.writeString(lineItem.id());
+            out.writeString(lineItem.item().id());
+            out.writeVarInt(lineItem.item().quantity());
+            writeAmount(out, lineItem.baseAmount());
+            writeAmount(out, lineItem.discount());
+            writeAmount(out, lineItem.subtotal());
+            writeAmount(out, lineItem.tax());
+            writeAmount(out, lineItem.total());
+        }
+    }
+
+    private static List<LineItem> readLineItems(BinaryReader in) {
+        var count = in.readCount();
+        var lineItems = new ArrayList<LineItem>(count);
+        for (var i = 0; i < count; i++) {
+            lineItems.add(new LineItem(
+                    in.readString(),
+                    new Item(in.readString(), in.readVarInt()),
+                    readAmount(in),
+                    readAmount(in),
+                    readAmount(in),
+                    readAmount(in),
+                    readAmount(in)));
+        }
+        return lineItems;
+    }
+
+    private static void writeFulfillmentOptions(BinaryWriter out, List<FulfillmentOption> options) {
+        out.writeVarInt(options.size());
+        for (var option : options) {
+            switch (option) {
+                case FulfillmentOption.Shipping shipping -> {
+                    out.writeByte(SHIPPING);
+                    out.writeString(shipping.id());
+                    out.writeString(shipping.title());
+                    out.writeString(shipping.subtitle());
+                    out.writeString(shipping.carrier());
+                    out.writeInstant(shipping.earliestDeliveryTime());
+                    out.writeInstant(shipping.latestDeliveryTime());
+                }
+                case FulfillmentOption.Digital digital -> {
+                    out.writeByte(DIGITAL);
+                    out.writeString(digital.id());
+                    out.writeString(digital.title());
+                    out.writeString(digital.subtitle());
+                }
+            }
+            writeAmount(out, option.subtotal());
+            writeAmount(out, option.tax());
+            writeAmount(out, option.total());
+        }
+    }
+
+    private static List<FulfillmentOption> readFulfillmentOptions(BinaryReader in) {
+        var count = in.readCount();
+        var options = new ArrayList<FulfillmentOption>(count);
+        for (var i = 0; i < count; i++) {
+            var kind = in.readByte();
+            switch (kind) {
+                case SHIPPING -> {
+                    var id = in.readString();
+                    var title = in.readString();
+                    var subtitle = in.readString();
+                    var carrier = in.readString();
+                    var earliest = in.readInstant();
+                    var latest = in.readInstant();
+                    options.add(new FulfillmentOption.Shipping(
+                            id, title, subtitle, carrier, earliest, latest, readAmount(in), readAmount(in), readAmount(in)));
+                }
+                case DIGITAL -> {
+                    var id = in.readString();
+                    var title = in.readString();
+                    var subtitle = in.readString();
+                    options.add(new FulfillmentOption.Digital(
+                            id, title, subtitle, readAmount(in), readAmount(in), readAmount(in)));
+                }
+                default -> throw new IllegalArgumentException("Unknown fulfillment option kind: " + kind);
+            }
+        }
+        return options;
+    }
+
+    private static void writeTotals(BinaryWriter out, List<Total> totals) {
+        out.writeVarInt(totals.size());
+        for (var total : totals) {
+            out.writeByte(total.type().ordinal());
+            out.writeString(total.displayText());
+            writeAmount(out, total.amount());
+        }
+    }
+
+    private static List<Total> readTotals(BinaryReader in) {
+        var count = in.readCount();
+        var totals = new ArrayList<Total>(count);
+        for (var i = 0; i < count; i++) {
+            totals.add(new Total(in.readEnum(Total.TotalType.values()), in.readString(), readAmount(in)));
+        }
+        return totals;
+    }
+
+    private static void writeMessages(BinaryWriter out, List<Message> messages) {
+        out.writeVarInt(messages.size());
+        for (var message : messages) {
+            switch (message) {
+                case Message.Info info -> {
+                    out.writeByte(INFO);
+                    out.writeString(info.param());
+                }
+                case Message.Error error -> {
+                    out.writeByte(ERROR);
+                    out.writeByte(error.code().ordinal());
+                    out.writeString(error.param());
+                }
+            }
+            out.writeByte(message.contentType().ordinal());
+            out.writeString(message.content());
+        }
+    }
+
+    private static List<Message> readMessages(BinaryReader in) {
+        var count = in.readCount();
+        var messages = new ArrayList<Message>(count);
+        for (var i = 0; i < count; i++) {
+            var kind = in.readByte();
+            switch (kind) {
+                case INFO -> {
+                    var param = in.readString();
+                    messages.add(new Message.Info(param, in.readEnum(Message.ContentType.values()), in.readString()));
+                }
+                case ERROR -> {
+                    var code = in.readEnum(Message.ErrorCode.values());
+                    var param = in.readString();
+                    messages.add(new Message.Error(
+                            code, param, in.readEnum(Message.ContentType.values()), in.readString()));
+                }
+                default -> throw new IllegalArgumentException("Unknown message kind: " + kind);
+            }
+        }
+        return messages;
+    }
+
+    private static void writeLinks(BinaryWriter out, List<Link> links) {
+        out.writeVarInt(links.size());
+        for (var link : links) {
+            out.writeByte(link.type().ordinal());
+            out.writeString(link.url().toString());
+        }
+    }
+
+    private static List<Link> readLinks(BinaryReader in) {
+        var count = in.readCount();
+        var links = new ArrayList<Link>(count);
+        for (var i = 0; i < count; i++) {
+            links.add(new Link(in.readEnum(Link.LinkType.values()), URI.create(in.readString())));
+        }
+        return links;
+    }
+
+    private static void writeOrder(BinaryWriter out, Order order) {
+        out.writeBoolean(order != null);
+        if (order == null) {
+            return;
+        }
+        out.writeString(order.id());
+        out.writeString(order.checkoutSessionId().value());
+        out.writeString(order.permalinkUrl().toString());
+    }
+
+    private static Order readOrder(BinaryReader in) {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new Order(in.readString(), new CheckoutSessionId(in.readString()), URI.create(in.readString()));
+    }
+
+    public byte[] writeCheckoutSession(CheckoutSession session) {
+        var out = new BinaryWriter(512);
+        out.writeString(session.id().value());
+        writeBuyer(out, session.buyer());
+        writePaymentProvider(out, session.paymentProvider());
+        out.writeByte(session.status().ordinal());
+        out.writeString(session.currency().value());
+        writeLineItems(out, session.lineItems());
+        writeAddress(out, session.fulfillmentAddress());
+        writeFulfillmentOptions(out, session.fulfillmentOptions());
+        out.writeString(session.fulfillmentOptionId() == null ? null : session.fulfillmentOptionId().value());
+        writeTotals(out, session.totals());
+        writeMessages(out, session.messages());
+        writeLinks(out, session.links());
+        writeOrder(out, session.order());
+        return out.toByteArray();
+    }
+
+    public CheckoutSession readCheckoutSession(ByteBuffer buffer) {
+        var in = new BinaryReader(buffer);
+        var id = new CheckoutSessionId(in.readString());
+        var buyer = readBuyer(in);
+        var provider = readPaymentProvider(in);
+        var status = in.readEnum(CheckoutSessionStatus.values());
+        var currency = new CurrencyCode(in.readString());
+        var lineItems = readLineItems(in);
+        var fulfillmentAddress = readAddress(in);
+        var fulfillmentOptions = readFulfillmentOptions(in);
+        var fulfillmentOptionId = in.readString();
+        var totals = readTotals(in);
+        var messages = readMessages(in);
+        var links = readLinks(in);
+        var order = readOrder(in);
+        return new CheckoutSession(
+                id,
+                buyer,
+                provider,
+                status,
+                currency,
+                lineItems,
+                fulfillmentAddress,
+                fulfillmentOptions,
+                fulfillmentOptionId == null ? null : new FulfillmentOptionId(fulfillmentOptionId),
+                totals,
+                messages,
+                links,
+                order);
+    }
+
+    public byte[] writeCreateRequest(CheckoutSessionCreateRequest request) {
+        var out = new BinaryWriter(128);
+        writeItems(out, request.items());
+        writeBuyer(out, request.buyer());
+        writeAddress(out, request.fulfillmentAddress());
+        return out.toByteArray();
+    }
+
+    public CheckoutSessionCreateRequest readCreateRequest(ByteBuffer buffer) {
+        var in = new BinaryReader(buffer);
+        var items = readItems(in);
+        var buyer = readBuyer(in);
+        var fulfillmentAddress = readAddress(in);
+        return new CheckoutSessionCreateRequest(items, buyer, fulfillmentAddress);
+    }
+
+    public byte[] writeCompleteRequest(CheckoutSessionCompleteRequest request) {
+        var out = new BinaryWriter(128);
+        writeBuyer(out, request.buyer());
+        var paymentData = request.paymentData();
+        out.writeString(paymentData.token());
+        out.writeByte(paymentData.provider().ordinal());
+        writeAddress(out, paymentData.billingAddress());
+        return out.toByteArray();
+    }
+
+    public CheckoutSessionCompleteRequest readCompleteRequest(ByteBuffer buffer) {
+        var in = new BinaryReader(buffer);
+        var buyer = readBuyer(in);
+        var token = in.readString();
+        var provider = in.readEnum(PaymentProvider.Provider.values());
+        var billingAddress = readAddress(in);
+        return new CheckoutSessionCompleteRequest(buyer, new PaymentData(token, provider, billingAddress));
+    }
+
+    public byte[] writeOrderWebhookEvent(OrderWebhookEvent event) {
+        var out = new BinaryWriter(128);
+        out.writeByte(event.type().ordinal());
+        out.writeString(event.checkoutSessionId());
+        out.writeByte(event.status().ordinal());
+        out.writeString(event.permalinkUrl().toString());
+        out.writeVarInt(event.refunds().size());
+        for (var refund : event.refunds()) {
+            out.writeByte(refund.type().ordinal());
+            writeAmount(out, refund.amount());
+        }
+        return out.toByteArray();
+    }
+
+    public OrderWebhookEvent readOrderWebhookEvent(ByteBuffer buffer) {
+        var in = new BinaryReader(buffer);
+        var type = in.readEnum(OrderWebhookEvent.Type.values());
+        var checkoutSessionId = in.readString();
+        var status = in.readEnum(OrderWebhookEvent.OrderStatus.values());
+        var permalinkUrl = URI.create(in.readString());
+        var count = in.readCount();
+        var refunds = new ArrayList<OrderWebhookEvent.Refund>(count);
+        for (var i = 0; i < count; i++) {
+            refunds.add(new OrderWebhookEvent.Refund(in.readEnum(OrderWebhookEvent.RefundType.values()), readAmount(in)));
+        }
+        return new OrderWebhookEvent(type, checkoutSessionId, status, permalinkUrl, refunds);
+    }
+}
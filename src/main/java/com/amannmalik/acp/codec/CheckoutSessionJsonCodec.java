@@ -4,22 +4,32 @@ import com.amannmalik.acp.api.checkout.model.*;
 import com.amannmalik.acp.api.shared.*;
 import jakarta.json.*;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.URI;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.IntConsumer;
 
 /// See specification/2025-09-29/spec/openapi/openapi.agentic_checkout.yaml
 public final class CheckoutSessionJsonCodec {
     private static final PaymentProvider DEFAULT_PAYMENT_PROVIDER = new PaymentProvider(
             PaymentProvider.Provider.STRIPE, List.of(PaymentProvider.PaymentMethod.CARD));
+    private static final JsonPullReader.Names REQUEST_FIELDS = AddressJson.FIELDS.with(
+            "items", "id", "quantity", "buyer", "first_name", "last_name", "email", "phone_number",
+            "fulfillment_address", "fulfillment_option_id", "payment_data", "token", "provider", "billing_address");
+
+    /// Sessions almost always carry the merchant's default provider and links, so these two blocks
+    /// are spliced in pre-encoded rather than written field by field.
+    private final PreEncodedJson<PaymentProvider> paymentProviderJson =
+            new PreEncodedJson<>(DEFAULT_PAYMENT_PROVIDER, CheckoutSessionJsonCodec::writePaymentProvider);
+    private final PreEncodedJson<List<Link>> linksJson =
+            new PreEncodedJson<>(List.of(), CheckoutSessionJsonCodec::writeLinks);
 
     public CheckoutSessionJsonCodec() {
     }
 
     private static JsonObject readObject(InputStream body) {
-        try (JsonReader reader = Json.createReader(body)) {
+        try (JsonReader reader = JsonEngine.createReader(body)) {
             return reader.readObject();
         }
     }
@@ -45,150 +55,211 @@ public final class CheckoutSessionJsonCodec {
                 JsonSupport.requireInt(jsonObject, "quantity"));
     }
 
-    private static PaymentData mapPaymentData(JsonObject object) {
-        var provider = PaymentProvider.Provider.valueOf(JsonSupport.requireString(object, "provider").toUpperCase());
-        var billingAddress = object.containsKey("billing_address") && !object.isNull("billing_address")
-                ? AddressJson.read(object.getJsonObject("billing_address"))
-                : null;
+    private static List<Item> readItems(JsonPullReader reader, String key) {
+        if (!reader.beginArrayOrNull(key)) {
+            return null;
+        }
+        var items = new ArrayList<Item>();
+        while (reader.nextElement()) {
+            if (!reader.beginObjectOrNull(key)) {
+                throw new JsonDecodingException("Expected object at: " + key);
+            }
+            String id = null;
+            Integer quantity = null;
+            for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+                switch (name) {
+                    case "id" -> id = reader.stringOrNull(name);
+                    case "quantity" -> quantity = reader.intOrNull(name);
+                    default -> reader.skipValue();
+                }
+            }
+            items.add(new Item(JsonSupport.requireString(id, "id"), JsonSupport.require(quantity, "integer", "quantity")));
+        }
+        return List.copyOf(items);
+    }
+
+    private static Buyer readBuyer(JsonPullReader reader, String key) {
+        if (!reader.beginObjectOrNull(key)) {
+            return null;
+        }
+        String firstName = null;
+        String lastName = null;
+        String email = null;
+        String phoneNumber = null;
+        for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+            switch (name) {
+                case "first_name" -> firstName = reader.stringOrNull(name);
+                case "last_name" -> lastName = reader.stringOrNull(name);
+                case "email" -> email = reader.stringOrNull(name);
+                case "phone_number" -> phoneNumber = reader.stringOrNull(name);
+                default -> reader.skipValue();
+            }
+        }
+        return new Buyer(
+                JsonSupport.requireString(firstName, "first_name"),
+                JsonSupport.requireString(lastName, "last_name"),
+                JsonSupport.requireString(email, "email"),
+                JsonSupport.optionalString(phoneNumber, "phone_number"));
+    }
+
+    private static PaymentData readPaymentData(JsonPullReader reader, String key) {
+        if (!reader.beginObjectOrNull(key)) {
+            return null;
+        }
+        String token = null;
+        String provider = null;
+        Address billingAddress = null;
+        for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+            switch (name) {
+                case "token" -> token = reader.stringOrNull(name);
+                case "provider" -> provider = reader.stringOrNull(name);
+                case "billing_address" -> billingAddress = AddressJson.read(reader, name);
+                default -> reader.skipValue();
+            }
+        }
         return new PaymentData(
-                JsonSupport.requireString(object, "token"),
-                provider,
+                JsonSupport.requireString(token, "token"),
+                PaymentProvider.Provider.valueOf(JsonSupport.requireString(provider, "provider").toUpperCase()),
                 billingAddress);
     }
 
-    private static JsonObjectBuilder writeBuyer(Buyer buyer) {
-        var builder = Json.createObjectBuilder()
-                .add("first_name", buyer.firstName())
-                .add("last_name", buyer.lastName())
-                .add("email", buyer.email());
+    private static void writeBuyer(JsonByteWriter json, Buyer buyer) {
+        json.beginObject()
+                .field("first_name", buyer.firstName())
+                .field("last_name", buyer.lastName())
+                .field("email", buyer.email());
         if (buyer.phoneNumber() != null) {
-            builder.add("phone_number", buyer.phoneNumber());
+            json.field("phone_number", buyer.phoneNumber());
         }
-        return builder;
+        json.endObject();
     }
 
-    private static JsonArrayBuilder writeLineItems(List<LineItem> lineItems) {
-        var builder = Json.createArrayBuilder();
+    private static void writeLineItems(JsonByteWriter json, List<LineItem> lineItems) {
+        json.beginArray();
         for (var lineItem : lineItems) {
-            builder.add(Json.createObjectBuilder()
-                    .add("id", lineItem.id())
-                    .add("item", Json.createObjectBuilder()
-                            .add("id", lineItem.item().id())
-                            .add("quantity", lineItem.item().quantity()))
-                    .add("base_amount", lineItem.baseAmount().value())
-                    .add("discount", lineItem.discount().value())
-                    .add("subtotal", lineItem.subtotal().value())
-                    .add("tax", lineItem.tax().value())
-                    .add("total", lineItem.total().value()));
-        }
-        return builder;
-    }
-
-    private static JsonObjectBuilder writePaymentProvider(PaymentProvider paymentProvider) {
-        var builder = Json.createObjectBuilder()
-                .add("provider", paymentProvider.provider().name().toLowerCase());
-        var methods = Json.createArrayBuilder();
+            json.beginObject()
+                    .field("id", lineItem.id())
+                    .name("item").beginObject()
+                    .field("id", lineItem.item().id())
+                    .field("quantity", lineItem.item().quantity())
+                    .endObject()
+                    .field("base_amount", lineItem.baseAmount().value())
+                    .field("discount", lineItem.discount().value())
+                    .field("subtotal", lineItem.subtotal().value())
+                    .field("tax", lineItem.tax().value())
+                    .field("total", lineItem.total().value())
+                    .endObject();
+        }
+        json.endArray();
+    }
+
+    private static void writePaymentProvider(JsonByteWriter json, PaymentProvider paymentProvider) {
+        json.beginObject()
+                .field("provider", paymentProvider.provider().name().toLowerCase())
+                .name("supported_payment_methods").beginArray();
         for (var method : paymentProvider.supportedPaymentMethods()) {
-            methods.add(method.name().toLowerCase());
+            json.value(method.name().toLowerCase());
         }
-        builder.add("supported_payment_methods", methods);
-        return builder;
+        json.endArray().endObject();
     }
 
-    private static JsonArrayBuilder writeFulfillmentOptions(List<FulfillmentOption> options) {
-        var builder = Json.createArrayBuilder();
+    private static void writeFulfillmentOptions(JsonByteWriter json, List<FulfillmentOption> options) {
+        json.beginArray();
         for (var option : options) {
             if (option instanceof FulfillmentOption.Shipping(String id, String title, String subtitle, String carrier, Instant earliestDeliveryTime, Instant latestDeliveryTime, MinorUnitAmount subtotal, MinorUnitAmount tax, MinorUnitAmount total)) {
-                var json = Json.createObjectBuilder()
-                        .add("type", "shipping")
-                        .add("id", id)
-                        .add("title", title)
-                        .add("subtotal", subtotal.value())
-                        .add("tax", tax.value())
-                        .add("total", total.value());
+                json.beginObject()
+                        .field("type", "shipping")
+                        .field("id", id)
+                        .field("title", title)
+                        .field("subtotal", subtotal.value())
+                        .field("tax", tax.value())
+                        .field("total", total.value());
                 if (subtitle != null) {
-                    json.add("subtitle", subtitle);
+                    json.field("subtitle", subtitle);
                 }
                 if (carrier != null) {
-                    json.add("carrier", carrier);
+                    json.field("carrier", carrier);
                 }
                 if (earliestDeliveryTime != null) {
-                    json.add("earliest_delivery_time", earliestDeliveryTime.toString());
+                    json.field("earliest_delivery_time", earliestDeliveryTime.toString());
                 }
                 if (latestDeliveryTime != null) {
-                    json.add("latest_delivery_time", latestDeliveryTime.toString());
+                    json.field("latest_delivery_time", latestDeliveryTime.toString());
                 }
-                builder.add(json);
+                json.endObject();
             } else if (option instanceof FulfillmentOption.Digital(String id, String title, String subtitle, MinorUnitAmount subtotal, MinorUnitAmount tax, MinorUnitAmount total)) {
-                var json = Json.createObjectBuilder()
-                        .add("type", "digital")
-                        .add("id", id)
-                        .add("title", title)
-                        .add("subtotal", subtotal.value())
-                        .add("tax", tax.value())
-                        .add("total", total.value());
+                json.beginObject()
+                        .field("type", "digital")
+                        .field("id", id)
+                        .field("title", title)
+                        .field("subtotal", subtotal.value())
+                        .field("tax", tax.value())
+                        .field("total", total.value());
                 if (subtitle != null) {
-                    json.add("subtitle", subtitle);
+                    json.field("subtitle", subtitle);
                 }
-                builder.add(json);
+                json.endObject();
             }
         }
-        return builder;
+        json.endArray();
     }
 
-    private static JsonArrayBuilder writeTotals(List<Total> totals) {
-        var builder = Json.createArrayBuilder();
+    private static void writeTotals(JsonByteWriter json, List<Total> totals) {
+        json.beginArray();
         for (var total : totals) {
-            builder.add(Json.createObjectBuilder()
-                    .add("type", total.type().name().toLowerCase())
-                    .add("display_text", total.displayText())
-                    .add("amount", total.amount().value()));
+            json.beginObject()
+                    .field("type", total.type().name().toLowerCase())
+                    .field("display_text", total.displayText())
+                    .field("amount", total.amount().value())
+                    .endObject();
         }
-        return builder;
+        json.endArray();
     }
 
-    private static JsonArrayBuilder writeMessages(List<Message> messages) {
-        var builder = Json.createArrayBuilder();
+    private static void writeMessages(JsonByteWriter json, List<Message> messages) {
+        json.beginArray();
         for (var message : messages) {
             if (message instanceof Message.Info(String param, Message.ContentType contentType, String content)) {
-                var json = Json.createObjectBuilder()
-                        .add("type", "info")
-                        .add("content_type", contentType.name().toLowerCase())
-                        .add("content", content);
+                json.beginObject()
+                        .field("type", "info")
+                        .field("content_type", contentType.name().toLowerCase())
+                        .field("content", content);
                 if (param != null) {
-                    json.add("param", param);
+                    json.field("param", param);
                 }
-                builder.add(json);
+                json.endObject();
             } else if (message instanceof Message.Error(Message.ErrorCode code, String param, Message.ContentType contentType, String content)) {
-                var json = Json.createObjectBuilder()
-                        .add("type", "error")
-                        .add("code", code.name().toLowerCase())
-                        .add("content_type", contentType.name().toLowerCase())
-                        .add("content", content);
+                json.beginObject()
+                        .field("type", "error")
+                        .field("code", code.name().toLowerCase())
+                        .field("content_type", contentType.name().toLowerCase())
+                        .field("content", content);
                 if (param != null) {
-                    json.add("param", param);
+                    json.field("param", param);
                 }
-                builder.add(json);
+                json.endObject();
             }
         }
-        return builder;
+        json.endArray();
     }
 
-    private static JsonArrayBuilder writeLinks(List<Link> links) {
-        var builder = Json.createArrayBuilder();
+    private static void writeLinks(JsonByteWriter json, List<Link> links) {
+        json.beginArray();
         for (var link : links) {
-            builder.add(Json.createObjectBuilder()
-                    .add("type", link.type().name().toLowerCase())
-                    .add("url", link.url().toString()));
+            json.beginObject()
+                    .field("type", link.type().name().toLowerCase())
+                    .field("url", link.url().toString())
+                    .endObject();
         }
-        return builder;
+        json.endArray();
     }
 
-    private static JsonObjectBuilder writeOrder(Order order) {
-        return Json.createObjectBuilder()
-                .add("id", order.id())
-                .add("checkout_session_id", order.checkoutSessionId().value())
-                .add("permalink_url", order.permalinkUrl().toString());
+    private static void writeOrder(JsonByteWriter json, Order order) {
+        json.beginObject()
+                .field("id", order.id())
+                .field("checkout_session_id", order.checkoutSessionId().value())
+                .field("permalink_url", order.permalinkUrl().toString())
+                .endObject();
     }
 
     private static LineItem mapLineItem(JsonObject jsonObject) {
@@ -319,67 +390,138 @@ public final class CheckoutSessionJsonCodec {
         return new PaymentProvider(provider, methods);
     }
 
-    private static List<Item> mapItemsArray(JsonArray array) {
-        return array.stream()
-                .map(JsonValue::asJsonObject)
-                .map(CheckoutSessionJsonCodec::mapItem)
-                .toList();
+    public CheckoutSessionCreateRequest readCreateRequest(InputStream body) {
+        return readCreateRequest(JsonPullReader.of(body, REQUEST_FIELDS));
     }
 
-    public CheckoutSessionCreateRequest readCreateRequest(InputStream body) {
-        var root = readObject(body);
-        var items = mapItemsArray(JsonSupport.requireArray(root, "items"));
-        var buyer = readBuyerOrNull(root, "buyer");
-        var fulfillmentAddress = AddressJson.readOptional(root, "fulfillment_address");
-        return new CheckoutSessionCreateRequest(items, buyer, fulfillmentAddress);
+    /// Decodes from the request's shared parse, so the tokens the authenticator signed are reused.
+    public CheckoutSessionCreateRequest readCreateRequest(JsonDocument body) {
+        return readCreateRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    private CheckoutSessionCreateRequest readCreateRequest(JsonPullReader reader) {
+        List<Item> items = null;
+        Buyer buyer = null;
+        Address fulfillmentAddress = null;
+        reader.beginDocument();
+        for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+            switch (name) {
+                case "items" -> items = readItems(reader, name);
+                case "buyer" -> buyer = readBuyer(reader, name);
+                case "fulfillment_address" -> fulfillmentAddress = AddressJson.read(reader, name);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endDocument();
+        return new CheckoutSessionCreateRequest(JsonSupport.require(items, "array", "items"), buyer, fulfillmentAddress);
     }
 
     public CheckoutSessionUpdateRequest readUpdateRequest(InputStream body) {
-        var root = readObject(body);
-        List<Item> items = root.containsKey("items")
-                ? mapItemsArray(root.getJsonArray("items"))
-                : null;
-        var buyer = readBuyerOrNull(root, "buyer");
-        var fulfillmentAddress = AddressJson.readOptional(root, "fulfillment_address");
-        FulfillmentOptionId fulfillmentOptionId = root.containsKey("fulfillment_option_id")
-                ? new FulfillmentOptionId(JsonSupport.requireString(root, "fulfillment_option_id"))
-                : null;
+        return readUpdateRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    public CheckoutSessionUpdateRequest readUpdateRequest(JsonDocument body) {
+        return readUpdateRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    private CheckoutSessionUpdateRequest readUpdateRequest(JsonPullReader reader) {
+        List<Item> items = null;
+        Buyer buyer = null;
+        Address fulfillmentAddress = null;
+        FulfillmentOptionId fulfillmentOptionId = null;
+        reader.beginDocument();
+        for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+            switch (name) {
+                case "items" -> items = readItems(reader, name);
+                case "buyer" -> buyer = readBuyer(reader, name);
+                case "fulfillment_address" -> fulfillmentAddress = AddressJson.read(reader, name);
+                case "fulfillment_option_id" -> fulfillmentOptionId =
+                        new FulfillmentOptionId(JsonSupport.requireString(reader.stringOrNull(name), name));
+                default -> reader.skipValue();
+            }
+        }
+        reader.endDocument();
         return new CheckoutSessionUpdateRequest(items, buyer, fulfillmentAddress, fulfillmentOptionId);
     }
 
     public CheckoutSessionCompleteRequest readCompleteRequest(InputStream body) {
-        var root = readObject(body);
-        var buyer = readBuyerOrNull(root, "buyer");
-        var paymentData = mapPaymentData(JsonSupport.requireObject(root, "payment_data"));
-        return new CheckoutSessionCompleteRequest(buyer, paymentData);
+        return readCompleteRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    public CheckoutSessionCompleteRequest readCompleteRequest(JsonDocument body) {
+        return readCompleteRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    private CheckoutSessionCompleteRequest readCompleteRequest(JsonPullReader reader) {
+        Buyer buyer = null;
+        PaymentData paymentData = null;
+        reader.beginDocument();
+        for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+            switch (name) {
+                case "buyer" -> buyer = readBuyer(reader, name);
+                case "payment_data" -> paymentData = readPaymentData(reader, name);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endDocument();
+        return new CheckoutSessionCompleteRequest(buyer, JsonSupport.require(paymentData, "object", "payment_data"));
     }
 
     public void writeCheckoutSession(OutputStream outputStream, CheckoutSession session) {
-        var builder = Json.createObjectBuilder();
-        builder.add("id", session.id().value());
+        writeCheckoutSession(outputStream, session, length -> {
+        });
+    }
+
+    /// Encodes `session` into a pooled buffer, reports its exact length in bytes to `contentLength`
+    /// and only then copies it to `outputStream`, so a response can declare its length up front.
+    public void writeCheckoutSession(OutputStream outputStream, CheckoutSession session, IntConsumer contentLength) {
+        var json = JsonEngine.acquireWriter();
+        try {
+            writeCheckoutSession(json, session);
+            contentLength.accept(json.size());
+            json.writeTo(outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            JsonEngine.releaseWriter(json);
+        }
+    }
+
+    public byte[] writeCheckoutSession(CheckoutSession session) {
+        var json = JsonEngine.acquireWriter();
+        try {
+            writeCheckoutSession(json, session);
+            return json.toByteArray();
+        } finally {
+            JsonEngine.releaseWriter(json);
+        }
+    }
+
+    private void writeCheckoutSession(JsonByteWriter json, CheckoutSession session) {
+        json.beginObject().field("id", session.id().value());
         if (session.buyer() != null) {
-            builder.add("buyer", writeBuyer(session.buyer()));
+            writeBuyer(json.name("buyer"), session.buyer());
         }
         if (session.paymentProvider() != null) {
-            builder.add("payment_provider", writePaymentProvider(session.paymentProvider()));
+            paymentProviderJson.write(json.name("payment_provider"), session.paymentProvider());
         }
-        builder.add("status", session.status().name().toLowerCase());
-        builder.add("currency", session.currency().value());
-        builder.add("line_items", writeLineItems(session.lineItems()));
+        json.field("status", session.status().name().toLowerCase())
+                .field("currency", session.currency().value());
+        writeLineItems(json.name("line_items"), session.lineItems());
         if (session.fulfillmentAddress() != null) {
-            builder.add("fulfillment_address", AddressJson.write(session.fulfillmentAddress()));
+            AddressJson.write(json.name("fulfillment_address"), session.fulfillmentAddress());
         }
-        builder.add("fulfillment_options", writeFulfillmentOptions(session.fulfillmentOptions()));
+        writeFulfillmentOptions(json.name("fulfillment_options"), session.fulfillmentOptions());
         if (session.fulfillmentOptionId() != null) {
-            builder.add("fulfillment_option_id", session.fulfillmentOptionId().value());
+            json.field("fulfillment_option_id", session.fulfillmentOptionId().value());
         }
-        builder.add("totals", writeTotals(session.totals()));
-        builder.add("messages", writeMessages(session.messages()));
-        builder.add("links", writeLinks(session.links()));
+        writeTotals(json.name("totals"), session.totals());
+        writeMessages(json.name("messages"), session.messages());
+        linksJson.write(json.name("links"), session.links());
         if (session.order() != null) {
-            builder.add("order", writeOrder(session.order()));
+            writeOrder(json.name("order"), session.order());
         }
-        ErrorJson.writeObject(builder, outputStream);
+        json.endObject();
     }
 
     public CheckoutSession readCheckoutSession(InputStream inputStream) {
@@ -1,5 +1,6 @@
 package com.amannmalik.acp.codec;
 
+import com.amannmalik.acp.api.checkout.model.Address;
 import com.amannmalik.acp.api.delegatepayment.model.*;
 import com.amannmalik.acp.api.shared.*;
 import jakarta.json.*;
@@ -11,104 +12,209 @@ import java.util.*;
 
 /// See specification/2025-09-29/spec/openapi/openapi.delegate_payment.yaml
 public final class DelegatePaymentJsonCodec {
+    private static final JsonPullReader.Names REQUEST_FIELDS = AddressJson.FIELDS.with(
+            "payment_method", "type", "card_number_type", "virtual", "number", "exp_month", "exp_year", "cvc",
+            "cryptogram", "eci_value", "checks_performed", "iin", "display_card_funding_type",
+            "display_wallet_type", "display_brand", "display_last4", "metadata", "allowance", "reason",
+            "max_amount", "currency", "checkout_session_id", "merchant_id", "expires_at", "billing_address",
+            "risk_signals", "score", "action");
+
     public DelegatePaymentJsonCodec() {
     }
 
-    private static JsonObject readObject(InputStream body) {
-        try (JsonReader reader = Json.createReader(body)) {
-            return reader.readObject();
+    private static PaymentMethodCard readPaymentMethod(JsonPullReader reader, String key) {
+        if (!reader.beginObjectOrNull(key)) {
+            return null;
         }
-    }
-
-    private static PaymentMethodCard mapPaymentMethod(JsonObject object) {
-        var type = JsonSupport.requireString(object, "type");
-        if (!"card".equals(type)) {
-            throw new JsonDecodingException("payment_method.type MUST be \"card\"");
+        String type = null;
+        String cardNumberType = null;
+        Boolean virtual = null;
+        String number = null;
+        String expMonth = null;
+        String expYear = null;
+        String name = null;
+        String cvc = null;
+        String cryptogram = null;
+        String eciValue = null;
+        var checks = List.<PaymentMethodCard.Check>of();
+        String iin = null;
+        String displayCardFundingType = null;
+        String displayWalletType = null;
+        String displayBrand = null;
+        String displayLast4 = null;
+        Map<String, String> metadata = null;
+        for (var field = reader.nextName(); field != null; field = reader.nextName()) {
+            switch (field) {
+                case "type" -> type = reader.stringOrNull(field);
+                case "card_number_type" -> cardNumberType = reader.stringOrNull(field);
+                case "virtual" -> virtual = reader.booleanOrNull(field);
+                case "number" -> number = reader.stringOrNull(field);
+                case "exp_month" -> expMonth = reader.stringOrNull(field);
+                case "exp_year" -> expYear = reader.stringOrNull(field);
+                case "name" -> name = reader.stringOrNull(field);
+                case "cvc" -> cvc = reader.stringOrNull(field);
+                case "cryptogram" -> cryptogram = reader.stringOrNull(field);
+                case "eci_value" -> eciValue = reader.stringOrNull(field);
+                case "checks_performed" -> checks = readChecks(reader, field);
+                case "iin" -> iin = reader.stringOrNull(field);
+                case "display_card_funding_type" -> displayCardFundingType = reader.stringOrNull(field);
+                case "display_wallet_type" -> displayWalletType = reader.stringOrNull(field);
+                case "display_brand" -> displayBrand = reader.stringOrNull(field);
+                case "display_last4" -> displayLast4 = reader.stringOrNull(field);
+                case "metadata" -> metadata = readMetadata(reader, field);
+                default -> reader.skipValue();
+            }
         }
-        var cardNumberType = PaymentMethodCard.CardNumberType.valueOf(
-                JsonSupport.requireString(object, "card_number_type").toUpperCase());
-        var virtual = JsonSupport.requireBoolean(object, "virtual");
-        var cryptogram = JsonSupport.optionalString(object, "cryptogram");
-        var eciValue = JsonSupport.optionalString(object, "eci_value");
-        List<PaymentMethodCard.Check> checks;
-        if (object.containsKey("checks_performed") && !object.isNull("checks_performed")) {
-            checks = object.getJsonArray("checks_performed").stream()
-                    .map(value -> ((JsonString) value).getString())
-                    .map(value -> PaymentMethodCard.Check.valueOf(value.toUpperCase()))
-                    .toList();
-        } else {
-            checks = List.of();
+        if (!"card".equals(JsonSupport.requireString(type, "type"))) {
+            throw new JsonDecodingException("payment_method.type MUST be \"card\"");
         }
-        Map<String, String> metadata = mapMetadata(JsonSupport.requireObject(object, "metadata"));
         return new PaymentMethodCard(
-                cardNumberType,
-                virtual,
-                JsonSupport.requireString(object, "number"),
-                JsonSupport.optionalString(object, "exp_month"),
-                JsonSupport.optionalString(object, "exp_year"),
-                JsonSupport.optionalString(object, "name"),
-                JsonSupport.optionalString(object, "cvc"),
-                cryptogram,
-                eciValue,
+                PaymentMethodCard.CardNumberType.valueOf(
+                        JsonSupport.requireString(cardNumberType, "card_number_type").toUpperCase()),
+                JsonSupport.require(virtual, "boolean", "virtual"),
+                JsonSupport.requireString(number, "number"),
+                JsonSupport.optionalString(expMonth, "exp_month"),
+                JsonSupport.optionalString(expYear, "exp_year"),
+                JsonSupport.optionalString(name, "name"),
+                JsonSupport.optionalString(cvc, "cvc"),
+                JsonSupport.optionalString(cryptogram, "cryptogram"),
+                JsonSupport.optionalString(eciValue, "eci_value"),
                 checks,
-                JsonSupport.optionalString(object, "iin"),
+                JsonSupport.optionalString(iin, "iin"),
                 PaymentMethodCard.DisplayCardFundingType.valueOf(
-                        JsonSupport.requireString(object, "display_card_funding_type").toUpperCase()),
-                JsonSupport.optionalString(object, "display_wallet_type"),
-                JsonSupport.optionalString(object, "display_brand"),
-                JsonSupport.optionalString(object, "display_last4"),
-                metadata);
+                        JsonSupport.requireString(displayCardFundingType, "display_card_funding_type").toUpperCase()),
+                JsonSupport.optionalString(displayWalletType, "display_wallet_type"),
+                JsonSupport.optionalString(displayBrand, "display_brand"),
+                JsonSupport.optionalString(displayLast4, "display_last4"),
+                JsonSupport.require(metadata, "object", "metadata"));
     }
 
-    private static Allowance mapAllowance(JsonObject object) {
+    private static List<PaymentMethodCard.Check> readChecks(JsonPullReader reader, String key) {
+        if (!reader.beginArrayOrNull(key)) {
+            return List.of();
+        }
+        var checks = new ArrayList<PaymentMethodCard.Check>();
+        while (reader.nextElement()) {
+            var check = JsonSupport.require(reader.stringOrNull(key), "string", key);
+            checks.add(PaymentMethodCard.Check.valueOf(check.toUpperCase()));
+        }
+        return List.copyOf(checks);
+    }
+
+    private static Allowance readAllowance(JsonPullReader reader, String key) {
+        if (!reader.beginObjectOrNull(key)) {
+            return null;
+        }
+        String reason = null;
+        Long maxAmount = null;
+        String currency = null;
+        String checkoutSessionId = null;
+        String merchantId = null;
+        String expiresAt = null;
+        for (var field = reader.nextName(); field != null; field = reader.nextName()) {
+            switch (field) {
+                case "reason" -> reason = reader.stringOrNull(field);
+                case "max_amount" -> maxAmount = reader.longOrNull(field);
+                case "currency" -> currency = reader.stringOrNull(field);
+                case "checkout_session_id" -> checkoutSessionId = reader.stringOrNull(field);
+                case "merchant_id" -> merchantId = reader.stringOrNull(field);
+                case "expires_at" -> expiresAt = reader.stringOrNull(field);
+                default -> reader.skipValue();
+            }
+        }
         return new Allowance(
-                Allowance.Reason.valueOf(JsonSupport.requireString(object, "reason").toUpperCase()),
-                new MinorUnitAmount(JsonSupport.requireLong(object, "max_amount")),
-                new CurrencyCode(JsonSupport.requireString(object, "currency")),
-                JsonSupport.requireString(object, "checkout_session_id"),
-                JsonSupport.requireString(object, "merchant_id"),
-                Instant.parse(JsonSupport.requireString(object, "expires_at")));
+                Allowance.Reason.valueOf(JsonSupport.requireString(reason, "reason").toUpperCase()),
+                new MinorUnitAmount(JsonSupport.require(maxAmount, "integer", "max_amount")),
+                new CurrencyCode(JsonSupport.requireString(currency, "currency")),
+                JsonSupport.requireString(checkoutSessionId, "checkout_session_id"),
+                JsonSupport.requireString(merchantId, "merchant_id"),
+                Instant.parse(JsonSupport.requireString(expiresAt, "expires_at")));
     }
 
-    private static List<RiskSignal> mapRiskSignals(JsonArray array) {
-        return array.stream()
-                .map(JsonValue::asJsonObject)
-                .map(obj -> new RiskSignal(
-                        RiskSignal.Type.valueOf(JsonSupport.requireString(obj, "type").toUpperCase()),
-                        JsonSupport.requireInt(obj, "score"),
-                        RiskSignal.Action.valueOf(JsonSupport.requireString(obj, "action").toUpperCase())))
-                .toList();
+    private static List<RiskSignal> readRiskSignals(JsonPullReader reader, String key) {
+        if (!reader.beginArrayOrNull(key)) {
+            return null;
+        }
+        var signals = new ArrayList<RiskSignal>();
+        while (reader.nextElement()) {
+            if (!reader.beginObjectOrNull(key)) {
+                throw new JsonDecodingException("Expected object at: " + key);
+            }
+            String type = null;
+            Integer score = null;
+            String action = null;
+            for (var field = reader.nextName(); field != null; field = reader.nextName()) {
+                switch (field) {
+                    case "type" -> type = reader.stringOrNull(field);
+                    case "score" -> score = reader.intOrNull(field);
+                    case "action" -> action = reader.stringOrNull(field);
+                    default -> reader.skipValue();
+                }
+            }
+            signals.add(new RiskSignal(
+                    RiskSignal.Type.valueOf(JsonSupport.requireString(type, "type").toUpperCase()),
+                    JsonSupport.require(score, "integer", "score"),
+                    RiskSignal.Action.valueOf(JsonSupport.requireString(action, "action").toUpperCase())));
+        }
+        return List.copyOf(signals);
     }
 
-    private static Map<String, String> mapMetadata(JsonObject object) {
+    private static Map<String, String> readMetadata(JsonPullReader reader, String key) {
+        if (!reader.beginObjectOrNull(key)) {
+            return null;
+        }
         var map = new LinkedHashMap<String, String>();
-        for (var entry : object.entrySet()) {
-            if (entry.getValue().getValueType() != JsonValue.ValueType.STRING) {
+        for (var field = reader.nextName(); field != null; field = reader.nextName()) {
+            if (!reader.nextIsString()) {
                 throw new JsonDecodingException("metadata values MUST be strings");
             }
-            map.put(entry.getKey(), object.getString(entry.getKey()));
+            map.put(field, reader.stringOrNull(field));
         }
         return Map.copyOf(map);
     }
 
     private static JsonObject buildMetadata(Map<String, String> metadata) {
-        var builder = Json.createObjectBuilder();
+        var builder = JsonEngine.createObjectBuilder();
         metadata.forEach(builder::add);
         return builder.build();
     }
 
     public DelegatePaymentRequest readRequest(InputStream body) {
-        var root = readObject(body);
-        var paymentMethod = mapPaymentMethod(JsonSupport.requireObject(root, "payment_method"));
-        var allowance = mapAllowance(JsonSupport.requireObject(root, "allowance"));
-        var billingAddress = AddressJson.readOptional(root, "billing_address");
-        var riskSignals = mapRiskSignals(JsonSupport.requireArray(root, "risk_signals"));
-        var metadata = mapMetadata(JsonSupport.requireObject(root, "metadata"));
-        return new DelegatePaymentRequest(paymentMethod, allowance, billingAddress, riskSignals, metadata);
+        return readRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    public DelegatePaymentRequest readRequest(JsonDocument body) {
+        return readRequest(JsonPullReader.of(body, REQUEST_FIELDS));
+    }
+
+    private DelegatePaymentRequest readRequest(JsonPullReader reader) {
+        PaymentMethodCard paymentMethod = null;
+        Allowance allowance = null;
+        Address billingAddress = null;
+        List<RiskSignal> riskSignals = null;
+        Map<String, String> metadata = null;
+        reader.beginDocument();
+        for (var name = reader.nextName(); name != null; name = reader.nextName()) {
+            switch (name) {
+                case "payment_method" -> paymentMethod = readPaymentMethod(reader, name);
+                case "allowance" -> allowance = readAllowance(reader, name);
+                case "billing_address" -> billingAddress = AddressJson.read(reader, name);
+                case "risk_signals" -> riskSignals = readRiskSignals(reader, name);
+                case "metadata" -> metadata = readMetadata(reader, name);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endDocument();
+        return new DelegatePaymentRequest(
+                JsonSupport.require(paymentMethod, "object", "payment_method"),
+                JsonSupport.require(allowance, "object", "allowance"),
+                billingAddress,
+                JsonSupport.require(riskSignals, "array", "risk_signals"),
+                JsonSupport.require(metadata, "object", "metadata"));
     }
 
     public void writeResponse(OutputStream outputStream, DelegatePaymentResponse response) {
-        var builder = Json.createObjectBuilder()
+        var builder = JsonEngine.createObjectBuilder()
                 .add("id", response.id())
                 .add("created", response.created().toString())
                 .add("metadata", buildMetadata(response.metadata()));
@@ -1,11 +1,9 @@
 package com.amannmalik.acp.codec;
 
 import com.amannmalik.acp.api.shared.ErrorResponse;
-import jakarta.json.Json;
 import jakarta.json.JsonObjectBuilder;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 
 final class ErrorJson {
     private ErrorJson() {
@@ -16,7 +14,7 @@ final class ErrorJson {
     }
 
     static JsonObjectBuilder build(ErrorResponse error) {
-        var builder = Json.createObjectBuilder()
+        var builder = JsonEngine.createObjectBuilder()
                 .add("type", error.type().name().toLowerCase())
                 .add("code", error.code())
                 .add("message", error.message());
@@ -27,10 +25,6 @@ final class ErrorJson {
     }
 
     static void writeObject(JsonObjectBuilder builder, OutputStream stream) {
-        try (Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
-            Json.createWriter(writer).write(builder.build());
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        JsonEngine.write(builder.build(), stream);
     }
 }
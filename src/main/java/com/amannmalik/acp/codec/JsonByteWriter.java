@@ -0,0 +1,283 @@
+package com.amannmalik.acp.codec;
+
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/// Growable UTF-8 sink for the streaming JSON encoders. Output is byte-for-byte what `jakarta.json`
+/// writes for the same values: no whitespace, `"`, `\` and control characters escaped with
+/// lowercase hex, everything else passed through as UTF-8 and unpaired surrogates written as `?`.
+///
+/// Separators are inserted automatically; nesting is tracked in a bit per level, so containers may
+/// be at most 63 deep. Writers are recycled through [JsonEngine], so encoding a document allocates
+/// nothing once the pooled buffer has grown to fit.
+final class JsonByteWriter {
+    private static final int MAX_DEPTH = 63;
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private byte[] buffer;
+    private int size;
+    private int depth;
+    /// Bit `n` is set once level `n` holds a value, so the next one needs a comma.
+    private long populated;
+    private boolean afterName;
+
+    JsonByteWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    void reset() {
+        size = 0;
+        depth = 0;
+        populated = 0;
+        afterName = false;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    JsonByteWriter beginObject() {
+        return open('{');
+    }
+
+    JsonByteWriter endObject() {
+        return close('}');
+    }
+
+    JsonByteWriter beginArray() {
+        return open('[');
+    }
+
+    JsonByteWriter endArray() {
+        return close(']');
+    }
+
+    JsonByteWriter name(String name) {
+        separate();
+        writeQuoted(name);
+        ensureCapacity(1);
+        buffer[size++] = ':';
+        afterName = true;
+        return this;
+    }
+
+    JsonByteWriter value(String value) {
+        beforeValue();
+        writeQuoted(value);
+        return this;
+    }
+
+    JsonByteWriter value(long value) {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        ensureCapacity(20);
+        var remaining = value;
+        if (remaining < 0) {
+            buffer[size++] = '-';
+            remaining = -remaining;
+        }
+        var end = size + digits(remaining);
+        size = end;
+        do {
+            buffer[--end] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        return this;
+    }
+
+    JsonByteWriter field(String name, String value) {
+        return name(name).value(value);
+    }
+
+    JsonByteWriter field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    /// Writes a `jakarta.json` tree in the next value position.
+    JsonByteWriter value(JsonValue value) {
+        switch (value.getValueType()) {
+            case OBJECT -> {
+                beginObject();
+                for (var entry : value.asJsonObject().entrySet()) {
+                    name(entry.getKey()).value(entry.getValue());
+                }
+                endObject();
+            }
+            case ARRAY -> {
+                beginArray();
+                for (var element : value.asJsonArray()) {
+                    value(element);
+                }
+                endArray();
+            }
+            case STRING -> value(((JsonString) value).getString());
+            case NUMBER, TRUE, FALSE, NULL -> {
+                beforeValue();
+                writeAscii(value.toString());
+            }
+        }
+        return this;
+    }
+
+    /// Writes a complete, already encoded JSON value in the next value position.
+    JsonByteWriter raw(byte[] json) {
+        beforeValue();
+        ensureCapacity(json.length);
+        System.arraycopy(json, 0, buffer, size, json.length);
+        size += json.length;
+        return this;
+    }
+
+    private static int digits(long value) {
+        var digits = 1;
+        for (var bound = 10L; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private JsonByteWriter open(char bracket) {
+        beforeValue();
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting MUST NOT exceed " + MAX_DEPTH + " levels");
+        }
+        ensureCapacity(1);
+        buffer[size++] = (byte) bracket;
+        depth++;
+        populated &= ~(1L << depth);
+        return this;
+    }
+
+    private JsonByteWriter close(char bracket) {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("No open JSON container to close");
+        }
+        depth--;
+        ensureCapacity(1);
+        buffer[size++] = (byte) bracket;
+        return this;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() {
+        var bit = 1L << depth;
+        if ((populated & bit) != 0) {
+            ensureCapacity(1);
+            buffer[size++] = ',';
+        } else {
+            populated |= bit;
+        }
+    }
+
+    private void writeAscii(String value) {
+        var length = value.length();
+        ensureCapacity(length);
+        for (var i = 0; i < length; i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    /// Copies plain ASCII straight into the buffer and drops to per-character encoding only from
+    /// the first character that needs escaping or more than one byte.
+    private void writeQuoted(String value) {
+        var length = value.length();
+        ensureCapacity(length + 2);
+        buffer[size++] = '"';
+        var i = 0;
+        while (i < length) {
+            var c = value.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\' || c >= 0x80) {
+                break;
+            }
+            buffer[size++] = (byte) c;
+            i++;
+        }
+        if (i < length) {
+            writeEncoded(value, i);
+        }
+        ensureCapacity(1);
+        buffer[size++] = '"';
+    }
+
+    private void writeEncoded(String value, int start) {
+        var length = value.length();
+        for (var i = start; i < length; i++) {
+            var c = value.charAt(i);
+            ensureCapacity(6);
+            if (c == '"' || c == '\\') {
+                buffer[size++] = '\\';
+                buffer[size++] = (byte) c;
+            } else if (c < 0x20) {
+                writeControl(c);
+            } else if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                var codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[size++] = '?';
+            } else {
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeControl(char c) {
+        buffer[size++] = '\\';
+        switch (c) {
+            case '\b' -> buffer[size++] = 'b';
+            case '\f' -> buffer[size++] = 'f';
+            case '\n' -> buffer[size++] = 'n';
+            case '\r' -> buffer[size++] = 'r';
+            case '\t' -> buffer[size++] = 't';
+            default -> {
+                buffer[size++] = 'u';
+                buffer[size++] = '0';
+                buffer[size++] = '0';
+                buffer[size++] = HEX[c >> 4];
+                buffer[size++] = HEX[c & 0xF];
+            }
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        var required = size + additional;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,724 @@
+package com.amannmalik.acp.codec;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/// A request body parsed once per request and shared by everyone who needs its structure: the
+/// request authenticator hashes its canonical form and the request decoders bind fields from it,
+/// both reading the same token index instead of lexing the bytes again.
+///
+/// The body is tokenized on first use into flat arrays, one entry per value, in document order.
+/// The same pass records whether the body is already canonical, so signing such a body costs one
+/// `update` over the original bytes. As with `JsonReader#readValue()`, parsing stops after the
+/// first value; the decoders reject whatever follows it, the canonical form ignores it. Malformed
+/// input fails with a [JsonDecodingException].
+///
+/// Documents are request-scoped. Parsing is synchronized, so the request thread and a decoder
+/// running beside it may share one document; everything else only reads what the parse built.
+public final class JsonDocument {
+    static final byte OBJECT = 1;
+    static final byte ARRAY = 2;
+    static final byte STRING = 3;
+    /// A string containing at least one escape sequence.
+    static final byte ESCAPED_STRING = 4;
+    static final byte INTEGER = 5;
+    /// A number with a fraction or an exponent.
+    static final byte DECIMAL = 6;
+    static final byte TRUE = 7;
+    static final byte FALSE = 8;
+    static final byte NULL = 9;
+
+    private static final int MAX_DEPTH = 1000;
+
+    private final byte[] bytes;
+    private byte[] kinds;
+    private int[] starts;
+    /// Offset just past a scalar, or index of the first token after a container.
+    private int[] ends;
+    private int count;
+    private int depth;
+    private boolean trailingContent;
+    private boolean canonical;
+    private boolean parsed;
+
+    private JsonDocument(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static JsonDocument of(byte[] body) {
+        return new JsonDocument(body == null ? new byte[0] : body);
+    }
+
+    private static boolean isDigit(int b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int hexValue(int b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean hasShortEscape(int c) {
+        return c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    public boolean isEmpty() {
+        return bytes.length == 0;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /// Feeds the canonical form to `sink`: object members sorted by key with the last of duplicate
+    /// keys kept, no insignificant whitespace, and strings and numbers written exactly as
+    /// `jakarta.json` writes the parsed value. An empty body has an empty canonical form.
+    ///
+    /// @throws JsonDecodingException if the body is not valid JSON
+    public void writeCanonical(Sink sink) {
+        if (isEmpty()) {
+            return;
+        }
+        parse();
+        if (canonical) {
+            sink.write(bytes, 0, bytes.length);
+            return;
+        }
+        var writer = new CanonicalWriter(sink);
+        writer.value(0);
+        writer.flush();
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /// Deepest container nesting, parsing the document first if necessary.
+    int depth() {
+        parse();
+        return depth;
+    }
+
+    boolean hasTrailingContent() {
+        return trailingContent;
+    }
+
+    byte kind(int token) {
+        return kinds[token];
+    }
+
+    int start(int token) {
+        return starts[token];
+    }
+
+    /// Offset just past the scalar `token`.
+    int end(int token) {
+        return ends[token];
+    }
+
+    /// Index of the token after the value `token`, skipping a container's contents.
+    int next(int token) {
+        var kind = kinds[token];
+        return kind == OBJECT || kind == ARRAY ? ends[token] : token + 1;
+    }
+
+    /// Decoded value of a string token; raw bytes are decoded as UTF-8 with replacement, as the
+    /// `jakarta.json` reader's decoder would.
+    String string(int token) {
+        var start = starts[token] + 1;
+        var end = ends[token] - 1;
+        if (kinds[token] == STRING) {
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+        var builder = new StringBuilder(end - start);
+        var run = start;
+        var position = start;
+        while (position < end) {
+            if (bytes[position] != '\\') {
+                position++;
+                continue;
+            }
+            builder.append(new String(bytes, run, position - run, StandardCharsets.UTF_8));
+            switch (bytes[position + 1]) {
+                case 'b' -> builder.append('\b');
+                case 'f' -> builder.append('\f');
+                case 'n' -> builder.append('\n');
+                case 'r' -> builder.append('\r');
+                case 't' -> builder.append('\t');
+                case 'u' -> {
+                    var value = 0;
+                    for (var i = 2; i < 6; i++) {
+                        value = (value << 4) | hexValue(bytes[position + i]);
+                    }
+                    builder.append((char) value);
+                    position += 4;
+                }
+                default -> builder.append((char) bytes[position + 1]);
+            }
+            position += 2;
+            run = position;
+        }
+        return builder.append(new String(bytes, run, end - run, StandardCharsets.UTF_8)).toString();
+    }
+
+    /// Tokenizes the document unless that already happened; a document that failed to parse fails
+    /// the same way again.
+    synchronized void parse() {
+        if (parsed) {
+            return;
+        }
+        kinds = new byte[16];
+        starts = new int[16];
+        ends = new int[16];
+        count = 0;
+        depth = 0;
+        canonical = true;
+        var start = whitespace(0);
+        var end = scanValue(start, 0);
+        trailingContent = skipWhitespace(end) != bytes.length;
+        canonical &= end == bytes.length;
+        parsed = true;
+    }
+
+    private int scanValue(int position, int level) {
+        var b = byteAt(position);
+        switch (b) {
+            case '{', '[' -> {
+                if (level == MAX_DEPTH) {
+                    throw new JsonDecodingException("JSON nesting MUST NOT exceed " + MAX_DEPTH + " levels");
+                }
+                depth = Math.max(depth, level + 1);
+                var token = append(b == '{' ? OBJECT : ARRAY, position);
+                var end = b == '{' ? scanObject(position + 1, level + 1) : scanArray(position + 1, level + 1);
+                ends[token] = count;
+                return end;
+            }
+            case '"' -> {
+                var token = append(STRING, position);
+                var end = scanString(position, token);
+                ends[token] = end;
+                return end;
+            }
+            case 't' -> {
+                return scanLiteral(position, "true", TRUE);
+            }
+            case 'f' -> {
+                return scanLiteral(position, "false", FALSE);
+            }
+            case 'n' -> {
+                return scanLiteral(position, "null", NULL);
+            }
+            default -> {
+                if (b != '-' && !isDigit(b)) {
+                    throw malformed(position, "expected a value");
+                }
+                return scanNumber(position);
+            }
+        }
+    }
+
+    private int scanObject(int position, int level) {
+        position = whitespace(position);
+        if (byteAt(position) == '}') {
+            return position + 1;
+        }
+        var previousKey = -1;
+        while (true) {
+            if (byteAt(position) != '"') {
+                throw malformed(position, "expected a member name");
+            }
+            var key = count;
+            position = whitespace(scanValue(position, level));
+            if (canonical && previousKey >= 0 && compareKeys(previousKey, key) >= 0) {
+                canonical = false;
+            }
+            previousKey = key;
+            if (byteAt(position) != ':') {
+                throw malformed(position, "expected ':'");
+            }
+            position = whitespace(scanValue(whitespace(position + 1), level));
+            var next = byteAt(position);
+            if (next == '}') {
+                return position + 1;
+            }
+            if (next != ',') {
+                throw malformed(position, "expected ',' or '}'");
+            }
+            position = whitespace(position + 1);
+        }
+    }
+
+    private int scanArray(int position, int level) {
+        position = whitespace(position);
+        if (byteAt(position) == ']') {
+            return position + 1;
+        }
+        while (true) {
+            position = whitespace(scanValue(position, level));
+            var next = byteAt(position);
+            if (next == ']') {
+                return position + 1;
+            }
+            if (next != ',') {
+                throw malformed(position, "expected ',' or ']'");
+            }
+            position = whitespace(position + 1);
+        }
+    }
+
+    /// Scans a string and clears the canonical flag unless it is well-formed UTF-8 using only the
+    /// escapes the writer emits: the short forms, and lowercase `u00xx` for other controls.
+    private int scanString(int position, int token) {
+        position++;
+        while (true) {
+            var b = byteAt(position);
+            if (b == '"') {
+                return position + 1;
+            }
+            if (b < 0) {
+                throw malformed(position, "unterminated string");
+            }
+            if (b < 0x20) {
+                throw malformed(position, "control character in string");
+            }
+            if (b == '\\') {
+                kinds[token] = ESCAPED_STRING;
+                position = escape(position);
+            } else if (b < 0x80) {
+                position++;
+            } else if (canonical) {
+                var end = multiByte(position, b);
+                canonical = end > 0;
+                position = canonical ? end : position + 1;
+            } else {
+                position++;
+            }
+        }
+    }
+
+    private int escape(int position) {
+        switch (byteAt(position + 1)) {
+            case '"', '\\', 'b', 'f', 'n', 'r', 't' -> {
+                return position + 2;
+            }
+            case '/' -> {
+                canonical = false;
+                return position + 2;
+            }
+            case 'u' -> {
+                var value = 0;
+                for (var i = 2; i < 6; i++) {
+                    var digit = byteAt(position + i);
+                    var hex = hexValue(digit);
+                    if (hex < 0) {
+                        throw malformed(position, "invalid unicode escape");
+                    }
+                    if (digit >= 'A' && digit <= 'F') {
+                        canonical = false;
+                    }
+                    value = (value << 4) | hex;
+                }
+                if (value >= 0x20 || hasShortEscape(value)) {
+                    canonical = false;
+                }
+                return position + 6;
+            }
+            default -> throw malformed(position, "invalid escape");
+        }
+    }
+
+    /// End of the well-formed UTF-8 sequence led by `lead`, or -1 for overlong forms, surrogates
+    /// and anything a decoder would replace.
+    private int multiByte(int position, int lead) {
+        int length;
+        int minimum;
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            length = 2;
+            minimum = 0x80;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            length = 3;
+            minimum = 0x800;
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            length = 4;
+            minimum = 0x10000;
+        } else {
+            return -1;
+        }
+        var codePoint = lead & (0xFF >> (length + 1));
+        for (var i = 1; i < length; i++) {
+            var b = byteAt(position + i);
+            if ((b & 0xC0) != 0x80) {
+                return -1;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if (codePoint < minimum || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return -1;
+        }
+        return position + length;
+    }
+
+    private int scanLiteral(int position, String text, byte kind) {
+        for (var i = 0; i < text.length(); i++) {
+            if (byteAt(position + i) != text.charAt(i)) {
+                throw malformed(position, "unknown literal");
+            }
+        }
+        var end = position + text.length();
+        ends[append(kind, position)] = end;
+        return end;
+    }
+
+    /// Integers are canonical as written except `-0`; other numbers only if `BigDecimal` prints
+    /// them the same way.
+    private int scanNumber(int position) {
+        var start = position;
+        var kind = INTEGER;
+        if (byteAt(position) == '-') {
+            position++;
+        }
+        if (byteAt(position) == '0') {
+            position++;
+        } else {
+            position = digits(position, "expected digits");
+        }
+        if (byteAt(position) == '.') {
+            kind = DECIMAL;
+            position = digits(position + 1, "expected fraction digits");
+        }
+        if (byteAt(position) == 'e' || byteAt(position) == 'E') {
+            kind = DECIMAL;
+            position++;
+            if (byteAt(position) == '+' || byteAt(position) == '-') {
+                position++;
+            }
+            position = digits(position, "expected exponent digits");
+        }
+        var token = append(kind, start);
+        ends[token] = position;
+        if (canonical) {
+            canonical = kind == INTEGER
+                    ? position - start != 2 || bytes[start] != '-' || bytes[start + 1] != '0'
+                    : numberText(token).equals(new String(bytes, start, position - start, StandardCharsets.US_ASCII));
+        }
+        return position;
+    }
+
+    private int digits(int position, String detail) {
+        if (!isDigit(byteAt(position))) {
+            throw malformed(position, detail);
+        }
+        while (isDigit(byteAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /// Canonical spelling of a number token.
+    private String numberText(int token) {
+        var text = new String(bytes, starts[token], ends[token] - starts[token], StandardCharsets.US_ASCII);
+        if (kinds[token] == DECIMAL) {
+            return new BigDecimal(text).toString();
+        }
+        return text.equals("-0") ? "0" : text;
+    }
+
+    /// Orders two key tokens of a still-canonical document by UTF-16 code units, as
+    /// `String#compareTo` would, without decoding either into a string.
+    private int compareKeys(int first, int second) {
+        var left = starts[first] + 1;
+        var right = starts[second] + 1;
+        var leftLow = -1;
+        var rightLow = -1;
+        while (true) {
+            int a;
+            int b;
+            if (leftLow >= 0) {
+                a = leftLow;
+                leftLow = -1;
+            } else if (bytes[left] == '"') {
+                a = -1;
+            } else {
+                var unit = codeUnit(left);
+                left = (int) (unit >>> 32);
+                a = (int) unit & 0x1FFFFF;
+                if (a > Character.MAX_VALUE) {
+                    leftLow = Character.lowSurrogate(a);
+                    a = Character.highSurrogate(a);
+                }
+            }
+            if (rightLow >= 0) {
+                b = rightLow;
+                rightLow = -1;
+            } else if (bytes[right] == '"') {
+                b = -1;
+            } else {
+                var unit = codeUnit(right);
+                right = (int) (unit >>> 32);
+                b = (int) unit & 0x1FFFFF;
+                if (b > Character.MAX_VALUE) {
+                    rightLow = Character.lowSurrogate(b);
+                    b = Character.highSurrogate(b);
+                }
+            }
+            if (a != b || a < 0) {
+                return a - b;
+            }
+        }
+    }
+
+    /// Code point at `position` of a canonical string in the low bits, next position in the high.
+    private long codeUnit(int position) {
+        var b = bytes[position] & 0xFF;
+        int value;
+        int next;
+        if (b == '\\') {
+            var escaped = bytes[position + 1];
+            next = position + 2;
+            value = switch (escaped) {
+                case 'b' -> '\b';
+                case 'f' -> '\f';
+                case 'n' -> '\n';
+                case 'r' -> '\r';
+                case 't' -> '\t';
+                case 'u' -> {
+                    var unicode = 0;
+                    for (var i = 0; i < 4; i++) {
+                        unicode = (unicode << 4) | hexValue(bytes[next++]);
+                    }
+                    yield unicode;
+                }
+                default -> escaped;
+            };
+        } else if (b < 0x80) {
+            value = b;
+            next = position + 1;
+        } else {
+            var length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+            value = b & (0xFF >> (length + 1));
+            for (var i = 1; i < length; i++) {
+                value = (value << 6) | (bytes[position + i] & 0x3F);
+            }
+            next = position + length;
+        }
+        return ((long) next << 32) | value;
+    }
+
+    private int append(byte kind, int start) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        return count++;
+    }
+
+    private int byteAt(int position) {
+        return position < bytes.length ? bytes[position] & 0xFF : -1;
+    }
+
+    /// Skips whitespace inside the document, which makes it non-canonical.
+    private int whitespace(int position) {
+        var end = skipWhitespace(position);
+        if (end != position) {
+            canonical = false;
+        }
+        return end;
+    }
+
+    private int skipWhitespace(int position) {
+        while (true) {
+            var b = byteAt(position);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return position;
+            }
+            position++;
+        }
+    }
+
+    private JsonDecodingException malformed(int position, String detail) {
+        return new JsonDecodingException("Malformed JSON at offset " + position + ": " + detail);
+    }
+
+    /// Receives canonical bytes in order; `Mac#update(byte[], int, int)` fits as is.
+    @FunctionalInterface
+    public interface Sink {
+        void write(byte[] bytes, int offset, int length);
+    }
+
+    /// Writes the canonical form of a non-canonical document from its tokens in small chunks. Only
+    /// one object's decoded keys and value tokens are held at a time for sorting.
+    private final class CanonicalWriter {
+        private static final int CHUNK_SIZE = 512;
+        private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+        private final Sink sink;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int size;
+
+        private CanonicalWriter(Sink sink) {
+            this.sink = sink;
+        }
+
+        /// Writes the value `token` and returns the index of the token after it.
+        private int value(int token) {
+            switch (kinds[token]) {
+                case OBJECT -> object(token);
+                case ARRAY -> {
+                    write('[');
+                    for (var element = token + 1; element < ends[token]; element = next(element)) {
+                        if (element != token + 1) {
+                            write(',');
+                        }
+                        value(element);
+                    }
+                    write(']');
+                }
+                case STRING, ESCAPED_STRING -> string(token);
+                case INTEGER, DECIMAL -> ascii(numberText(token));
+                default -> raw(starts[token], ends[token]);
+            }
+            return next(token);
+        }
+
+        /// Sorts members by key; when a key repeats, only its last member is written.
+        private void object(int token) {
+            var keys = new String[8];
+            var values = new int[8];
+            var members = 0;
+            for (var key = token + 1; key < ends[token]; key = next(key + 1)) {
+                if (members == keys.length) {
+                    keys = Arrays.copyOf(keys, members * 2);
+                    values = Arrays.copyOf(values, members * 2);
+                }
+                keys[members] = JsonDocument.this.string(key);
+                values[members] = key + 1;
+                members++;
+            }
+            var order = new Integer[members];
+            for (var i = 0; i < members; i++) {
+                order[i] = i;
+            }
+            var names = keys;
+            Arrays.sort(order, (a, b) -> {
+                var byKey = names[a].compareTo(names[b]);
+                return byKey != 0 ? byKey : Integer.compare(a, b);
+            });
+            write('{');
+            var first = true;
+            for (var i = 0; i < members; i++) {
+                var member = order[i];
+                if (i + 1 < members && keys[order[i + 1]].equals(keys[member])) {
+                    continue;
+                }
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                quoted(keys[member]);
+                write(':');
+                value(values[member]);
+            }
+            write('}');
+        }
+
+        /// Plain ASCII strings are copied as they are; anything else is decoded and re-quoted.
+        private void string(int token) {
+            if (kinds[token] == STRING) {
+                var ascii = true;
+                for (var i = starts[token]; i < ends[token] && ascii; i++) {
+                    ascii = bytes[i] >= 0;
+                }
+                if (ascii) {
+                    raw(starts[token], ends[token]);
+                    return;
+                }
+            }
+            quoted(JsonDocument.this.string(token));
+        }
+
+        private void quoted(String value) {
+            write('"');
+            var length = value.length();
+            for (var i = 0; i < length; i++) {
+                var c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else if (c < 0x20) {
+                    write('\\');
+                    switch (c) {
+                        case '\b' -> write('b');
+                        case '\f' -> write('f');
+                        case '\n' -> write('n');
+                        case '\r' -> write('r');
+                        case '\t' -> write('t');
+                        default -> {
+                            write('u');
+                            write('0');
+                            write('0');
+                            write(HEX[c >> 4]);
+                            write(HEX[c & 0xF]);
+                        }
+                    }
+                } else if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xC0 | (c >> 6));
+                    write(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    var codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    write(0xF0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3F));
+                    write(0x80 | ((codePoint >> 6) & 0x3F));
+                    write(0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    write('?');
+                } else {
+                    write(0xE0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3F));
+                    write(0x80 | (c & 0x3F));
+                }
+            }
+            write('"');
+        }
+
+        private void ascii(String text) {
+            for (var i = 0; i < text.length(); i++) {
+                write(text.charAt(i));
+            }
+        }
+
+        private void raw(int start, int end) {
+            for (var i = start; i < end; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        private void write(int b) {
+            if (size == CHUNK_SIZE) {
+                flush();
+            }
+            chunk[size++] = (byte) b;
+        }
+
+        private void flush() {
+            if (size > 0) {
+                sink.write(chunk, 0, size);
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.amannmalik.acp.codec;
+
+import jakarta.json.*;
+import jakarta.json.spi.JsonProvider;
+import jakarta.json.stream.JsonGeneratorFactory;
+import org.eclipse.parsson.api.BufferPool;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/// Single entry point to `jakarta.json` for the codecs, the request authenticator and the webhook
+/// publisher. The static `Json` methods look the provider up again on every call and each provider
+/// brings its own buffers; here the provider is resolved once, its reader, generator and builder
+/// factories are kept, and all of them share one pool of recycled char buffers. The byte buffers
+/// behind the streaming encoders are pooled here as well.
+public final class JsonEngine {
+    private static final int POOL_SIZE = 64;
+    private static final int CHAR_BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BYTES = 64 * 1024;
+
+    private static final ArrayBlockingQueue<char[]> CHAR_BUFFERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<JsonByteWriter> BYTE_WRITERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final JsonProvider PROVIDER = JsonProvider.provider();
+    private static final Map<String, ?> CONFIG = Map.of(BufferPool.class.getName(), new CharBufferPool());
+    private static final JsonReaderFactory READERS = PROVIDER.createReaderFactory(CONFIG);
+    private static final JsonGeneratorFactory GENERATORS = PROVIDER.createGeneratorFactory(CONFIG);
+    private static final JsonBuilderFactory BUILDERS = PROVIDER.createBuilderFactory(CONFIG);
+
+    private JsonEngine() {
+    }
+
+    public static JsonReader createReader(InputStream in) {
+        return READERS.createReader(in);
+    }
+
+    public static JsonReader createReader(Reader in) {
+        return READERS.createReader(in);
+    }
+
+    public static JsonObjectBuilder createObjectBuilder() {
+        return BUILDERS.createObjectBuilder();
+    }
+
+    public static JsonArrayBuilder createArrayBuilder() {
+        return BUILDERS.createArrayBuilder();
+    }
+
+    public static JsonString createValue(String value) {
+        return PROVIDER.createValue(value);
+    }
+
+    /// Writes `value` to `out` through a cached generator and closes `out`.
+    public static void write(JsonValue value, OutputStream out) {
+        try (var generator = GENERATORS.createGenerator(out, StandardCharsets.UTF_8)) {
+            generator.write(value);
+        }
+    }
+
+    /// UTF-8 bytes of `value`, identical to its `toString()` but encoded straight from the tree.
+    public static byte[] toByteArray(JsonValue value) {
+        var json = acquireWriter();
+        try {
+            json.value(value);
+            return json.toByteArray();
+        } finally {
+            releaseWriter(json);
+        }
+    }
+
+    static JsonByteWriter acquireWriter() {
+        var writer = BYTE_WRITERS.poll();
+        return writer == null ? new JsonByteWriter(CHAR_BUFFER_SIZE) : writer;
+    }
+
+    /// Returns `writer` to the pool unless it grew past the pooled limit.
+    static void releaseWriter(JsonByteWriter writer) {
+        writer.reset();
+        if (writer.capacity() <= MAX_POOLED_BYTES) {
+            BYTE_WRITERS.offer(writer);
+        }
+    }
+
+    /// Bounded pool handed to Parsson in place of its per-provider default; buffers beyond the
+    /// bound are left to the garbage collector.
+    private static final class CharBufferPool implements BufferPool {
+        @Override
+        public char[] take() {
+            var buffer = CHAR_BUFFERS.poll();
+            return buffer == null ? new char[CHAR_BUFFER_SIZE] : buffer;
+        }
+
+        @Override
+        public void recycle(char[] buffer) {
+            if (buffer.length == CHAR_BUFFER_SIZE) {
+                CHAR_BUFFERS.offer(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.amannmalik.acp.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Cursor over one [JsonDocument] for the request decoders, which bind fields as they are read
+/// instead of building a `JsonObject` tree first. The reader walks the document's token index, so
+/// a body the authenticator has already canonicalized is not lexed a second time. Values the
+/// decoder does not ask for are skipped without being materialized, and member names found in the
+/// decoder's [Names] come back as the registered constant rather than a fresh string.
+///
+/// Documents larger than [#MAX_DOCUMENT_BYTES] or nested deeper than [#MAX_DEPTH] are rejected
+/// up front, as is anything that is not well-formed JSON. Every failure is a
+/// [JsonDecodingException]. The `OrNull` readers return `null` for a JSON `null`, leaving the
+/// required checks to [JsonSupport].
+final class JsonPullReader {
+    static final int MAX_DOCUMENT_BYTES = 1 << 20;
+    static final int MAX_DEPTH = 32;
+
+    private final JsonDocument document;
+    private final byte[] buffer;
+    private final Names names;
+    /// Index of the first token after each open container, by nesting level.
+    private final int[] limits = new int[MAX_DEPTH + 1];
+    private int token;
+    private int depth;
+
+    private JsonPullReader(JsonDocument document, Names names) {
+        this.document = document;
+        this.buffer = document.bytes();
+        this.names = names;
+    }
+
+    static JsonPullReader of(InputStream body, Names names) {
+        byte[] bytes;
+        try {
+            bytes = body.readNBytes(MAX_DOCUMENT_BYTES + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return of(JsonDocument.of(bytes), names);
+    }
+
+    static JsonPullReader of(JsonDocument document, Names names) {
+        if (document.length() > MAX_DOCUMENT_BYTES) {
+            throw new JsonDecodingException("JSON document MUST NOT exceed " + MAX_DOCUMENT_BYTES + " bytes");
+        }
+        if (document.depth() > MAX_DEPTH) {
+            throw new JsonDecodingException("JSON nesting MUST NOT exceed " + MAX_DEPTH + " levels");
+        }
+        return new JsonPullReader(document, names);
+    }
+
+    /// Enters the object that forms the document.
+    void beginDocument() {
+        if (document.kind(0) != JsonDocument.OBJECT) {
+            throw new JsonDecodingException("Expected JSON object");
+        }
+        enter();
+    }
+
+    /// Fails unless only whitespace follows the document's closing brace.
+    void endDocument() {
+        if (depth != 0 || document.hasTrailingContent()) {
+            throw new JsonDecodingException("Malformed JSON: unexpected content after the document");
+        }
+    }
+
+    /// `false` for a JSON `null`; otherwise enters the object named `key`.
+    boolean beginObjectOrNull(String key) {
+        if (nextIsNull()) {
+            return false;
+        }
+        if (kind() != JsonDocument.OBJECT) {
+            throw new JsonDecodingException("Expected object at: " + key);
+        }
+        enter();
+        return true;
+    }
+
+    /// `false` for a JSON `null`; otherwise enters the array named `key`.
+    boolean beginArrayOrNull(String key) {
+        if (nextIsNull()) {
+            return false;
+        }
+        if (kind() != JsonDocument.ARRAY) {
+            throw new JsonDecodingException("Expected array at: " + key);
+        }
+        enter();
+        return true;
+    }
+
+    /// Name of the current object's next member, leaving the reader on its value, or `null` once
+    /// the object is exhausted.
+    String nextName() {
+        if (!advance()) {
+            return null;
+        }
+        return readName();
+    }
+
+    /// Whether the current array has another element, leaving the array if not.
+    boolean nextElement() {
+        return advance();
+    }
+
+    boolean nextIsString() {
+        var kind = kind();
+        return kind == JsonDocument.STRING || kind == JsonDocument.ESCAPED_STRING;
+    }
+
+    String stringOrNull(String key) {
+        if (nextIsNull()) {
+            return null;
+        }
+        if (!nextIsString()) {
+            throw new JsonDecodingException("Expected string at: " + key);
+        }
+        return document.string(token++);
+    }
+
+    Long longOrNull(String key) {
+        if (nextIsNull()) {
+            return null;
+        }
+        var kind = kind();
+        if (kind != JsonDocument.INTEGER && kind != JsonDocument.DECIMAL) {
+            throw new JsonDecodingException("Expected integer at: " + key);
+        }
+        var start = document.start(token);
+        var end = document.end(token);
+        token++;
+        var negative = buffer[start] == '-';
+        if (kind == JsonDocument.INTEGER && end - start - (negative ? 1 : 0) <= 18) {
+            var value = 0L;
+            for (var i = negative ? start + 1 : start; i < end; i++) {
+                value = value * 10 + (buffer[i] - '0');
+            }
+            return negative ? -value : value;
+        }
+        try {
+            return new BigDecimal(new String(buffer, start, end - start, StandardCharsets.US_ASCII)).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new JsonDecodingException("Expected integer at: " + key);
+        }
+    }
+
+    Integer intOrNull(String key) {
+        var value = longOrNull(key);
+        if (value == null) {
+            return null;
+        }
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new JsonDecodingException("Expected integer at: " + key);
+        }
+        return value.intValue();
+    }
+
+    Boolean booleanOrNull(String key) {
+        if (nextIsNull()) {
+            return null;
+        }
+        var kind = kind();
+        if (kind == JsonDocument.TRUE || kind == JsonDocument.FALSE) {
+            token++;
+            return kind == JsonDocument.TRUE;
+        }
+        throw new JsonDecodingException("Expected boolean at: " + key);
+    }
+
+    /// Steps over the next value of any type without building anything.
+    void skipValue() {
+        token = document.next(token);
+    }
+
+    private byte kind() {
+        return document.kind(token);
+    }
+
+    private boolean nextIsNull() {
+        if (kind() != JsonDocument.NULL) {
+            return false;
+        }
+        token++;
+        return true;
+    }
+
+    private void enter() {
+        limits[++depth] = document.next(token);
+        token++;
+    }
+
+    /// `false`, leaving the current container, once its last member or element has been read.
+    private boolean advance() {
+        if (token == limits[depth]) {
+            depth--;
+            return false;
+        }
+        return true;
+    }
+
+    /// Known names without escapes resolve to their registered constant.
+    private String readName() {
+        var name = token++;
+        if (document.kind(name) == JsonDocument.STRING) {
+            var start = document.start(name) + 1;
+            var end = document.end(name) - 1;
+            var hash = 0;
+            for (var i = start; i < end; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            var known = names.find(buffer, start, end, hash);
+            if (known != null) {
+                return known;
+            }
+        }
+        return document.string(name);
+    }
+
+    /// Member names a decoder expects, in an open-addressed table keyed by the same hash
+    /// [#readName()] computes over the raw bytes. Names MUST be ASCII.
+    static final class Names {
+        private final String[] table;
+        private final int[] hashes;
+        private final int mask;
+
+        private Names(String[] table, int[] hashes) {
+            this.table = table;
+            this.hashes = hashes;
+            this.mask = table.length - 1;
+        }
+
+        static Names of(String... names) {
+            var capacity = Integer.highestOneBit(Math.max(4, names.length * 3)) << 1;
+            var table = new String[capacity];
+            var hashes = new int[capacity];
+            for (var name : names) {
+                var hash = hash(name);
+                var slot = hash & (capacity - 1);
+                while (table[slot] != null && !table[slot].equals(name)) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot] = name;
+                hashes[slot] = hash;
+            }
+            return new Names(table, hashes);
+        }
+
+        /// Combines both vocabularies into one table.
+        Names with(String... more) {
+            var all = new ArrayList<String>();
+            for (var name : table) {
+                if (name != null) {
+                    all.add(name);
+                }
+            }
+            all.addAll(List.of(more));
+            return of(all.toArray(String[]::new));
+        }
+
+        private static int hash(String name) {
+            var hash = 0;
+            for (var i = 0; i < name.length(); i++) {
+                hash = 31 * hash + (byte) name.charAt(i);
+            }
+            return hash;
+        }
+
+        private String find(byte[] bytes, int start, int end, int hash) {
+            var slot = hash & mask;
+            while (table[slot] != null) {
+                var candidate = table[slot];
+                if (hashes[slot] == hash && matches(candidate, bytes, start, end)) {
+                    return candidate;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static boolean matches(String candidate, byte[] bytes, int start, int end) {
+            if (candidate.length() != end - start) {
+                return false;
+            }
+            for (var i = 0; i < candidate.length(); i++) {
+                if (bytes[start + i] != candidate.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -107,4 +107,23 @@ final class JsonSupport {
             default -> throw new JsonDecodingException("Expected boolean at: " + key);
         };
     }
+
+    /// `value` as bound by a [JsonPullReader], which leaves absent and `null` members as `null`.
+    static <T> T require(T value, String kind, String key) {
+        if (value == null) {
+            throw new JsonDecodingException("Missing " + kind + ": " + key);
+        }
+        return value;
+    }
+
+    static String requireString(String value, String key) {
+        return optionalString(require(value, "string", key), key);
+    }
+
+    static String optionalString(String value, String key) {
+        if (value != null && value.isBlank()) {
+            throw new JsonDecodingException("String MUST be non-blank: " + key);
+        }
+        return value;
+    }
 }
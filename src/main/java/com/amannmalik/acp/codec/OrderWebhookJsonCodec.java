@@ -0,0 +1,92 @@
+package com.amannmalik.acp.codec;
+
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import jakarta.json.*;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/// JSON form of [OrderWebhookEvent]: the body the merchant POSTs to the agent's webhook endpoint.
+public final class OrderWebhookJsonCodec {
+    public OrderWebhookJsonCodec() {
+    }
+
+    private static OrderWebhookEvent.Type mapType(String value) {
+        for (var type : OrderWebhookEvent.Type.values()) {
+            if (type.jsonValue().equals(value)) {
+                return type;
+            }
+        }
+        throw new JsonDecodingException("Unknown webhook event type: " + value);
+    }
+
+    private static OrderWebhookEvent.OrderStatus mapStatus(String value) {
+        for (var status : OrderWebhookEvent.OrderStatus.values()) {
+            if (status.jsonValue().equals(value)) {
+                return status;
+            }
+        }
+        throw new JsonDecodingException("Unknown order status: " + value);
+    }
+
+    private static OrderWebhookEvent.RefundType mapRefundType(String value) {
+        for (var type : OrderWebhookEvent.RefundType.values()) {
+            if (type.jsonValue().equals(value)) {
+                return type;
+            }
+        }
+        throw new JsonDecodingException("Unknown refund type: " + value);
+    }
+
+    private static JsonArrayBuilder writeRefunds(List<OrderWebhookEvent.Refund> refunds) {
+        var builder = JsonEngine.createArrayBuilder();
+        for (var refund : refunds) {
+            builder.add(JsonEngine.createObjectBuilder()
+                    .add("type", refund.type().jsonValue())
+                    .add("amount", refund.amount().value()));
+        }
+        return builder;
+    }
+
+    private static List<OrderWebhookEvent.Refund> mapRefunds(JsonArray array) {
+        var refunds = new ArrayList<OrderWebhookEvent.Refund>(array.size());
+        for (var value : array) {
+            var jsonObject = value.asJsonObject();
+            refunds.add(new OrderWebhookEvent.Refund(
+                    mapRefundType(JsonSupport.requireString(jsonObject, "type")),
+                    JsonSupport.requireAmount(jsonObject, "amount")));
+        }
+        return List.copyOf(refunds);
+    }
+
+    public JsonObject write(OrderWebhookEvent event) {
+        var data = JsonEngine.createObjectBuilder()
+                .add("type", "order")
+                .add("checkout_session_id", event.checkoutSessionId())
+                .add("permalink_url", event.permalinkUrl().toString())
+                .add("status", event.status().jsonValue())
+                .add("refunds", writeRefunds(event.refunds()));
+        return JsonEngine.createObjectBuilder()
+                .add("type", event.type().jsonValue())
+                .add("data", data)
+                .build();
+    }
+
+    public OrderWebhookEvent read(JsonObject root) {
+        var data = JsonSupport.requireObject(root, "data");
+        var refunds = data.containsKey("refunds") && !data.isNull("refunds")
+                ? mapRefunds(JsonSupport.requireArray(data, "refunds"))
+                : List.<OrderWebhookEvent.Refund>of();
+        try {
+            return new OrderWebhookEvent(
+                    mapType(JsonSupport.requireString(root, "type")),
+                    JsonSupport.requireString(data, "checkout_session_id"),
+                    mapStatus(JsonSupport.requireString(data, "status")),
+                    URI.create(JsonSupport.requireString(data, "permalink_url")),
+                    refunds);
+        } catch (IllegalArgumentException e) {
+            throw new JsonDecodingException("Invalid order webhook event: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.amannmalik.acp.codec;
+
+import java.util.function.BiConsumer;
+
+/// Encoded bytes of the last value written through it, for fields that hold the same value on
+/// nearly every document. A value equal to the cached one is spliced in with one array copy; any
+/// other value is encoded once and becomes the new cached value.
+final class PreEncodedJson<T> {
+    private final BiConsumer<JsonByteWriter, T> encoder;
+    private volatile Fragment<T> last;
+
+    PreEncodedJson(T initial, BiConsumer<JsonByteWriter, T> encoder) {
+        this.encoder = encoder;
+        this.last = encode(initial);
+    }
+
+    /// Writes `value` in the next value position of `json`.
+    void write(JsonByteWriter json, T value) {
+        var fragment = last;
+        if (fragment.value() != value && !fragment.value().equals(value)) {
+            fragment = encode(value);
+            last = fragment;
+        }
+        json.raw(fragment.json());
+    }
+
+    private Fragment<T> encode(T value) {
+        var json = new JsonByteWriter(256);
+        encoder.accept(json, value);
+        return new Fragment<>(value, json.toByteArray());
+    }
+
+    private record Fragment<T>(T value, byte[] json) {
+    }
+}
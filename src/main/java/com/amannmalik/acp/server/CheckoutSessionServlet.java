@@ -1,17 +1,21 @@
 package com.amannmalik.acp.server;
 
 import com.amannmalik.acp.api.checkout.*;
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
 import com.amannmalik.acp.api.checkout.model.CheckoutSessionId;
 import com.amannmalik.acp.api.shared.ApiVersion;
 import com.amannmalik.acp.api.shared.ErrorResponse;
 import com.amannmalik.acp.codec.CheckoutSessionJsonCodec;
 import com.amannmalik.acp.codec.JsonDecodingException;
+import com.amannmalik.acp.codec.JsonDocument;
 import com.amannmalik.acp.server.security.RequestAuthenticator;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
 import jakarta.servlet.http.*;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Function;
 
 public final class CheckoutSessionServlet extends HttpServlet {
     private static final String APPLICATION_JSON = "application/json";
@@ -19,17 +23,55 @@ public final class CheckoutSessionServlet extends HttpServlet {
     private final CheckoutSessionService service;
     private final CheckoutSessionJsonCodec codec;
     private final RequestAuthenticator authenticator;
+    private final RequestPipelining pipelining;
+    private final RateLimiter rateLimiter;
 
     public CheckoutSessionServlet(
             CheckoutSessionService service, CheckoutSessionJsonCodec codec, RequestAuthenticator authenticator) {
+        this(service, codec, authenticator, RequestPipelining.SEQUENTIAL);
+    }
+
+    public CheckoutSessionServlet(
+            CheckoutSessionService service,
+            CheckoutSessionJsonCodec codec,
+            RequestAuthenticator authenticator,
+            RequestPipelining pipelining) {
+        this(service, codec, authenticator, pipelining, null);
+    }
+
+    /// Idempotent routes are answered with the replies `service` records and journals under each
+    /// key, so retries get the original bytes back after a restart too. `rateLimiter` is consulted
+    /// before the body is read; `null` disables rate limiting.
+    public CheckoutSessionServlet(
+            CheckoutSessionService service,
+            CheckoutSessionJsonCodec codec,
+            RequestAuthenticator authenticator,
+            RequestPipelining pipelining,
+            RateLimiter rateLimiter) {
         this.service = service;
         this.codec = codec;
         this.authenticator = authenticator;
+        this.pipelining = Objects.requireNonNull(pipelining, "pipelining");
+        this.rateLimiter = rateLimiter;
     }
 
-    private static byte[] readBody(HttpServletRequest request) throws IOException {
+    /// Size and eviction counters of the service's recorded idempotent replies, by operation.
+    public Map<String, IdempotencyTable.Stats> idempotencyStats() {
+        return service.idempotencyStats();
+    }
+
+    /// A replayed signature is answered only from a recorded reply.
+    private static IdempotentReply.Encoded requireRecorded(IdempotentReply.Encoded reply) {
+        if (reply == null) {
+            throw HttpProblem.replayedRequest();
+        }
+        return reply;
+    }
+
+    /// Parsed lazily and at most once, by whichever of the authenticator and the codec needs it first.
+    private static JsonDocument readBody(HttpServletRequest request) throws IOException {
         try (var inputStream = request.getInputStream()) {
-            return inputStream.readAllBytes();
+            return JsonDocument.of(inputStream.readAllBytes());
         }
     }
 
@@ -66,55 +108,53 @@ public final class CheckoutSessionServlet extends HttpServlet {
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleWithErrors(req, resp, () -> {
             validateHeaders(req);
+            var clientId = requireCredentials(req);
             var segments = pathSegments(req);
             if (segments.isEmpty()) {
-                var body = readBody(req);
-                authenticator.authenticate(req, body);
-                requireJsonPayload(req);
-                var request = codec.readCreateRequest(new ByteArrayInputStream(body));
+                throttle(RateLimiter.EndpointClass.CREATE, req, clientId);
+                var signed = authenticateRetryAndDecode(req, readBody(req), codec::readCreateRequest);
+                var request = signed.request();
                 var idempotencyKey = ensureIdempotencyKey(req);
-                var session = service.create(request, idempotencyKey);
-                resp.setStatus(HttpServletResponse.SC_CREATED);
-                propagateCorrelationHeaders(req, resp);
-                resp.setContentType(APPLICATION_JSON);
-                codec.writeCheckoutSession(resp.getOutputStream(), session);
+                var fingerprint = Fingerprint.of(request);
+                var respond = responder(HttpServletResponse.SC_CREATED);
+                writeResponse(req, resp, signed.replayed()
+                        ? requireRecorded(service.replayCreate(idempotencyKey, fingerprint, respond))
+                        : service.create(request, idempotencyKey, fingerprint, respond));
                 return;
             }
             var sessionId = new CheckoutSessionId(segments.get(0));
             if (segments.size() == 1) {
-                var body = readBody(req);
-                authenticator.authenticate(req, body);
-                requireJsonPayload(req);
-                var request = codec.readUpdateRequest(new ByteArrayInputStream(body));
+                throttle(RateLimiter.EndpointClass.UPDATE, req, clientId);
+                var request = authenticateAndDecode(req, readBody(req), codec::readUpdateRequest);
                 var session = service.update(sessionId, request);
                 resp.setStatus(HttpServletResponse.SC_OK);
                 propagateCorrelationHeaders(req, resp);
                 resp.setContentType(APPLICATION_JSON);
-                codec.writeCheckoutSession(resp.getOutputStream(), session);
+                codec.writeCheckoutSession(resp.getOutputStream(), session, resp::setContentLength);
                 return;
             }
             var action = segments.get(1);
             if ("complete".equals(action)) {
-                var body = readBody(req);
-                authenticator.authenticate(req, body);
-                requireJsonPayload(req);
-                var request = codec.readCompleteRequest(new ByteArrayInputStream(body));
+                throttle(RateLimiter.EndpointClass.COMPLETE, req, clientId);
+                var signed = authenticateRetryAndDecode(req, readBody(req), codec::readCompleteRequest);
+                var request = signed.request();
                 var idempotencyKey = ensureIdempotencyKey(req);
-                var session = service.complete(sessionId, request, idempotencyKey);
-                resp.setStatus(HttpServletResponse.SC_OK);
-                propagateCorrelationHeaders(req, resp);
-                resp.setContentType(APPLICATION_JSON);
-                codec.writeCheckoutSession(resp.getOutputStream(), session);
+                var fingerprint = Fingerprint.of(request);
+                var respond = responder(HttpServletResponse.SC_OK);
+                writeResponse(req, resp, signed.replayed()
+                        ? requireRecorded(service.replayComplete(sessionId, idempotencyKey, fingerprint, respond))
+                        : service.complete(sessionId, request, idempotencyKey, fingerprint, respond));
                 return;
             }
+            // Unknown actions are authenticated like cancel, so only a known client learns they are absent.
+            throttle(RateLimiter.EndpointClass.UPDATE, req, clientId);
+            authenticator.authenticate(req, readBody(req));
             if ("cancel".equals(action)) {
-                var body = readBody(req);
-                authenticator.authenticate(req, body);
                 var session = service.cancel(sessionId);
                 resp.setStatus(HttpServletResponse.SC_OK);
                 propagateCorrelationHeaders(req, resp);
                 resp.setContentType(APPLICATION_JSON);
-                codec.writeCheckoutSession(resp.getOutputStream(), session);
+                codec.writeCheckoutSession(resp.getOutputStream(), session, resp::setContentLength);
                 return;
             }
             resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
@@ -125,6 +165,8 @@ public final class CheckoutSessionServlet extends HttpServlet {
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleWithErrors(req, resp, () -> {
             validateHeaders(req);
+            var clientId = requireCredentials(req);
+            throttle(RateLimiter.EndpointClass.RETRIEVE, req, clientId);
             var body = readBody(req);
             authenticator.authenticate(req, body);
             var segments = pathSegments(req);
@@ -136,10 +178,65 @@ public final class CheckoutSessionServlet extends HttpServlet {
             resp.setStatus(HttpServletResponse.SC_OK);
             propagateCorrelationHeaders(req, resp);
             resp.setContentType(APPLICATION_JSON);
-            codec.writeCheckoutSession(resp.getOutputStream(), session);
+            codec.writeCheckoutSession(resp.getOutputStream(), session, resp::setContentLength);
         });
     }
 
+    /// Authentication and the content-type check are reported ahead of any decoding failure.
+    private <T> T authenticateAndDecode(HttpServletRequest req, JsonDocument body, Function<JsonDocument, T> decoder) {
+        try (var decoding = pipelining.fork(body, decoder)) {
+            authenticator.authenticate(req, body);
+            requireJsonPayload(req);
+            return decoding.join();
+        }
+    }
+
+    /// As above, for an idempotent route: a repeated signature is let through, to be answered only
+    /// from the reply the service recorded.
+    private <T> Signed<T> authenticateRetryAndDecode(
+            HttpServletRequest req, JsonDocument body, Function<JsonDocument, T> decoder) {
+        try (var decoding = pipelining.fork(body, decoder)) {
+            var replayed = authenticator.authenticateRetry(req, body);
+            requireJsonPayload(req);
+            return new Signed<>(decoding.join(), replayed);
+        }
+    }
+
+    /// Encodes the session an idempotent route answers with, once; the service records the bytes.
+    private Function<CheckoutSession, IdempotentReply.Encoded> responder(int status) {
+        return session -> new IdempotentReply.Encoded(session.id(), status, codec.writeCheckoutSession(session));
+    }
+
+    private void writeResponse(HttpServletRequest req, HttpServletResponse resp, IdempotentReply.Encoded response)
+            throws IOException {
+        resp.setStatus(response.status());
+        propagateCorrelationHeaders(req, resp);
+        resp.setContentType(APPLICATION_JSON);
+        resp.setContentLength(response.body().length);
+        resp.getOutputStream().write(response.body());
+    }
+
+    private void throttle(RateLimiter.EndpointClass endpoint, HttpServletRequest req, String clientId) {
+        if (rateLimiter != null) {
+            rateLimiter.acquire(endpoint, req, clientId);
+        }
+    }
+
+    /// Turns away a request with neither a proven connection identity nor an `Authorization` header
+    /// before its route is resolved, so unknown routes answer 401 rather than 404 to strangers.
+    /// Returns the connection's client id, if any.
+    private String requireCredentials(HttpServletRequest req) {
+        var clientId = authenticator.clientId(req);
+        if (clientId == null && normalizeHeader(req.getHeader("Authorization")) == null) {
+            throw new HttpProblem(
+                    HttpServletResponse.SC_UNAUTHORIZED,
+                    ErrorResponse.ErrorType.INVALID_REQUEST,
+                    "unauthorized",
+                    "Authorization header is required");
+        }
+        return clientId;
+    }
+
     private void validateHeaders(HttpServletRequest req) {
         var apiVersion = req.getHeader("API-Version");
         if (apiVersion == null) {
@@ -163,14 +260,6 @@ public final class CheckoutSessionServlet extends HttpServlet {
                     "https_required",
                     "HTTPS is required");
         }
-        var authorization = req.getHeader("Authorization");
-        if (authorization == null || authorization.isBlank()) {
-            throw new HttpProblem(
-                    HttpServletResponse.SC_UNAUTHORIZED,
-                    ErrorResponse.ErrorType.INVALID_REQUEST,
-                    "unauthorized",
-                    "Authorization header is required");
-        }
     }
 
     private String ensureIdempotencyKey(HttpServletRequest req) {
@@ -201,6 +290,9 @@ public final class CheckoutSessionServlet extends HttpServlet {
         try {
             action.run();
         } catch (HttpProblem problem) {
+            if (problem.retryAfter() != null) {
+                resp.setHeader("Retry-After", problem.retryAfterHeader());
+            }
             sendError(resp, problem.status(), problem.errorType(), problem.code(), problem.getMessage(), problem.param(), req);
         } catch (IOException e) {
             throw e;
@@ -297,4 +389,8 @@ public final class CheckoutSessionServlet extends HttpServlet {
     private interface IOExceptionRunnable {
         void run() throws IOException;
     }
+
+    /// `replayed` requests repeat a signature that was already accepted once.
+    private record Signed<T>(T request, boolean replayed) {
+    }
 }
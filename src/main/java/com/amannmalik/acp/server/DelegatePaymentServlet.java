@@ -1,16 +1,23 @@
 package com.amannmalik.acp.server;
 
 import com.amannmalik.acp.api.delegatepayment.*;
+import com.amannmalik.acp.api.delegatepayment.model.DelegatePaymentRequest;
+import com.amannmalik.acp.api.delegatepayment.model.DelegatePaymentResponse;
 import com.amannmalik.acp.api.shared.ApiVersion;
 import com.amannmalik.acp.api.shared.ErrorResponse;
 import com.amannmalik.acp.codec.DelegatePaymentJsonCodec;
 import com.amannmalik.acp.codec.JsonDecodingException;
+import com.amannmalik.acp.codec.JsonDocument;
 import com.amannmalik.acp.server.security.RequestAuthenticator;
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
 import jakarta.servlet.http.*;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 public final class DelegatePaymentServlet extends HttpServlet {
     private static final String APPLICATION_JSON = "application/json";
@@ -18,12 +25,51 @@ public final class DelegatePaymentServlet extends HttpServlet {
     private final DelegatePaymentService service;
     private final DelegatePaymentJsonCodec codec;
     private final RequestAuthenticator authenticator;
+    private final IdempotentResponses idempotentResponses;
+    private final RequestPipelining pipelining;
+    private final RateLimiter rateLimiter;
 
     public DelegatePaymentServlet(
             DelegatePaymentService service, DelegatePaymentJsonCodec codec, RequestAuthenticator authenticator) {
+        this(service, codec, authenticator, IdempotencyTable.Retention.defaults());
+    }
+
+    public DelegatePaymentServlet(
+            DelegatePaymentService service,
+            DelegatePaymentJsonCodec codec,
+            RequestAuthenticator authenticator,
+            IdempotencyTable.Retention idempotencyRetention) {
+        this(service, codec, authenticator, idempotencyRetention, RequestPipelining.SEQUENTIAL);
+    }
+
+    public DelegatePaymentServlet(
+            DelegatePaymentService service,
+            DelegatePaymentJsonCodec codec,
+            RequestAuthenticator authenticator,
+            IdempotencyTable.Retention idempotencyRetention,
+            RequestPipelining pipelining) {
+        this(service, codec, authenticator, idempotencyRetention, pipelining, null);
+    }
+
+    /// `rateLimiter` is consulted before the body is read; `null` disables rate limiting.
+    public DelegatePaymentServlet(
+            DelegatePaymentService service,
+            DelegatePaymentJsonCodec codec,
+            RequestAuthenticator authenticator,
+            IdempotencyTable.Retention idempotencyRetention,
+            RequestPipelining pipelining,
+            RateLimiter rateLimiter) {
         this.service = service;
         this.codec = codec;
         this.authenticator = authenticator;
+        this.idempotentResponses = new IdempotentResponses(DelegatePaymentIdempotencyConflictException::new, idempotencyRetention);
+        this.pipelining = Objects.requireNonNull(pipelining, "pipelining");
+        this.rateLimiter = rateLimiter;
+    }
+
+    /// Size and eviction counters of the cached idempotent responses.
+    public IdempotencyTable.Stats idempotencyStats() {
+        return idempotentResponses.stats();
     }
 
     private static String normalizeHeader(String value) {
@@ -33,9 +79,10 @@ public final class DelegatePaymentServlet extends HttpServlet {
         return value;
     }
 
-    private static byte[] readBody(HttpServletRequest request) throws IOException {
+    /// Parsed lazily and at most once, by whichever of the authenticator and the codec needs it first.
+    private static JsonDocument readBody(HttpServletRequest request) throws IOException {
         try (var inputStream = request.getInputStream()) {
-            return inputStream.readAllBytes();
+            return JsonDocument.of(inputStream.readAllBytes());
         }
     }
 
@@ -54,19 +101,63 @@ public final class DelegatePaymentServlet extends HttpServlet {
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleWithErrors(req, resp, () -> {
             validateHeaders(req);
-            requireJsonPayload(req);
+            var clientId = requireCredentials(req);
+            throttle(RateLimiter.EndpointClass.DELEGATE_PAYMENT, req, clientId);
             var body = readBody(req);
-            authenticator.authenticate(req, body);
             var idempotencyKey = normalizeHeader(req.getHeader("Idempotency-Key"));
-            var delegateRequest = codec.readRequest(new ByteArrayInputStream(body));
-            var response = service.create(delegateRequest, idempotencyKey);
-            resp.setStatus(HttpServletResponse.SC_CREATED);
+            DelegatePaymentRequest delegateRequest;
+            boolean replayed;
+            try (var decoding = pipelining.fork(body, codec::readRequest)) {
+                // Only a keyed request can be answered from a recorded response, so only it may repeat a signature.
+                if (idempotencyKey == null) {
+                    authenticator.authenticate(req, body);
+                    replayed = false;
+                } else {
+                    replayed = authenticator.authenticateRetry(req, body);
+                }
+                requireJsonPayload(req);
+                delegateRequest = decoding.join();
+            }
+            var fingerprint = idempotencyKey == null ? null : Fingerprint.of(delegateRequest);
+            Supplier<IdempotentResponses.Response> handler = () -> new IdempotentResponses.Response(
+                    HttpServletResponse.SC_CREATED, encode(service.create(delegateRequest, idempotencyKey, fingerprint)));
+            var response = idempotencyKey == null
+                    ? handler.get()
+                    : idempotentResponses.execute("/", idempotencyKey, fingerprint, replayed, handler);
+            resp.setStatus(response.status());
             propagateCorrelationHeaders(req, resp);
             resp.setContentType(APPLICATION_JSON);
-            codec.writeResponse(resp.getOutputStream(), response);
+            resp.setContentLength(response.body().length);
+            resp.getOutputStream().write(response.body());
         });
     }
 
+    private byte[] encode(DelegatePaymentResponse response) {
+        var body = new ByteArrayOutputStream();
+        codec.writeResponse(body, response);
+        return body.toByteArray();
+    }
+
+    private void throttle(RateLimiter.EndpointClass endpoint, HttpServletRequest req, String clientId) {
+        if (rateLimiter != null) {
+            rateLimiter.acquire(endpoint, req, clientId);
+        }
+    }
+
+    /// Turns away a request with neither a proven connection identity nor an `Authorization` header
+    /// before anything else about it is checked. Returns the connection's client id, if any.
+    private String requireCredentials(HttpServletRequest req) {
+        var clientId = authenticator.clientId(req);
+        if (clientId == null && normalizeHeader(req.getHeader("Authorization")) == null) {
+            throw new HttpProblem(
+                    HttpServletResponse.SC_UNAUTHORIZED,
+                    ErrorResponse.ErrorType.INVALID_REQUEST,
+                    "unauthorized",
+                    "Authorization header is required");
+        }
+        return clientId;
+    }
+
     private void validateHeaders(HttpServletRequest req) {
         var apiVersion = req.getHeader("API-Version");
         if (apiVersion == null) {
@@ -90,14 +181,6 @@ public final class DelegatePaymentServlet extends HttpServlet {
                     "https_required",
                     "HTTPS is required");
         }
-        var authorization = req.getHeader("Authorization");
-        if (authorization == null || authorization.isBlank()) {
-            throw new HttpProblem(
-                    HttpServletResponse.SC_UNAUTHORIZED,
-                    ErrorResponse.ErrorType.INVALID_REQUEST,
-                    "unauthorized",
-                    "Authorization header is required");
-        }
     }
 
     private void requireJsonPayload(HttpServletRequest req) {
@@ -116,6 +199,9 @@ public final class DelegatePaymentServlet extends HttpServlet {
         try {
             action.run();
         } catch (HttpProblem problem) {
+            if (problem.retryAfter() != null) {
+                resp.setHeader("Retry-After", problem.retryAfterHeader());
+            }
             sendError(resp, problem.status(), problem.errorType(), problem.code(), problem.getMessage(), problem.param(), req);
         } catch (IOException e) {
             throw e;
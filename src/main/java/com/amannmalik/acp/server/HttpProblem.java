@@ -2,22 +2,37 @@ package com.amannmalik.acp.server;
 
 import com.amannmalik.acp.api.shared.ErrorResponse;
 
+import java.time.Duration;
+
 public final class HttpProblem extends RuntimeException {
     private final int status;
     private final ErrorResponse.ErrorType errorType;
     private final String code;
     private final String param;
+    private final Duration retryAfter;
 
     public HttpProblem(int status, ErrorResponse.ErrorType errorType, String code, String message) {
         this(status, errorType, code, message, null);
     }
 
     public HttpProblem(int status, ErrorResponse.ErrorType errorType, String code, String message, String param) {
+        this(status, errorType, code, message, param, null);
+    }
+
+    /// `retryAfter`, when present, is sent back as a `Retry-After` header.
+    public HttpProblem(
+            int status, ErrorResponse.ErrorType errorType, String code, String message, String param, Duration retryAfter) {
         super(message);
         this.status = status;
         this.errorType = errorType;
         this.code = code;
         this.param = param;
+        this.retryAfter = retryAfter;
+    }
+
+    /// A verified signature presented again within the replay window.
+    public static HttpProblem replayedRequest() {
+        return new HttpProblem(401, ErrorResponse.ErrorType.INVALID_REQUEST, "replayed_request", "Signature has already been used");
     }
 
     public int status() {
@@ -35,4 +50,14 @@ public final class HttpProblem extends RuntimeException {
     public String param() {
         return param;
     }
+
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+
+    /// Whole seconds for the `Retry-After` header, rounded up so an early retry is not rejected again.
+    public String retryAfterHeader() {
+        var seconds = retryAfter.getSeconds() + (retryAfter.getNano() > 0 ? 1 : 0);
+        return Long.toString(Math.max(1, seconds));
+    }
 }
@@ -0,0 +1,64 @@
+package com.amannmalik.acp.server;
+
+import com.amannmalik.acp.util.Fingerprint;
+import com.amannmalik.acp.util.IdempotencyTable;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/// Serialized responses of idempotent delegate payment endpoints, keyed by route and
+/// `Idempotency-Key`.
+///
+/// Each entry keeps the request [Fingerprint], the status code and the exact body bytes that were
+/// sent, so a retry is answered by copying bytes instead of re-encoding. Entries live only as long
+/// as the process, like the delegate payment service itself. Checkout sessions are journaled, so
+/// their replies are recorded by the checkout service instead, where they survive restarts.
+final class IdempotentResponses {
+    private static final Duration WAIT_TIMEOUT = Duration.ofSeconds(10);
+    private static final long RESPONSE_OVERHEAD_BYTES = 64;
+
+    private final IdempotencyTable<Route, Fingerprint, Response> responses;
+
+    IdempotentResponses(Function<String, ? extends RuntimeException> conflict, IdempotencyTable.Retention retention) {
+        this.responses = new IdempotencyTable<>(
+                WAIT_TIMEOUT,
+                conflict,
+                retention,
+                Clock.systemUTC(),
+                response -> RESPONSE_OVERHEAD_BYTES + response.body().length);
+    }
+
+    /// Returns the response recorded for `route` and `idempotencyKey`, or runs `handler` and records
+    /// what it returns. Handlers that throw record nothing. `fingerprint` is the request's
+    /// [Fingerprint], computed once by the caller and handed on to the service. A `replayed`
+    /// request, one whose signature was already seen, is only ever answered from the record.
+    ///
+    /// @throws HttpProblem 401 `replayed_request` if `replayed` and nothing is recorded
+    Response execute(
+            String route, String idempotencyKey, Fingerprint fingerprint, boolean replayed, Supplier<Response> handler) {
+        try (var claim = responses.claim(new Route(route, idempotencyKey), fingerprint)) {
+            if (claim.isReplay()) {
+                return claim.replayed();
+            }
+            if (replayed) {
+                throw HttpProblem.replayedRequest();
+            }
+            var response = handler.get();
+            claim.commit(response);
+            return response;
+        }
+    }
+
+    IdempotencyTable.Stats stats() {
+        return responses.stats();
+    }
+
+    /// `body` is shared with every replay and MUST NOT be modified.
+    record Response(int status, byte[] body) {
+    }
+
+    private record Route(String path, String idempotencyKey) {
+    }
+}
@@ -4,35 +4,77 @@ import com.amannmalik.acp.api.checkout.CheckoutSessionService;
 import com.amannmalik.acp.api.delegatepayment.DelegatePaymentService;
 import com.amannmalik.acp.codec.CheckoutSessionJsonCodec;
 import com.amannmalik.acp.codec.DelegatePaymentJsonCodec;
+import com.amannmalik.acp.server.security.ClientCertificateAuthenticator;
 import com.amannmalik.acp.server.security.RequestAuthenticator;
+import com.amannmalik.acp.util.IdempotencyTable;
 import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
 import org.eclipse.jetty.ee10.servlet.ServletHolder;
 import org.eclipse.jetty.server.*;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
+import java.time.Clock;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
 public final class JettyHttpServer implements AutoCloseable {
     private final Server server;
     private final ServerConnector httpConnector;
     private final ServerConnector httpsConnector;
+    private final CheckoutSessionServlet checkoutServlet;
+    private final DelegatePaymentServlet delegatePaymentServlet;
 
     public JettyHttpServer(
             Configuration configuration,
             CheckoutSessionService checkoutSessionService,
             DelegatePaymentService delegatePaymentService,
             RequestAuthenticator requestAuthenticator) {
+        this(configuration, checkoutSessionService, delegatePaymentService, requestAuthenticator,
+                IdempotencyTable.Retention.defaults());
+    }
+
+    public JettyHttpServer(
+            Configuration configuration,
+            CheckoutSessionService checkoutSessionService,
+            DelegatePaymentService delegatePaymentService,
+            RequestAuthenticator requestAuthenticator,
+            IdempotencyTable.Retention idempotencyRetention) {
+        this(configuration, checkoutSessionService, delegatePaymentService, requestAuthenticator,
+                idempotencyRetention, RequestPipelining.SEQUENTIAL);
+    }
+
+    public JettyHttpServer(
+            Configuration configuration,
+            CheckoutSessionService checkoutSessionService,
+            DelegatePaymentService delegatePaymentService,
+            RequestAuthenticator requestAuthenticator,
+            IdempotencyTable.Retention idempotencyRetention,
+            RequestPipelining pipelining) {
+        this(configuration, checkoutSessionService, delegatePaymentService, requestAuthenticator,
+                idempotencyRetention, pipelining, RateLimiter.Configuration.disabled());
+    }
+
+    public JettyHttpServer(
+            Configuration configuration,
+            CheckoutSessionService checkoutSessionService,
+            DelegatePaymentService delegatePaymentService,
+            RequestAuthenticator requestAuthenticator,
+            IdempotencyTable.Retention idempotencyRetention,
+            RequestPipelining pipelining,
+            RateLimiter.Configuration rateLimits) {
+        requestAuthenticator = withClientCertificates(configuration.tlsConfiguration(), requestAuthenticator);
         var checkoutCodec = new CheckoutSessionJsonCodec();
         var delegateCodec = new DelegatePaymentJsonCodec();
+        var rateLimiter = rateLimits.limits().isEmpty() ? null : new RateLimiter(rateLimits, Clock.systemUTC());
+        this.checkoutServlet = new CheckoutSessionServlet(
+                checkoutSessionService, checkoutCodec, requestAuthenticator, pipelining, rateLimiter);
+        this.delegatePaymentServlet = new DelegatePaymentServlet(
+                delegatePaymentService, delegateCodec, requestAuthenticator, idempotencyRetention, pipelining, rateLimiter);
         this.server = new Server();
         var context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
         context.setContextPath("/");
-        context.addServlet(
-                new ServletHolder(new CheckoutSessionServlet(checkoutSessionService, checkoutCodec, requestAuthenticator)),
-                "/checkout_sessions/*");
-        context.addServlet(
-                new ServletHolder(new DelegatePaymentServlet(delegatePaymentService, delegateCodec, requestAuthenticator)),
-                "/agentic_commerce/delegate_payment");
+        context.addServlet(new ServletHolder(checkoutServlet), "/checkout_sessions/*");
+        context.addServlet(new ServletHolder(delegatePaymentServlet), "/agentic_commerce/delegate_payment");
         server.setHandler(context);
 
         this.httpConnector = configureHttpConnector(configuration.httpPort());
@@ -42,6 +84,15 @@ public final class JettyHttpServer implements AutoCloseable {
         }
     }
 
+    private static RequestAuthenticator withClientCertificates(TlsConfiguration tls, RequestAuthenticator authenticator) {
+        if (tls == null || tls.clientAuthentication() == null) {
+            return authenticator;
+        }
+        var clientAuthentication = tls.clientAuthentication();
+        return new ClientCertificateAuthenticator(
+                clientAuthentication.clients(), clientAuthentication.pinnedCertificates(), authenticator);
+    }
+
     public void start() throws Exception {
         server.start();
     }
@@ -60,6 +111,15 @@ public final class JettyHttpServer implements AutoCloseable {
         throw new IllegalStateException("Server has no active connectors");
     }
 
+    /// Size and eviction counters of the recorded idempotent responses, by servlet path and, for
+    /// checkout sessions, by operation.
+    public Map<String, IdempotencyTable.Stats> idempotencyStats() {
+        var stats = new TreeMap<String, IdempotencyTable.Stats>();
+        checkoutServlet.idempotencyStats().forEach((operation, table) -> stats.put("/checkout_sessions:" + operation, table));
+        stats.put("/agentic_commerce/delegate_payment", delegatePaymentServlet.idempotencyStats());
+        return stats;
+    }
+
     public boolean hasHttps() {
         return httpsConnector != null;
     }
@@ -120,6 +180,17 @@ public final class JettyHttpServer implements AutoCloseable {
         if (keyPassword != null) {
             sslContextFactory.setKeyManagerPassword(keyPassword);
         }
+        var clientAuthentication = tlsConfiguration.clientAuthentication();
+        if (clientAuthentication != null) {
+            sslContextFactory.setTrustStorePath(clientAuthentication.trustStorePath().toString());
+            sslContextFactory.setTrustStoreType(clientAuthentication.trustStoreType());
+            sslContextFactory.setTrustStorePassword(clientAuthentication.trustStorePasswordValue());
+            if (clientAuthentication.required()) {
+                sslContextFactory.setNeedClientAuth(true);
+            } else {
+                sslContextFactory.setWantClientAuth(true);
+            }
+        }
 
         var connector = new ServerConnector(
                 server,
@@ -0,0 +1,232 @@
+package com.amannmalik.acp.server;
+
+import com.amannmalik.acp.api.shared.ErrorResponse;
+import com.amannmalik.acp.server.security.BearerTokenParser;
+import com.amannmalik.acp.util.Ensure;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/// Per-client token buckets, one per [EndpointClass], checked before a request is read or
+/// authenticated so that a client over its limit costs neither body parsing nor signature work.
+/// Clients are identified by the client id their connection proves, such as a mapped TLS
+/// certificate, or else by their bearer token as [BearerTokenParser] reads it for authentication,
+/// either optionally combined with their address; requests with neither, including malformed
+/// `Authorization` headers, are keyed by address alone.
+///
+/// Each bucket is a single "theoretical arrival time", the GCRA form of a token bucket: a request
+/// is admitted by advancing that time with one compare-and-set, so admission takes no lock. Buckets
+/// live in a fixed table of [Configuration#maxClients()] slots in sets of [#WAYS], addressed by a
+/// 64-bit hash of the client key; raw tokens are never stored. When a set is full, a new client
+/// takes the slot of a bucket that has refilled completely, which loses nothing, and otherwise that
+/// of the least recently charged bucket, which then starts over with a full burst. A storm of
+/// unknown tokens can therefore neither grow the heap nor lock out known clients.
+public final class RateLimiter {
+    static final int WAYS = 4;
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final Configuration configuration;
+    private final Clock clock;
+    private final long[] intervals = new long[EndpointClass.values().length];
+    private final long[] tolerances = new long[EndpointClass.values().length];
+    private final AtomicReferenceArray<Bucket> slots;
+    private final int mask;
+
+    public RateLimiter(Configuration configuration, Clock clock) {
+        this.configuration = Ensure.notNull("rate_limit.configuration", configuration);
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+        configuration.limits().forEach((endpoint, limit) -> {
+            var interval = (long) Math.ceil(1_000_000_000d / limit.permitsPerSecond());
+            intervals[endpoint.ordinal()] = interval;
+            tolerances[endpoint.ordinal()] = Math.multiplyExact(interval, limit.burst() - 1L);
+        });
+        var capacity = Math.max(WAYS, Integer.highestOneBit(Math.max(1, configuration.maxClients() - 1)) << 1);
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    private static long hash(EndpointClass endpoint, String clientId, String token, String address) {
+        var hash = (FNV_OFFSET ^ endpoint.ordinal()) * FNV_PRIME;
+        hash = update(hash, clientId);
+        hash = update(hash, token);
+        hash = update(hash, address);
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long update(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xFF) * FNV_PRIME;
+        }
+        for (var i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ 0xFE) * FNV_PRIME;
+    }
+
+    private static long epochNanos(Clock clock) {
+        var now = clock.instant();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /// As below, for a request whose connection proves no client id.
+    public void acquire(EndpointClass endpoint, HttpServletRequest request) {
+        acquire(endpoint, request, null);
+    }
+
+    /// Charges one request against the caller's bucket for `endpoint`. A non-`null` `clientId`, as
+    /// returned by [com.amannmalik.acp.server.security.RequestAuthenticator#clientId], takes the
+    /// place of the bearer token.
+    ///
+    /// @throws HttpProblem 429 `rate_limit_exceeded`, carrying the time until a token is available
+    public void acquire(EndpointClass endpoint, HttpServletRequest request, String clientId) {
+        var interval = intervals[endpoint.ordinal()];
+        if (interval == 0) {
+            return;
+        }
+        var token = clientId == null ? BearerTokenParser.parse(request.getHeader("Authorization")) : null;
+        var address = clientId == null && token == null || configuration.perClientAddress() ? request.getRemoteAddr() : null;
+        var wait = charge(hash(endpoint, clientId, token, address), interval, tolerances[endpoint.ordinal()]);
+        if (wait > 0) {
+            throw new HttpProblem(
+                    429,
+                    ErrorResponse.ErrorType.RATE_LIMIT_EXCEEDED,
+                    "rate_limit_exceeded",
+                    "Too many %s requests; retry later".formatted(endpoint.name().toLowerCase(Locale.ROOT)),
+                    null,
+                    Duration.ofNanos(wait));
+        }
+    }
+
+    /// Nanoseconds until the request would conform, or `0` once it has been admitted.
+    private long charge(long key, long interval, long tolerance) {
+        var now = epochNanos(clock);
+        var bucket = bucket(key, now);
+        while (true) {
+            var arrival = bucket.arrival();
+            var base = Math.max(arrival, now);
+            if (base - now > tolerance) {
+                return base - now - tolerance;
+            }
+            if (bucket.advance(arrival, base + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    private Bucket bucket(long key, long now) {
+        var first = (int) key & mask & -WAYS;
+        while (true) {
+            var victim = -1;
+            var victimArrival = Long.MAX_VALUE;
+            for (var i = first; i < first + WAYS; i++) {
+                var bucket = slots.get(i);
+                if (bucket == null) {
+                    victim = i;
+                    victimArrival = Long.MIN_VALUE;
+                    continue;
+                }
+                if (bucket.key == key) {
+                    return bucket;
+                }
+                var arrival = Math.max(bucket.arrival(), now);
+                if (arrival < victimArrival) {
+                    victim = i;
+                    victimArrival = arrival;
+                }
+            }
+            var current = slots.get(victim);
+            var fresh = new Bucket(key);
+            if (slots.compareAndSet(victim, current, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /// Endpoint families limited independently of each other.
+    public enum EndpointClass {
+        CREATE,
+        UPDATE,
+        COMPLETE,
+        RETRIEVE,
+        DELEGATE_PAYMENT
+    }
+
+    /// Sustained rate and burst size of one bucket.
+    public record Limit(double permitsPerSecond, int burst) {
+        public Limit {
+            if (!(permitsPerSecond >= 1e-3 && permitsPerSecond <= 1e9)) {
+                throw new IllegalArgumentException("rate_limit.permits_per_second MUST be between 0.001 and 1e9");
+            }
+            Ensure.positiveInt("rate_limit.burst", burst);
+        }
+    }
+
+    /// Endpoint classes missing from `limits` are not limited. `maxClients` bounds the bucket table
+    /// across all classes; with `perClientAddress` a token used from several addresses gets a bucket
+    /// per address.
+    public record Configuration(Map<EndpointClass, Limit> limits, int maxClients, boolean perClientAddress) {
+        public Configuration {
+            var copy = new EnumMap<EndpointClass, Limit>(EndpointClass.class);
+            copy.putAll(Ensure.notNull("rate_limit.limits", limits));
+            copy.values().forEach(limit -> Ensure.notNull("rate_limit.limit", limit));
+            limits = Map.copyOf(copy);
+            Ensure.positiveInt("rate_limit.max_clients", maxClients);
+        }
+
+        public static Configuration defaults() {
+            return new Configuration(
+                    Map.of(
+                            EndpointClass.CREATE, new Limit(10, 20),
+                            EndpointClass.UPDATE, new Limit(20, 40),
+                            EndpointClass.COMPLETE, new Limit(5, 10),
+                            EndpointClass.RETRIEVE, new Limit(50, 100),
+                            EndpointClass.DELEGATE_PAYMENT, new Limit(5, 10)),
+                    65_536,
+                    false);
+        }
+
+        public static Configuration disabled() {
+            return new Configuration(Map.of(), WAYS, false);
+        }
+    }
+
+    private static final class Bucket {
+        private static final VarHandle ARRIVAL;
+
+        static {
+            try {
+                ARRIVAL = MethodHandles.lookup().findVarHandle(Bucket.class, "arrival", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final long key;
+        /// Epoch nanoseconds at which the bucket is next full; earlier values mean it already is.
+        private volatile long arrival = Long.MIN_VALUE;
+
+        private Bucket(long key) {
+            this.key = key;
+        }
+
+        private long arrival() {
+            return arrival;
+        }
+
+        private boolean advance(long expected, long next) {
+            return ARRIVAL.compareAndSet(this, expected, next);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.amannmalik.acp.server;
+
+import com.amannmalik.acp.codec.JsonDocument;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/// How the servlets schedule signature verification against decoding of a request body.
+///
+/// Either way the request thread authenticates first and only then asks for the decoded request, so
+/// an authentication failure is reported even when the body would not have decoded either.
+public enum RequestPipelining {
+    /// Decode on the request thread once authentication has passed.
+    SEQUENTIAL,
+    /// Decode on a virtual thread while the request thread verifies the signature; both share the
+    /// body's single parse.
+    PARALLEL;
+
+    /// Starts decoding `body`, in the background when parallel. The returned scope MUST be closed
+    /// before the request completes; closing waits for the decoder, so it never outlives the request.
+    <T> Decoding<T> fork(JsonDocument body, Function<JsonDocument, T> decoder) {
+        var task = new FutureTask<>(() -> decoder.apply(body));
+        var thread = this == PARALLEL ? Thread.ofVirtual().name("acp-decode").start(task) : null;
+        return new Decoding<>(task, thread);
+    }
+
+    static final class Decoding<T> implements AutoCloseable {
+        private final FutureTask<T> task;
+        private final Thread thread;
+
+        private Decoding(FutureTask<T> task, Thread thread) {
+            this.task = task;
+            this.thread = thread;
+        }
+
+        /// The decoded request, rethrowing whatever the decoder threw.
+        T join() {
+            if (thread == null) {
+                task.run();
+            }
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                switch (e.getCause()) {
+                    case RuntimeException runtime -> throw runtime;
+                    case Error error -> throw error;
+                    default -> throw new IllegalStateException("Failed to decode request", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while decoding request", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (thread == null) {
+                return;
+            }
+            var interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,10 +2,17 @@ package com.amannmalik.acp.server;
 
 import com.amannmalik.acp.util.Ensure;
 
+import javax.security.auth.x500.X500Principal;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.*;
 
-public record TlsConfiguration(Path keyStorePath, char[] keyStorePassword, char[] keyPassword, String keyStoreType, int port) {
+public record TlsConfiguration(
+        Path keyStorePath,
+        char[] keyStorePassword,
+        char[] keyPassword,
+        String keyStoreType,
+        int port,
+        ClientAuthentication clientAuthentication) {
     private static final String DEFAULT_KEYSTORE_TYPE = "PKCS12";
 
     public TlsConfiguration {
@@ -18,6 +25,10 @@ public record TlsConfiguration(Path keyStorePath, char[] keyStorePassword, char[
         }
     }
 
+    public TlsConfiguration(Path keyStorePath, char[] keyStorePassword, char[] keyPassword, String keyStoreType, int port) {
+        this(keyStorePath, keyStorePassword, keyPassword, keyStoreType, port, null);
+    }
+
     private static char[] copySecret(String field, char[] secret) {
         var value = Ensure.notNull(field, secret);
         if (value.length == 0) {
@@ -33,4 +44,73 @@ public record TlsConfiguration(Path keyStorePath, char[] keyStorePassword, char[
     public String keyPasswordValue() {
         return keyPassword == null ? null : new String(keyPassword);
     }
+
+    /// Mutual TLS: client certificates are validated against the truststore, and a certificate
+    /// whose subject appears in `clients` authenticates the whole connection as that client id.
+    /// When `pinnedCertificates` is non-empty, the client's leaf certificate MUST also match one of
+    /// those SHA-256 fingerprints (hex, colons optional). With `required` unset, clients without a
+    /// trusted certificate may still connect and authenticate each request with bearer token and
+    /// signature.
+    public record ClientAuthentication(
+            Path trustStorePath,
+            char[] trustStorePassword,
+            String trustStoreType,
+            Map<String, String> clients,
+            Set<String> pinnedCertificates,
+            boolean required) {
+        public ClientAuthentication {
+            trustStorePath = Ensure.notNull("tls.truststore_path", trustStorePath).toAbsolutePath().normalize();
+            trustStorePassword = copySecret("tls.truststore_password", trustStorePassword);
+            trustStoreType = trustStoreType == null || trustStoreType.isBlank() ? DEFAULT_KEYSTORE_TYPE : trustStoreType;
+            clients = normalizeClients(clients);
+            pinnedCertificates = normalizePins(pinnedCertificates);
+        }
+
+        /// Subject distinguished names are compared in their canonical form, so spacing and
+        /// attribute-name case in the configuration do not matter.
+        public static String canonicalSubject(String subject) {
+            try {
+                return new X500Principal(subject).getName(X500Principal.CANONICAL);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("tls.client.subject is not a valid distinguished name: " + subject, e);
+            }
+        }
+
+        /// Lowercase hex without separators.
+        public static String normalizeFingerprint(String fingerprint) {
+            var hex = Ensure.nonBlank("tls.client.pin", fingerprint).replace(":", "").trim().toLowerCase(Locale.ROOT);
+            if (hex.length() != 64 || !hex.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+                throw new IllegalArgumentException("tls.client.pin MUST be a SHA-256 fingerprint in hex");
+            }
+            return hex;
+        }
+
+        private static Map<String, String> normalizeClients(Map<String, String> clients) {
+            var source = Ensure.notNull("tls.clients", clients);
+            if (source.isEmpty()) {
+                throw new IllegalArgumentException("At least one TLS client mapping MUST be configured");
+            }
+            var result = new LinkedHashMap<String, String>(source.size());
+            source.forEach((subject, clientId) -> {
+                var canonical = canonicalSubject(Ensure.nonBlank("tls.client.subject", subject));
+                if (result.put(canonical, Ensure.nonBlank("tls.client.id", clientId).trim()) != null) {
+                    throw new IllegalArgumentException("Duplicate TLS client subject: " + subject);
+                }
+            });
+            return Map.copyOf(result);
+        }
+
+        private static Set<String> normalizePins(Set<String> pins) {
+            if (pins == null) {
+                return Set.of();
+            }
+            var result = new LinkedHashSet<String>(pins.size());
+            pins.forEach(pin -> result.add(normalizeFingerprint(pin)));
+            return Set.copyOf(result);
+        }
+
+        public String trustStorePasswordValue() {
+            return new String(trustStorePassword);
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package com.amannmalik.acp.server.security;
+
+/// Reads the token out of an `Authorization: Bearer` header. Authentication and rate limiting both
+/// go through here, so a client is the same client to each of them however it spells the header.
+public final class BearerTokenParser {
+    private static final String SCHEME = "Bearer";
+
+    private BearerTokenParser() {
+    }
+
+    /// The token in `authorization`, or `null` if the header is absent, uses another scheme or carries
+    /// a blank token. The scheme is matched case-insensitively and may be followed by any run of
+    /// whitespace; surrounding whitespace is dropped. The token itself is case-sensitive.
+    public static String parse(String authorization) {
+        if (authorization == null) {
+            return null;
+        }
+        var value = authorization.strip();
+        if (value.length() <= SCHEME.length()
+                || !value.regionMatches(true, 0, SCHEME, 0, SCHEME.length())
+                || !Character.isWhitespace(value.charAt(SCHEME.length()))) {
+            return null;
+        }
+        var token = value.substring(SCHEME.length()).strip();
+        return token.isEmpty() ? null : token;
+    }
+}
@@ -0,0 +1,108 @@
+package com.amannmalik.acp.server.security;
+
+import com.amannmalik.acp.codec.JsonDocument;
+import jakarta.servlet.http.HttpServletRequest;
+import org.eclipse.jetty.io.EndPoint;
+
+import javax.net.ssl.SSLSession;
+import javax.security.auth.x500.X500Principal;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+
+/// Authenticates requests arriving on a mutual-TLS connection by the client certificate the TLS
+/// layer has already validated against the truststore. The certificate is mapped to a client id,
+/// and optionally checked against pinned fingerprints, once per TLS session; the outcome is
+/// cached on the [SSLSession], so later requests on the same connection skip bearer-token
+/// parsing and signature verification entirely. Requests without a mapped certificate, including
+/// everything on a plain HTTP connector, fall through to `fallback`.
+///
+/// The authenticated client id is exposed to later stages as the [#CLIENT_ID_ATTRIBUTE] request
+/// attribute, and through [#clientId(HttpServletRequest)] to stages that run before
+/// authentication, such as rate limiting.
+public final class ClientCertificateAuthenticator implements RequestAuthenticator {
+    public static final String CLIENT_ID_ATTRIBUTE = "com.amannmalik.acp.client_id";
+
+    private static final String SESSION_IDENTITY = ClientCertificateAuthenticator.class.getName() + ".identity";
+    private static final String UNTRUSTED = "";
+
+    private final Map<String, String> clientsBySubject;
+    private final Set<String> pinnedFingerprints;
+    private final RequestAuthenticator fallback;
+
+    /// `clientsBySubject` is keyed by canonical subject name and `pinnedFingerprints` holds
+    /// lowercase hex SHA-256 digests, as normalized by
+    /// [com.amannmalik.acp.server.TlsConfiguration.ClientAuthentication].
+    public ClientCertificateAuthenticator(
+            Map<String, String> clientsBySubject,
+            Set<String> pinnedFingerprints,
+            RequestAuthenticator fallback) {
+        this.clientsBySubject = Map.copyOf(clientsBySubject);
+        this.pinnedFingerprints = Set.copyOf(pinnedFingerprints);
+        this.fallback = fallback;
+    }
+
+    private static String fingerprint(X509Certificate certificate) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+            return HexFormat.of().formatHex(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to fingerprint client certificate", e);
+        }
+    }
+
+    @Override
+    public void authenticate(HttpServletRequest request, JsonDocument body) {
+        var clientId = clientId(request);
+        if (clientId == null) {
+            fallback.authenticate(request, body);
+            return;
+        }
+        request.setAttribute(CLIENT_ID_ATTRIBUTE, clientId);
+    }
+
+    @Override
+    public boolean authenticateRetry(HttpServletRequest request, JsonDocument body) {
+        var clientId = clientId(request);
+        if (clientId == null) {
+            return fallback.authenticateRetry(request, body);
+        }
+        request.setAttribute(CLIENT_ID_ATTRIBUTE, clientId);
+        return false;
+    }
+
+    @Override
+    public String clientId(HttpServletRequest request) {
+        if (!(request.getAttribute(EndPoint.SslSessionData.ATTRIBUTE) instanceof EndPoint.SslSessionData tls)) {
+            return null;
+        }
+        var session = tls.sslSession();
+        if (session == null) {
+            return null;
+        }
+        if (session.getValue(SESSION_IDENTITY) instanceof String cached) {
+            return cached.isEmpty() ? null : cached;
+        }
+        var resolved = resolve(tls.peerCertificates());
+        session.putValue(SESSION_IDENTITY, resolved == null ? UNTRUSTED : resolved);
+        return resolved;
+    }
+
+    private String resolve(X509Certificate[] chain) {
+        if (chain == null || chain.length == 0) {
+            return null;
+        }
+        var leaf = chain[0];
+        var clientId = clientsBySubject.get(leaf.getSubjectX500Principal().getName(X500Principal.CANONICAL));
+        if (clientId == null) {
+            return null;
+        }
+        if (!pinnedFingerprints.isEmpty() && !pinnedFingerprints.contains(fingerprint(leaf))) {
+            return null;
+        }
+        return clientId;
+    }
+}
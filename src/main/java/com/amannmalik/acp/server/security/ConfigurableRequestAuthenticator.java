@@ -1,26 +1,46 @@
 package com.amannmalik.acp.server.security;
 
 import com.amannmalik.acp.api.shared.ErrorResponse;
+import com.amannmalik.acp.codec.JsonDecodingException;
+import com.amannmalik.acp.codec.JsonDocument;
 import com.amannmalik.acp.server.HttpProblem;
+import com.amannmalik.acp.util.RotatingBloomFilter;
 import jakarta.servlet.http.HttpServletRequest;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
-import java.security.*;
 import java.time.*;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Locale;
 
 public final class ConfigurableRequestAuthenticator implements RequestAuthenticator {
     private static final Base64.Decoder SIGNATURE_DECODER = Base64.getUrlDecoder();
 
     private final SecurityConfiguration configuration;
     private final Clock clock;
+    private final CryptoEngine cryptoEngine;
+    /// Verified signatures of unsafe requests seen recently, with the request line, token and
+    /// `Request-Id` they were presented under; `null` when replay detection is off.
+    private final RotatingBloomFilter replays;
 
     public ConfigurableRequestAuthenticator(SecurityConfiguration configuration, Clock clock) {
         this.configuration = configuration;
         this.clock = clock == null ? Clock.systemUTC() : clock;
+        this.cryptoEngine = new CryptoEngine(configuration.signingKeys());
+        this.replays = replayFilter(configuration, this.clock);
+    }
+
+    /// A signed request is accepted while its timestamp is within the skew of the clock, so the
+    /// same signature can arrive for up to twice the skew.
+    private static RotatingBloomFilter replayFilter(SecurityConfiguration configuration, Clock clock) {
+        var replayProtection = configuration.replayProtection();
+        if (!configuration.signatureRequired() || !replayProtection.enabled()) {
+            return null;
+        }
+        return new RotatingBloomFilter(
+                configuration.maxTimestampSkew().multipliedBy(2),
+                replayProtection.maxBytes(),
+                replayProtection.falsePositiveRate(),
+                clock);
     }
 
     private static String headerValue(HttpServletRequest request, String header) {
@@ -44,18 +64,56 @@ public final class ConfigurableRequestAuthenticator implements RequestAuthentica
         }
     }
 
-    private static byte[] hmacSha256(byte[] secret, byte[] payload) {
+    /// The signature covers only the timestamp and body, so two body-less requests sent in the same
+    /// second carry the same signature. They are the same request only if method, target, client and
+    /// `Request-Id`, when sent, match too; the same signature under another client's token is that
+    /// client's request.
+    private static byte[] replayKey(HttpServletRequest request, String bearer, byte[] signature) {
+        var query = request.getQueryString();
+        var requestId = headerValue(request, "Request-Id");
+        var scope = (request.getMethod() + ' ' + request.getRequestURI() + (query == null ? "" : "?" + query)
+                + '\0' + bearer + '\0' + (requestId == null ? "" : requestId) + '\0').getBytes(StandardCharsets.UTF_8);
+        var key = Arrays.copyOf(scope, scope.length + signature.length);
+        System.arraycopy(signature, 0, key, scope.length, signature.length);
+        return key;
+    }
+
+    /// `GET` and `HEAD` change nothing, so repeating one is a poll rather than a replay.
+    private static boolean safe(HttpServletRequest request) {
+        var method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    private static void writeCanonical(JsonDocument body, JsonDocument.Sink sink) {
         try {
-            var mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
-            return mac.doFinal(payload);
-        } catch (GeneralSecurityException e) {
-            throw new IllegalStateException("Failed to verify signature", e);
+            body.writeCanonical(sink);
+        } catch (JsonDecodingException e) {
+            throw new IllegalArgumentException("Request body is not valid JSON", e);
         }
     }
 
+    /// Signed payload is `timestamp + "." + canonical body`; the canonical body is streamed into
+    /// the verifier rather than assembled first.
+    private static CryptoEngine.SignedContent signedContent(String timestamp, JsonDocument body) {
+        var prefix = (timestamp + ".").getBytes(StandardCharsets.UTF_8);
+        return sink -> {
+            sink.write(prefix, 0, prefix.length);
+            writeCanonical(body, sink);
+        };
+    }
+
     @Override
-    public void authenticate(HttpServletRequest request, byte[] body) {
+    public void authenticate(HttpServletRequest request, JsonDocument body) {
+        verify(request, body, false);
+    }
+
+    @Override
+    public boolean authenticateRetry(HttpServletRequest request, JsonDocument body) {
+        return verify(request, body, true);
+    }
+
+    /// Whether the request repeats a signature already seen, which only a `retry` may do.
+    private boolean verify(HttpServletRequest request, JsonDocument body, boolean retry) {
         var bearer = extractBearerToken(request);
         if (!configuration.bearerTokens().contains(bearer)) {
             throw new HttpProblem(
@@ -65,7 +123,7 @@ public final class ConfigurableRequestAuthenticator implements RequestAuthentica
                     "Authorization token is invalid");
         }
         if (!configuration.signatureRequired()) {
-            return;
+            return false;
         }
         var timestampHeader = headerValue(request, "Timestamp");
         if (timestampHeader == null) {
@@ -86,27 +144,22 @@ public final class ConfigurableRequestAuthenticator implements RequestAuthentica
                     "Signature header is required when signatures are enabled");
         }
         var signingContext = resolveSigningContext(signatureHeader);
-        var signingKey = signingContext.signingKey();
         var encodedSignature = signingContext.encodedSignature();
-        var canonicalJson = CanonicalJson.canonicalize(body);
-        var payload = (timestampHeader + "." + canonicalJson).getBytes(StandardCharsets.UTF_8);
         var providedSignature = decodeSignature(encodedSignature);
-        if (!verifySignature(signingKey, payload, providedSignature)) {
+        if (!cryptoEngine.verify(signingContext.keyId(), signedContent(timestampHeader, body), providedSignature)) {
             throw new HttpProblem(
                     401,
                     ErrorResponse.ErrorType.INVALID_REQUEST,
                     "invalid_signature",
                     "Signature verification failed");
         }
-    }
-
-    private boolean verifySignature(SecurityConfiguration.SigningKey signingKey, byte[] payload, byte[] providedSignature) {
-        return switch (signingKey.algorithm()) {
-            case HMAC_SHA256 -> MessageDigest.isEqual(
-                    hmacSha256(((SecurityConfiguration.SigningKey.HmacSha256) signingKey).secret(), payload),
-                    providedSignature);
-            case ED25519 -> verifyEd25519((SecurityConfiguration.SigningKey.Ed25519) signingKey, payload, providedSignature);
-        };
+        if (replays == null || safe(request) || replays.add(replayKey(request, bearer, providedSignature))) {
+            return false;
+        }
+        if (!retry) {
+            throw HttpProblem.replayedRequest();
+        }
+        return true;
     }
 
     private SigningContext resolveSigningContext(String signatureHeader) {
@@ -128,8 +181,7 @@ public final class ConfigurableRequestAuthenticator implements RequestAuthentica
                         "missing_signature_key",
                         "Signature header MUST include keyId:signature when multiple signing keys are configured");
             }
-            var entry = signingKeys.entrySet().iterator().next();
-            return new SigningContext(entry.getValue(), trimmed);
+            return new SigningContext(signingKeys.keySet().iterator().next(), trimmed);
         }
         var keyId = trimmed.substring(0, colonIndex).trim();
         var encodedSignature = trimmed.substring(colonIndex + 1).trim();
@@ -140,40 +192,32 @@ public final class ConfigurableRequestAuthenticator implements RequestAuthentica
                     "invalid_signature",
                     "Signature header MUST be in keyId:signature form");
         }
-        var signingKey = signingKeys.get(keyId);
-        if (signingKey == null) {
+        if (!signingKeys.containsKey(keyId)) {
             throw new HttpProblem(
                     400,
                     ErrorResponse.ErrorType.INVALID_REQUEST,
                     "unknown_signature_key",
                     "Signature key id is not recognized");
         }
-        return new SigningContext(signingKey, encodedSignature);
+        return new SigningContext(keyId, encodedSignature);
     }
 
     private String extractBearerToken(HttpServletRequest request) {
         var authorization = headerValue(request, "Authorization");
-        if (authorization == null || authorization.isBlank()) {
+        if (authorization == null) {
             throw new HttpProblem(
                     401,
                     ErrorResponse.ErrorType.INVALID_REQUEST,
                     "unauthorized",
                     "Authorization header is required");
         }
-        if (!authorization.toLowerCase(Locale.ROOT).startsWith("bearer ")) {
+        var token = BearerTokenParser.parse(authorization);
+        if (token == null) {
             throw new HttpProblem(
                     401,
                     ErrorResponse.ErrorType.INVALID_REQUEST,
                     "unauthorized",
-                    "Authorization header MUST use Bearer scheme");
-        }
-        var token = authorization.substring(7).trim();
-        if (token.isEmpty()) {
-            throw new HttpProblem(
-                    401,
-                    ErrorResponse.ErrorType.INVALID_REQUEST,
-                    "unauthorized",
-                    "Bearer token MUST be non-blank");
+                    "Authorization header MUST carry a non-blank Bearer token");
         }
         return token;
     }
@@ -202,17 +246,6 @@ public final class ConfigurableRequestAuthenticator implements RequestAuthentica
         }
     }
 
-    private boolean verifyEd25519(SecurityConfiguration.SigningKey.Ed25519 signingKey, byte[] payload, byte[] providedSignature) {
-        try {
-            var verifier = Signature.getInstance("Ed25519");
-            verifier.initVerify(signingKey.publicKey());
-            verifier.update(payload);
-            return verifier.verify(providedSignature);
-        } catch (GeneralSecurityException e) {
-            throw new IllegalStateException("Failed to verify signature", e);
-        }
-    }
-
-    private record SigningContext(SecurityConfiguration.SigningKey signingKey, String encodedSignature) {
+    private record SigningContext(String keyId, String encodedSignature) {
     }
 }
@@ -0,0 +1,43 @@
+package com.amannmalik.acp.server.security;
+
+import com.amannmalik.acp.codec.JsonDocument;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/// Verifiers for the configured signing keys, prepared once per key id. Provider lookups, key
+/// scheduling and secret copies all happen here, when the engine is built, so verifying a request
+/// only feeds bytes to an instance that is ready to use.
+public final class CryptoEngine {
+    private final Map<String, Verifier> verifiers;
+
+    public CryptoEngine(Map<String, SecurityConfiguration.SigningKey> signingKeys) {
+        var prepared = new HashMap<String, Verifier>(signingKeys.size());
+        signingKeys.forEach((keyId, signingKey) -> prepared.put(keyId, switch (signingKey) {
+            case SecurityConfiguration.SigningKey.HmacSha256 hmac -> new PreparedHmac(hmac.secret());
+            case SecurityConfiguration.SigningKey.Ed25519 ed25519 -> new Ed25519Verifiers(ed25519.publicKey());
+        }));
+        this.verifiers = Map.copyOf(prepared);
+    }
+
+    /// Whether `signature` is valid for `content` under the key `keyId`.
+    ///
+    /// @throws IllegalArgumentException if no key has that id
+    public boolean verify(String keyId, SignedContent content, byte[] signature) {
+        var verifier = verifiers.get(keyId);
+        if (verifier == null) {
+            throw new IllegalArgumentException("Unknown signing key id: " + keyId);
+        }
+        return verifier.verify(content, signature);
+    }
+
+    /// Writes the signed bytes, in order, into a MAC or signature verifier.
+    @FunctionalInterface
+    public interface SignedContent {
+        void writeTo(JsonDocument.Sink sink);
+    }
+
+    public sealed interface Verifier permits PreparedHmac, Ed25519Verifiers {
+        boolean verify(SignedContent content, byte[] signature);
+    }
+}
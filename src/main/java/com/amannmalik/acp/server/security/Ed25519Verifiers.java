@@ -0,0 +1,57 @@
+package com.amannmalik.acp.server.security;
+
+import java.security.*;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/// Ed25519 verifiers for one public key, initialized once and pooled. A successful `verify` leaves
+/// a verifier ready for the next message, so pooled instances skip both the provider lookup and
+/// `initVerify`; one that failed part-way is dropped instead of returned, and a signature the
+/// provider cannot even decode counts as invalid. Safe for concurrent use.
+public final class Ed25519Verifiers implements CryptoEngine.Verifier {
+    private static final int POOL_SIZE = 32;
+
+    private final PublicKey publicKey;
+    private final ArrayBlockingQueue<Signature> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    public Ed25519Verifiers(PublicKey publicKey) {
+        this.publicKey = publicKey;
+        pool.offer(create());
+    }
+
+    @Override
+    public boolean verify(CryptoEngine.SignedContent content, byte[] signature) {
+        var verifier = acquire();
+        content.writeTo((bytes, offset, length) -> update(verifier, bytes, offset, length));
+        try {
+            var valid = verifier.verify(signature);
+            pool.offer(verifier);
+            return valid;
+        } catch (SignatureException e) {
+            // Malformed encodings, such as an out-of-range scalar, are rejected rather than thrown.
+            return false;
+        }
+    }
+
+    private static void update(Signature verifier, byte[] bytes, int offset, int length) {
+        try {
+            verifier.update(bytes, offset, length);
+        } catch (SignatureException e) {
+            throw new IllegalStateException("Failed to verify signature", e);
+        }
+    }
+
+    private Signature acquire() {
+        var verifier = pool.poll();
+        return verifier == null ? create() : verifier;
+    }
+
+    private Signature create() {
+        try {
+            var verifier = Signature.getInstance("Ed25519");
+            verifier.initVerify(publicKey);
+            return verifier;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to prepare Ed25519 verifier", e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.amannmalik.acp.server.security;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/// An HMAC-SHA256 key scheduled once. The provider lookup and the derivation of the inner and
+/// outer pads happen when the key is prepared; each use then takes an initialized [Mac] from a
+/// small pool, or clones the untouched prototype when the pool is empty, and hands it back reset.
+/// Safe for concurrent use.
+public final class PreparedHmac implements CryptoEngine.Verifier {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int POOL_SIZE = 32;
+
+    private final Mac prototype;
+    private final ArrayBlockingQueue<Mac> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    public PreparedHmac(byte[] secret) {
+        try {
+            prototype = Mac.getInstance(ALGORITHM);
+            prototype.init(new SecretKeySpec(secret, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to prepare HMAC key", e);
+        }
+    }
+
+    public byte[] sign(byte[] payload) {
+        return sign(sink -> sink.write(payload, 0, payload.length));
+    }
+
+    public byte[] sign(CryptoEngine.SignedContent content) {
+        var mac = acquire();
+        try {
+            content.writeTo(mac::update);
+            return mac.doFinal();
+        } finally {
+            mac.reset();
+            pool.offer(mac);
+        }
+    }
+
+    @Override
+    public boolean verify(CryptoEngine.SignedContent content, byte[] signature) {
+        return MessageDigest.isEqual(sign(content), signature);
+    }
+
+    private Mac acquire() {
+        var mac = pool.poll();
+        if (mac != null) {
+            return mac;
+        }
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("HMAC provider does not support cloning", e);
+        }
+    }
+}
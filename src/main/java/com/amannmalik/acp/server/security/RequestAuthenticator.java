@@ -1,7 +1,29 @@
 package com.amannmalik.acp.server.security;
 
+import com.amannmalik.acp.codec.JsonDocument;
 import jakarta.servlet.http.HttpServletRequest;
 
 public interface RequestAuthenticator {
-    void authenticate(HttpServletRequest request, byte[] body);
+    /// `body` is the request's single parse, which the servlet hands on to the codec afterwards.
+    void authenticate(HttpServletRequest request, JsonDocument body);
+
+    default void authenticate(HttpServletRequest request, byte[] body) {
+        authenticate(request, JsonDocument.of(body));
+    }
+
+    /// As [#authenticate(HttpServletRequest, JsonDocument)], for a route that answers a repeated
+    /// request from what it recorded for the first, such as an idempotent create. A request whose
+    /// signature was already seen is accepted instead of rejected, and `true` is returned; the
+    /// caller MUST then answer it only from that record.
+    default boolean authenticateRetry(HttpServletRequest request, JsonDocument body) {
+        authenticate(request, body);
+        return false;
+    }
+
+    /// The client the request's connection already proves, such as by a mapped TLS certificate, or
+    /// `null` if only the request's own headers and body can authenticate it. Cheap enough to call
+    /// before the body is read.
+    default String clientId(HttpServletRequest request) {
+        return null;
+    }
 }
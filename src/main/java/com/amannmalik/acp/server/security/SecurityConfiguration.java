@@ -6,11 +6,22 @@ import java.security.PublicKey;
 import java.time.Duration;
 import java.util.*;
 
-public record SecurityConfiguration(Set<String> bearerTokens, Map<String, SigningKey> signingKeys, Duration maxTimestampSkew) {
+public record SecurityConfiguration(
+        Set<String> bearerTokens,
+        Map<String, SigningKey> signingKeys,
+        Duration maxTimestampSkew,
+        ReplayProtection replayProtection) {
     public SecurityConfiguration {
         bearerTokens = normalizeTokens(bearerTokens);
         signingKeys = normalizeSigningKeys(signingKeys);
         maxTimestampSkew = normalizeSkew(maxTimestampSkew);
+        replayProtection = replayProtection == null ? ReplayProtection.defaults() : replayProtection;
+    }
+
+    /// Without replay detection, as before it existed; pass [ReplayProtection#defaults()] to the
+    /// canonical constructor to turn it on.
+    public SecurityConfiguration(Set<String> bearerTokens, Map<String, SigningKey> signingKeys, Duration maxTimestampSkew) {
+        this(bearerTokens, signingKeys, maxTimestampSkew, ReplayProtection.disabled());
     }
 
     private static Set<String> normalizeTokens(Set<String> tokens) {
@@ -58,6 +69,32 @@ public record SecurityConfiguration(Set<String> bearerTokens, Map<String, Signin
         return !signingKeys.isEmpty();
     }
 
+    /// Memory budget and target false-positive rate of the filter that remembers verified
+    /// signatures of requests other than `GET` and `HEAD` for twice [#maxTimestampSkew()], the
+    /// longest a signed request stays acceptable.
+    /// A false positive rejects a fresh request as a replay. `maxBytes` of zero disables replay
+    /// detection.
+    public record ReplayProtection(long maxBytes, double falsePositiveRate) {
+        public ReplayProtection {
+            Ensure.nonNegative("security.replay.max_bytes", maxBytes);
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new IllegalArgumentException("security.replay.false_positive_rate MUST be between 0 and 1");
+            }
+        }
+
+        public static ReplayProtection defaults() {
+            return new ReplayProtection(32L << 20, 1e-6);
+        }
+
+        public static ReplayProtection disabled() {
+            return new ReplayProtection(0, defaults().falsePositiveRate());
+        }
+
+        public boolean enabled() {
+            return maxBytes > 0;
+        }
+    }
+
     public sealed interface SigningKey permits SigningKey.HmacSha256, SigningKey.Ed25519 {
         Algorithm algorithm();
 
@@ -0,0 +1,359 @@
+package com.amannmalik.acp.server.webhook;
+
+import com.amannmalik.acp.spi.webhook.DeadLetterSink;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.Ensure;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Decouples webhook delivery from the caller. Events are admitted into a bounded queue and split
+/// into per-checkout-session lanes; each lane delivers one event at a time through the delegate's
+/// [OrderWebhookPublisher#publishAsync], so `order_create` always lands before the `order_update`
+/// that follows it while unrelated sessions proceed in parallel. Non-2xx responses and transport
+/// errors are retried with capped exponential backoff. With `coalesceUpdates`, an `order_update`
+/// still queued behind the in-flight head is dropped in favour of a newer `order_update` for the
+/// same session queued right after it.
+///
+/// When a [DeadLetterSink] is configured, an event that exhausts its attempts is handed to it and the
+/// delivery completes normally once the sink accepts it; otherwise the delivery fails with the last
+/// error. Either way the session is marked as abandoned, and its later events take the same path
+/// without being sent, so a receiver never sees an `order_update` for an `order_create` it missed.
+/// The most recent `queueCapacity` abandoned sessions are remembered.
+///
+/// Admission never holds a lane lock while waiting for capacity, and a full queue under
+/// [OverflowPolicy#REJECT] refuses the event before anything is enqueued.
+public final class AsyncOrderWebhookDispatcher implements OrderWebhookPublisher, AutoCloseable {
+    private final OrderWebhookPublisher delegate;
+    private final Configuration configuration;
+    private final DeadLetterSink deadLetters;
+    private final Semaphore capacity;
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final Set<String> abandoned;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("acp-webhook-retry").daemon().factory());
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    private volatile boolean closed;
+
+    public AsyncOrderWebhookDispatcher(OrderWebhookPublisher delegate, Configuration configuration) {
+        this(delegate, configuration, null);
+    }
+
+    public AsyncOrderWebhookDispatcher(
+            OrderWebhookPublisher delegate, Configuration configuration, DeadLetterSink deadLetters) {
+        this.delegate = Ensure.notNull("webhook.delegate", delegate);
+        this.configuration = Ensure.notNull("webhook.dispatcher_configuration", configuration);
+        this.deadLetters = deadLetters;
+        this.capacity = new Semaphore(configuration.queueCapacity());
+        this.abandoned = boundedSet(configuration.queueCapacity());
+    }
+
+    private static Set<String> boundedSet(int capacity) {
+        return Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        }));
+    }
+
+    /// Enqueues the event and returns immediately; failures surface through [#metrics()].
+    @Override
+    public void publish(OrderWebhookEvent event) {
+        publishAsync(event);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+        Ensure.notNull("webhook.event", event);
+        if (closed) {
+            throw new IllegalStateException("Webhook dispatcher is closed");
+        }
+        var permitted = admit();
+        if (!permitted && configuration.overflowPolicy() == OverflowPolicy.REJECT) {
+            rejected.increment();
+            throw new RejectedExecutionException("Webhook queue is full (capacity " + configuration.queueCapacity() + ")");
+        }
+        var delivery = new Delivery(event, System.nanoTime(), permitted);
+        var key = event.checkoutSessionId();
+        var start = new boolean[1];
+        lanes.compute(key, (k, lane) -> {
+            var target = lane == null ? new Lane() : lane;
+            start[0] = target.queue.isEmpty();
+            target.queue.add(delivery);
+            return target;
+        });
+        if (start[0]) {
+            workers.execute(() -> attempt(key, delivery, 1));
+        }
+        if (!permitted) {
+            delivery.result.handle((ignored, error) -> null).join();
+        }
+        return delivery.result;
+    }
+
+    /// Named after the delegate when it is a single named receiver, so a caller can file what this
+    /// dispatcher refuses under that name.
+    @Override
+    public Map<String, OrderWebhookPublisher> endpoints() {
+        var named = delegate.endpoints();
+        return named.size() == 1 ? Map.of(named.keySet().iterator().next(), this) : Map.of();
+    }
+
+    public Metrics metrics() {
+        var completed = delivered.sum();
+        var average = completed == 0 ? Duration.ZERO : Duration.ofNanos(latencyNanos.sum() / completed);
+        return new Metrics(
+                configuration.queueCapacity() - capacity.availablePermits(),
+                completed,
+                failed.sum(),
+                retried.sum(),
+                rejected.sum(),
+                coalesced.sum(),
+                deadLettered.sum(),
+                average,
+                Duration.ofNanos(maxLatencyNanos.get()));
+    }
+
+    /// Stops admitting events, waits up to `drainTimeout` for queued deliveries to finish, then
+    /// closes the delegate if it is [AutoCloseable].
+    @Override
+    public void close() {
+        closed = true;
+        var deadline = System.nanoTime() + configuration.drainTimeout().toNanos();
+        try {
+            while (capacity.availablePermits() < configuration.queueCapacity() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retries.shutdownNow();
+        workers.shutdownNow();
+        if (delegate instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to close webhook delegate", e);
+            }
+        }
+    }
+
+    private boolean admit() {
+        return switch (configuration.overflowPolicy()) {
+            case BLOCK -> {
+                try {
+                    capacity.acquire();
+                    yield true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for webhook queue capacity", e);
+                }
+            }
+            case REJECT, CALLER_RUNS -> capacity.tryAcquire();
+        };
+    }
+
+    private void attempt(String key, Delivery delivery, int attempt) {
+        if (abandoned.contains(key)) {
+            giveUp(key, delivery, attempt, new IllegalStateException(
+                    "An earlier webhook for checkout session " + key + " was not delivered"));
+            return;
+        }
+        CompletableFuture<Void> sent;
+        try {
+            sent = delegate.publishAsync(delivery.event);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((ignored, error) -> {
+            if (error == null) {
+                var latency = System.nanoTime() - delivery.enqueuedAt;
+                latencyNanos.add(latency);
+                maxLatencyNanos.accumulate(latency);
+                delivered.increment();
+                finish(key, delivery, null);
+            } else if (attempt < configuration.maxAttempts() && !closed) {
+                retried.increment();
+                try {
+                    retries.schedule(
+                            () -> workers.execute(() -> attempt(key, delivery, attempt + 1)),
+                            backoff(attempt).toNanos(),
+                            TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    giveUp(key, delivery, attempt, error);
+                }
+            } else {
+                giveUp(key, delivery, attempt, error);
+            }
+        });
+    }
+
+    private void giveUp(String key, Delivery delivery, int attempts, Throwable error) {
+        abandoned.add(key);
+        failed.increment();
+        var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (deadLetters != null) {
+            try {
+                deadLetters.deadLetter(delivery.event, attempts, cause);
+                deadLettered.increment();
+                finish(key, delivery, null);
+                return;
+            } catch (RuntimeException e) {
+                cause.addSuppressed(e);
+            }
+        }
+        finish(key, delivery, error);
+    }
+
+    private Duration backoff(int attempt) {
+        var exponent = Math.min(attempt - 1, 30);
+        var delay = configuration.initialBackoff().multipliedBy(1L << exponent);
+        return delay.compareTo(configuration.maxBackoff()) > 0 ? configuration.maxBackoff() : delay;
+    }
+
+    private void finish(String key, Delivery delivery, Throwable error) {
+        if (delivery.permitted) {
+            capacity.release();
+        }
+        var next = new AtomicReference<Delivery>();
+        lanes.computeIfPresent(key, (k, lane) -> {
+            lane.queue.poll();
+            if (configuration.coalesceUpdates()) {
+                coalesce(lane.queue);
+            }
+            var head = lane.queue.peek();
+            if (head == null) {
+                return null;
+            }
+            next.set(head);
+            return lane;
+        });
+        if (error == null) {
+            delivery.result.complete(null);
+        } else {
+            delivery.result.completeExceptionally(error);
+        }
+        var head = next.get();
+        if (head != null) {
+            try {
+                workers.execute(() -> attempt(key, head, 1));
+            } catch (RejectedExecutionException e) {
+                head.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void coalesce(ArrayDeque<Delivery> queue) {
+        while (queue.size() > 1) {
+            var iterator = queue.iterator();
+            var head = iterator.next();
+            var next = iterator.next();
+            if (head.event.type() != OrderWebhookEvent.Type.ORDER_UPDATE
+                    || next.event.type() != OrderWebhookEvent.Type.ORDER_UPDATE) {
+                return;
+            }
+            queue.poll();
+            if (head.permitted) {
+                capacity.release();
+            }
+            coalesced.increment();
+            next.result.whenComplete((ignored, error) -> {
+                if (error == null) {
+                    head.result.complete(null);
+                } else {
+                    head.result.completeExceptionally(error);
+                }
+            });
+        }
+    }
+
+    public enum OverflowPolicy {
+        /// Block the publishing thread until a slot frees up.
+        BLOCK,
+        /// Fail the publish with [RejectedExecutionException].
+        REJECT,
+        /// Queue past capacity in the event's lane and make the publishing thread wait until that
+        /// delivery completes, slowing the caller to the delivery rate without reordering its session.
+        CALLER_RUNS
+    }
+
+    public record Configuration(
+            int queueCapacity,
+            OverflowPolicy overflowPolicy,
+            int maxAttempts,
+            Duration initialBackoff,
+            Duration maxBackoff,
+            Duration drainTimeout,
+            boolean coalesceUpdates) {
+        public Configuration {
+            Ensure.positiveInt("webhook.queue_capacity", queueCapacity);
+            overflowPolicy = Ensure.notNull("webhook.overflow_policy", overflowPolicy);
+            Ensure.positiveInt("webhook.max_attempts", maxAttempts);
+            initialBackoff = Ensure.notNull("webhook.initial_backoff", initialBackoff);
+            maxBackoff = Ensure.notNull("webhook.max_backoff", maxBackoff);
+            drainTimeout = Ensure.notNull("webhook.drain_timeout", drainTimeout);
+            if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0) {
+                throw new IllegalArgumentException("webhook.max_backoff MUST be >= webhook.initial_backoff >= 0");
+            }
+        }
+
+        public static Configuration defaults() {
+            return new Configuration(
+                    1024,
+                    OverflowPolicy.BLOCK,
+                    8,
+                    Duration.ofMillis(200),
+                    Duration.ofSeconds(30),
+                    Duration.ofSeconds(5),
+                    false);
+        }
+    }
+
+    /// Point-in-time delivery counters. Latency is measured from admission to the successful
+    /// response, so it includes queueing and retry delays. `deadLettered` counts the subset of
+    /// `failed` handed to the dead-letter sink.
+    public record Metrics(
+            int queueDepth,
+            long delivered,
+            long failed,
+            long retried,
+            long rejected,
+            long coalesced,
+            long deadLettered,
+            Duration averageLatency,
+            Duration maxLatency) {
+    }
+
+    /// Deliveries for one checkout session; the head is in flight. A lane exists only while non-empty.
+    private static final class Lane {
+        private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+    }
+
+    private static final class Delivery {
+        private final OrderWebhookEvent event;
+        private final long enqueuedAt;
+        /// `false` for a [OverflowPolicy#CALLER_RUNS] delivery admitted past capacity without a permit.
+        private final boolean permitted;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private Delivery(OrderWebhookEvent event, long enqueuedAt, boolean permitted) {
+            this.event = event;
+            this.enqueuedAt = enqueuedAt;
+            this.permitted = permitted;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.amannmalik.acp.server.webhook;
+
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.Ensure;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// Accumulates events for up to `linger` or `maxBatchSize` events and hands each batch to the
+/// delegate's [OrderWebhookPublisher#publishBatchAsync], which for HTTP means one signed JSON array
+/// per request. While a batch is open, an `order_update` replaces any earlier `order_update` for the
+/// same checkout session still waiting in it; the superseded event's future completes with the
+/// replacement's. Batches are delivered one after another so event order is preserved end to end.
+public final class BatchingOrderWebhookPublisher implements OrderWebhookPublisher, AutoCloseable {
+    private final OrderWebhookPublisher delegate;
+    private final Configuration configuration;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService linger = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("acp-webhook-batch").daemon().factory());
+    private List<Pending> open = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+
+    public BatchingOrderWebhookPublisher(OrderWebhookPublisher delegate, Configuration configuration) {
+        this.delegate = Ensure.notNull("webhook.delegate", delegate);
+        this.configuration = Ensure.notNull("webhook.batch_configuration", configuration);
+    }
+
+    private static Pending supersededUpdate(List<Pending> batch, OrderWebhookEvent event) {
+        if (event.type() != OrderWebhookEvent.Type.ORDER_UPDATE) {
+            return null;
+        }
+        for (var pending : batch) {
+            if (pending.event.type() == OrderWebhookEvent.Type.ORDER_UPDATE
+                    && pending.event.checkoutSessionId().equals(event.checkoutSessionId())) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /// Blocks until the batch containing `event` has been delivered.
+    @Override
+    public void publish(OrderWebhookEvent event) {
+        try {
+            publishAsync(event).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+        Ensure.notNull("webhook.event", event);
+        var result = new CompletableFuture<Void>();
+        lock.lock();
+        try {
+            var superseded = supersededUpdate(open, event);
+            if (superseded != null) {
+                superseded.event = event;
+                superseded.waiters.add(result);
+                return result;
+            }
+            var pending = new Pending(event);
+            pending.waiters.add(result);
+            open.add(pending);
+            if (open.size() >= configuration.maxBatchSize()) {
+                flushLocked();
+            } else if (open.size() == 1) {
+                scheduledFlush = linger.schedule(this::flush, configuration.linger().toNanos(), TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> publishBatchAsync(List<OrderWebhookEvent> events) {
+        return CompletableFuture.allOf(events.stream().map(this::publishAsync).toArray(CompletableFuture[]::new));
+    }
+
+    /// Flushes the open batch and waits for every batch handed to the delegate to settle.
+    @Override
+    public void close() {
+        CompletableFuture<Void> last;
+        lock.lock();
+        try {
+            flushLocked();
+            last = inFlight;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            last.get(configuration.linger().toMillis() + 30_000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+            // Failures are reported through the per-event futures.
+        }
+        linger.shutdownNow();
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (open.isEmpty()) {
+            return;
+        }
+        var batch = open;
+        open = new ArrayList<>();
+        var events = batch.stream().map(pending -> pending.event).toList();
+        inFlight = inFlight
+                .handle((ignored, error) -> null)
+                .thenCompose(ignored -> send(events))
+                .whenComplete((ignored, error) -> {
+                    for (var pending : batch) {
+                        for (var waiter : pending.waiters) {
+                            if (error == null) {
+                                waiter.complete(null);
+                            } else {
+                                waiter.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                            }
+                        }
+                    }
+                });
+    }
+
+    private CompletableFuture<Void> send(List<OrderWebhookEvent> events) {
+        try {
+            return delegate.publishBatchAsync(events);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public record Configuration(int maxBatchSize, Duration linger) {
+        public Configuration {
+            Ensure.positiveInt("webhook.max_batch_size", maxBatchSize);
+            linger = Ensure.notNull("webhook.linger", linger);
+            if (linger.isNegative()) {
+                throw new IllegalArgumentException("webhook.linger MUST be >= 0");
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final List<CompletableFuture<Void>> waiters = new ArrayList<>(1);
+        private OrderWebhookEvent event;
+
+        private Pending(OrderWebhookEvent event) {
+            this.event = event;
+        }
+    }
+}
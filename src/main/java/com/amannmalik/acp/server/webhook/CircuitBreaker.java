@@ -0,0 +1,121 @@
+package com.amannmalik.acp.server.webhook;
+
+import com.amannmalik.acp.util.Ensure;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// Consecutive-failure circuit breaker.
+///
+/// `CLOSED` admits everything until `failureThreshold` calls fail in a row, which trips it `OPEN`.
+/// While open every call is refused until `openDuration` has elapsed; the next call is then admitted
+/// as a single `HALF_OPEN` probe whose outcome closes or re-opens the circuit.
+public final class CircuitBreaker {
+    private final Configuration configuration;
+    private final Clock clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private Instant openedAt;
+    private boolean probeInFlight;
+
+    public CircuitBreaker(Configuration configuration, Clock clock) {
+        this.configuration = Ensure.notNull("circuit_breaker.configuration", configuration);
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+    }
+
+    /// Returns whether a call may proceed. Every admitted call MUST be followed by exactly one of
+    /// [#onSuccess()] or [#onFailure()].
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            return switch (state) {
+                case CLOSED -> true;
+                case OPEN -> {
+                    if (clock.instant().isBefore(openedAt.plus(configuration.openDuration()))) {
+                        yield false;
+                    }
+                    state = State.HALF_OPEN;
+                    probeInFlight = true;
+                    yield true;
+                }
+                case HALF_OPEN -> {
+                    if (probeInFlight) {
+                        yield false;
+                    }
+                    probeInFlight = true;
+                    yield true;
+                }
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// Returns whether [#tryAcquire()] would refuse a call right now, without claiming the half-open
+    /// probe. Callers use this to fail fast before queueing work that could not be admitted anyway.
+    public boolean isRefusing() {
+        lock.lock();
+        try {
+            return switch (state) {
+                case CLOSED -> false;
+                case OPEN -> clock.instant().isBefore(openedAt.plus(configuration.openDuration()));
+                case HALF_OPEN -> probeInFlight;
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSuccess() {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            state = State.CLOSED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onFailure() {
+        lock.lock();
+        try {
+            probeInFlight = false;
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || consecutiveFailures >= configuration.failureThreshold()) {
+                state = State.OPEN;
+                openedAt = clock.instant();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public record Configuration(int failureThreshold, Duration openDuration) {
+        public Configuration {
+            Ensure.positiveInt("circuit_breaker.failure_threshold", failureThreshold);
+            openDuration = Ensure.notNull("circuit_breaker.open_duration", openDuration);
+            if (openDuration.isNegative()) {
+                throw new IllegalArgumentException("circuit_breaker.open_duration MUST be >= 0");
+            }
+        }
+    }
+}
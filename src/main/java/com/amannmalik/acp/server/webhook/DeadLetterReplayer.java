@@ -0,0 +1,226 @@
+package com.amannmalik.acp.server.webhook;
+
+import com.amannmalik.acp.spi.webhook.DeadLetter;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.Ensure;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/// Streams dead letters back to their endpoints after an outage.
+///
+/// Sealed segments are claimed from the store one at a time, so a replay can run while `acp serve`
+/// keeps appending to its own segment, and read one line at a time paced to `ratePerSecond`. Each
+/// dead letter is routed to one of `workers` virtual threads by checkout session, so events for the
+/// same session are re-delivered in their original order while different sessions proceed in
+/// parallel. A dead letter that fails again is appended to the store's current segment with its
+/// attempt count bumped, and every later letter for that session in this run is re-recorded
+/// unsent, so an endpoint never sees a session's events out of order. A segment is deleted once every
+/// letter in it has been delivered or re-recorded. If a letter can be neither, the segment is
+/// released and replay stops with the failure, so nothing is lost; letters already delivered from it
+/// are sent again on the next replay.
+public final class DeadLetterReplayer {
+    private static final long OFFER_POLL_MILLIS = 100;
+
+    private final DeadLetterStore store;
+    private final Function<String, OrderWebhookPublisher> publishers;
+    private final Configuration configuration;
+    private final Clock clock;
+
+    /// `publishers` maps a recorded endpoint to the publisher that should receive its dead letters and
+    /// MUST be thread-safe.
+    public DeadLetterReplayer(
+            DeadLetterStore store,
+            Function<String, OrderWebhookPublisher> publishers,
+            Configuration configuration,
+            Clock clock) {
+        this.store = Ensure.notNull("replay.store", store);
+        this.publishers = Ensure.notNull("replay.publishers", publishers);
+        this.configuration = Ensure.notNull("replay.configuration", configuration);
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+    }
+
+    public Result replay() {
+        var replayed = new LongAdder();
+        var failed = new LongAdder();
+        var heldBack = ConcurrentHashMap.<String>newKeySet();
+        var pacer = new Pacer(configuration.ratePerSecond());
+        var segments = 0;
+        Path segment;
+        while ((segment = store.claimSealed()) != null) {
+            var lanes = new ArrayList<Lane>(configuration.workers());
+            var unrecorded = new AtomicReference<RuntimeException>();
+            var workers = Executors.newVirtualThreadPerTaskExecutor();
+            try (workers) {
+                for (var i = 0; i < configuration.workers(); i++) {
+                    var queue = new ArrayBlockingQueue<Entry>(configuration.laneCapacity());
+                    lanes.add(new Lane(
+                            queue, workers.submit(() -> drain(queue, heldBack, replayed, failed, unrecorded))));
+                }
+                try {
+                    store.read(segment, deadLetter -> {
+                        pacer.await();
+                        var lane = Math.floorMod(deadLetter.event().checkoutSessionId().hashCode(), lanes.size());
+                        lanes.get(lane).put(new Entry(deadLetter));
+                    });
+                    for (var lane : lanes) {
+                        lane.put(Entry.END);
+                    }
+                } catch (RuntimeException e) {
+                    workers.shutdownNow();
+                    release(segment, e);
+                    throw e;
+                }
+            }
+            var failure = unrecorded.get();
+            if (failure != null) {
+                var kept = new IllegalStateException(
+                        "Failed to re-record dead letters from " + segment + "; the segment was kept", failure);
+                release(segment, kept);
+                throw kept;
+            }
+            store.delete(segment);
+            segments++;
+        }
+        return new Result(segments, replayed.sum(), failed.sum());
+    }
+
+    private void release(Path segment, RuntimeException failure) {
+        try {
+            store.release(segment);
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /// `heldBack` holds the sessions whose letters failed again in this run; their later letters are
+    /// re-recorded without being sent.
+    private void drain(
+            BlockingQueue<Entry> lane,
+            Set<String> heldBack,
+            LongAdder replayed,
+            LongAdder failed,
+            AtomicReference<RuntimeException> unrecorded) {
+        while (true) {
+            DeadLetter deadLetter;
+            try {
+                deadLetter = lane.take().deadLetter();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (deadLetter == null) {
+                return;
+            }
+            var sessionId = deadLetter.event().checkoutSessionId();
+            if (heldBack.contains(sessionId)) {
+                record(new DeadLetter(
+                        deadLetter.endpoint(),
+                        deadLetter.event(),
+                        deadLetter.attempts(),
+                        "Held back: an earlier dead letter for checkout session " + sessionId + " was not delivered",
+                        clock.instant()), null, failed, unrecorded);
+                continue;
+            }
+            try {
+                publishers.apply(deadLetter.endpoint()).publishAsync(deadLetter.event()).join();
+                replayed.increment();
+            } catch (RuntimeException e) {
+                var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                heldBack.add(sessionId);
+                record(new DeadLetter(
+                        deadLetter.endpoint(),
+                        deadLetter.event(),
+                        deadLetter.attempts() + 1,
+                        cause.getMessage(),
+                        clock.instant()), cause, failed, unrecorded);
+            }
+        }
+    }
+
+    private void record(
+            DeadLetter deadLetter, Throwable cause, LongAdder failed, AtomicReference<RuntimeException> unrecorded) {
+        try {
+            store.append(deadLetter);
+            failed.increment();
+        } catch (RuntimeException appendFailure) {
+            if (cause != null) {
+                appendFailure.addSuppressed(cause);
+            }
+            if (!unrecorded.compareAndSet(null, appendFailure)) {
+                unrecorded.get().addSuppressed(appendFailure);
+            }
+        }
+    }
+
+    /// `ratePerSecond` of 0 disables pacing.
+    public record Configuration(int workers, int ratePerSecond, int laneCapacity) {
+        public Configuration {
+            Ensure.positiveInt("replay.workers", workers);
+            Ensure.nonNegative("replay.rate_per_second", ratePerSecond);
+            Ensure.positiveInt("replay.lane_capacity", laneCapacity);
+        }
+
+        public static Configuration of(int workers, int ratePerSecond) {
+            return new Configuration(workers, ratePerSecond, 256);
+        }
+    }
+
+    /// `segments` sealed segments were processed; `failed` dead letters were recorded again, whether
+    /// they failed or were held back behind an earlier failure for their session.
+    public record Result(int segments, long replayed, long failed) {
+    }
+
+    /// One worker's queue and the worker draining it.
+    private record Lane(BlockingQueue<Entry> queue, Future<?> worker) {
+        /// Waits for room in the queue, failing instead of blocking forever if the worker has died.
+        private void put(Entry entry) {
+            try {
+                while (!queue.offer(entry, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (worker.isDone()) {
+                        throw new IllegalStateException("Dead-letter replay worker stopped unexpectedly");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while replaying dead letters", e);
+            }
+        }
+    }
+
+    /// Lane element; [#END] tells the worker its lane is finished.
+    private record Entry(DeadLetter deadLetter) {
+        private static final Entry END = new Entry(null);
+    }
+
+    /// Spaces events `1s / ratePerSecond` apart without accumulating credit while idle.
+    private static final class Pacer {
+        private final long intervalNanos;
+        private long next = System.nanoTime();
+
+        private Pacer(int ratePerSecond) {
+            this.intervalNanos = ratePerSecond == 0 ? 0 : Duration.ofSeconds(1).toNanos() / ratePerSecond;
+        }
+
+        private void await() {
+            if (intervalNanos == 0) {
+                return;
+            }
+            var now = System.nanoTime();
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+                now = next;
+            }
+            next = now + intervalNanos;
+        }
+    }
+}
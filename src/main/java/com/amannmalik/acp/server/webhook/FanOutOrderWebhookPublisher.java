@@ -0,0 +1,112 @@
+package com.amannmalik.acp.server.webhook;
+
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.Ensure;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Hands every event to several independent endpoint pipelines.
+///
+/// Each endpoint is expected to be a [GuardedOrderWebhookPublisher] (own concurrency cap and circuit
+/// breaker), behind its own [AsyncOrderWebhookDispatcher] (own queue, lanes and retries) unless a
+/// durable caller retries instead. Every pipeline is handed the event before any is waited on, so a
+/// stalled receiver never delays delivery to the others. The returned future completes only once
+/// every endpoint has delivered (or dead-lettered) the event, and fails if any endpoint refused or
+/// failed it. A durable caller such as the checkout outbox instead delivers to each of
+/// [#endpoints()] on its own and records each acknowledgement separately, so a failing endpoint
+/// never holds back or repeats delivery to the others.
+public final class FanOutOrderWebhookPublisher implements OrderWebhookPublisher, AutoCloseable {
+    private final List<Endpoint> endpoints;
+    private final Map<String, OrderWebhookPublisher> byName;
+
+    public FanOutOrderWebhookPublisher(Map<String, ? extends OrderWebhookPublisher> endpoints) {
+        Ensure.notNull("webhook.endpoints", endpoints);
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("webhook.endpoints MUST include at least one endpoint");
+        }
+        var list = new ArrayList<Endpoint>(endpoints.size());
+        endpoints.forEach((name, publisher) -> list.add(new Endpoint(
+                Ensure.nonBlank("webhook.endpoint_name", name),
+                Ensure.notNull("webhook.endpoints[" + name + "]", publisher))));
+        this.endpoints = List.copyOf(list);
+        var named = new LinkedHashMap<String, OrderWebhookPublisher>();
+        this.endpoints.forEach(endpoint -> named.put(endpoint.name, endpoint.publisher));
+        this.byName = Collections.unmodifiableMap(named);
+    }
+
+    /// Hands the event to every endpoint without waiting; refusals are counted in [#stats()].
+    @Override
+    public void publish(OrderWebhookEvent event) {
+        publishAsync(event);
+    }
+
+    /// Completes once every endpoint has accepted the event, or exceptionally once all have finished
+    /// if any refused or failed it.
+    @Override
+    public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+        Ensure.notNull("webhook.event", event);
+        var deliveries = new CompletableFuture<?>[endpoints.size()];
+        for (var i = 0; i < deliveries.length; i++) {
+            var endpoint = endpoints.get(i);
+            try {
+                deliveries[i] = endpoint.publisher.publishAsync(event);
+                endpoint.admitted.increment();
+            } catch (RuntimeException e) {
+                endpoint.refused.increment();
+                deliveries[i] = CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.allOf(deliveries);
+    }
+
+    /// Every endpoint pipeline by name, in configuration order.
+    @Override
+    public Map<String, OrderWebhookPublisher> endpoints() {
+        return byName;
+    }
+
+    public List<EndpointStats> stats() {
+        return endpoints.stream()
+                .map(endpoint -> new EndpointStats(endpoint.name, endpoint.admitted.sum(), endpoint.refused.sum()))
+                .toList();
+    }
+
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (var endpoint : endpoints) {
+            if (endpoint.publisher instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    if (failure == null) {
+                        failure = new IllegalStateException("Failed to close webhook endpoint " + endpoint.name, e);
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public record EndpointStats(String name, long admitted, long refused) {
+    }
+
+    private static final class Endpoint {
+        private final String name;
+        private final OrderWebhookPublisher publisher;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder refused = new LongAdder();
+
+        private Endpoint(String name, OrderWebhookPublisher publisher) {
+            this.name = name;
+            this.publisher = publisher;
+        }
+    }
+}
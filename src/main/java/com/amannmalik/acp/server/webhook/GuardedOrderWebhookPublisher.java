@@ -0,0 +1,166 @@
+package com.amannmalik.acp.server.webhook;
+
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.util.Ensure;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/// Isolates one webhook endpoint: caps concurrent requests and routes every call through a
+/// [CircuitBreaker]. Calls beyond the cap wait in arrival order for a request to finish, so a healthy
+/// but briefly saturated receiver only delays deliveries and never fails them. Only an open circuit
+/// fails a call immediately, so an unhealthy receiver costs neither latency nor memory. The wait
+/// queue is unbounded; callers bound it with their own queues, as the dispatcher and the checkout
+/// outbox do.
+public final class GuardedOrderWebhookPublisher implements OrderWebhookPublisher, AutoCloseable {
+    private final String name;
+    private final OrderWebhookPublisher delegate;
+    private final CircuitBreaker circuitBreaker;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Call> waiting = new ConcurrentLinkedQueue<>();
+    /// Work-in-progress counter that lets a single thread at a time start waiting calls, so a delegate
+    /// that completes synchronously cannot recurse once per queued call.
+    private final AtomicInteger draining = new AtomicInteger();
+    private volatile boolean closed;
+
+    public GuardedOrderWebhookPublisher(
+            String name, OrderWebhookPublisher delegate, int maxConcurrency, CircuitBreaker circuitBreaker) {
+        this.name = Ensure.nonBlank("webhook.endpoint_name", name);
+        this.delegate = Ensure.notNull("webhook.delegate", delegate);
+        this.circuitBreaker = Ensure.notNull("webhook.circuit_breaker", circuitBreaker);
+        this.permits = new Semaphore(Ensure.positiveInt("webhook.max_concurrency", maxConcurrency));
+    }
+
+    @Override
+    public void publish(OrderWebhookEvent event) {
+        try {
+            publishAsync(event).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+        return guard(() -> delegate.publishAsync(event));
+    }
+
+    @Override
+    public CompletableFuture<Void> publishBatchAsync(List<OrderWebhookEvent> events) {
+        return guard(() -> delegate.publishBatchAsync(events));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /// This endpoint alone, under its name.
+    @Override
+    public Map<String, OrderWebhookPublisher> endpoints() {
+        return Map.of(name, this);
+    }
+
+    /// Closes the delegate and fails every call still waiting for a permit.
+    @Override
+    public void close() {
+        closed = true;
+        for (var call = waiting.poll(); call != null; call = waiting.poll()) {
+            call.result.completeExceptionally(closedFailure());
+        }
+        if (delegate instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to close webhook delegate for " + name, e);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> guard(Supplier<CompletableFuture<Void>> send) {
+        if (closed) {
+            return CompletableFuture.failedFuture(closedFailure());
+        }
+        if (circuitBreaker.isRefusing()) {
+            return CompletableFuture.failedFuture(openFailure());
+        }
+        var call = new Call(send, new CompletableFuture<>());
+        waiting.add(call);
+        drain();
+        return call.result;
+    }
+
+    /// Starts waiting calls while permits are free. Every path that adds a call or releases a permit
+    /// ends here, so no call is left waiting behind a free permit.
+    private void drain() {
+        var missed = draining.incrementAndGet();
+        if (missed != 1) {
+            return;
+        }
+        do {
+            while (!waiting.isEmpty() && permits.tryAcquire()) {
+                var call = waiting.poll();
+                if (call == null) {
+                    permits.release();
+                } else {
+                    start(call);
+                }
+            }
+            missed = draining.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /// Runs `call` under a permit already taken. The circuit is checked again here because it may
+    /// have opened while the call waited.
+    private void start(Call call) {
+        if (closed) {
+            permits.release();
+            call.result.completeExceptionally(closedFailure());
+            return;
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            permits.release();
+            call.result.completeExceptionally(openFailure());
+            return;
+        }
+        CompletableFuture<Void> sent;
+        try {
+            sent = call.send.get();
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((ignored, error) -> {
+            permits.release();
+            if (error == null) {
+                circuitBreaker.onSuccess();
+                call.result.complete(null);
+            } else {
+                circuitBreaker.onFailure();
+                call.result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error);
+            }
+            drain();
+        });
+    }
+
+    private IllegalStateException openFailure() {
+        return new IllegalStateException("Circuit open for webhook endpoint " + name);
+    }
+
+    private IllegalStateException closedFailure() {
+        return new IllegalStateException("Webhook endpoint " + name + " is closed");
+    }
+
+    private record Call(Supplier<CompletableFuture<Void>> send, CompletableFuture<Void> result) {
+    }
+}
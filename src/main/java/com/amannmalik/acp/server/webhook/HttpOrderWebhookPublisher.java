@@ -1,31 +1,33 @@
 package com.amannmalik.acp.server.webhook;
 
+import com.amannmalik.acp.codec.JsonEngine;
+import com.amannmalik.acp.codec.OrderWebhookJsonCodec;
+import com.amannmalik.acp.server.security.PreparedHmac;
 import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
 import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
 import com.amannmalik.acp.util.Ensure;
-import jakarta.json.Json;
-import jakarta.json.JsonArrayBuilder;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.*;
-import java.nio.charset.StandardCharsets;
-import java.security.GeneralSecurityException;
 import java.time.Clock;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
 public final class HttpOrderWebhookPublisher implements OrderWebhookPublisher {
     private static final Base64.Encoder SIGNATURE_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final OrderWebhookJsonCodec JSON_CODEC = new OrderWebhookJsonCodec();
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(10);
 
     private final HttpClient httpClient;
     private final URI endpoint;
     private final String signatureHeader;
-    private final byte[] secret;
+    private final PreparedHmac signer;
     private final Clock clock;
     private final Supplier<String> requestIdSupplier;
+    private final Duration requestTimeout;
 
     public HttpOrderWebhookPublisher(HttpClient httpClient, URI endpoint, String signatureHeader, byte[] secret, Clock clock) {
         this(httpClient, endpoint, signatureHeader, secret, clock, HttpOrderWebhookPublisher::defaultRequestId);
@@ -38,13 +40,35 @@ public final class HttpOrderWebhookPublisher implements OrderWebhookPublisher {
             byte[] secret,
             Clock clock,
             Supplier<String> requestIdSupplier) {
+        this(httpClient, endpoint, signatureHeader, secret, clock, requestIdSupplier, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    public HttpOrderWebhookPublisher(
+            HttpClient httpClient,
+            URI endpoint,
+            String signatureHeader,
+            byte[] secret,
+            Clock clock,
+            Supplier<String> requestIdSupplier,
+            Duration requestTimeout) {
         this.httpClient = Ensure.notNull("webhook.http_client", httpClient);
         this.endpoint = Ensure.notNull("webhook.endpoint", endpoint);
         this.signatureHeader = Ensure.nonBlank("webhook.signature_header", signatureHeader);
-        this.secret = secret.clone();
+        this.signer = new PreparedHmac(secret);
         this.clock = clock == null ? Clock.systemUTC() : clock;
         this.requestIdSupplier =
                 Objects.requireNonNullElse(requestIdSupplier, HttpOrderWebhookPublisher::defaultRequestId);
+        this.requestTimeout = Objects.requireNonNullElse(requestTimeout, DEFAULT_REQUEST_TIMEOUT);
+        if (this.requestTimeout.isNegative() || this.requestTimeout.isZero()) {
+            throw new IllegalArgumentException("webhook.request_timeout MUST be positive");
+        }
+    }
+
+    private static void ensureSuccess(HttpResponse<?> response) {
+        var status = response.statusCode();
+        if (status < 200 || status >= 300) {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP " + status);
+        }
     }
 
     private static String defaultRequestId() {
@@ -53,23 +77,9 @@ public final class HttpOrderWebhookPublisher implements OrderWebhookPublisher {
 
     @Override
     public void publish(OrderWebhookEvent event) {
-        var payload = serialize(event);
-        var timestamp = clock.instant();
-        var signature = sign(payload);
-        var requestId = requestIdSupplier.get();
-        var request = HttpRequest.newBuilder(endpoint)
-                .header("Content-Type", "application/json")
-                .header(signatureHeader, signature)
-                .header("Request-Id", requestId)
-                .header("Timestamp", timestamp.toString())
-                .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build();
+        var request = buildRequest(event);
         try {
-            var response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
-            var status = response.statusCode();
-            if (status < 200 || status >= 300) {
-                throw new IllegalStateException("Webhook endpoint responded with HTTP " + status);
-            }
+            ensureSuccess(httpClient.send(request, HttpResponse.BodyHandlers.discarding()));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new IllegalStateException("Webhook dispatch interrupted", e);
@@ -78,43 +88,48 @@ public final class HttpOrderWebhookPublisher implements OrderWebhookPublisher {
         }
     }
 
-    private String serialize(OrderWebhookEvent event) {
-        var dataBuilder = Json.createObjectBuilder()
-                .add("type", "order")
-                .add("checkout_session_id", event.checkoutSessionId())
-                .add("permalink_url", event.permalinkUrl().toString())
-                .add("status", event.status().jsonValue())
-                .add("refunds", writeRefunds(event.refunds()));
-        return Json.createObjectBuilder()
-                .add("type", event.type().jsonValue())
-                .add("data", dataBuilder)
-                .build()
-                .toString();
+    @Override
+    public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+        return sendAsync(buildRequest(event));
     }
 
-    private JsonArrayBuilder writeRefunds(List<OrderWebhookEvent.Refund> refunds) {
-        var builder = Json.createArrayBuilder();
-        for (var refund : refunds) {
-            builder.add(Json.createObjectBuilder()
-                    .add("type", refund.type().jsonValue())
-                    .add("amount", refund.amount().value()));
+    /// Sends every event as one signed JSON array, so a batch costs a single request and HMAC.
+    @Override
+    public CompletableFuture<Void> publishBatchAsync(List<OrderWebhookEvent> events) {
+        if (events.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
-        return builder;
+        var array = JsonEngine.createArrayBuilder();
+        for (var event : events) {
+            array.add(JSON_CODEC.write(event));
+        }
+        return sendAsync(buildRequest(JsonEngine.toByteArray(array.build())));
     }
 
-    private String sign(String payload) {
-        var mac = newMac();
-        var signature = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
-        return SIGNATURE_ENCODER.encodeToString(signature);
+    private CompletableFuture<Void> sendAsync(HttpRequest request) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenAccept(HttpOrderWebhookPublisher::ensureSuccess);
     }
 
-    private Mac newMac() {
-        try {
-            var mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
-            return mac;
-        } catch (GeneralSecurityException e) {
-            throw new IllegalStateException("Failed to initialize webhook signature", e);
-        }
+    private HttpRequest buildRequest(OrderWebhookEvent event) {
+        return buildRequest(JsonEngine.toByteArray(JSON_CODEC.write(event)));
+    }
+
+    private HttpRequest buildRequest(byte[] payload) {
+        var timestamp = clock.instant();
+        var signature = sign(payload);
+        var requestId = requestIdSupplier.get();
+        return HttpRequest.newBuilder(endpoint)
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .header(signatureHeader, signature)
+                .header("Request-Id", requestId)
+                .header("Timestamp", timestamp.toString())
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+    }
+
+    private String sign(byte[] payload) {
+        return SIGNATURE_ENCODER.encodeToString(signer.sign(payload));
     }
 }
@@ -0,0 +1,33 @@
+package com.amannmalik.acp.spi.storage;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+
+import java.util.Optional;
+
+/// Cold store for completed and canceled sessions that have aged out of memory. Reads are rare
+/// and MAY be slow; [#store(CheckoutSession)] MUST be durable before it returns, because the
+/// session's journal entry is dropped right after.
+public interface CheckoutSessionArchive extends AutoCloseable {
+    CheckoutSessionArchive NOOP = new CheckoutSessionArchive() {
+        @Override
+        public void store(CheckoutSession session) {
+        }
+
+        @Override
+        public Optional<CheckoutSession> find(String sessionId) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /// Archives `session`, replacing any earlier copy with the same id.
+    void store(CheckoutSession session);
+
+    Optional<CheckoutSession> find(String sessionId);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,49 @@
+package com.amannmalik.acp.spi.storage;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/// Write-ahead log for checkout state. Appends are cheap and ordered; durability is requested
+/// separately through [#await(long)] so callers can enqueue inside a critical section and block for
+/// `fsync` only after releasing it, letting concurrent requests share one group commit.
+public interface CheckoutSessionJournal extends AutoCloseable {
+    CheckoutSessionJournal NOOP = new CheckoutSessionJournal() {
+        @Override
+        public void replay(Consumer<JournalRecord> sink) {
+        }
+
+        @Override
+        public void compactFrom(Supplier<Stream<JournalRecord>> liveState) {
+        }
+
+        @Override
+        public long append(JournalRecord... records) {
+            return 0L;
+        }
+
+        @Override
+        public void await(long position) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /// Streams every persisted record in commit order. Snapshot records carry distinct keys and MAY
+    /// be delivered from several threads at once, so the sink MUST be thread-safe.
+    void replay(Consumer<JournalRecord> sink);
+
+    /// Registers the source of live state used to write compaction snapshots.
+    void compactFrom(Supplier<Stream<JournalRecord>> liveState);
+
+    /// Appends the records as one atomic unit and returns its log position.
+    long append(JournalRecord... records);
+
+    /// Blocks until every append up to and including `position` is durable.
+    void await(long position);
+
+    @Override
+    void close();
+}
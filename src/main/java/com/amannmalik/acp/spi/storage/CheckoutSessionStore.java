@@ -0,0 +1,45 @@
+package com.amannmalik.acp.spi.storage;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/// Live checkout sessions of one service, keyed by session id.
+///
+/// Every method MUST be safe to call concurrently. [#compute(String, UnaryOperator)] MUST be atomic
+/// with respect to every other write of the same id, which is what the compute engine relies on to
+/// serialize mutations of a session. Implementations are free to keep sessions in any form and
+/// to return a fresh, equal instance from each read.
+public interface CheckoutSessionStore extends AutoCloseable {
+    /// The session stored under `sessionId`, or `null`.
+    CheckoutSession get(String sessionId);
+
+    void put(CheckoutSession session);
+
+    void remove(String sessionId);
+
+    /// Replaces the session stored under `sessionId`, which `remapping` sees as `null` if absent, with
+    /// what `remapping` returns, removing it on `null`. If `remapping` throws, nothing changes.
+    CheckoutSession compute(String sessionId, UnaryOperator<CheckoutSession> remapping);
+
+    int size();
+
+    /// Weakly consistent view of the stored sessions: sessions written while the stream is open may
+    /// or may not appear, and MAY appear twice. Callers MUST close the stream.
+    Stream<CheckoutSession> values();
+
+    /// Whether stored sessions survive a restart on their own. The service then keeps them out of
+    /// journal snapshots and, on start, rebuilds its id sequences and lifetimes from [#values()].
+    default boolean durable() {
+        return false;
+    }
+
+    /// Makes every write so far survive a restart. Called before journal records that could rebuild
+    /// them are compacted away; the default does nothing.
+    default void checkpoint() {
+    }
+
+    @Override
+    void close();
+}
@@ -0,0 +1,93 @@
+package com.amannmalik.acp.spi.storage;
+
+import com.amannmalik.acp.api.checkout.IdempotentReply;
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.util.Ensure;
+import com.amannmalik.acp.util.Fingerprint;
+
+/// State transitions persisted by a [CheckoutSessionJournal]. Every record is an upsert of the
+/// latest value for its key, so replaying a snapshot followed by newer records converges on the
+/// live state regardless of overlap.
+public sealed interface JournalRecord permits
+        JournalRecord.SessionWritten,
+        JournalRecord.CreateIdempotencyRecorded,
+        JournalRecord.CompleteIdempotencyRecorded,
+        JournalRecord.WebhookEnqueued,
+        JournalRecord.WebhookDelivered,
+        JournalRecord.WebhookAcknowledged,
+        JournalRecord.SessionExpired,
+        JournalRecord.SequencesReserved {
+
+    record SessionWritten(CheckoutSession session) implements JournalRecord {
+        public SessionWritten {
+            session = Ensure.notNull("journal.session", session);
+        }
+    }
+
+    /// `reply` is what the create answered, replayed to every retry under `idempotencyKey`.
+    record CreateIdempotencyRecorded(
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            IdempotentReply reply) implements JournalRecord {
+        public CreateIdempotencyRecorded {
+            idempotencyKey = Ensure.nonBlank("journal.idempotency_key", idempotencyKey);
+            fingerprint = Ensure.notNull("journal.create_fingerprint", fingerprint);
+            reply = Ensure.notNull("journal.create_reply", reply);
+        }
+    }
+
+    /// `reply` is what the complete answered, replayed to every retry under `idempotencyKey`.
+    record CompleteIdempotencyRecorded(
+            String sessionId,
+            String idempotencyKey,
+            Fingerprint fingerprint,
+            IdempotentReply reply) implements JournalRecord {
+        public CompleteIdempotencyRecorded {
+            sessionId = Ensure.nonBlank("journal.session_id", sessionId);
+            idempotencyKey = Ensure.nonBlank("journal.idempotency_key", idempotencyKey);
+            fingerprint = Ensure.notNull("journal.complete_fingerprint", fingerprint);
+            reply = Ensure.notNull("journal.complete_reply", reply);
+        }
+    }
+
+    /// An outbox entry written in the same frame as the transition that produced it.
+    record WebhookEnqueued(long sequence, OrderWebhookEvent event) implements JournalRecord {
+        public WebhookEnqueued {
+            Ensure.positiveLong("journal.webhook_sequence", sequence);
+            event = Ensure.notNull("journal.webhook_event", event);
+        }
+    }
+
+    /// Retires an outbox entry: every receiver has it, or it was dead-lettered.
+    record WebhookDelivered(long sequence) implements JournalRecord {
+        public WebhookDelivered {
+            Ensure.positiveLong("journal.webhook_sequence", sequence);
+        }
+    }
+
+    /// One of several receivers has an outbox entry that the others may still be owed.
+    record WebhookAcknowledged(long sequence, String endpoint) implements JournalRecord {
+        public WebhookAcknowledged {
+            Ensure.positiveLong("journal.webhook_sequence", sequence);
+            endpoint = Ensure.nonBlank("journal.webhook_endpoint", endpoint);
+        }
+    }
+
+    /// Tombstone for a session dropped from memory by its lifetime; compaction omits both.
+    record SessionExpired(String sessionId) implements JournalRecord {
+        public SessionExpired {
+            sessionId = Ensure.nonBlank("journal.session_id", sessionId);
+        }
+    }
+
+    /// Next values of the id sequences, written into snapshots so ids of expired sessions are not
+    /// handed out again.
+    record SequencesReserved(long nextSessionId, long nextLineItemId, long nextOrderId) implements JournalRecord {
+        public SequencesReserved {
+            Ensure.positiveLong("journal.next_session_id", nextSessionId);
+            Ensure.positiveLong("journal.next_line_item_id", nextLineItemId);
+            Ensure.positiveLong("journal.next_order_id", nextOrderId);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.amannmalik.acp.spi.webhook;
+
+import com.amannmalik.acp.util.Ensure;
+
+import java.time.Instant;
+
+/// An event that exhausted its delivery attempts, with the endpoint it was bound for and why the
+/// last attempt failed.
+public record DeadLetter(String endpoint, OrderWebhookEvent event, int attempts, String reason, Instant failedAt) {
+    public DeadLetter {
+        endpoint = Ensure.nonBlank("dead_letter.endpoint", endpoint);
+        event = Ensure.notNull("dead_letter.event", event);
+        Ensure.positiveInt("dead_letter.attempts", attempts);
+        reason = reason == null || reason.isBlank() ? "unknown" : reason;
+        failedAt = Ensure.notNull("dead_letter.failed_at", failedAt);
+    }
+}
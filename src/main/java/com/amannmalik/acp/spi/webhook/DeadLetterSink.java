@@ -0,0 +1,9 @@
+package com.amannmalik.acp.spi.webhook;
+
+/// Receives events a dispatcher has given up on. Returning normally means the event is now owned by
+/// the sink, so the dispatcher reports it as handled rather than failed; throwing leaves the failure
+/// with the caller.
+@FunctionalInterface
+public interface DeadLetterSink {
+    void deadLetter(OrderWebhookEvent event, int attempts, Throwable cause);
+}
@@ -0,0 +1,35 @@
+package com.amannmalik.acp.spi.webhook;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+
+/// Durable home for webhook events that exhausted their delivery attempts. Dead letters are grouped
+/// into segments; a segment is sealed once no store will append to it again, and only sealed
+/// segments MAY be read back and deleted. Several stores MAY share one home: each appends only to a
+/// segment it owns, and a sealed segment is replayed by whichever store claims it.
+public interface DeadLetterStore extends AutoCloseable {
+    /// Durably records `deadLetter` before returning.
+    void append(DeadLetter deadLetter);
+
+    /// Sink for one endpoint's dispatcher that stamps each dead letter with `endpoint`.
+    DeadLetterSink forEndpoint(String endpoint);
+
+    /// Sealed segments no store has claimed, oldest first.
+    List<Path> sealedSegments();
+
+    /// Claims the oldest sealed segment no other store has claimed, or returns `null` if none is
+    /// left. The claim lasts until the segment is deleted or released, or the store is closed.
+    Path claimSealed();
+
+    /// Gives up the claim on `segment` without deleting it, so a later replay can claim it again.
+    void release(Path segment);
+
+    /// Streams the dead letters in `segment` in the order they were written.
+    void read(Path segment, Consumer<DeadLetter> sink);
+
+    void delete(Path segment);
+
+    @Override
+    void close();
+}
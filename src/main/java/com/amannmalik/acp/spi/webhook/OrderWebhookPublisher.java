@@ -1,8 +1,41 @@
 package com.amannmalik.acp.spi.webhook;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 public interface OrderWebhookPublisher {
     OrderWebhookPublisher NOOP = event -> {
     };
 
     void publish(OrderWebhookEvent event);
+
+    /// Completes once the event has been accepted by the receiver. The default runs [#publish]
+    /// on the calling thread; transports with a non-blocking client SHOULD override it.
+    default CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+        try {
+            publish(event);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /// The receivers behind this publisher that acknowledge deliveries independently, by a stable
+    /// name. A durable caller such as the checkout outbox delivers to each of them separately, so one
+    /// receiver's failure neither holds back nor repeats delivery to the others. Empty, the default,
+    /// means this publisher is a single unnamed receiver.
+    default Map<String, OrderWebhookPublisher> endpoints() {
+        return Map.of();
+    }
+
+    /// Delivers `events` in order. Transports that can carry several events per request SHOULD
+    /// override this; the default issues one [#publishAsync] per event, each after the previous.
+    default CompletableFuture<Void> publishBatchAsync(List<OrderWebhookEvent> events) {
+        var chain = CompletableFuture.<Void>completedFuture(null);
+        for (var event : events) {
+            chain = chain.thenCompose(ignored -> publishAsync(event));
+        }
+        return chain;
+    }
 }
@@ -0,0 +1,1037 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.codec.CheckoutSessionBinaryCodec;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.util.ConcurrentLongHashMap;
+import com.amannmalik.acp.util.Ensure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+
+/// [CheckoutSessionStore] kept in a page-oriented B+tree file, for session histories larger than
+/// memory.
+///
+/// The file is an array of fixed-size pages. Pages 0 and 1 are alternating meta pages naming the
+/// root of the latest commit; every other page is a leaf, a branch or an overflow page and carries
+/// a CRC32C. Leaves hold `[id][session]` entries in [CheckoutSessionBinaryCodec] form, sessions
+/// larger than a quarter page spilling into a chain of overflow pages. Writes are copy-on-write: a
+/// put or remove writes fresh copies of the pages from leaf to root and publishes the new root. A
+/// sync `fsync`s the written pages, then writes and `fsync`s the meta page the previous sync did
+/// not use. A crash at any point leaves a meta page naming a complete tree, and pages a commit
+/// replaces are reused only after the next sync, once no meta page that reopening could pick still
+/// reaches them.
+///
+/// [Configuration#commitsPerSync()] sets how many commits share one sync. With the default of one,
+/// every write is durable when it returns, at the price of two `fsync`s under the writer lock. A
+/// store whose writes a [com.amannmalik.acp.spi.storage.CheckoutSessionJournal] also records can
+/// sync far less often: a crash then reopens an older tree, and journal replay rewrites what it
+/// missed. [#checkpoint()] and [#close()] sync whatever is pending.
+///
+/// Decoded tree pages are held in a bounded cache with clock eviction, so hot sessions are served
+/// without I/O while cold history is paged in on demand. Nodes are never merged; a node emptied by
+/// removals is dropped from its parent. Contents survive restarts, so replaying the journal into a
+/// reopened store rewrites only sessions that changed; reopening walks the tree once to find free
+/// pages. Writes of one id are serialized by a striped lock and commits by a writer lock; a commit
+/// builds its pages beside the published tree, so readers wait only for the swap to the new root.
+public final class BTreeCheckoutSessionStore implements CheckoutSessionStore {
+    private static final int MAGIC = 0x41435042;
+    private static final int META_BYTES = 44;
+    private static final int NODE_HEADER_BYTES = 7;
+    private static final int OVERFLOW_HEADER_BYTES = 17;
+    private static final byte LEAF = 1;
+    private static final byte BRANCH = 2;
+    private static final byte OVERFLOW = 3;
+    private static final byte INLINE = 0;
+    private static final byte SPILLED = 1;
+    private static final long NO_PAGE = 0L;
+    private static final long FIRST_DATA_PAGE = 2L;
+    private static final int LOCK_STRIPES = 64;
+
+    private final Configuration configuration;
+    private final int pageSize;
+    private final CheckoutSessionBinaryCodec codec = new CheckoutSessionBinaryCodec();
+    /// Readers hold the read side while they walk the published tree; a commit takes the write side
+    /// only to publish, which is also when the pages it replaced become free.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock writer = new ReentrantLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final PageCache cache;
+    private final FileChannel channel;
+    private final LongStack freePages = new LongStack();
+    /// Pages the commit in progress has written, returned to [#freePages] if it fails.
+    private final LongStack allocatedPages = new LongStack();
+    /// Pages the commit in progress replaces, moved to [#unsyncedPages] once it is published.
+    private final LongStack releasedPages = new LongStack();
+    /// Pages replaced by commits since the last sync; the synced tree may still reach them.
+    private final LongStack unsyncedPages = new LongStack();
+    private int unsyncedCommits;
+    private long root;
+    private long pageCount;
+    private long commit;
+    private int size;
+    /// Change in [#size] made by the commit in progress.
+    private int sizeChange;
+    private IOException failure;
+    private boolean closed;
+
+    public BTreeCheckoutSessionStore(Configuration configuration) {
+        this.configuration = Ensure.notNull("btree.configuration", configuration);
+        this.pageSize = configuration.pageSize();
+        this.cache = new PageCache(configuration.cachePages());
+        for (var i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        var file = configuration.file();
+        try {
+            var parent = file.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.channel = FileChannel.open(
+                    file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open session B-tree " + file, e);
+        }
+        try {
+            if (channel.size() == 0) {
+                pageCount = FIRST_DATA_PAGE;
+                writeMeta(0L, NO_PAGE, pageCount, 0);
+            } else {
+                recover();
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (e instanceof IOException io) {
+                throw new UncheckedIOException("Failed to open session B-tree " + file, io);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int childIndex(Branch branch, String key) {
+        var index = Arrays.binarySearch(branch.keys(), key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private static <T> T[] insertAt(T[] array, int index, T value) {
+        var copy = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, index, copy, index + 1, array.length - index);
+        copy[index] = value;
+        return copy;
+    }
+
+    private static long[] insertAt(long[] array, int index, long value) {
+        var copy = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, index, copy, index + 1, array.length - index);
+        copy[index] = value;
+        return copy;
+    }
+
+    private static <T> T[] removeAt(T[] array, int index) {
+        var copy = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+        return copy;
+    }
+
+    private static long[] removeAt(long[] array, int index) {
+        var copy = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+        return copy;
+    }
+
+    @Override
+    public CheckoutSession get(String sessionId) {
+        var key = key(sessionId);
+        byte[] body;
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            body = find(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read session " + sessionId + " from " + configuration.file(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return body == null ? null : codec.readCheckoutSession(ByteBuffer.wrap(body));
+    }
+
+    @Override
+    public void put(CheckoutSession session) {
+        var key = key(session.id().value());
+        var body = codec.writeCheckoutSession(session);
+        var stripe = stripe(key);
+        stripe.lock();
+        try {
+            write(key, body);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        var key = key(sessionId);
+        var stripe = stripe(key);
+        stripe.lock();
+        try {
+            delete(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public CheckoutSession compute(String sessionId, UnaryOperator<CheckoutSession> remapping) {
+        var key = key(sessionId);
+        var stripe = stripe(key);
+        stripe.lock();
+        try {
+            var current = get(key);
+            var next = remapping.apply(current);
+            if (next == null) {
+                if (current != null) {
+                    delete(key);
+                }
+            } else if (next != current) {
+                if (!next.id().value().equals(sessionId)) {
+                    throw new IllegalArgumentException("Remapped session id MUST equal " + sessionId);
+                }
+                write(key, codec.writeCheckoutSession(next));
+            }
+            return next;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /// Sessions in id order, read one leaf at a time; each leaf is located afresh from the latest
+    /// commit, so no session is seen twice.
+    @Override
+    public Stream<CheckoutSession> values() {
+        return StreamSupport.stream(new Cursor(), false);
+    }
+
+    public Stats stats() {
+        writer.lock();
+        try {
+            return new Stats(size, pageCount, freePages.size(), cache.hits.sum(), cache.misses.sum());
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /// Syncs any pending commits, then closes the file.
+    @Override
+    public void close() {
+        writer.lock();
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (failure == null && unsyncedCommits > 0) {
+                    sync();
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close session B-tree " + configuration.file(), e);
+        } finally {
+            lock.writeLock().unlock();
+            writer.unlock();
+        }
+    }
+
+    private String key(String sessionId) {
+        Ensure.nonBlank("btree.session_id", sessionId);
+        if (utf8Length(sessionId) > maxKeyBytes()) {
+            throw new IllegalArgumentException("btree.session_id MUST be at most " + maxKeyBytes() + " bytes");
+        }
+        return sessionId;
+    }
+
+    /// Keys and inline values are capped so that any entry fits in half a page, which guarantees
+    /// that splitting an overfull node in two always yields nodes that fit.
+    private int maxKeyBytes() {
+        return pageSize / 16;
+    }
+
+    private int maxInlineBytes() {
+        return pageSize / 4;
+    }
+
+    private ReentrantLock stripe(String key) {
+        return stripes[key.hashCode() & (LOCK_STRIPES - 1)];
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Session B-tree is closed");
+        }
+    }
+
+    private byte[] find(String key) throws IOException {
+        var page = root;
+        while (page != NO_PAGE) {
+            switch (node(page)) {
+                case Branch branch -> page = branch.children()[childIndex(branch, key)];
+                case Leaf leaf -> {
+                    var index = Arrays.binarySearch(leaf.keys(), key);
+                    return index < 0 ? null : readValue(leaf.values()[index]);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void write(String key, byte[] body) {
+        mutate(current -> {
+            if (current == NO_PAGE) {
+                sizeChange++;
+                return writeNode(new Leaf(new String[]{key}, new Value[]{writeValue(body)}));
+            }
+            var change = insert(current, key, body);
+            if (change == null) {
+                return current;
+            }
+            if (change.right() == NO_PAGE) {
+                return change.left();
+            }
+            return writeNode(new Branch(new String[]{change.separator()}, new long[]{change.left(), change.right()}));
+        });
+    }
+
+    private void delete(String key) {
+        mutate(current -> current == NO_PAGE ? NO_PAGE : delete(current, key));
+    }
+
+    /// Runs one copy-on-write change against the published root and publishes the root it returns,
+    /// syncing once [Configuration#commitsPerSync()] commits are pending. Nothing is committed when
+    /// the change wrote no page and replaced none.
+    private void mutate(Mutation mutation) {
+        writer.lock();
+        try {
+            ensureWritable();
+            sizeChange = 0;
+            long newRoot;
+            try {
+                newRoot = mutation.apply(root);
+                if (allocatedPages.isEmpty() && releasedPages.isEmpty()) {
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                while (!allocatedPages.isEmpty()) {
+                    freePages.push(allocatedPages.pop());
+                }
+                releasedPages.clear();
+                if (e instanceof IOException io) {
+                    throw new UncheckedIOException("Failed to write session B-tree " + configuration.file(), io);
+                }
+                throw (RuntimeException) e;
+            }
+            allocatedPages.clear();
+            lock.writeLock().lock();
+            try {
+                root = newRoot;
+                size += sizeChange;
+                while (!releasedPages.isEmpty()) {
+                    unsyncedPages.push(releasedPages.pop());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (++unsyncedCommits >= configuration.commitsPerSync()) {
+                sync();
+            }
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    @Override
+    public boolean durable() {
+        return true;
+    }
+
+    @Override
+    public void checkpoint() {
+        writer.lock();
+        try {
+            ensureWritable();
+            if (unsyncedCommits > 0) {
+                sync();
+            }
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    private void ensureWritable() {
+        ensureOpen();
+        if (failure != null) {
+            throw new IllegalStateException("Session B-tree failed to commit and is read-only", failure);
+        }
+    }
+
+    /// `fsync`s the published tree's pages, then commits it through the alternate meta page. Pages
+    /// the synced commits replaced become reusable only once that meta page is durable.
+    private void sync() {
+        try {
+            channel.force(false);
+            writeMeta(commit + 1, root, pageCount, size);
+        } catch (IOException e) {
+            // The meta page may or may not have reached disk, so neither tree's pages can be reused.
+            failure = e;
+            throw new UncheckedIOException("Failed to commit session B-tree " + configuration.file(), e);
+        }
+        commit++;
+        unsyncedCommits = 0;
+        while (!unsyncedPages.isEmpty()) {
+            freePages.push(unsyncedPages.pop());
+        }
+    }
+
+    /// Inserts or replaces `key` below `page`, returning the page(s) replacing it, or `null` when the
+    /// stored session already equals `body`.
+    private Change insert(long page, String key, byte[] body) throws IOException {
+        switch (node(page)) {
+            case Branch branch -> {
+                var index = childIndex(branch, key);
+                var change = insert(branch.children()[index], key, body);
+                if (change == null) {
+                    return null;
+                }
+                var keys = branch.keys();
+                var children = branch.children().clone();
+                children[index] = change.left();
+                if (change.right() != NO_PAGE) {
+                    keys = insertAt(keys, index, change.separator());
+                    children = insertAt(children, index + 1, change.right());
+                }
+                releasedPages.push(page);
+                return writeBranch(keys, children);
+            }
+            case Leaf leaf -> {
+                var index = Arrays.binarySearch(leaf.keys(), key);
+                String[] keys;
+                Value[] values;
+                if (index >= 0) {
+                    var previous = leaf.values()[index];
+                    if (previous.length() == body.length && Arrays.equals(readValue(previous), body)) {
+                        return null;
+                    }
+                    releaseValue(previous);
+                    keys = leaf.keys();
+                    values = leaf.values().clone();
+                    values[index] = writeValue(body);
+                } else {
+                    keys = insertAt(leaf.keys(), -index - 1, key);
+                    values = insertAt(leaf.values(), -index - 1, writeValue(body));
+                    sizeChange++;
+                }
+                releasedPages.push(page);
+                return writeLeaf(keys, values);
+            }
+        }
+    }
+
+    /// Removes `key` below `page`, returning the page replacing it: `page` itself when `key` is
+    /// absent, or [#NO_PAGE] when the subtree became empty.
+    private long delete(long page, String key) throws IOException {
+        switch (node(page)) {
+            case Branch branch -> {
+                var index = childIndex(branch, key);
+                var child = branch.children()[index];
+                var replacement = delete(child, key);
+                if (replacement == child) {
+                    return page;
+                }
+                releasedPages.push(page);
+                if (replacement != NO_PAGE) {
+                    var children = branch.children().clone();
+                    children[index] = replacement;
+                    return writeNode(new Branch(branch.keys(), children));
+                }
+                if (branch.children().length == 1) {
+                    return NO_PAGE;
+                }
+                var keys = removeAt(branch.keys(), Math.max(0, index - 1));
+                var children = removeAt(branch.children(), index);
+                return children.length == 1 ? children[0] : writeNode(new Branch(keys, children));
+            }
+            case Leaf leaf -> {
+                var index = Arrays.binarySearch(leaf.keys(), key);
+                if (index < 0) {
+                    return page;
+                }
+                releaseValue(leaf.values()[index]);
+                releasedPages.push(page);
+                sizeChange--;
+                if (leaf.keys().length == 1) {
+                    return NO_PAGE;
+                }
+                return writeNode(new Leaf(removeAt(leaf.keys(), index), removeAt(leaf.values(), index)));
+            }
+        }
+    }
+
+    private Change writeLeaf(String[] keys, Value[] values) throws IOException {
+        var entryBytes = new int[keys.length];
+        var total = NODE_HEADER_BYTES;
+        for (var i = 0; i < keys.length; i++) {
+            entryBytes[i] = 2 + utf8Length(keys[i]) + 1 + Integer.BYTES
+                    + (values[i].inline() == null ? Long.BYTES : values[i].length());
+            total += entryBytes[i];
+        }
+        if (total <= pageSize) {
+            return new Change(writeNode(new Leaf(keys, values)), null, NO_PAGE);
+        }
+        var used = NODE_HEADER_BYTES;
+        var split = 0;
+        while (used + entryBytes[split] <= pageSize) {
+            used += entryBytes[split++];
+        }
+        var left = writeNode(new Leaf(Arrays.copyOfRange(keys, 0, split), Arrays.copyOfRange(values, 0, split)));
+        var right = writeNode(new Leaf(
+                Arrays.copyOfRange(keys, split, keys.length), Arrays.copyOfRange(values, split, values.length)));
+        return new Change(left, keys[split], right);
+    }
+
+    /// Splits an overfull branch around the first key that does not fit, which moves up as the
+    /// separator.
+    private Change writeBranch(String[] keys, long[] children) throws IOException {
+        var entryBytes = new int[keys.length];
+        var total = NODE_HEADER_BYTES + Long.BYTES;
+        for (var i = 0; i < keys.length; i++) {
+            entryBytes[i] = 2 + utf8Length(keys[i]) + Long.BYTES;
+            total += entryBytes[i];
+        }
+        if (total <= pageSize) {
+            return new Change(writeNode(new Branch(keys, children)), null, NO_PAGE);
+        }
+        var used = NODE_HEADER_BYTES + Long.BYTES;
+        var split = 0;
+        while (used + entryBytes[split] <= pageSize) {
+            used += entryBytes[split++];
+        }
+        var left = writeNode(new Branch(Arrays.copyOfRange(keys, 0, split), Arrays.copyOfRange(children, 0, split + 1)));
+        var right = writeNode(new Branch(
+                Arrays.copyOfRange(keys, split + 1, keys.length), Arrays.copyOfRange(children, split + 1, children.length)));
+        return new Change(left, keys[split], right);
+    }
+
+    private long writeNode(Node node) throws IOException {
+        var page = allocate();
+        var buffer = ByteBuffer.allocate(pageSize).position(Integer.BYTES);
+        switch (node) {
+            case Leaf leaf -> {
+                buffer.put(LEAF).putShort((short) leaf.keys().length);
+                for (var i = 0; i < leaf.keys().length; i++) {
+                    var key = leaf.keys()[i].getBytes(StandardCharsets.UTF_8);
+                    var value = leaf.values()[i];
+                    buffer.putShort((short) key.length).put(key);
+                    if (value.inline() != null) {
+                        buffer.put(INLINE).putInt(value.length()).put(value.inline());
+                    } else {
+                        buffer.put(SPILLED).putInt(value.length()).putLong(value.overflow());
+                    }
+                }
+            }
+            case Branch branch -> {
+                buffer.put(BRANCH).putShort((short) branch.keys().length).putLong(branch.children()[0]);
+                for (var i = 0; i < branch.keys().length; i++) {
+                    var key = branch.keys()[i].getBytes(StandardCharsets.UTF_8);
+                    buffer.putShort((short) key.length).put(key).putLong(branch.children()[i + 1]);
+                }
+            }
+        }
+        writePage(page, buffer);
+        cache.put(page, node);
+        return page;
+    }
+
+    private Node node(long page) throws IOException {
+        var cached = cache.get(page);
+        if (cached != null) {
+            return cached;
+        }
+        var buffer = readPage(page);
+        var type = buffer.get();
+        var count = Short.toUnsignedInt(buffer.getShort());
+        Node node = switch (type) {
+            case LEAF -> {
+                var keys = new String[count];
+                var values = new Value[count];
+                for (var i = 0; i < count; i++) {
+                    keys[i] = readKey(buffer);
+                    var kind = buffer.get();
+                    var length = buffer.getInt();
+                    if (kind == INLINE) {
+                        var inline = new byte[length];
+                        buffer.get(inline);
+                        values[i] = new Value(length, inline, NO_PAGE);
+                    } else {
+                        values[i] = new Value(length, null, buffer.getLong());
+                    }
+                }
+                yield new Leaf(keys, values);
+            }
+            case BRANCH -> {
+                var keys = new String[count];
+                var children = new long[count + 1];
+                children[0] = buffer.getLong();
+                for (var i = 0; i < count; i++) {
+                    keys[i] = readKey(buffer);
+                    children[i + 1] = buffer.getLong();
+                }
+                yield new Branch(keys, children);
+            }
+            default -> throw new IllegalStateException("Session B-tree page " + page + " is not a tree node");
+        };
+        cache.put(page, node);
+        return node;
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        var key = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /// Writes `body` inline when small, otherwise as an overflow chain written back to front so
+    /// every page already knows its successor.
+    private Value writeValue(byte[] body) throws IOException {
+        if (body.length <= maxInlineBytes()) {
+            return new Value(body.length, body, NO_PAGE);
+        }
+        var chunk = pageSize - OVERFLOW_HEADER_BYTES;
+        var next = NO_PAGE;
+        for (var from = (body.length - 1) / chunk * chunk; from >= 0; from -= chunk) {
+            var length = Math.min(chunk, body.length - from);
+            var page = allocate();
+            var buffer = ByteBuffer.allocate(pageSize).position(Integer.BYTES);
+            buffer.put(OVERFLOW).putInt(length).putLong(next).put(body, from, length);
+            writePage(page, buffer);
+            next = page;
+        }
+        return new Value(body.length, null, next);
+    }
+
+    private byte[] readValue(Value value) throws IOException {
+        if (value.inline() != null) {
+            return value.inline();
+        }
+        var body = new byte[value.length()];
+        var offset = 0;
+        for (var page = value.overflow(); page != NO_PAGE; ) {
+            var buffer = overflowPage(page);
+            var length = buffer.getInt();
+            page = buffer.getLong();
+            if (offset + length > body.length) {
+                throw new IllegalStateException("Session B-tree overflow chain is longer than its value");
+            }
+            buffer.get(body, offset, length);
+            offset += length;
+        }
+        if (offset != body.length) {
+            throw new IllegalStateException("Session B-tree overflow chain is shorter than its value");
+        }
+        return body;
+    }
+
+    private void releaseValue(Value value) throws IOException {
+        for (var page = value.overflow(); page != NO_PAGE; ) {
+            releasedPages.push(page);
+            page = overflowPage(page).position(Integer.BYTES + 1 + Integer.BYTES).getLong();
+        }
+    }
+
+    private ByteBuffer overflowPage(long page) throws IOException {
+        var buffer = readPage(page);
+        if (buffer.get() != OVERFLOW) {
+            throw new IllegalStateException("Session B-tree page " + page + " is not an overflow page");
+        }
+        return buffer;
+    }
+
+    private long allocate() {
+        var page = freePages.isEmpty() ? pageCount++ : freePages.pop();
+        allocatedPages.push(page);
+        return page;
+    }
+
+    private void writePage(long page, ByteBuffer buffer) throws IOException {
+        var crc = new CRC32C();
+        crc.update(buffer.clear().position(Integer.BYTES));
+        buffer.putInt(0, (int) crc.getValue()).clear();
+        var position = page * pageSize;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /// The page after its checksum, positioned at its type byte.
+    private ByteBuffer readPage(long page) throws IOException {
+        var buffer = ByteBuffer.allocate(pageSize);
+        if (!readFully(buffer, page * pageSize)) {
+            throw new IllegalStateException("Session B-tree page " + page + " is truncated");
+        }
+        var crc = new CRC32C();
+        crc.update(buffer.position(Integer.BYTES));
+        if ((int) crc.getValue() != buffer.getInt(0)) {
+            throw new IllegalStateException("Session B-tree page " + page + " is corrupt");
+        }
+        return buffer.position(Integer.BYTES);
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private void writeMeta(long commit, long root, long pageCount, int size) throws IOException {
+        var buffer = ByteBuffer.allocate(META_BYTES).position(Integer.BYTES);
+        buffer.putInt(MAGIC).putInt(pageSize).putLong(commit).putLong(root).putLong(pageCount).putLong(size);
+        var crc = new CRC32C();
+        crc.update(buffer.flip().position(Integer.BYTES));
+        buffer.putInt(0, (int) crc.getValue()).clear();
+        var position = (commit & 1) * pageSize;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+    }
+
+    /// Loads the newest intact meta page and frees every data page its tree does not reach.
+    private void recover() throws IOException {
+        Meta latest = null;
+        for (var slot = 0; slot < 2; slot++) {
+            var meta = readMeta(slot);
+            if (meta != null && (latest == null || meta.commit() > latest.commit())) {
+                latest = meta;
+            }
+        }
+        if (latest == null) {
+            throw new IllegalStateException("Session B-tree " + configuration.file() + " has no intact meta page");
+        }
+        if (latest.pageSize() != pageSize) {
+            throw new IllegalStateException("Session B-tree " + configuration.file() + " uses "
+                    + latest.pageSize() + "-byte pages, not " + pageSize);
+        }
+        if (latest.pageCount() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Session B-tree " + configuration.file() + " has too many pages");
+        }
+        commit = latest.commit();
+        root = latest.root();
+        pageCount = latest.pageCount();
+        size = (int) latest.size();
+        var reachable = new BitSet((int) pageCount);
+        markReachable(root, reachable);
+        for (var page = pageCount - 1; page >= FIRST_DATA_PAGE; page--) {
+            if (!reachable.get((int) page)) {
+                freePages.push(page);
+            }
+        }
+    }
+
+    private void markReachable(long page, BitSet reachable) throws IOException {
+        if (page == NO_PAGE) {
+            return;
+        }
+        reachable.set((int) page);
+        switch (node(page)) {
+            case Branch branch -> {
+                for (var child : branch.children()) {
+                    markReachable(child, reachable);
+                }
+            }
+            case Leaf leaf -> {
+                for (var value : leaf.values()) {
+                    for (var overflow = value.overflow(); overflow != NO_PAGE; ) {
+                        reachable.set((int) overflow);
+                        overflow = overflowPage(overflow).position(Integer.BYTES + 1 + Integer.BYTES).getLong();
+                    }
+                }
+            }
+        }
+    }
+
+    private Meta readMeta(int slot) throws IOException {
+        var buffer = ByteBuffer.allocate(META_BYTES);
+        if (!readFully(buffer, (long) slot * pageSize)) {
+            return null;
+        }
+        var checksum = buffer.getInt();
+        var crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum || buffer.getInt() != MAGIC) {
+            return null;
+        }
+        return new Meta(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /// Fills `out` with alternating ids and bodies from the first leaf below `page` holding ids after
+    /// `after`, or every id when `after` is `null`.
+    private void collectAfter(long page, String after, List<byte[]> out) throws IOException {
+        if (page == NO_PAGE) {
+            return;
+        }
+        switch (node(page)) {
+            case Branch branch -> {
+                var start = after == null ? 0 : childIndex(branch, after);
+                for (var i = start; i < branch.children().length && out.isEmpty(); i++) {
+                    collectAfter(branch.children()[i], after, out);
+                }
+            }
+            case Leaf leaf -> {
+                var start = 0;
+                if (after != null) {
+                    var index = Arrays.binarySearch(leaf.keys(), after);
+                    start = index >= 0 ? index + 1 : -index - 1;
+                }
+                for (var i = start; i < leaf.keys().length; i++) {
+                    out.add(leaf.keys()[i].getBytes(StandardCharsets.UTF_8));
+                    out.add(readValue(leaf.values()[i]));
+                }
+            }
+        }
+    }
+
+    /// `file` is created on first use. `cachePages` bounds the decoded pages kept in memory.
+    /// `commitsPerSync` commits share one sync; anything above one loses the latest commits on a
+    /// crash and is only safe when a journal can replay them.
+    public record Configuration(Path file, int pageSize, int cachePages, int commitsPerSync) {
+        private static final int DEFAULT_PAGE_SIZE = 8192;
+        private static final int DEFAULT_CACHE_PAGES = 8192;
+        private static final int JOURNALED_COMMITS_PER_SYNC = 1024;
+
+        public Configuration {
+            file = Ensure.notNull("btree.file", file).toAbsolutePath().normalize();
+            if (pageSize < 1024 || pageSize > 65536 || Integer.bitCount(pageSize) != 1) {
+                throw new IllegalArgumentException("btree.page_size MUST be a power of two between 1024 and 65536");
+            }
+            Ensure.positiveInt("btree.cache_pages", cachePages);
+            Ensure.positiveInt("btree.commits_per_sync", commitsPerSync);
+        }
+
+        /// As above, syncing every commit.
+        public Configuration(Path file, int pageSize, int cachePages) {
+            this(file, pageSize, cachePages, 1);
+        }
+
+        public static Configuration defaults(Path file) {
+            return new Configuration(file, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES);
+        }
+
+        /// For a store behind a checkout journal: syncs every 1024 commits and at checkpoints.
+        public static Configuration journaled(Path file) {
+            return new Configuration(file, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES, JOURNALED_COMMITS_PER_SYNC);
+        }
+    }
+
+    /// `pages` counts every page in the file, meta pages included; `cacheHits` and `cacheMisses` count
+    /// tree page lookups since open.
+    public record Stats(int sessions, long pages, long freePages, long cacheHits, long cacheMisses) {
+    }
+
+    @FunctionalInterface
+    private interface Mutation {
+        long apply(long root) throws IOException;
+    }
+
+    private sealed interface Node permits Leaf, Branch {
+    }
+
+    /// `keys[i]` is the smallest key under `children[i + 1]`.
+    private record Branch(String[] keys, long[] children) implements Node {
+    }
+
+    private record Leaf(String[] keys, Value[] values) implements Node {
+    }
+
+    /// `inline` is `null` when the value spilled into the overflow chain starting at `overflow`.
+    private record Value(int length, byte[] inline, long overflow) {
+    }
+
+    /// `right` is [#NO_PAGE] unless the node split around `separator`.
+    private record Change(long left, String separator, long right) {
+    }
+
+    private record Meta(int pageSize, long commit, long root, long pageCount, long size) {
+    }
+
+    private static final class LongStack {
+        private long[] values = new long[16];
+        private int size;
+
+        private void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private long pop() {
+            return values[--size];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+    }
+
+    /// Clock cache of decoded tree pages. Lookups are lock-free; frames are immutable and replaced
+    /// whole, so a reader racing an eviction still sees the node of the page it asked for.
+    private static final class PageCache {
+        private final ConcurrentLongHashMap<Frame> index = new ConcurrentLongHashMap<>();
+        private final Frame[] frames;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private int hand;
+
+        private PageCache(int capacity) {
+            this.frames = new Frame[capacity];
+        }
+
+        private Node get(long page) {
+            var frame = index.get(page);
+            if (frame == null) {
+                misses.increment();
+                return null;
+            }
+            frame.referenced = true;
+            hits.increment();
+            return frame.node;
+        }
+
+        private void put(long page, Node node) {
+            lock.lock();
+            try {
+                var existing = index.get(page);
+                var slot = existing != null ? existing.slot : victim();
+                var frame = new Frame(page, node, slot);
+                frames[slot] = frame;
+                index.put(page, frame);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /// Sweeps the clock hand past recently used frames and frees the first one that is not.
+        private int victim() {
+            while (true) {
+                var slot = hand;
+                hand = (hand + 1) % frames.length;
+                var frame = frames[slot];
+                if (frame == null) {
+                    return slot;
+                }
+                if (frame.referenced) {
+                    frame.referenced = false;
+                } else {
+                    index.remove(frame.page);
+                    return slot;
+                }
+            }
+        }
+    }
+
+    private static final class Frame {
+        private final long page;
+        private final Node node;
+        private final int slot;
+        private volatile boolean referenced;
+
+        private Frame(long page, Node node, int slot) {
+            this.page = page;
+            this.node = node;
+            this.slot = slot;
+        }
+    }
+
+    /// Walks sessions in id order one leaf at a time, remembering only the last id it returned.
+    private final class Cursor extends Spliterators.AbstractSpliterator<CheckoutSession> {
+        private final ArrayDeque<byte[]> buffered = new ArrayDeque<>();
+        private String after;
+        private boolean exhausted;
+
+        private Cursor() {
+            super(Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.DISTINCT);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super CheckoutSession> action) {
+            if (buffered.isEmpty() && !exhausted) {
+                var batch = new ArrayList<byte[]>();
+                lock.readLock().lock();
+                try {
+                    ensureOpen();
+                    collectAfter(root, after, batch);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to scan session B-tree " + configuration.file(), e);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                exhausted = batch.isEmpty();
+                buffered.addAll(batch);
+            }
+            if (buffered.isEmpty()) {
+                return false;
+            }
+            after = new String(buffered.poll(), StandardCharsets.UTF_8);
+            action.accept(codec.readCheckoutSession(ByteBuffer.wrap(buffered.poll())));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.codec.CheckoutSessionBinaryCodec;
+import com.amannmalik.acp.spi.storage.CheckoutSessionArchive;
+import com.amannmalik.acp.util.Ensure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/// Append-only, Deflate-compressed archive of expired terminal checkout sessions.
+///
+/// Sessions are stored in `archive-<index>.bin` segments as `[int length][int crc32c][payload]`
+/// frames whose payload is `[int id length][id][int raw length][deflated binary session]`, and each
+/// frame is `fsync`ed before [#store(CheckoutSession)] returns. Only the id-to-frame index lives on
+/// the heap; it is rebuilt by scanning frame headers on open, later frames replacing earlier ones.
+/// As with the journal, every process appends to a fresh segment, so a torn tail left by a crash
+/// is confined to a segment that is never written again and is skipped on open.
+public final class FileCheckoutSessionArchive implements CheckoutSessionArchive {
+    private static final int FRAME_HEADER_BYTES = 8;
+    private static final int MAX_FRAME_BYTES = 64 << 20;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("archive-(\\d{20})\\.bin");
+
+    private final Configuration configuration;
+    private final CheckoutSessionBinaryCodec codec = new CheckoutSessionBinaryCodec();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Location> index = new HashMap<>();
+    private final Map<Long, FileChannel> readers = new HashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private long segmentIndex;
+    private FileChannel segment;
+    private long segmentBytes;
+    private boolean closed;
+
+    public FileCheckoutSessionArchive(Configuration configuration) {
+        this.configuration = Ensure.notNull("archive.configuration", configuration);
+        try {
+            Files.createDirectories(configuration.directory());
+            var existing = indices();
+            for (var existingIndex : existing) {
+                scan(existingIndex);
+            }
+            this.segmentIndex = existing.isEmpty() ? 0L : existing.getLast() + 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open session archive in " + configuration.directory(), e);
+        }
+    }
+
+    private static String segmentName(long index) {
+        return "archive-%020d.bin".formatted(index);
+    }
+
+    @Override
+    public void store(CheckoutSession session) {
+        Ensure.notNull("archive.session", session);
+        var id = session.id().value().getBytes(StandardCharsets.UTF_8);
+        var raw = codec.writeCheckoutSession(session);
+        lock.lock();
+        try {
+            ensureOpen();
+            var compressed = deflate(raw);
+            var payload = ByteBuffer.allocate(Integer.BYTES * 2 + id.length + compressed.length);
+            payload.putInt(id.length).put(id).putInt(raw.length).put(compressed).flip();
+            var crc = new CRC32C();
+            crc.update(payload.duplicate());
+            var frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.remaining());
+            frame.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload).flip();
+            if (segment != null && segmentBytes >= configuration.segmentBytes()) {
+                segment.close();
+                segment = null;
+                segmentIndex++;
+            }
+            if (segment == null) {
+                segment = FileChannel.open(
+                        configuration.directory().resolve(segmentName(segmentIndex)),
+                        StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                segmentBytes = 0;
+            }
+            var offset = segmentBytes;
+            var length = frame.remaining();
+            while (frame.hasRemaining()) {
+                segment.write(frame);
+            }
+            segment.force(false);
+            segmentBytes += length;
+            index.put(session.id().value(), new Location(segmentIndex, offset, length));
+        } catch (IOException e) {
+            abandonSegment();
+            throw new UncheckedIOException("Failed to archive session in " + configuration.directory(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<CheckoutSession> find(String sessionId) {
+        lock.lock();
+        try {
+            ensureOpen();
+            var location = index.get(sessionId);
+            if (location == null) {
+                return Optional.empty();
+            }
+            var frame = ByteBuffer.allocate(location.length());
+            var channel = reader(location.segment());
+            var position = location.offset();
+            while (frame.hasRemaining()) {
+                var read = channel.read(frame, position);
+                if (read < 0) {
+                    throw new IllegalStateException("Truncated archive frame for session " + sessionId);
+                }
+                position += read;
+            }
+            frame.flip().position(FRAME_HEADER_BYTES);
+            var idLength = frame.getInt();
+            frame.position(frame.position() + idLength);
+            var raw = new byte[frame.getInt()];
+            return Optional.of(codec.readCheckoutSession(ByteBuffer.wrap(inflate(frame, raw))));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived session " + sessionId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// Number of distinct sessions in the archive.
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+            for (var reader : readers.values()) {
+                reader.close();
+            }
+            readers.clear();
+            deflater.end();
+            inflater.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close session archive in " + configuration.directory(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Session archive is closed");
+        }
+    }
+
+    /// Seals the current segment after a failed write so a partial frame is never followed by
+    /// indexed ones.
+    private void abandonSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException ignored) {
+            // The segment is already unusable; its intact frames are re-indexed on the next open.
+        }
+        segment = null;
+        segmentIndex++;
+    }
+
+    private byte[] deflate(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        var buffer = new byte[Math.max(64, raw.length / 2)];
+        var length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private byte[] inflate(ByteBuffer compressed, byte[] raw) {
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            var length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                var inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != raw.length) {
+                throw new IllegalStateException("Archived session inflated to " + length + " bytes, expected " + raw.length);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt archived session", e);
+        }
+    }
+
+    private FileChannel reader(long segmentIndex) throws IOException {
+        var reader = readers.get(segmentIndex);
+        if (reader == null) {
+            reader = FileChannel.open(configuration.directory().resolve(segmentName(segmentIndex)), StandardOpenOption.READ);
+            readers.put(segmentIndex, reader);
+        }
+        return reader;
+    }
+
+    /// Indexes every intact frame of a sealed segment, stopping at the first torn or corrupt one.
+    private void scan(long segmentIndex) throws IOException {
+        try (var channel = FileChannel.open(
+                configuration.directory().resolve(segmentName(segmentIndex)), StandardOpenOption.READ)) {
+            var size = channel.size();
+            var offset = 0L;
+            var header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+            while (offset + FRAME_HEADER_BYTES <= size) {
+                header.clear();
+                channel.read(header, offset);
+                header.flip();
+                var length = header.getInt();
+                var checksum = header.getInt();
+                if (length < Integer.BYTES || length > MAX_FRAME_BYTES || offset + FRAME_HEADER_BYTES + length > size) {
+                    return;
+                }
+                var payload = ByteBuffer.allocate(length);
+                channel.read(payload, offset + FRAME_HEADER_BYTES);
+                payload.flip();
+                var crc = new CRC32C();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+                var id = new byte[payload.getInt()];
+                payload.get(id);
+                var frameLength = FRAME_HEADER_BYTES + length;
+                index.put(new String(id, StandardCharsets.UTF_8), new Location(segmentIndex, offset, frameLength));
+                offset += frameLength;
+            }
+        }
+    }
+
+    private List<Long> indices() throws IOException {
+        try (var files = Files.list(configuration.directory())) {
+            return files.map(path -> SEGMENT_NAME.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    public record Configuration(Path directory, long segmentBytes) {
+        private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+        public Configuration {
+            directory = Ensure.notNull("archive.directory", directory).toAbsolutePath().normalize();
+            Ensure.positiveLong("archive.segment_bytes", segmentBytes);
+        }
+
+        public static Configuration defaults(Path directory) {
+            return new Configuration(directory, DEFAULT_SEGMENT_BYTES);
+        }
+    }
+
+    private record Location(long segment, long offset, int length) {
+    }
+}
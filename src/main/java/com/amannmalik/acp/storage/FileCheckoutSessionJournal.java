@@ -0,0 +1,540 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.storage.JournalRecord;
+import com.amannmalik.acp.util.Ensure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/// Segmented, checksummed write-ahead log with group commit and snapshot compaction.
+///
+/// Layout of the data directory:
+///
+/// - `wal-<index>.log` — segments of `[int length][int crc32c][payload]` frames, each frame holding
+///   one atomic [#append(JournalRecord...)] call.
+/// - `snapshot-<index>.snap` — the live state as of the start of segment `index`, framed the same
+///   way. Replay loads the newest snapshot and then every segment with an index at or above it.
+///
+/// A single flusher thread drains queued frames, writes them with one gathering write and issues
+/// one `fsync` for the whole batch, so concurrent writers share the cost of each commit. Every
+/// process start writes to a fresh segment, which confines a torn tail to a segment that is never
+/// appended to again; replay truncates such a tail instead of failing.
+///
+/// A failed compaction is logged and counted in [#compactionFailures()], and the log keeps growing
+/// until the next attempt, which waits a delay that doubles with every consecutive failure.
+public final class FileCheckoutSessionJournal implements CheckoutSessionJournal {
+    private static final System.Logger LOG = System.getLogger(FileCheckoutSessionJournal.class.getName());
+    private static final int MAGIC = 0x4143504A;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 8;
+    private static final int FRAME_HEADER_BYTES = 8;
+    private static final int MAX_FRAME_BYTES = 64 << 20;
+    private static final int SNAPSHOT_RECORDS_PER_FRAME = 256;
+    private static final int SNAPSHOT_FRAMES_PER_BATCH = 1024;
+    private static final int READ_BUFFER_BYTES = 1 << 20;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d{20})\\.log");
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d{20})\\.snap");
+    private static final Duration COMPACTION_RETRY_MIN = Duration.ofSeconds(1);
+    private static final Duration COMPACTION_RETRY_MAX = Duration.ofMinutes(5);
+
+    private final Configuration configuration;
+    private final JournalRecordCodec codec = new JournalRecordCodec();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final LongAdder compactionFailures = new LongAdder();
+    private final Thread flusher;
+    private volatile Supplier<Stream<JournalRecord>> liveState;
+    private volatile Thread compactor;
+    /// [System#nanoTime()] before which no compaction starts, pushed back after a failure.
+    private volatile long compactionNotBefore = System.nanoTime();
+    /// Failures since the last successful compaction; only touched by the compactor, which
+    /// `compacting` confines to one thread at a time.
+    private int consecutiveCompactionFailures;
+
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long appendedPosition;
+    private long durablePosition;
+    private IOException failure;
+    private boolean closed;
+
+    private FileChannel segment;
+    private long segmentIndex;
+    private long segmentBytes;
+    private long bytesSinceSnapshot;
+
+    public FileCheckoutSessionJournal(Configuration configuration) {
+        this.configuration = Ensure.notNull("journal.configuration", configuration);
+        try {
+            Files.createDirectories(configuration.directory());
+            this.segmentIndex = Math.max(
+                    latestIndex(SEGMENT_NAME).orElse(-1L),
+                    latestIndex(SNAPSHOT_NAME).orElse(-1L)) + 1;
+            this.segment = openSegment(segmentIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open journal in " + configuration.directory(), e);
+        }
+        this.segmentBytes = FILE_HEADER_BYTES;
+        this.flusher = Thread.ofPlatform()
+                .name("acp-journal-flusher")
+                .daemon()
+                .start(this::flushLoop);
+    }
+
+    private static String segmentName(long index) {
+        return "wal-%020d.log".formatted(index);
+    }
+
+    private static String snapshotName(long index) {
+        return "snapshot-%020d.snap".formatted(index);
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        var crc = new CRC32C();
+        crc.update(payload);
+        var buffer = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        var last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        var header = ByteBuffer.allocate(FILE_HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    @Override
+    public void replay(Consumer<JournalRecord> sink) {
+        try {
+            var base = latestIndex(SNAPSHOT_NAME).orElse(-1L);
+            if (base >= 0) {
+                replaySnapshot(configuration.directory().resolve(snapshotName(base)), sink);
+            }
+            for (var index : indices(SEGMENT_NAME)) {
+                var path = configuration.directory().resolve(segmentName(index));
+                if (index < base) {
+                    Files.deleteIfExists(path);
+                } else if (index != segmentIndex) {
+                    replaySegment(path, sink);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to replay journal in " + configuration.directory(), e);
+        }
+    }
+
+    @Override
+    public void compactFrom(Supplier<Stream<JournalRecord>> liveState) {
+        this.liveState = Ensure.notNull("journal.live_state", liveState);
+    }
+
+    /// Compactions that failed since the journal was opened.
+    public long compactionFailures() {
+        return compactionFailures.sum();
+    }
+
+    @Override
+    public long append(JournalRecord... records) {
+        if (records.length == 0) {
+            throw new IllegalArgumentException("journal.append requires at least one record");
+        }
+        var frame = frame(codec.encode(records));
+        if (frame.remaining() > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Journal frame exceeds " + MAX_FRAME_BYTES + " bytes");
+        }
+        lock.lock();
+        try {
+            ensureWritable();
+            pending.add(frame);
+            pendingAvailable.signal();
+            return ++appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void await(long position) {
+        lock.lock();
+        try {
+            while (durablePosition < position) {
+                ensureWritable();
+                durable.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while awaiting journal commit", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+            var running = compactor;
+            if (running != null) {
+                running.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close journal segment", e);
+        }
+    }
+
+    private void ensureWritable() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal is unavailable after a write failure", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<ByteBuffer> batch;
+            long target;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                target = appendedPosition;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durablePosition = target;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) throws IOException {
+        if (segmentBytes >= configuration.segmentBytes()) {
+            rollSegment();
+        }
+        var buffers = batch.toArray(ByteBuffer[]::new);
+        var total = 0L;
+        for (var buffer : buffers) {
+            total += buffer.remaining();
+        }
+        writeFully(segment, buffers);
+        segment.force(false);
+        segmentBytes += total;
+        bytesSinceSnapshot += total;
+        if (bytesSinceSnapshot >= configuration.compactionBytes()
+                && liveState != null
+                && System.nanoTime() - compactionNotBefore >= 0
+                && compacting.compareAndSet(false, true)) {
+            rollSegment();
+            bytesSinceSnapshot = 0;
+            var base = segmentIndex;
+            compactor = Thread.ofVirtual().name("acp-journal-compactor").start(() -> compact(base));
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        segment.force(true);
+        segment.close();
+        segmentIndex++;
+        segment = openSegment(segmentIndex);
+        segmentBytes = FILE_HEADER_BYTES;
+    }
+
+    private FileChannel openSegment(long index) throws IOException {
+        var channel = FileChannel.open(
+                configuration.directory().resolve(segmentName(index)),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        writeHeader(channel);
+        channel.force(true);
+        syncDirectory();
+        return channel;
+    }
+
+    private void compact(long base) {
+        var directory = configuration.directory();
+        var temporary = directory.resolve(snapshotName(base) + ".tmp");
+        try {
+            try (var channel = FileChannel.open(
+                    temporary,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+                 var records = liveState.get()) {
+                writeHeader(channel);
+                var chunk = new ArrayList<JournalRecord>(SNAPSHOT_RECORDS_PER_FRAME);
+                var iterator = records.iterator();
+                while (iterator.hasNext()) {
+                    chunk.add(iterator.next());
+                    if (chunk.size() == SNAPSHOT_RECORDS_PER_FRAME || !iterator.hasNext()) {
+                        writeFully(channel, new ByteBuffer[]{frame(codec.encode(chunk.toArray(JournalRecord[]::new)))});
+                        chunk.clear();
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve(snapshotName(base)), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            for (var index : indices(SNAPSHOT_NAME)) {
+                if (index < base) {
+                    Files.deleteIfExists(directory.resolve(snapshotName(index)));
+                }
+            }
+            for (var index : indices(SEGMENT_NAME)) {
+                if (index < base) {
+                    Files.deleteIfExists(directory.resolve(segmentName(index)));
+                }
+            }
+            consecutiveCompactionFailures = 0;
+        } catch (IOException | RuntimeException e) {
+            compactionFailures.increment();
+            var delay = COMPACTION_RETRY_MIN.multipliedBy(1L << Math.min(consecutiveCompactionFailures++, 16));
+            if (delay.compareTo(COMPACTION_RETRY_MAX) > 0) {
+                delay = COMPACTION_RETRY_MAX;
+            }
+            compactionNotBefore = System.nanoTime() + delay.toNanos();
+            LOG.log(System.Logger.Level.ERROR,
+                    "Journal compaction at segment " + base + " failed; retrying in " + delay, e);
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // A stale temporary file is overwritten by the next compaction.
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private void replaySnapshot(Path path, Consumer<JournalRecord> sink) throws IOException {
+        try (var reader = new FrameReader(path)) {
+            var batch = new ArrayList<ByteBuffer>(SNAPSHOT_FRAMES_PER_BATCH);
+            ByteBuffer payload;
+            while ((payload = reader.next()) != null) {
+                batch.add(payload);
+                if (batch.size() == SNAPSHOT_FRAMES_PER_BATCH) {
+                    replaySnapshotBatch(batch, sink);
+                    batch.clear();
+                }
+            }
+            replaySnapshotBatch(batch, sink);
+            if (!reader.cleanEnd()) {
+                throw new IOException("Snapshot is corrupt: " + path);
+            }
+        }
+    }
+
+    /// Decodes `batch` in parallel, then hands its records to `sink` on this thread in file order, so
+    /// the sink needs no synchronization and a later record still overrides an earlier one.
+    private void replaySnapshotBatch(List<ByteBuffer> batch, Consumer<JournalRecord> sink) {
+        batch.parallelStream()
+                .map(frame -> {
+                    var records = new ArrayList<JournalRecord>(SNAPSHOT_RECORDS_PER_FRAME);
+                    codec.decode(frame, records::add);
+                    return records;
+                })
+                .toList()
+                .forEach(records -> records.forEach(sink));
+    }
+
+    private void replaySegment(Path path, Consumer<JournalRecord> sink) throws IOException {
+        long validEnd;
+        try (var reader = new FrameReader(path)) {
+            ByteBuffer payload;
+            while ((payload = reader.next()) != null) {
+                codec.decode(payload, sink);
+            }
+            if (reader.cleanEnd()) {
+                return;
+            }
+            validEnd = reader.validEnd();
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(validEnd);
+            channel.force(true);
+        }
+    }
+
+    private Optional<Long> latestIndex(Pattern pattern) throws IOException {
+        var indices = indices(pattern);
+        return indices.isEmpty() ? Optional.empty() : Optional.of(indices.getLast());
+    }
+
+    private List<Long> indices(Pattern pattern) throws IOException {
+        try (var files = Files.list(configuration.directory())) {
+            return files.map(path -> pattern.matcher(path.getFileName().toString()))
+                    .filter(java.util.regex.Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private void syncDirectory() {
+        try (var channel = FileChannel.open(configuration.directory(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // Not every platform allows opening a directory; renames are still atomic there.
+        }
+    }
+
+    public record Configuration(Path directory, long segmentBytes, long compactionBytes) {
+        private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+        private static final long DEFAULT_COMPACTION_BYTES = 512L << 20;
+
+        public Configuration {
+            directory = Ensure.notNull("journal.directory", directory).toAbsolutePath().normalize();
+            if (segmentBytes < FILE_HEADER_BYTES + FRAME_HEADER_BYTES) {
+                throw new IllegalArgumentException("journal.segment_bytes MUST be >= " + (FILE_HEADER_BYTES + FRAME_HEADER_BYTES));
+            }
+            if (compactionBytes < 1) {
+                throw new IllegalArgumentException("journal.compaction_bytes MUST be >= 1");
+            }
+        }
+
+        public static Configuration defaults(Path directory) {
+            return new Configuration(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_COMPACTION_BYTES);
+        }
+    }
+
+    /// Sequential frame iterator with a reusable read buffer. Stops at the first incomplete or
+    /// checksum-mismatched frame and reports where the last valid frame ended.
+    private static final class FrameReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        private final CRC32C crc = new CRC32C();
+        private long validEnd;
+        private boolean eof;
+        private boolean clean = true;
+
+        private FrameReader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            buffer.limit(0);
+            if (!fill(FILE_HEADER_BYTES) || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a journal file: " + path);
+            }
+            validEnd = FILE_HEADER_BYTES;
+        }
+
+        ByteBuffer next() throws IOException {
+            if (!fill(FRAME_HEADER_BYTES)) {
+                clean = buffer.remaining() == 0;
+                return null;
+            }
+            var length = buffer.getInt(buffer.position());
+            var checksum = buffer.getInt(buffer.position() + 4);
+            if (length < 0 || length > MAX_FRAME_BYTES) {
+                clean = false;
+                return null;
+            }
+            var payload = ByteBuffer.allocate(length);
+            buffer.position(buffer.position() + FRAME_HEADER_BYTES);
+            while (payload.hasRemaining()) {
+                if (!buffer.hasRemaining() && !fill(1)) {
+                    clean = false;
+                    return null;
+                }
+                var slice = buffer.slice(buffer.position(), Math.min(buffer.remaining(), payload.remaining()));
+                payload.put(slice);
+                buffer.position(buffer.position() + slice.capacity());
+            }
+            payload.flip();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                clean = false;
+                return null;
+            }
+            validEnd += FRAME_HEADER_BYTES + length;
+            return payload;
+        }
+
+        boolean cleanEnd() {
+            return clean;
+        }
+
+        long validEnd() {
+            return validEnd;
+        }
+
+        private boolean fill(int required) throws IOException {
+            if (buffer.remaining() >= required) {
+                return true;
+            }
+            buffer.compact();
+            while (buffer.position() < required && !eof) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                }
+            }
+            buffer.flip();
+            return buffer.remaining() >= required;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.codec.JsonEngine;
+import com.amannmalik.acp.codec.OrderWebhookJsonCodec;
+import com.amannmalik.acp.spi.webhook.DeadLetter;
+import com.amannmalik.acp.spi.webhook.DeadLetterSink;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
+import com.amannmalik.acp.util.Ensure;
+import jakarta.json.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/// Append-only store for webhook events that exhausted their delivery attempts.
+///
+/// Each dead letter is one JSON object per line in `dead-letters-<index>.ndjson` segments, written and
+/// `fsync`ed before [#append(DeadLetter)] returns. A store owns just the segment it is appending to:
+/// it creates a fresh one on first append and whenever the current one is full, and holds an
+/// exclusive file lock on it until it rolls over or the store closes. Every other segment is sealed
+/// and is never written to again. A replay claims sealed segments one at a time through
+/// [#claimSealed()], locking each until it is deleted or released, so `acp webhooks replay` runs
+/// alongside a live `acp serve` on the same directory and two replays never share a segment. A torn
+/// final line left by a crash is skipped on read.
+///
+/// Segments are created and claimed under a short-lived lock on `dead-letters.lock` in the directory,
+/// so a replay never claims a segment between its creation and its writer's lock. File locks belong
+/// to the process, so stores in one JVM also track the segments they hold in a shared set and never
+/// open one another's.
+public final class FileDeadLetterStore implements DeadLetterStore {
+    private static final Pattern SEGMENT_NAME = Pattern.compile("dead-letters-(\\d{20})\\.ndjson");
+    private static final String LOCK_NAME = "dead-letters.lock";
+    /// Segments held by a store in this JVM, written to or claimed.
+    private static final Set<Path> HELD = ConcurrentHashMap.newKeySet();
+    /// Serializes this JVM's stores on `dead-letters.lock`, which the OS would only do between processes.
+    private static final ReentrantLock DIRECTORY_LOCK = new ReentrantLock();
+
+    private final Configuration configuration;
+    private final Clock clock;
+    private final OrderWebhookJsonCodec codec = new OrderWebhookJsonCodec();
+    private final ReentrantLock lock = new ReentrantLock();
+    /// Sealed segments this store has claimed, each with the channel holding its lock.
+    private final Map<Path, FileChannel> claims = new ConcurrentHashMap<>();
+    private Path segmentPath;
+    private FileChannel segment;
+    private long segmentBytes;
+    private volatile boolean closed;
+
+    public FileDeadLetterStore(Configuration configuration, Clock clock) {
+        this.configuration = Ensure.notNull("dead_letters.configuration", configuration);
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+        try {
+            Files.createDirectories(configuration.directory());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open dead-letter store in " + configuration.directory(), e);
+        }
+    }
+
+    private static String segmentName(long index) {
+        return "dead-letters-%020d.ndjson".formatted(index);
+    }
+
+    /// Drops this store's hold on `path` and closes the channel holding its lock.
+    private static void unhold(Path path, FileChannel channel) throws IOException {
+        try {
+            channel.close();
+        } finally {
+            HELD.remove(path);
+        }
+    }
+
+    /// Sink for one endpoint's dispatcher: stamps each dead letter with `endpoint` and the current time.
+    @Override
+    public DeadLetterSink forEndpoint(String endpoint) {
+        Ensure.nonBlank("dead_letters.endpoint", endpoint);
+        return (event, attempts, cause) -> append(new DeadLetter(
+                endpoint,
+                event,
+                attempts,
+                cause == null ? null : cause.getMessage(),
+                clock.instant()));
+    }
+
+    @Override
+    public void append(DeadLetter deadLetter) {
+        Ensure.notNull("dead_letters.dead_letter", deadLetter);
+        var line = ByteBuffer.wrap((write(deadLetter).toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Dead-letter store is closed");
+            }
+            if (segment != null && segmentBytes >= configuration.segmentBytes()) {
+                var full = segment;
+                segment = null;
+                unhold(segmentPath, full);
+            }
+            if (segment == null) {
+                openSegment();
+            }
+            segmentBytes += line.remaining();
+            while (line.hasRemaining()) {
+                segment.write(line);
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append dead letter in " + configuration.directory(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// Segments no store holds, oldest first. Each is probed with its lock, so the list MAY already be
+    /// stale when it returns; replays go through [#claimSealed()] instead.
+    @Override
+    public List<Path> sealedSegments() {
+        try {
+            return underDirectoryLock(() -> {
+                var sealed = new ArrayList<Path>();
+                for (var path : segments()) {
+                    var channel = tryHold(path);
+                    if (channel != null) {
+                        unhold(path, channel);
+                        sealed.add(path);
+                    }
+                }
+                return sealed;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list dead letters in " + configuration.directory(), e);
+        }
+    }
+
+    @Override
+    public Path claimSealed() {
+        if (closed) {
+            throw new IllegalStateException("Dead-letter store is closed");
+        }
+        try {
+            return underDirectoryLock(() -> {
+                for (var path : segments()) {
+                    var channel = tryHold(path);
+                    if (channel != null) {
+                        claims.put(path, channel);
+                        return path;
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to claim dead letters in " + configuration.directory(), e);
+        }
+    }
+
+    @Override
+    public void release(Path segment) {
+        var channel = claims.remove(segment);
+        if (channel == null) {
+            return;
+        }
+        try {
+            unhold(segment, channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to release dead-letter segment " + segment, e);
+        }
+    }
+
+    /// Reads a claimed segment through the channel holding its claim: closing any other channel on
+    /// the file would drop the lock.
+    @Override
+    public void read(Path segment, Consumer<DeadLetter> sink) {
+        var claimed = claims.get(segment);
+        try {
+            if (claimed == null) {
+                try (var reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                    read(segment, reader, sink);
+                }
+            } else {
+                read(segment, new BufferedReader(Channels.newReader(claimed.position(0), StandardCharsets.UTF_8)), sink);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read dead letters from " + segment, e);
+        }
+    }
+
+    /// Deletes `segment` and, if this store claimed it, gives up the claim.
+    @Override
+    public void delete(Path segment) {
+        try {
+            Files.deleteIfExists(segment);
+            var channel = claims.remove(segment);
+            if (channel != null) {
+                unhold(segment, channel);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete dead-letter segment " + segment, e);
+        }
+    }
+
+    /// Seals the segment being appended to and releases every claim.
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            IOException failure = null;
+            if (segment != null) {
+                try {
+                    unhold(segmentPath, segment);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                segment = null;
+            }
+            for (var path : List.copyOf(claims.keySet())) {
+                try {
+                    unhold(path, claims.remove(path));
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Failed to close dead-letter store in " + configuration.directory(), failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// Creates the next segment and locks it before any replay can see it unlocked. Call under `lock`.
+    private void openSegment() throws IOException {
+        underDirectoryLock(() -> {
+            var existing = segments();
+            var next = existing.isEmpty() ? 0L : index(existing.getLast()) + 1;
+            var path = configuration.directory().resolve(segmentName(next));
+            var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            HELD.add(path);
+            try {
+                if (channel.tryLock() == null) {
+                    throw new IllegalStateException("Dead-letter segment " + path + " was locked as it was created");
+                }
+            } catch (IOException | RuntimeException e) {
+                unhold(path, channel);
+                Files.deleteIfExists(path);
+                throw e;
+            }
+            segmentPath = path;
+            segment = channel;
+            segmentBytes = 0;
+            return null;
+        });
+    }
+
+    /// Opens and locks `path` for this store, or returns `null` if a store in this or another process
+    /// holds it or it is gone. Call under the directory lock.
+    private FileChannel tryHold(Path path) throws IOException {
+        if (!HELD.add(path)) {
+            return null;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            HELD.remove(path);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            HELD.remove(path);
+            throw e;
+        }
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (IOException | RuntimeException e) {
+            unhold(path, channel);
+            throw e;
+        }
+        unhold(path, channel);
+        return null;
+    }
+
+    /// Runs `action` holding `dead-letters.lock`; closing the channel releases it.
+    private <T> T underDirectoryLock(DirectoryAction<T> action) throws IOException {
+        DIRECTORY_LOCK.lock();
+        try (var channel = FileChannel.open(
+                configuration.directory().resolve(LOCK_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.lock();
+            return action.run();
+        } finally {
+            DIRECTORY_LOCK.unlock();
+        }
+    }
+
+    private void read(Path segment, BufferedReader reader, Consumer<DeadLetter> sink) throws IOException {
+        var line = reader.readLine();
+        var lineNumber = 0;
+        while (line != null) {
+            lineNumber++;
+            var next = reader.readLine();
+            if (!line.isBlank()) {
+                DeadLetter deadLetter;
+                try {
+                    deadLetter = read(line);
+                } catch (RuntimeException e) {
+                    if (next == null) {
+                        return;
+                    }
+                    throw new IllegalStateException(
+                            "Corrupt dead letter at " + segment.getFileName() + ":" + lineNumber, e);
+                }
+                sink.accept(deadLetter);
+            }
+            line = next;
+        }
+    }
+
+    private JsonObject write(DeadLetter deadLetter) {
+        return JsonEngine.createObjectBuilder()
+                .add("endpoint", deadLetter.endpoint())
+                .add("attempts", deadLetter.attempts())
+                .add("reason", deadLetter.reason())
+                .add("failed_at", deadLetter.failedAt().toString())
+                .add("event", codec.write(deadLetter.event()))
+                .build();
+    }
+
+    private DeadLetter read(String line) {
+        JsonObject root;
+        try (var reader = JsonEngine.createReader(new StringReader(line))) {
+            root = reader.readObject();
+        }
+        return new DeadLetter(
+                root.getString("endpoint"),
+                codec.read(root.getJsonObject("event")),
+                root.getInt("attempts"),
+                root.getString("reason", null),
+                Instant.parse(root.getString("failed_at")));
+    }
+
+    private static long index(Path segment) {
+        var matcher = SEGMENT_NAME.matcher(segment.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a dead-letter segment: " + segment);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /// Every segment in the directory, oldest first.
+    private List<Path> segments() throws IOException {
+        try (var files = Files.list(configuration.directory())) {
+            return files.filter(path -> SEGMENT_NAME.matcher(path.getFileName().toString()).matches())
+                    .sorted(Comparator.comparingLong(FileDeadLetterStore::index))
+                    .toList();
+        }
+    }
+
+    @FunctionalInterface
+    private interface DirectoryAction<T> {
+        T run() throws IOException;
+    }
+
+    public record Configuration(Path directory, long segmentBytes) {
+        private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+        public Configuration {
+            directory = Ensure.notNull("dead_letters.directory", directory).toAbsolutePath().normalize();
+            Ensure.positiveLong("dead_letters.segment_bytes", segmentBytes);
+        }
+
+        public static Configuration defaults(Path directory) {
+            return new Configuration(directory, DEFAULT_SEGMENT_BYTES);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.api.checkout.IdempotentReply;
+import com.amannmalik.acp.api.checkout.IdempotentReply.Encoded;
+import com.amannmalik.acp.api.checkout.IdempotentReply.Snapshot;
+import com.amannmalik.acp.api.checkout.IdempotentReply.Unrecorded;
+import com.amannmalik.acp.api.checkout.model.CheckoutSessionId;
+import com.amannmalik.acp.codec.CheckoutSessionBinaryCodec;
+import com.amannmalik.acp.spi.storage.JournalRecord;
+import com.amannmalik.acp.util.Fingerprint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/// Frame payload layout: `int count` followed by `count` records of `byte type` + fields. Nested
+/// models are stored as length-prefixed [CheckoutSessionBinaryCodec] blobs, and an idempotency
+/// record's [IdempotentReply] as `byte kind` + fields. Idempotency records written before
+/// fingerprints (types 2 and 3) carried the whole request; they are still read and fingerprinted on
+/// the fly. Those written before replies (types 2, 3, 6, 7 and 10) are read as a [Snapshot] of the
+/// created session where they carried one, and as [Unrecorded] otherwise.
+final class JournalRecordCodec {
+    private static final int SESSION_WRITTEN = 1;
+    private static final int LEGACY_CREATE_IDEMPOTENCY_RECORDED = 2;
+    private static final int LEGACY_COMPLETE_IDEMPOTENCY_RECORDED = 3;
+    private static final int WEBHOOK_ENQUEUED = 4;
+    private static final int WEBHOOK_DELIVERED = 5;
+    private static final int SNAPSHOT_CREATE_IDEMPOTENCY_RECORDED = 6;
+    private static final int FINGERPRINT_COMPLETE_IDEMPOTENCY_RECORDED = 7;
+    private static final int SESSION_EXPIRED = 8;
+    private static final int SEQUENCES_RESERVED = 9;
+    private static final int SESSION_ID_CREATE_IDEMPOTENCY_RECORDED = 10;
+    private static final int WEBHOOK_ACKNOWLEDGED = 11;
+    private static final int CREATE_IDEMPOTENCY_RECORDED = 12;
+    private static final int COMPLETE_IDEMPOTENCY_RECORDED = 13;
+    private static final int UNRECORDED_REPLY = 0;
+    private static final int SNAPSHOT_REPLY = 1;
+    private static final int ENCODED_REPLY = 2;
+
+    private final CheckoutSessionBinaryCodec binaryCodec = new CheckoutSessionBinaryCodec();
+
+    private static void writeBlob(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBlob(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer readBlob(ByteBuffer payload) {
+        var length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Invalid blob length in journal record: " + length);
+        }
+        var blob = payload.slice(payload.position(), length);
+        payload.position(payload.position() + length);
+        return blob;
+    }
+
+    private static String readString(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(readBlob(payload)).toString();
+    }
+
+    private static void writeFingerprint(DataOutputStream out, Fingerprint fingerprint) throws IOException {
+        out.writeLong(fingerprint.high());
+        out.writeLong(fingerprint.low());
+    }
+
+    private static Fingerprint readFingerprint(ByteBuffer payload) {
+        return new Fingerprint(payload.getLong(), payload.getLong());
+    }
+
+    private static byte[] readBytes(ByteBuffer payload) {
+        var blob = readBlob(payload);
+        var bytes = new byte[blob.remaining()];
+        blob.get(bytes);
+        return bytes;
+    }
+
+    private static JournalRecord legacyComplete(String sessionId, String idempotencyKey, Fingerprint fingerprint) {
+        return new JournalRecord.CompleteIdempotencyRecorded(
+                sessionId, idempotencyKey, fingerprint, new Unrecorded(new CheckoutSessionId(sessionId)));
+    }
+
+    private void writeReply(DataOutputStream out, IdempotentReply reply) throws IOException {
+        switch (reply) {
+            case Unrecorded(var sessionId) -> {
+                out.writeByte(UNRECORDED_REPLY);
+                writeString(out, sessionId.value());
+            }
+            case Snapshot(var session) -> {
+                out.writeByte(SNAPSHOT_REPLY);
+                writeBlob(out, binaryCodec.writeCheckoutSession(session));
+            }
+            case Encoded(var sessionId, var status, var body) -> {
+                out.writeByte(ENCODED_REPLY);
+                writeString(out, sessionId.value());
+                out.writeInt(status);
+                writeBlob(out, body);
+            }
+        }
+    }
+
+    private IdempotentReply readReply(ByteBuffer payload) {
+        var kind = payload.get();
+        return switch (kind) {
+            case UNRECORDED_REPLY -> new Unrecorded(new CheckoutSessionId(readString(payload)));
+            case SNAPSHOT_REPLY -> new Snapshot(binaryCodec.readCheckoutSession(readBlob(payload)));
+            case ENCODED_REPLY -> new Encoded(
+                    new CheckoutSessionId(readString(payload)), payload.getInt(), readBytes(payload));
+            default -> throw new IllegalArgumentException("Unknown idempotent reply kind: " + kind);
+        };
+    }
+
+    byte[] encode(JournalRecord... records) {
+        var bytes = new ByteArrayOutputStream(512 * records.length);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(records.length);
+            for (var record : records) {
+                switch (record) {
+                    case JournalRecord.SessionWritten(var session) -> {
+                        out.writeByte(SESSION_WRITTEN);
+                        writeBlob(out, binaryCodec.writeCheckoutSession(session));
+                    }
+                    case JournalRecord.CreateIdempotencyRecorded(var key, var fingerprint, var reply) -> {
+                        out.writeByte(CREATE_IDEMPOTENCY_RECORDED);
+                        writeString(out, key);
+                        writeFingerprint(out, fingerprint);
+                        writeReply(out, reply);
+                    }
+                    case JournalRecord.CompleteIdempotencyRecorded(var sessionId, var key, var fingerprint, var reply) -> {
+                        out.writeByte(COMPLETE_IDEMPOTENCY_RECORDED);
+                        writeString(out, sessionId);
+                        writeString(out, key);
+                        writeFingerprint(out, fingerprint);
+                        writeReply(out, reply);
+                    }
+                    case JournalRecord.WebhookEnqueued(var sequence, var event) -> {
+                        out.writeByte(WEBHOOK_ENQUEUED);
+                        out.writeLong(sequence);
+                        writeBlob(out, binaryCodec.writeOrderWebhookEvent(event));
+                    }
+                    case JournalRecord.WebhookDelivered(var sequence) -> {
+                        out.writeByte(WEBHOOK_DELIVERED);
+                        out.writeLong(sequence);
+                    }
+                    case JournalRecord.WebhookAcknowledged(var sequence, var endpoint) -> {
+                        out.writeByte(WEBHOOK_ACKNOWLEDGED);
+                        out.writeLong(sequence);
+                        writeString(out, endpoint);
+                    }
+                    case JournalRecord.SessionExpired(var sessionId) -> {
+                        out.writeByte(SESSION_EXPIRED);
+                        writeString(out, sessionId);
+                    }
+                    case JournalRecord.SequencesReserved(var session, var lineItem, var order) -> {
+                        out.writeByte(SEQUENCES_RESERVED);
+                        out.writeLong(session);
+                        out.writeLong(lineItem);
+                        out.writeLong(order);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    void decode(ByteBuffer payload, Consumer<JournalRecord> sink) {
+        var count = payload.getInt();
+        for (var i = 0; i < count; i++) {
+            var type = payload.get();
+            sink.accept(switch (type) {
+                case SESSION_WRITTEN -> new JournalRecord.SessionWritten(
+                        binaryCodec.readCheckoutSession(readBlob(payload)));
+                case CREATE_IDEMPOTENCY_RECORDED -> new JournalRecord.CreateIdempotencyRecorded(
+                        readString(payload),
+                        readFingerprint(payload),
+                        readReply(payload));
+                case COMPLETE_IDEMPOTENCY_RECORDED -> new JournalRecord.CompleteIdempotencyRecorded(
+                        readString(payload),
+                        readString(payload),
+                        readFingerprint(payload),
+                        readReply(payload));
+                case SESSION_ID_CREATE_IDEMPOTENCY_RECORDED -> new JournalRecord.CreateIdempotencyRecorded(
+                        readString(payload),
+                        readFingerprint(payload),
+                        new Unrecorded(new CheckoutSessionId(readString(payload))));
+                case SNAPSHOT_CREATE_IDEMPOTENCY_RECORDED -> new JournalRecord.CreateIdempotencyRecorded(
+                        readString(payload),
+                        readFingerprint(payload),
+                        new Snapshot(binaryCodec.readCheckoutSession(readBlob(payload))));
+                case FINGERPRINT_COMPLETE_IDEMPOTENCY_RECORDED -> legacyComplete(
+                        readString(payload),
+                        readString(payload),
+                        readFingerprint(payload));
+                case LEGACY_CREATE_IDEMPOTENCY_RECORDED -> new JournalRecord.CreateIdempotencyRecorded(
+                        readString(payload),
+                        Fingerprint.of(binaryCodec.readCreateRequest(readBlob(payload))),
+                        new Snapshot(binaryCodec.readCheckoutSession(readBlob(payload))));
+                case LEGACY_COMPLETE_IDEMPOTENCY_RECORDED -> legacyComplete(
+                        readString(payload),
+                        readString(payload),
+                        Fingerprint.of(binaryCodec.readCompleteRequest(readBlob(payload))));
+                case WEBHOOK_ENQUEUED -> new JournalRecord.WebhookEnqueued(
+                        payload.getLong(),
+                        binaryCodec.readOrderWebhookEvent(readBlob(payload)));
+                case WEBHOOK_DELIVERED -> new JournalRecord.WebhookDelivered(payload.getLong());
+                case WEBHOOK_ACKNOWLEDGED -> new JournalRecord.WebhookAcknowledged(payload.getLong(), readString(payload));
+                case SESSION_EXPIRED -> new JournalRecord.SessionExpired(readString(payload));
+                case SEQUENCES_RESERVED -> new JournalRecord.SequencesReserved(
+                        payload.getLong(), payload.getLong(), payload.getLong());
+                default -> throw new IllegalArgumentException("Unknown journal record type: " + type);
+            });
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.codec.CheckoutSessionBinaryCodec;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.util.Ensure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/// [CheckoutSessionStore] that keeps sessions outside the Java heap, so millions of them cost the
+/// garbage collector nothing to trace.
+///
+/// Sessions are stored in [CheckoutSessionBinaryCodec] form as `[int id length][int body length]
+/// [id][body]` records, 8-byte aligned and appended to fixed-size chunks. Chunks are allocated from
+/// a shared [Arena], or, when [Configuration#directory()] is set, memory-mapped from scratch files
+/// there so the operating system can page cold sessions out. An open-addressing hash index of
+/// `[long hash][long location]` slots, itself off-heap, maps ids to records; reads decode a fresh
+/// [CheckoutSession] from the record every time. Rewrites append a new record and leave the old one
+/// as garbage. Once garbage outgrows both the live data and one chunk, compaction evacuates the
+/// sealed chunk with the most garbage: its live records are copied to the tail and the chunk is
+/// freed. This repeats on later writes until garbage is back under the limit, so no single write
+/// copies more than about one chunk.
+///
+/// Contents do not survive a restart; the checkout journal is the durable copy. Writes of one id
+/// are serialized by a striped lock and every structural change takes a store-wide write lock. It
+/// is held for the copy into the chunk and, when compaction is due, for evacuating a chunk, which
+/// bounds the pause by [Configuration#chunkBytes()] rather than by the size of the store.
+public final class OffHeapCheckoutSessionStore implements CheckoutSessionStore {
+    private static final long SLOT_BYTES = 16;
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = -1L;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int LOCK_STRIPES = 64;
+    private static final Pattern CHUNK_NAME = Pattern.compile("chunk-\\d{20}\\.bin");
+
+    private final Configuration configuration;
+    private final CheckoutSessionBinaryCodec codec = new CheckoutSessionBinaryCodec();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    /// Open [#values()] streams; compaction waits for none so scans can walk chunks by position.
+    private final AtomicInteger activeScans = new AtomicInteger();
+    /// Indexed by the chunk number stored in record locations; evacuated chunks leave a `null` so
+    /// the numbers of the others never change.
+    private List<Chunk> chunks = new ArrayList<>();
+    private int allocatedChunks;
+    private Arena indexArena;
+    private MemorySegment index;
+    private long capacity;
+    private int size;
+    private long tombstones;
+    private long liveBytes;
+    private long garbageBytes;
+    private long chunkFiles;
+    private boolean closed;
+
+    public OffHeapCheckoutSessionStore(Configuration configuration) {
+        this.configuration = Ensure.notNull("off_heap.configuration", configuration);
+        for (var i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        if (configuration.directory() != null) {
+            deleteScratchFiles();
+        }
+        this.capacity = configuration.initialCapacity();
+        this.indexArena = Arena.ofShared();
+        this.index = indexArena.allocate(capacity * SLOT_BYTES, Long.BYTES);
+    }
+
+    private static byte[] key(String sessionId) {
+        return Ensure.nonBlank("off_heap.session_id", sessionId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long hash(byte[] key) {
+        var hash = 0xcbf29ce484222325L;
+        for (var b : key) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static long location(int chunk, long offset) {
+        return ((long) chunk << 32 | offset) + 1;
+    }
+
+    private static int chunkOf(long location) {
+        return (int) ((location - 1) >>> 32);
+    }
+
+    private static long offsetOf(long location) {
+        return (location - 1) & 0xFFFF_FFFFL;
+    }
+
+    @Override
+    public CheckoutSession get(String sessionId) {
+        var key = key(sessionId);
+        var body = read(key, hash(key));
+        return body == null ? null : codec.readCheckoutSession(ByteBuffer.wrap(body));
+    }
+
+    @Override
+    public void put(CheckoutSession session) {
+        var key = key(session.id().value());
+        var hash = hash(key);
+        var stripe = stripe(hash);
+        stripe.lock();
+        try {
+            write(key, hash, codec.writeCheckoutSession(session));
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        var key = key(sessionId);
+        var hash = hash(key);
+        var stripe = stripe(hash);
+        stripe.lock();
+        try {
+            delete(key, hash);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public CheckoutSession compute(String sessionId, UnaryOperator<CheckoutSession> remapping) {
+        var key = key(sessionId);
+        var hash = hash(key);
+        var stripe = stripe(hash);
+        stripe.lock();
+        try {
+            var body = read(key, hash);
+            var current = body == null ? null : codec.readCheckoutSession(ByteBuffer.wrap(body));
+            var next = remapping.apply(current);
+            if (next == null) {
+                if (current != null) {
+                    delete(key, hash);
+                }
+            } else if (next != current) {
+                if (!next.id().value().equals(sessionId)) {
+                    throw new IllegalArgumentException("Remapped session id MUST equal " + sessionId);
+                }
+                write(key, hash, codec.writeCheckoutSession(next));
+            }
+            return next;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Stream<CheckoutSession> values() {
+        var scan = new Scan();
+        return StreamSupport.stream(scan, false).onClose(scan::release);
+    }
+
+    public Stats stats() {
+        lock.readLock().lock();
+        try {
+            return new Stats(
+                    size,
+                    liveBytes,
+                    garbageBytes,
+                    allocatedChunks * configuration.chunkBytes() + capacity * SLOT_BYTES);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /// Frees every chunk and the index. Reads and writes fail afterwards.
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.stream().filter(Objects::nonNull).forEach(this::free);
+            chunks = List.of();
+            indexArena.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ReentrantLock stripe(long hash) {
+        return stripes[(int) (hash & (LOCK_STRIPES - 1))];
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Off-heap session store is closed");
+        }
+    }
+
+    private byte[] read(byte[] key, long hash) {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            var slot = find(key, hash);
+            return slot < 0 ? null : body(slotLocation(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void write(byte[] key, long hash, byte[] body) {
+        var recordBytes = align(RECORD_HEADER_BYTES + key.length + (long) body.length);
+        if (recordBytes > configuration.chunkBytes()) {
+            throw new IllegalArgumentException(
+                    "Session of " + recordBytes + " bytes does not fit an off-heap chunk of " + configuration.chunkBytes());
+        }
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if ((size + tombstones + 1) * 2 > capacity) {
+                rehash();
+            }
+            var location = append(key, body, recordBytes);
+            var slot = find(key, hash);
+            if (slot >= 0) {
+                discard(slotLocation(slot));
+            } else {
+                slot = vacantSlot(hash);
+                if (slotLocation(slot) == TOMBSTONE) {
+                    tombstones--;
+                }
+                index.set(ValueLayout.JAVA_LONG, slot * SLOT_BYTES, hash);
+                size++;
+            }
+            index.set(ValueLayout.JAVA_LONG, slot * SLOT_BYTES + Long.BYTES, location);
+            liveBytes += recordBytes;
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void delete(byte[] key, long hash) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            var slot = find(key, hash);
+            if (slot < 0) {
+                return;
+            }
+            discard(slotLocation(slot));
+            index.set(ValueLayout.JAVA_LONG, slot * SLOT_BYTES + Long.BYTES, TOMBSTONE);
+            tombstones++;
+            size--;
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /// Accounts the record at `location` as garbage of its chunk.
+    private void discard(long location) {
+        var recordBytes = recordBytes(location);
+        liveBytes -= recordBytes;
+        garbageBytes += recordBytes;
+        chunks.get(chunkOf(location)).garbage += recordBytes;
+    }
+
+    private long slotLocation(long slot) {
+        return index.get(ValueLayout.JAVA_LONG, slot * SLOT_BYTES + Long.BYTES);
+    }
+
+    /// Slot holding `key`, or -1.
+    private long find(byte[] key, long hash) {
+        var mask = capacity - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            var location = slotLocation(slot);
+            if (location == EMPTY) {
+                return -1;
+            }
+            if (location != TOMBSTONE
+                    && index.get(ValueLayout.JAVA_LONG, slot * SLOT_BYTES) == hash
+                    && matches(location, key)) {
+                return slot;
+            }
+        }
+    }
+
+    /// First empty or tombstoned slot on the probe sequence of `hash`.
+    private long vacantSlot(long hash) {
+        var mask = capacity - 1;
+        var slot = hash & mask;
+        while (slotLocation(slot) > EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(long location, byte[] key) {
+        var segment = chunks.get(chunkOf(location)).segment;
+        var offset = offsetOf(location);
+        return segment.get(ValueLayout.JAVA_INT, offset) == key.length
+                && segment.asSlice(offset + RECORD_HEADER_BYTES, key.length).mismatch(MemorySegment.ofArray(key)) == -1;
+    }
+
+    private byte[] body(long location) {
+        var segment = chunks.get(chunkOf(location)).segment;
+        var offset = offsetOf(location);
+        var idLength = segment.get(ValueLayout.JAVA_INT, offset);
+        var body = new byte[segment.get(ValueLayout.JAVA_INT, offset + Integer.BYTES)];
+        MemorySegment.copy(
+                segment, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_BYTES + idLength, body, 0, body.length);
+        return body;
+    }
+
+    private long recordBytes(long location) {
+        var segment = chunks.get(chunkOf(location)).segment;
+        var offset = offsetOf(location);
+        return align(RECORD_HEADER_BYTES
+                + (long) segment.get(ValueLayout.JAVA_INT, offset)
+                + segment.get(ValueLayout.JAVA_INT, offset + Integer.BYTES));
+    }
+
+    private long append(byte[] key, byte[] body, long recordBytes) {
+        var chunk = writableChunk(recordBytes);
+        var offset = chunk.used;
+        var segment = chunk.segment;
+        segment.set(ValueLayout.JAVA_INT, offset, key.length);
+        segment.set(ValueLayout.JAVA_INT, offset + Integer.BYTES, body.length);
+        MemorySegment.copy(key, 0, segment, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_BYTES, key.length);
+        MemorySegment.copy(
+                body, 0, segment, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_BYTES + key.length, body.length);
+        chunk.used += recordBytes;
+        return location(chunks.size() - 1, offset);
+    }
+
+    private Chunk writableChunk(long recordBytes) {
+        if (!chunks.isEmpty()) {
+            var last = chunks.getLast();
+            if (last.used + recordBytes <= configuration.chunkBytes()) {
+                return last;
+            }
+        }
+        var chunk = allocateChunk();
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    private Chunk allocateChunk() {
+        allocatedChunks++;
+        var arena = Arena.ofShared();
+        if (configuration.directory() == null) {
+            return new Chunk(arena, arena.allocate(configuration.chunkBytes(), Long.BYTES), null);
+        }
+        var file = configuration.directory().resolve("chunk-%020d.bin".formatted(chunkFiles++));
+        try (var channel = FileChannel.open(
+                file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Chunk(arena, channel.map(FileChannel.MapMode.READ_WRITE, 0, configuration.chunkBytes(), arena), file);
+        } catch (IOException e) {
+            allocatedChunks--;
+            arena.close();
+            throw new UncheckedIOException("Failed to map off-heap chunk " + file, e);
+        }
+    }
+
+    private void free(Chunk chunk) {
+        allocatedChunks--;
+        chunk.arena.close();
+        if (chunk.file != null) {
+            try {
+                Files.deleteIfExists(chunk.file);
+            } catch (IOException ignored) {
+                // Scratch files left behind are removed on the next start.
+            }
+        }
+    }
+
+    /// Rebuilds the index without tombstones, doubling it when live slots alone would pass half full.
+    private void rehash() {
+        var newCapacity = capacity;
+        while ((size + 1L) * 2 > newCapacity) {
+            newCapacity <<= 1;
+        }
+        var newArena = Arena.ofShared();
+        var newIndex = newArena.allocate(newCapacity * SLOT_BYTES, Long.BYTES);
+        var mask = newCapacity - 1;
+        for (var slot = 0L; slot < capacity; slot++) {
+            var location = slotLocation(slot);
+            if (location > EMPTY) {
+                var hash = index.get(ValueLayout.JAVA_LONG, slot * SLOT_BYTES);
+                var target = hash & mask;
+                while (newIndex.get(ValueLayout.JAVA_LONG, target * SLOT_BYTES + Long.BYTES) != EMPTY) {
+                    target = (target + 1) & mask;
+                }
+                newIndex.set(ValueLayout.JAVA_LONG, target * SLOT_BYTES, hash);
+                newIndex.set(ValueLayout.JAVA_LONG, target * SLOT_BYTES + Long.BYTES, location);
+            }
+        }
+        indexArena.close();
+        indexArena = newArena;
+        index = newIndex;
+        capacity = newCapacity;
+        tombstones = 0;
+    }
+
+    /// Evacuates the sealed chunks with the most garbage, one at a time, until garbage no longer
+    /// exceeds both the live data and one chunk. Each evacuation frees at least one record, so this
+    /// usually stops after a single chunk. Skipped while a [#values()] scan is open; the next write
+    /// retries.
+    private void compactIfWasteful() {
+        while (garbageBytes > liveBytes && garbageBytes > configuration.chunkBytes() && activeScans.get() == 0) {
+            var victim = -1;
+            for (var i = 0; i < chunks.size() - 1; i++) {
+                var chunk = chunks.get(i);
+                if (chunk != null && chunk.garbage > 0 && (victim < 0 || chunk.garbage > chunks.get(victim).garbage)) {
+                    victim = i;
+                }
+            }
+            if (victim < 0) {
+                return;
+            }
+            evacuate(victim);
+        }
+    }
+
+    /// Moves the records of chunk `number` that the index still points at to the tail, then frees it.
+    private void evacuate(int number) {
+        var source = chunks.get(number);
+        for (var offset = 0L; offset < source.used; ) {
+            var location = location(number, offset);
+            var recordBytes = recordBytes(location);
+            var key = new byte[source.segment.get(ValueLayout.JAVA_INT, offset)];
+            MemorySegment.copy(source.segment, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_BYTES, key, 0, key.length);
+            var slot = find(key, hash(key));
+            if (slot >= 0 && slotLocation(slot) == location) {
+                var chunk = writableChunk(recordBytes);
+                MemorySegment.copy(source.segment, offset, chunk.segment, chunk.used, recordBytes);
+                index.set(ValueLayout.JAVA_LONG, slot * SLOT_BYTES + Long.BYTES, location(chunks.size() - 1, chunk.used));
+                chunk.used += recordBytes;
+            }
+            offset += recordBytes;
+        }
+        garbageBytes -= source.garbage;
+        chunks.set(number, null);
+        free(source);
+    }
+
+    private void deleteScratchFiles() {
+        var directory = configuration.directory();
+        try {
+            Files.createDirectories(directory);
+            try (var files = Files.list(directory)) {
+                for (var file : files.filter(path -> CHUNK_NAME.matcher(path.getFileName().toString()).matches()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to prepare off-heap directory " + directory, e);
+        }
+    }
+
+    /// `directory` is `null` for anonymous memory. `chunkBytes` bounds the largest single session.
+    public record Configuration(Path directory, long chunkBytes, long initialCapacity) {
+        private static final long DEFAULT_CHUNK_BYTES = 64L << 20;
+        private static final long DEFAULT_INITIAL_CAPACITY = 1L << 16;
+
+        public Configuration {
+            directory = directory == null ? null : directory.toAbsolutePath().normalize();
+            if (chunkBytes < 4096 || chunkBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("off_heap.chunk_bytes MUST be between 4096 and " + Integer.MAX_VALUE);
+            }
+            if (initialCapacity < 16 || Long.bitCount(initialCapacity) != 1) {
+                throw new IllegalArgumentException("off_heap.initial_capacity MUST be a power of two >= 16");
+            }
+        }
+
+        public static Configuration anonymous() {
+            return new Configuration(null, DEFAULT_CHUNK_BYTES, DEFAULT_INITIAL_CAPACITY);
+        }
+
+        public static Configuration mapped(Path directory) {
+            return new Configuration(
+                    Ensure.notNull("off_heap.directory", directory), DEFAULT_CHUNK_BYTES, DEFAULT_INITIAL_CAPACITY);
+        }
+    }
+
+    /// `reservedBytes` counts every allocated chunk and index slot, used or not.
+    public record Stats(int sessions, long liveBytes, long garbageBytes, long reservedBytes) {
+    }
+
+    private static final class Chunk {
+        private final Arena arena;
+        private final MemorySegment segment;
+        private final Path file;
+        private long used;
+        private long garbage;
+
+        private Chunk(Arena arena, MemorySegment segment, Path file) {
+            this.arena = arena;
+            this.segment = segment;
+            this.file = file;
+        }
+    }
+
+    /// Walks chunks in write order and yields records the index still points at. Compaction is held
+    /// off until the scan is released, so positions stay valid between batches.
+    private final class Scan extends Spliterators.AbstractSpliterator<CheckoutSession> {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private int chunk;
+        private long offset;
+
+        private Scan() {
+            super(Long.MAX_VALUE, Spliterator.NONNULL);
+            activeScans.incrementAndGet();
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super CheckoutSession> action) {
+            byte[] body = null;
+            lock.readLock().lock();
+            try {
+                ensureOpen();
+                while (body == null) {
+                    if (chunk >= chunks.size()) {
+                        release();
+                        return false;
+                    }
+                    var current = chunks.get(chunk);
+                    if (current == null || offset >= current.used) {
+                        chunk++;
+                        offset = 0;
+                        continue;
+                    }
+                    var segment = current.segment;
+                    var location = location(chunk, offset);
+                    var key = new byte[segment.get(ValueLayout.JAVA_INT, offset)];
+                    MemorySegment.copy(
+                            segment, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_BYTES, key, 0, key.length);
+                    var slot = find(key, hash(key));
+                    if (slot >= 0 && slotLocation(slot) == location) {
+                        body = body(location);
+                    }
+                    offset += recordBytes(location);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            action.accept(codec.readCheckoutSession(ByteBuffer.wrap(body)));
+            return true;
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                activeScans.decrementAndGet();
+            }
+        }
+    }
+}
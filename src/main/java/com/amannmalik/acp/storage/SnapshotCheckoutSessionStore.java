@@ -0,0 +1,293 @@
+package com.amannmalik.acp.storage;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSession;
+import com.amannmalik.acp.codec.CheckoutSessionBinaryCodec;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.util.Ensure;
+import com.amannmalik.acp.util.PersistentHashMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/// [CheckoutSessionStore] whose sessions live in a [PersistentHashMap] published through an atomic
+/// root, so [#snapshot()] is one volatile read and the snapshot stays consistent while writers go on.
+///
+/// Writes of one id are serialized by a striped lock, then swap in a new root with compare-and-set,
+/// retrying only the path copy when writes of other ids won the race; readers never lock.
+/// [#values()] streams a snapshot, so journal compaction sees the store at a single point in time.
+/// When [Configuration#exportDirectory()] is set, a daemon thread writes a snapshot there every
+/// [Configuration#exportInterval()] as `snapshot-<epoch millis>.bin`, keeping the newest
+/// [Configuration#exportsKept()]. Contents do not survive a restart; the journal is the durable copy.
+public final class SnapshotCheckoutSessionStore implements CheckoutSessionStore {
+    private static final int SNAPSHOT_MAGIC = 0x41435053;
+    private static final int LOCK_STRIPES = 64;
+    private static final Pattern EXPORT_NAME = Pattern.compile("snapshot-(\\d{20})\\.bin");
+
+    private final Configuration configuration;
+    private final Clock clock;
+    private final AtomicReference<PersistentHashMap<String, CheckoutSession>> root =
+            new AtomicReference<>(PersistentHashMap.empty());
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final ReentrantLock exportLock = new ReentrantLock();
+    private final AtomicLong exports = new AtomicLong();
+    private final AtomicLong failedExports = new AtomicLong();
+    private final ScheduledExecutorService exporter;
+
+    public SnapshotCheckoutSessionStore(Configuration configuration) {
+        this(configuration, Clock.systemUTC());
+    }
+
+    public SnapshotCheckoutSessionStore(Configuration configuration, Clock clock) {
+        this.configuration = Ensure.notNull("snapshot_store.configuration", configuration);
+        this.clock = Ensure.notNull("snapshot_store.clock", clock);
+        for (var i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        if (configuration.exportsPeriodically()) {
+            exporter = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("acp-session-snapshot").daemon().factory());
+            var interval = configuration.exportInterval().toMillis();
+            exporter.scheduleWithFixedDelay(this::exportQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            exporter = null;
+        }
+    }
+
+    /// Reads a file written by [#exportTo(Path)].
+    public static List<CheckoutSession> readExport(Path file) {
+        var codec = new CheckoutSessionBinaryCodec();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IllegalStateException("Not a session snapshot: " + file);
+            }
+            var count = in.readInt();
+            var sessions = new ArrayList<CheckoutSession>(count);
+            for (var i = 0; i < count; i++) {
+                var body = new byte[in.readInt()];
+                in.readFully(body);
+                sessions.add(codec.readCheckoutSession(ByteBuffer.wrap(body)));
+            }
+            return sessions;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read session snapshot " + file, e);
+        }
+    }
+
+    @Override
+    public CheckoutSession get(String sessionId) {
+        return root.get().get(sessionId);
+    }
+
+    @Override
+    public void put(CheckoutSession session) {
+        var sessionId = session.id().value();
+        var stripe = stripe(sessionId);
+        stripe.lock();
+        try {
+            root.updateAndGet(sessions -> sessions.put(sessionId, session));
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        var stripe = stripe(sessionId);
+        stripe.lock();
+        try {
+            root.updateAndGet(sessions -> sessions.remove(sessionId));
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /// `remapping` runs once, under the id's stripe; only publishing the result may retry.
+    @Override
+    public CheckoutSession compute(String sessionId, UnaryOperator<CheckoutSession> remapping) {
+        var stripe = stripe(sessionId);
+        stripe.lock();
+        try {
+            var current = root.get().get(sessionId);
+            var next = remapping.apply(current);
+            if (next == null) {
+                if (current != null) {
+                    root.updateAndGet(sessions -> sessions.remove(sessionId));
+                }
+            } else if (next != current) {
+                if (!next.id().value().equals(sessionId)) {
+                    throw new IllegalArgumentException("Remapped session id MUST equal " + sessionId);
+                }
+                root.updateAndGet(sessions -> sessions.put(sessionId, next));
+            }
+            return next;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return root.get().size();
+    }
+
+    @Override
+    public Stream<CheckoutSession> values() {
+        return snapshot().sessions();
+    }
+
+    /// Point-in-time view of every session, taken in constant time without blocking writers.
+    public Snapshot snapshot() {
+        return new Snapshot(root.get());
+    }
+
+    /// Writes a fresh snapshot into `directory` as `snapshot-<epoch millis>.bin` through a temporary
+    /// file and an atomic rename, then deletes all but the newest [Configuration#exportsKept()].
+    public Path exportTo(Path directory) {
+        Ensure.notNull("snapshot_store.export_directory", directory);
+        var snapshot = snapshot();
+        exportLock.lock();
+        try {
+            Files.createDirectories(directory);
+            var file = directory.resolve("snapshot-%020d.bin".formatted(clock.millis()));
+            var temporary = directory.resolve(file.getFileName() + ".tmp");
+            try (var channel = FileChannel.open(
+                    temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                snapshot.writeTo(out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            pruneExports(directory);
+            exports.incrementAndGet();
+            return file;
+        } catch (IOException e) {
+            failedExports.incrementAndGet();
+            throw new UncheckedIOException("Failed to export session snapshot to " + directory, e);
+        } finally {
+            exportLock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(size(), exports.get(), failedExports.get());
+    }
+
+    @Override
+    public void close() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+        }
+    }
+
+    private ReentrantLock stripe(String sessionId) {
+        return stripes[Ensure.nonBlank("snapshot_store.session_id", sessionId).hashCode() & (LOCK_STRIPES - 1)];
+    }
+
+    /// Scheduled exports only count failures; the next run tries again.
+    private void exportQuietly() {
+        try {
+            exportTo(configuration.exportDirectory());
+        } catch (RuntimeException ignored) {
+            // Counted in stats by exportTo.
+        }
+    }
+
+    private void pruneExports(Path directory) throws IOException {
+        List<Path> existing;
+        try (var files = Files.list(directory)) {
+            existing = files.filter(path -> EXPORT_NAME.matcher(path.getFileName().toString()).matches())
+                    .sorted()
+                    .toList();
+        }
+        for (var i = 0; i < existing.size() - configuration.exportsKept(); i++) {
+            Files.deleteIfExists(existing.get(i));
+        }
+    }
+
+    /// `exportDirectory` is `null` and `exportInterval` zero when snapshots are only taken on demand.
+    public record Configuration(Path exportDirectory, Duration exportInterval, int exportsKept) {
+        private static final int DEFAULT_EXPORTS_KEPT = 2;
+
+        public Configuration {
+            exportDirectory = exportDirectory == null ? null : exportDirectory.toAbsolutePath().normalize();
+            Ensure.notNull("snapshot_store.export_interval", exportInterval);
+            if (exportInterval.isNegative()) {
+                throw new IllegalArgumentException("snapshot_store.export_interval MUST be non-negative");
+            }
+            if ((exportDirectory == null) != exportInterval.isZero()) {
+                throw new IllegalArgumentException(
+                        "snapshot_store.export_directory and snapshot_store.export_interval MUST be set together");
+            }
+            Ensure.positiveInt("snapshot_store.exports_kept", exportsKept);
+        }
+
+        public static Configuration onDemand() {
+            return new Configuration(null, Duration.ZERO, DEFAULT_EXPORTS_KEPT);
+        }
+
+        public static Configuration exporting(Path exportDirectory, Duration exportInterval) {
+            return new Configuration(
+                    Ensure.notNull("snapshot_store.export_directory", exportDirectory), exportInterval, DEFAULT_EXPORTS_KEPT);
+        }
+
+        boolean exportsPeriodically() {
+            return exportDirectory != null;
+        }
+    }
+
+    public record Stats(int sessions, long exports, long failedExports) {
+    }
+
+    /// Immutable view of the store at the moment it was taken; later writes never show through.
+    public static final class Snapshot {
+        private final PersistentHashMap<String, CheckoutSession> sessions;
+
+        private Snapshot(PersistentHashMap<String, CheckoutSession> sessions) {
+            this.sessions = sessions;
+        }
+
+        public int size() {
+            return sessions.size();
+        }
+
+        /// The session as of the snapshot, or `null`.
+        public CheckoutSession get(String sessionId) {
+            return sessions.get(sessionId);
+        }
+
+        public Stream<CheckoutSession> sessions() {
+            return sessions.values();
+        }
+
+        /// Streams the snapshot as `[int magic][int count]` followed by `[int length][session]`
+        /// records in [CheckoutSessionBinaryCodec] form.
+        public void writeTo(DataOutput out) throws IOException {
+            var codec = new CheckoutSessionBinaryCodec();
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(sessions.size());
+            var iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                var body = codec.writeCheckoutSession(iterator.next());
+                out.writeInt(body.length);
+                out.write(body);
+            }
+        }
+    }
+}
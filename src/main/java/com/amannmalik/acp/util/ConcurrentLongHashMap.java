@@ -0,0 +1,263 @@
+package com.amannmalik.acp.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/// Concurrent hash map from positive `long` keys to values, without boxing or per-entry nodes.
+///
+/// Entries live in parallel `long[]`/`Object[]` arrays with linear probing and backward-shift
+/// deletion, split into segments picked by the high bits of the key's hash. Each segment has a
+/// [StampedLock]: reads are optimistic and retry under the read lock only when a write raced them;
+/// writes hold the write lock just for the array update. [#compute(long, UnaryOperator)] is
+/// serialized per key by a separate striped lock, so a slow remapping function delays only the keys
+/// sharing its stripe, never readers. Key `0` marks empty slots and is rejected.
+public final class ConcurrentLongHashMap<V> {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int LOCK_STRIPES = 256;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    private static final long EMPTY = 0L;
+
+    private final Segment<V>[] segments;
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongHashMap() {
+        this.segments = (Segment<V>[]) new Segment<?>[SEGMENTS];
+        for (var i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+        for (var i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static long hash(long key) {
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private static long checkKey(long key) {
+        return Ensure.positiveLong("long_map.key", key);
+    }
+
+    public V get(long key) {
+        var hash = hash(checkKey(key));
+        return segment(hash).get(key, hash);
+    }
+
+    /// Returns the previous value, or `null`.
+    public V put(long key, V value) {
+        Ensure.notNull("long_map.value", value);
+        var hash = hash(checkKey(key));
+        var stripe = stripe(hash);
+        stripe.lock();
+        try {
+            return segment(hash).put(key, hash, value);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /// Returns the removed value, or `null`.
+    public V remove(long key) {
+        var hash = hash(checkKey(key));
+        var stripe = stripe(hash);
+        stripe.lock();
+        try {
+            return segment(hash).remove(key, hash);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /// Replaces the value of `key`, which `remapping` sees as `null` if absent, with what
+    /// `remapping` returns, removing it on `null`. Atomic with respect to every other write of
+    /// `key`; if `remapping` throws, nothing changes.
+    public V compute(long key, UnaryOperator<V> remapping) {
+        var hash = hash(checkKey(key));
+        var stripe = stripe(hash);
+        stripe.lock();
+        try {
+            var segment = segment(hash);
+            var current = segment.get(key, hash);
+            var next = remapping.apply(current);
+            if (next == null) {
+                if (current != null) {
+                    segment.remove(key, hash);
+                }
+            } else if (next != current) {
+                segment.put(key, hash, next);
+            }
+            return next;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public int size() {
+        var size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /// Weakly consistent: each segment is copied as it is reached, so writes made meanwhile to
+    /// segments not yet reached are seen and the rest are not.
+    public Stream<V> values() {
+        return Stream.of(segments).flatMap(segment -> segment.values().stream());
+    }
+
+    private Segment<V> segment(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    private ReentrantLock stripe(long hash) {
+        return stripes[(int) (hash & (LOCK_STRIPES - 1))];
+    }
+
+    private static final class Segment<V> {
+        private final StampedLock lock = new StampedLock();
+        private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+        private Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        private static <V> V find(long[] keys, Object[] values, long key, long hash) {
+            var mask = keys.length - 1;
+            if (values.length != keys.length) {
+                return null;
+            }
+            for (int slot = (int) (hash & mask), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+                var candidate = keys[slot];
+                if (candidate == key) {
+                    return (V) values[slot];
+                }
+                if (candidate == EMPTY) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private V get(long key, long hash) {
+            var stamp = lock.tryOptimisticRead();
+            V value = find(keys, values, key, hash);
+            if (lock.validate(stamp)) {
+                return value;
+            }
+            stamp = lock.readLock();
+            try {
+                return find(keys, values, key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V put(long key, long hash, V value) {
+            var stamp = lock.writeLock();
+            try {
+                if ((size + 1) * 3 > keys.length * 2) {
+                    grow();
+                }
+                var mask = keys.length - 1;
+                var slot = (int) (hash & mask);
+                while (keys[slot] != EMPTY && keys[slot] != key) {
+                    slot = (slot + 1) & mask;
+                }
+                var previous = (V) values[slot];
+                values[slot] = value;
+                if (keys[slot] == EMPTY) {
+                    keys[slot] = key;
+                    size++;
+                }
+                return previous;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V remove(long key, long hash) {
+            var stamp = lock.writeLock();
+            try {
+                var mask = keys.length - 1;
+                var slot = (int) (hash & mask);
+                while (keys[slot] != key) {
+                    if (keys[slot] == EMPTY) {
+                        return null;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                var removed = (V) values[slot];
+                // Backward-shift deletion: pull later entries of the probe run into the hole so
+                // lookups never need tombstones.
+                var hole = slot;
+                for (var next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+                    var home = (int) (hash(keys[next]) & mask);
+                    if (((next - home) & mask) >= ((next - hole) & mask)) {
+                        keys[hole] = keys[next];
+                        values[hole] = values[next];
+                        hole = next;
+                    }
+                }
+                keys[hole] = EMPTY;
+                values[hole] = null;
+                size--;
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private int size() {
+            var stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private ArrayList<V> values() {
+            var stamp = lock.readLock();
+            try {
+                var copy = new ArrayList<V>(size);
+                for (var i = 0; i < keys.length; i++) {
+                    if (keys[i] != EMPTY) {
+                        copy.add((V) values[i]);
+                    }
+                }
+                return copy;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void grow() {
+            var oldKeys = keys;
+            var oldValues = values;
+            var newKeys = new long[oldKeys.length << 1];
+            var newValues = new Object[newKeys.length];
+            var mask = newKeys.length - 1;
+            for (var i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    var slot = (int) (hash(oldKeys[i]) & mask);
+                    while (newKeys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    newKeys[slot] = oldKeys[i];
+                    newValues[slot] = oldValues[i];
+                }
+            }
+            values = newValues;
+            keys = newKeys;
+        }
+    }
+}
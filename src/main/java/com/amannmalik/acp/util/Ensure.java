@@ -39,4 +39,11 @@ public final class Ensure {
         }
         return value;
     }
+
+    public static long positiveLong(String field, long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(field + " MUST be >= 1");
+        }
+        return value;
+    }
 }
@@ -0,0 +1,134 @@
+package com.amannmalik.acp.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.RecordComponent;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/// 128-bit digest of a request's canonical form, kept by idempotency stores instead of the request.
+///
+/// [#of(Object)] walks records component by component and hashes a tagged, length-prefixed
+/// encoding with SHA-256, truncated to 128 bits. Map entries and set elements are ordered by their
+/// own fingerprints, so the result depends only on values and is stable across JVMs. Values other
+/// than records, enums, strings, collections and maps contribute their `toString()`, which suits the
+/// value-based JDK types (`Instant`, `URI`, boxed numbers) used by the models.
+public record Fingerprint(long high, long low) implements Comparable<Fingerprint> {
+    private static final byte NULL = 0;
+    private static final byte RECORD = 1;
+    private static final byte ENUM = 2;
+    private static final byte STRING = 3;
+    private static final byte LIST = 4;
+    private static final byte SET = 5;
+    private static final byte MAP = 6;
+    private static final byte VALUE = 7;
+
+    private static final ClassValue<RecordComponent[]> COMPONENTS = new ClassValue<>() {
+        @Override
+        protected RecordComponent[] computeValue(Class<?> type) {
+            return type.getRecordComponents();
+        }
+    };
+
+    public static Fingerprint of(Object value) {
+        var digest = sha256();
+        write(digest, value);
+        var bytes = ByteBuffer.wrap(digest.digest());
+        return new Fingerprint(bytes.getLong(), bytes.getLong());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void write(MessageDigest digest, Object value) {
+        switch (value) {
+            case null -> digest.update(NULL);
+            case Record record -> {
+                digest.update(RECORD);
+                writeString(digest, record.getClass().getName());
+                for (var component : COMPONENTS.get(record.getClass())) {
+                    write(digest, component(record, component));
+                }
+            }
+            case Enum<?> constant -> {
+                digest.update(ENUM);
+                writeString(digest, constant.getDeclaringClass().getName());
+                writeString(digest, constant.name());
+            }
+            case CharSequence text -> {
+                digest.update(STRING);
+                writeString(digest, text.toString());
+            }
+            case List<?> list -> {
+                digest.update(LIST);
+                writeInt(digest, list.size());
+                list.forEach(element -> write(digest, element));
+            }
+            case Collection<?> set -> {
+                digest.update(SET);
+                writeInt(digest, set.size());
+                set.stream().map(Fingerprint::of).sorted().forEach(element -> element.writeTo(digest));
+            }
+            case Map<?, ?> map -> {
+                digest.update(MAP);
+                writeInt(digest, map.size());
+                map.entrySet().stream()
+                        .map(entry -> new Fingerprint[] {of(entry.getKey()), of(entry.getValue())})
+                        .sorted(Comparator.comparing((Fingerprint[] entry) -> entry[0]))
+                        .forEach(entry -> {
+                            entry[0].writeTo(digest);
+                            entry[1].writeTo(digest);
+                        });
+            }
+            case Optional<?> optional -> write(digest, optional.orElse(null));
+            default -> {
+                digest.update(VALUE);
+                writeString(digest, value.getClass().getName());
+                writeString(digest, value.toString());
+            }
+        }
+    }
+
+    private static Object component(Record record, RecordComponent component) {
+        try {
+            return component.getAccessor().invoke(record);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalArgumentException("Cannot read " + component + " of " + record.getClass().getName(), e);
+        }
+    }
+
+    private static void writeString(MessageDigest digest, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void writeInt(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private void writeTo(MessageDigest digest) {
+        digest.update(ByteBuffer.allocate(Long.BYTES * 2).putLong(high).putLong(low).array());
+    }
+
+    @Override
+    public int compareTo(Fingerprint other) {
+        var byHigh = Long.compareUnsigned(high, other.high);
+        return byHigh != 0 ? byHigh : Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public String toString() {
+        return "%016x%016x".formatted(high, low);
+    }
+}
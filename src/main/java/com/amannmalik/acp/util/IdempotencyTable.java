@@ -0,0 +1,332 @@
+package com.amannmalik.acp.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/// Idempotency-key table in which the first request for a key executes and concurrent duplicates
+/// wait for its outcome on a future, outside any lock.
+///
+/// [#claim(Object, Object)] either replays a finished entry or makes the caller the owner of a new
+/// `PENDING` entry. The owner records its result with [Claim#commit(Object)], ideally in the same
+/// critical section that persists it, and the entry becomes `COMPLETED`, keeping only the request
+/// fingerprint and the value needed for replay. Closing the claim wakes the waiters: they replay
+/// the committed value or, if the owner failed, race to claim the key again. Failed executions are
+/// never remembered.
+///
+/// Finished entries are kept for [Retention#ttl()], tracked on a [TimingWheel] so expiry never
+/// scans the table, and optionally capped by count and estimated bytes, evicting the least recently
+/// used entry first. Expiry is driven by the injected [Clock] and runs on the calling thread as part
+/// of [#claim(Object, Object)]. In-flight entries are never expired or evicted.
+///
+/// @param <K> idempotency key
+/// @param <F> request fingerprint compared with [Object#equals(Object)]
+/// @param <V> value replayed to duplicates
+public final class IdempotencyTable<K, F, V> {
+    private static final String IN_PROGRESS = "A request with this Idempotency-Key is still in progress";
+    private static final String MISMATCH = "Same Idempotency-Key used with different parameters";
+    /// Estimated bytes per finished entry besides its value: map nodes, entry record, fingerprint,
+    /// LRU link and timer node.
+    private static final long ENTRY_OVERHEAD_BYTES = 192;
+    private static final Duration EXPIRY_TICK = Duration.ofSeconds(1);
+
+    private final ConcurrentMap<K, Entry<F, V>> entries = new ConcurrentHashMap<>();
+    private final Duration waitTimeout;
+    private final Function<String, ? extends RuntimeException> conflict;
+    private final Retention retention;
+    private final Clock clock;
+    private final ToLongFunction<? super V> weigher;
+    /// Guards the retention bookkeeping below; never held while waiting on an owner.
+    private final ReentrantLock retentionLock = new ReentrantLock();
+    private final LinkedHashMap<K, Tracked<F, V>> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final TimingWheel<K> expiry;
+    private long bytes;
+    private long expired;
+    private long evicted;
+
+    public IdempotencyTable(Duration waitTimeout, Function<String, ? extends RuntimeException> conflict) {
+        this(waitTimeout, conflict, Retention.defaults(), Clock.systemUTC(), value -> 0L);
+    }
+
+    /// `conflict` builds the exception thrown for a fingerprint mismatch or when a duplicate waits
+    /// longer than `waitTimeout` for the owner to finish. `weigher` estimates the retained size of a
+    /// value in bytes for [Retention#maxBytes()] and [Stats#bytes()].
+    public IdempotencyTable(
+            Duration waitTimeout,
+            Function<String, ? extends RuntimeException> conflict,
+            Retention retention,
+            Clock clock,
+            ToLongFunction<? super V> weigher) {
+        this.waitTimeout = Ensure.notNull("idempotency.wait_timeout", waitTimeout);
+        this.conflict = Ensure.notNull("idempotency.conflict", conflict);
+        if (waitTimeout.isNegative()) {
+            throw new IllegalArgumentException("idempotency.wait_timeout MUST be >= 0");
+        }
+        this.retention = Ensure.notNull("idempotency.retention", retention);
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+        this.weigher = Ensure.notNull("idempotency.weigher", weigher);
+        this.expiry = new TimingWheel<>(EXPIRY_TICK, this.clock.instant());
+    }
+
+    public Claim<K, F, V> claim(K key, F fingerprint) {
+        Ensure.notNull("idempotency.key", key);
+        Ensure.notNull("idempotency.fingerprint", fingerprint);
+        expire();
+        var deadline = System.nanoTime() + waitTimeout.toNanos();
+        while (true) {
+            var pending = new Pending<F, V>(fingerprint, new CompletableFuture<>());
+            var existing = entries.putIfAbsent(key, pending);
+            if (existing == null) {
+                return new Claim<>(this, key, pending, null);
+            }
+            if (!existing.fingerprint().equals(fingerprint)) {
+                throw conflict.apply(MISMATCH);
+            }
+            switch (existing) {
+                case Completed<F, V> completed -> {
+                    touch(key);
+                    return new Claim<>(this, key, null, completed.value());
+                }
+                case Pending<F, V> inFlight -> {
+                    var value = await(inFlight, deadline);
+                    if (value != null) {
+                        return new Claim<>(this, key, null, value);
+                    }
+                }
+            }
+        }
+    }
+
+    /// The value recorded for `key`, waiting for an in-flight owner as [#claim(Object, Object)] does,
+    /// or `null` if nothing is recorded. Never claims the key.
+    public V replay(K key, F fingerprint) {
+        Ensure.notNull("idempotency.key", key);
+        Ensure.notNull("idempotency.fingerprint", fingerprint);
+        expire();
+        var deadline = System.nanoTime() + waitTimeout.toNanos();
+        while (true) {
+            var existing = entries.get(key);
+            if (existing == null) {
+                return null;
+            }
+            if (!existing.fingerprint().equals(fingerprint)) {
+                throw conflict.apply(MISMATCH);
+            }
+            switch (existing) {
+                case Completed<F, V> completed -> {
+                    touch(key);
+                    return completed.value();
+                }
+                case Pending<F, V> inFlight -> {
+                    var value = await(inFlight, deadline);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            }
+        }
+    }
+
+    /// Installs a finished entry, e.g. while replaying a journal. Its retention starts now.
+    public void restore(K key, F fingerprint, V value) {
+        var completed = new Completed<>(
+                Ensure.notNull("idempotency.fingerprint", fingerprint),
+                Ensure.notNull("idempotency.value", value));
+        entries.put(Ensure.notNull("idempotency.key", key), completed);
+        track(key, completed);
+    }
+
+    /// Finished entries, for snapshots. In-flight entries are skipped.
+    public Stream<Recorded<K, F, V>> completed() {
+        return entries.entrySet().stream()
+                .mapMulti((entry, sink) -> {
+                    if (entry.getValue() instanceof Completed<F, V>(var fingerprint, var value)) {
+                        sink.accept(new Recorded<>(entry.getKey(), fingerprint, value));
+                    }
+                });
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Stats stats() {
+        retentionLock.lock();
+        try {
+            return new Stats(lru.size(), bytes, expired, evicted);
+        } finally {
+            retentionLock.unlock();
+        }
+    }
+
+    /// Drops finished entries whose retention has elapsed.
+    public void expire() {
+        retentionLock.lock();
+        try {
+            expiry.advance(clock.instant(), key -> {
+                if (drop(key)) {
+                    expired++;
+                }
+            });
+        } finally {
+            retentionLock.unlock();
+        }
+    }
+
+    private void touch(K key) {
+        retentionLock.lock();
+        try {
+            lru.get(key);
+        } finally {
+            retentionLock.unlock();
+        }
+    }
+
+    private void track(K key, Completed<F, V> completed) {
+        var weight = ENTRY_OVERHEAD_BYTES + Math.max(0L, weigher.applyAsLong(completed.value()));
+        retentionLock.lock();
+        try {
+            var previous = lru.put(key, new Tracked<>(completed, weight));
+            if (previous != null) {
+                bytes -= previous.weight();
+            }
+            bytes += weight;
+            expiry.schedule(key, clock.instant().plus(retention.ttl()));
+            while (overCapacity()) {
+                var eldest = lru.keySet().iterator().next();
+                expiry.cancel(eldest);
+                drop(eldest);
+                evicted++;
+            }
+        } finally {
+            retentionLock.unlock();
+        }
+    }
+
+    private boolean overCapacity() {
+        return !lru.isEmpty()
+                && ((retention.maxEntries() > 0 && lru.size() > retention.maxEntries())
+                || (retention.maxBytes() > 0 && bytes > retention.maxBytes()));
+    }
+
+    private boolean drop(K key) {
+        var tracked = lru.remove(key);
+        if (tracked == null) {
+            return false;
+        }
+        bytes -= tracked.weight();
+        entries.remove(key, tracked.entry());
+        return true;
+    }
+
+    /// Returns the owner's committed value, or `null` if the owner gave up and the key is free again.
+    private V await(Pending<F, V> inFlight, long deadline) {
+        try {
+            return inFlight.result().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        } catch (TimeoutException e) {
+            throw conflict.apply(IN_PROGRESS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while awaiting idempotent request", e);
+        }
+    }
+
+    private sealed interface Entry<F, V> permits Pending, Completed {
+        F fingerprint();
+    }
+
+    private record Pending<F, V>(F fingerprint, CompletableFuture<V> result) implements Entry<F, V> {
+    }
+
+    private record Completed<F, V>(F fingerprint, V value) implements Entry<F, V> {
+    }
+
+    private record Tracked<F, V>(Completed<F, V> entry, long weight) {
+    }
+
+    public record Recorded<K, F, V>(K key, F fingerprint, V value) {
+    }
+
+    /// How long finished entries are kept and, when positive, the most entries or estimated bytes
+    /// kept before the least recently used are evicted.
+    public record Retention(Duration ttl, int maxEntries, long maxBytes) {
+        public Retention {
+            ttl = Ensure.notNull("idempotency.ttl", ttl);
+            if (ttl.isNegative() || ttl.isZero()) {
+                throw new IllegalArgumentException("idempotency.ttl MUST be > 0");
+            }
+            Ensure.nonNegative("idempotency.max_entries", maxEntries);
+            Ensure.nonNegative("idempotency.max_bytes", maxBytes);
+        }
+
+        public static Retention defaults() {
+            return new Retention(Duration.ofHours(24), 0, 0L);
+        }
+    }
+
+    /// `entries` and `bytes` describe finished entries only; the counters are cumulative.
+    public record Stats(int entries, long bytes, long expired, long evicted) {
+    }
+
+    /// Outcome of [#claim(Object, Object)]: either a replay of an earlier result or ownership of the
+    /// key. Owners MUST close the claim, committing first on success.
+    public static final class Claim<K, F, V> implements AutoCloseable {
+        private final IdempotencyTable<K, F, V> table;
+        private final K key;
+        private final Pending<F, V> pending;
+        private final V replay;
+        private V committed;
+
+        private Claim(IdempotencyTable<K, F, V> table, K key, Pending<F, V> pending, V replay) {
+            this.table = table;
+            this.key = key;
+            this.pending = pending;
+            this.replay = replay;
+        }
+
+        public boolean isReplay() {
+            return pending == null;
+        }
+
+        /// The value committed by the request that owned the key.
+        public V replayed() {
+            if (pending != null) {
+                throw new IllegalStateException("Claim owns the key and has nothing to replay");
+            }
+            return replay;
+        }
+
+        /// Marks the key `COMPLETED` with `value`. Waiters are released when the claim closes.
+        public void commit(V value) {
+            if (pending == null) {
+                throw new IllegalStateException("Replayed claims cannot commit");
+            }
+            committed = Objects.requireNonNull(value, "idempotency.value");
+            var completed = new Completed<>(pending.fingerprint(), value);
+            if (table.entries.replace(key, pending, completed)) {
+                table.track(key, completed);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (pending == null) {
+                return;
+            }
+            if (committed != null) {
+                pending.result().complete(committed);
+            } else {
+                table.entries.remove(key, pending);
+                pending.result().cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.amannmalik.acp.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/// Immutable hash array mapped trie: every update returns a new map sharing all untouched nodes
+/// with the old one, so keeping an old version around costs nothing and a map can be read from any
+/// number of threads while newer versions are built.
+///
+/// Each level consumes five bits of the key's hash and holds only the occupied slots of its 32,
+/// located by popcount over a bitmap, so an update copies one small array per level of a trie that
+/// is about `log32(size)` deep. Keys whose full hashes collide share a collision node at the bottom.
+/// Keys and values MUST NOT be `null`.
+public final class PersistentHashMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /// Seven bitmap levels cover the 32 hash bits, plus one collision node.
+    private static final int MAX_DEPTH = 8;
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(new BitmapNode(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    private static int hash(Object key) {
+        var hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (V) root.get(0, hash(Ensure.notNull("persistent_map.key", key)), key);
+    }
+
+    /// This map if `key` already maps to `value`, otherwise a new map in which it does.
+    public PersistentHashMap<K, V> put(K key, V value) {
+        Ensure.notNull("persistent_map.value", value);
+        var previous = get(key);
+        if (previous == value) {
+            return this;
+        }
+        return new PersistentHashMap<>(root.put(0, hash(key), key, value), previous == null ? size + 1 : size);
+    }
+
+    /// This map if `key` is absent, otherwise a new map without it.
+    public PersistentHashMap<K, V> remove(K key) {
+        var updated = root.remove(0, hash(Ensure.notNull("persistent_map.key", key)), key);
+        if (updated == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(updated == null ? empty().root : updated, size - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        var entries = new EntryIterator(root);
+        while (entries.hasNext()) {
+            entries.next();
+            action.accept((K) entries.key, (V) entries.value);
+        }
+    }
+
+    /// Values in trie order, walked lazily from this version.
+    @SuppressWarnings("unchecked")
+    public Stream<V> values() {
+        var entries = new EntryIterator(root);
+        var values = new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public V next() {
+                entries.next();
+                return (V) entries.value;
+            }
+        };
+        return StreamSupport.stream(
+                Spliterators.spliterator(values, size, Spliterator.IMMUTABLE | Spliterator.NONNULL), false);
+    }
+
+    /// Both node kinds keep their contents in one array of `[key, value]` pairs; a bitmap node's
+    /// pair with a `null` key holds a child node as its value.
+    private sealed interface Node permits BitmapNode, CollisionNode {
+        Object get(int shift, int hash, Object key);
+
+        /// `this` when nothing changed.
+        Node put(int shift, int hash, Object key, Object value);
+
+        /// `this` when `key` is absent, `null` when the node became empty.
+        Node remove(int shift, int hash, Object key);
+
+        Object[] pairs();
+    }
+
+    private record BitmapNode(int bitmap, Object[] pairs) implements Node {
+        private static Node merge(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            var hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+            }
+            return new BitmapNode(0, new Object[0])
+                    .put(shift, hash1, key1, value1)
+                    .put(shift, hash2, key2, value2);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1)) * 2;
+        }
+
+        private BitmapNode with(int index, Object key, Object value) {
+            var copy = pairs.clone();
+            copy[index] = key;
+            copy[index + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        public Object get(int shift, int hash, Object key) {
+            var bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            var index = index(bit);
+            var existing = pairs[index];
+            if (existing == null) {
+                return ((Node) pairs[index + 1]).get(shift + BITS, hash, key);
+            }
+            return key.equals(existing) ? pairs[index + 1] : null;
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value) {
+            var bit = 1 << ((hash >>> shift) & MASK);
+            var index = index(bit);
+            if ((bitmap & bit) == 0) {
+                var copy = new Object[pairs.length + 2];
+                System.arraycopy(pairs, 0, copy, 0, index);
+                copy[index] = key;
+                copy[index + 1] = value;
+                System.arraycopy(pairs, index, copy, index + 2, pairs.length - index);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            var existing = pairs[index];
+            var existingValue = pairs[index + 1];
+            if (existing == null) {
+                var child = (Node) existingValue;
+                var updated = child.put(shift + BITS, hash, key, value);
+                return updated == child ? this : with(index, null, updated);
+            }
+            if (key.equals(existing)) {
+                return existingValue == value ? this : with(index, existing, value);
+            }
+            return with(index, null, merge(shift + BITS, existing, existingValue, hash, key, value));
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key) {
+            var bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            var index = index(bit);
+            var existing = pairs[index];
+            if (existing == null) {
+                var child = (Node) pairs[index + 1];
+                var updated = child.remove(shift + BITS, hash, key);
+                if (updated == child) {
+                    return this;
+                }
+                if (updated == null) {
+                    return without(bit, index);
+                }
+                // A child left holding a single entry is pulled up, keeping the trie as shallow as if
+                // the removed key had never been added.
+                var remaining = updated.pairs();
+                if (remaining.length == 2 && remaining[0] != null) {
+                    return with(index, remaining[0], remaining[1]);
+                }
+                return with(index, null, updated);
+            }
+            return key.equals(existing) ? without(bit, index) : this;
+        }
+
+        private Node without(int bit, int index) {
+            if (bitmap == bit) {
+                return null;
+            }
+            var copy = new Object[pairs.length - 2];
+            System.arraycopy(pairs, 0, copy, 0, index);
+            System.arraycopy(pairs, index + 2, copy, index, pairs.length - index - 2);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+    }
+
+    private record CollisionNode(int hash, Object[] pairs) implements Node {
+        private int indexOf(Object key) {
+            for (var i = 0; i < pairs.length; i += 2) {
+                if (key.equals(pairs[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Object get(int shift, int hash, Object key) {
+            var index = indexOf(key);
+            return index < 0 ? null : pairs[index + 1];
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value) {
+            var index = indexOf(key);
+            if (index >= 0) {
+                if (pairs[index + 1] == value) {
+                    return this;
+                }
+                var copy = pairs.clone();
+                copy[index + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            var copy = Arrays.copyOf(pairs, pairs.length + 2);
+            copy[pairs.length] = key;
+            copy[pairs.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key) {
+            var index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (pairs.length == 2) {
+                return null;
+            }
+            var copy = new Object[pairs.length - 2];
+            System.arraycopy(pairs, 0, copy, 0, index);
+            System.arraycopy(pairs, index + 2, copy, index, pairs.length - index - 2);
+            return new CollisionNode(hash, copy);
+        }
+    }
+
+    /// Depth-first walk over pair arrays with an explicit stack; each [#next()] leaves the entry in
+    /// [#key] and [#value].
+    private static final class EntryIterator {
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private boolean ready;
+        private Object key;
+        private Object value;
+
+        private EntryIterator(Node root) {
+            arrays[0] = root.pairs();
+        }
+
+        private boolean hasNext() {
+            if (ready) {
+                return true;
+            }
+            while (depth >= 0) {
+                var pairs = arrays[depth];
+                var position = positions[depth];
+                if (position >= pairs.length) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+                if (pairs[position] == null) {
+                    depth++;
+                    arrays[depth] = ((Node) pairs[position + 1]).pairs();
+                    positions[depth] = 0;
+                    continue;
+                }
+                key = pairs[position];
+                value = pairs[position + 1];
+                ready = true;
+                return true;
+            }
+            return false;
+        }
+
+        private void next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.amannmalik.acp.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/// Approximate set of recently seen keys that forgets them after a fixed window, in constant
+/// memory. Used to spot replayed request signatures without a map entry per request.
+///
+/// Time is cut into [#GENERATIONS] slices of `window / (GENERATIONS - 1)`, each with its own Bloom
+/// filter, so a key is remembered for at least `window` and at most one slice longer. The memory
+/// budget is split evenly between the slices; the hash count and per-slice capacity follow from
+/// the budget and the target false-positive rate, which is spread over the slices a lookup checks.
+/// Once more than [#capacityPerGeneration()] keys arrive in one slice the false-positive rate
+/// degrades gradually rather than memory growing.
+///
+/// Inserts are lock-free: bits are set with an atomic OR, and the slice that has aged out is
+/// replaced by a fresh one with a single compare-and-set. Two threads adding the same key at the
+/// same instant may both see it as new; any later add sees it.
+public final class RotatingBloomFilter {
+    static final int GENERATIONS = 4;
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final double LN2 = Math.log(2);
+    private static final long SEED_1 = 0x9E3779B97F4A7C15L;
+    private static final long SEED_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final long sliceMillis;
+    private final int words;
+    private final long bits;
+    private final int hashes;
+    private final long capacityPerGeneration;
+    private final Clock clock;
+    private final AtomicReferenceArray<Generation> generations = new AtomicReferenceArray<>(GENERATIONS);
+
+    public RotatingBloomFilter(Duration window, long maxBytes, double falsePositiveRate, Clock clock) {
+        Ensure.notNull("bloom.window", window);
+        if (window.toMillis() < GENERATIONS - 1) {
+            throw new IllegalArgumentException("bloom.window MUST be at least " + (GENERATIONS - 1) + "ms");
+        }
+        if (maxBytes < GENERATIONS * (long) Long.BYTES) {
+            throw new IllegalArgumentException("bloom.max_bytes MUST be at least " + GENERATIONS * Long.BYTES);
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("bloom.false_positive_rate MUST be between 0 and 1");
+        }
+        this.sliceMillis = Math.ceilDiv(window.toMillis(), GENERATIONS - 1);
+        this.words = (int) Math.min(Integer.MAX_VALUE - 8, maxBytes / GENERATIONS / Long.BYTES);
+        this.bits = (long) words * Long.SIZE;
+        var perGenerationRate = falsePositiveRate / GENERATIONS;
+        this.hashes = Math.max(1, (int) Math.round(-Math.log(perGenerationRate) / LN2));
+        this.capacityPerGeneration = (long) (bits * LN2 * LN2 / -Math.log(perGenerationRate));
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+    }
+
+    /// Keys one time slice can take before the false-positive rate exceeds its target.
+    public long capacityPerGeneration() {
+        return capacityPerGeneration;
+    }
+
+    public int hashCount() {
+        return hashes;
+    }
+
+    /// Records `key` and returns `true` if it was not seen within the window. A `false` may, with
+    /// the configured probability, be a key that was never added.
+    public boolean add(byte[] key) {
+        Ensure.notNull("bloom.key", key);
+        var h1 = hash(key, SEED_1);
+        var h2 = hash(key, SEED_2) | 1;
+        var epoch = Math.floorDiv(clock.millis(), sliceMillis);
+        for (var age = 1; age < GENERATIONS; age++) {
+            var generation = generations.get(slot(epoch - age));
+            if (generation != null && generation.epoch == epoch - age && contains(generation.words, h1, h2)) {
+                return false;
+            }
+        }
+        return insert(current(epoch).words, h1, h2);
+    }
+
+    private static long hash(byte[] key, long seed) {
+        var hash = seed ^ key.length * 0xFF51AFD7ED558CCDL;
+        var i = 0;
+        for (; i + Long.BYTES <= key.length; i += Long.BYTES) {
+            hash = (hash ^ mix(longAt(key, i))) * 0x9FB21C651E98DF25L;
+        }
+        var tail = 0L;
+        for (var shift = 0; i < key.length; i++, shift += 8) {
+            tail |= (key[i] & 0xFFL) << shift;
+        }
+        return mix(hash ^ mix(tail));
+    }
+
+    private static long longAt(byte[] key, int offset) {
+        var value = 0L;
+        for (var i = Long.BYTES - 1; i >= 0; i--) {
+            value = (value << 8) | (key[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+
+    /// MurmurHash3 finalizer.
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+
+    private static int slot(long epoch) {
+        return Math.floorMod(epoch, GENERATIONS);
+    }
+
+    /// The slice for `epoch`, replacing whichever older slice occupied its slot. A thread with a
+    /// stale clock reading keeps using the newer slice it finds there.
+    private Generation current(long epoch) {
+        var slot = slot(epoch);
+        while (true) {
+            var generation = generations.get(slot);
+            if (generation != null && generation.epoch >= epoch) {
+                return generation;
+            }
+            var fresh = new Generation(epoch, new long[words]);
+            if (generations.compareAndSet(slot, generation, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private boolean contains(long[] words, long h1, long h2) {
+        for (var i = 0; i < hashes; i++) {
+            var bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            if (((long) WORDS.getOpaque(words, (int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /// Sets the key's bits; `true` if any of them was clear.
+    private boolean insert(long[] words, long h1, long h2) {
+        var added = false;
+        for (var i = 0; i < hashes; i++) {
+            var bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            var index = (int) (bit >>> 6);
+            var mask = 1L << bit;
+            if (((long) WORDS.getOpaque(words, index) & mask) == 0
+                    && ((long) WORDS.getAndBitwiseOr(words, index, mask) & mask) == 0) {
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    private record Generation(long epoch, long[] words) {
+    }
+}
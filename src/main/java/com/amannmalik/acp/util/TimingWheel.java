@@ -0,0 +1,182 @@
+package com.amannmalik.acp.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/// Hierarchical timing wheel that maps keys to deadlines and reports the ones that have passed.
+///
+/// Four levels of 64 slots cover `64^4` ticks; level `n` slots span `64^n` ticks and are cascaded
+/// into the level below when the wheel reaches them, so scheduling, rescheduling and cancelling are
+/// O(1) and [#advance(Instant, Consumer)] skips straight past empty stretches of the wheel.
+/// Deadlines are rounded up to whole ticks, so a key never fires early and at most one tick late.
+/// Deadlines past the wheel's span park in the top level and are re-placed on every cascade until
+/// they fit.
+///
+/// Not thread-safe; owners guard it with their own lock.
+public final class TimingWheel<K> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickMillis;
+    private final Node<K>[][] slots;
+    private final int[] levelSizes = new int[LEVELS];
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(Duration tick, Instant start) {
+        Ensure.notNull("timing_wheel.tick", tick);
+        this.tickMillis = Ensure.positiveLong("timing_wheel.tick_millis", tick.toMillis());
+        this.currentTick = Math.floorDiv(Ensure.notNull("timing_wheel.start", start).toEpochMilli(), tickMillis);
+        this.slots = (Node<K>[][]) new Node<?>[LEVELS][SLOTS];
+    }
+
+    /// Schedules `key` to fire at `deadline`, replacing any earlier schedule for it.
+    public void schedule(K key, Instant deadline) {
+        cancel(key);
+        var node = new Node<>(key, Math.max(ceilTicks(deadline.toEpochMilli()), currentTick + 1));
+        nodes.put(key, node);
+        place(node);
+    }
+
+    public boolean cancel(K key) {
+        var node = nodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    public boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /// Moves the wheel to `now` and hands every key whose deadline has passed to `expired`, in
+    /// deadline order at tick granularity. Expired keys are unscheduled before `expired` sees them.
+    public void advance(Instant now, Consumer<? super K> expired) {
+        var target = Math.floorDiv(now.toEpochMilli(), tickMillis);
+        while (currentTick < target) {
+            if (nodes.isEmpty()) {
+                currentTick = target;
+                return;
+            }
+            var idle = idleMask();
+            if ((currentTick & idle) != idle) {
+                currentTick = Math.min(target, currentTick | idle);
+                continue;
+            }
+            var tick = ++currentTick;
+            if ((tick & MASK) == 0) {
+                cascade(1, tick);
+            }
+            var slot = (int) (tick & MASK);
+            var node = slots[0][slot];
+            slots[0][slot] = null;
+            while (node != null) {
+                var next = node.next;
+                node.prev = null;
+                node.next = null;
+                node.level = -1;
+                levelSizes[0]--;
+                nodes.remove(node.key);
+                expired.accept(node.key);
+                node = next;
+            }
+        }
+    }
+
+    /// Low tick bits that can be skipped without passing a due slot: everything below the lowest
+    /// occupied level's next boundary.
+    private long idleMask() {
+        var level = 0;
+        while (level < LEVELS - 1 && levelSizes[level] == 0) {
+            level++;
+        }
+        return (1L << (BITS * level)) - 1;
+    }
+
+    private void cascade(int level, long tick) {
+        if (level >= LEVELS) {
+            return;
+        }
+        var index = (int) ((tick >>> (BITS * level)) & MASK);
+        if (index == 0) {
+            cascade(level + 1, tick);
+        }
+        var node = slots[level][index];
+        slots[level][index] = null;
+        while (node != null) {
+            var next = node.next;
+            node.prev = null;
+            node.next = null;
+            levelSizes[level]--;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void place(Node<K> node) {
+        var delta = node.deadlineTick - currentTick;
+        var tick = delta >= SPAN ? currentTick + SPAN - 1 : Math.max(node.deadlineTick, currentTick);
+        var level = 0;
+        while (level < LEVELS - 1 && tick - currentTick >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        var index = (int) ((tick >>> (BITS * level)) & MASK);
+        node.level = level;
+        node.index = index;
+        node.next = slots[level][index];
+        if (node.next != null) {
+            node.next.prev = node;
+        }
+        slots[level][index] = node;
+        levelSizes[level]++;
+    }
+
+    private void unlink(Node<K> node) {
+        if (node.level < 0) {
+            return;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            slots[node.level][node.index] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        levelSizes[node.level]--;
+        node.prev = null;
+        node.next = null;
+        node.level = -1;
+    }
+
+    private long ceilTicks(long epochMillis) {
+        return Math.floorDiv(epochMillis + tickMillis - 1, tickMillis);
+    }
+
+    private static final class Node<K> {
+        private final K key;
+        private final long deadlineTick;
+        private Node<K> prev;
+        private Node<K> next;
+        private int level = -1;
+        private int index;
+
+        private Node(K key, long deadlineTick) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
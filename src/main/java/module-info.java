@@ -5,6 +5,7 @@ module acp.main {
     requires transitive java.net.http;
     requires org.eclipse.jetty.ee10.servlet;
     requires org.eclipse.jetty.server;
+    requires org.eclipse.parsson;
     exports com.amannmalik.acp.cli;
     exports com.amannmalik.acp.api.checkout;
     exports com.amannmalik.acp.api.checkout.model;
@@ -16,6 +17,8 @@ module acp.main {
     exports com.amannmalik.acp.server.webhook;
     exports com.amannmalik.acp.util;
     exports com.amannmalik.acp.codec;
+    exports com.amannmalik.acp.spi.storage;
     exports com.amannmalik.acp.spi.webhook;
+    exports com.amannmalik.acp.storage;
     opens com.amannmalik.acp.cli to info.picocli;
 }
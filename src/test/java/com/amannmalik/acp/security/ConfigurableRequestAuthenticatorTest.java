@@ -1,9 +1,11 @@
 package com.amannmalik.acp.security;
 
 import com.amannmalik.acp.api.shared.ErrorResponse;
+import com.amannmalik.acp.codec.JsonDocument;
 import com.amannmalik.acp.server.HttpProblem;
 import com.amannmalik.acp.server.security.ConfigurableRequestAuthenticator;
 import com.amannmalik.acp.server.security.SecurityConfiguration;
+import jakarta.json.*;
 import jakarta.servlet.http.HttpServletRequest;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -16,23 +18,26 @@ import java.security.*;
 import java.time.*;
 import java.util.*;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.*;
 
 final class ConfigurableRequestAuthenticatorTest {
     private static final byte[] SECRET = decode("c2VjcmV0X3Rlc3Rfc2VjcmV0MTIzNDU2");
     private static final byte[] SECRET_TWO = decode("c2Vjb25kX3NlY3JldF8wMDEyMw==");
 
     private static HttpServletRequest request(Map<String, String> headers) {
+        return request("POST", "/checkout_sessions", headers);
+    }
+
+    private static HttpServletRequest request(String httpMethod, String uri, Map<String, String> headers) {
         return (HttpServletRequest) Proxy.newProxyInstance(
                 HttpServletRequest.class.getClassLoader(),
                 new Class<?>[]{HttpServletRequest.class},
-                (proxy, method, args) -> {
-                    if ("getHeader".equals(method.getName())) {
-                        var name = (String) args[0];
-                        return headers.get(name);
-                    }
-                    throw new UnsupportedOperationException("Method not implemented: " + method.getName());
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getHeader" -> headers.get((String) args[0]);
+                    case "getMethod" -> httpMethod;
+                    case "getRequestURI" -> uri;
+                    case "getQueryString" -> null;
+                    default -> throw new UnsupportedOperationException("Method not implemented: " + method.getName());
                 });
     }
 
@@ -48,6 +53,40 @@ final class ConfigurableRequestAuthenticatorTest {
         }
     }
 
+    /// Canonical form built the slow way, from a parsed tree, as the reference for the streamed one.
+    private static String treeCanonical(byte[] body) {
+        try (var reader = Json.createReader(new java.io.ByteArrayInputStream(body))) {
+            var out = new StringBuilder();
+            appendCanonical(reader.readValue(), out);
+            return out.toString();
+        }
+    }
+
+    private static void appendCanonical(JsonValue value, StringBuilder out) {
+        switch (value.getValueType()) {
+            case OBJECT -> {
+                out.append('{');
+                var keys = new ArrayList<>(value.asJsonObject().keySet());
+                Collections.sort(keys);
+                for (var i = 0; i < keys.size(); i++) {
+                    out.append(i == 0 ? "" : ",").append(Json.createValue(keys.get(i))).append(':');
+                    appendCanonical(value.asJsonObject().get(keys.get(i)), out);
+                }
+                out.append('}');
+            }
+            case ARRAY -> {
+                out.append('[');
+                var array = value.asJsonArray();
+                for (var i = 0; i < array.size(); i++) {
+                    out.append(i == 0 ? "" : ",");
+                    appendCanonical(array.get(i), out);
+                }
+                out.append(']');
+            }
+            default -> out.append(value);
+        }
+    }
+
     private static String signCanonical(String timestamp, String canonicalJson) {
         try {
             var mac = Mac.getInstance("HmacSHA256");
@@ -95,6 +134,133 @@ final class ConfigurableRequestAuthenticatorTest {
         authenticator.authenticate(request, body);
     }
 
+    @Test
+    @DisplayName("authenticate rejects a replayed signature unless replay protection is disabled")
+    void authenticateReplayedSignature() {
+        var clock = Clock.fixed(Instant.parse("2025-10-30T12:00:00Z"), ZoneOffset.UTC);
+        var timestamp = "2025-10-30T12:00:00Z";
+        var body = "{\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+        var request = request(Map.of(
+                "Authorization", "Bearer token",
+                "Timestamp", timestamp,
+                "Signature", "key1:" + sign(timestamp, body)));
+        var signingKeys = Map.<String, SecurityConfiguration.SigningKey>of(
+                "key1", new SecurityConfiguration.SigningKey.HmacSha256(SECRET));
+        var protectedAuthenticator = new ConfigurableRequestAuthenticator(
+                new SecurityConfiguration(
+                        Set.of("token"),
+                        signingKeys,
+                        Duration.ofMinutes(5),
+                        SecurityConfiguration.ReplayProtection.defaults()),
+                clock);
+
+        protectedAuthenticator.authenticate(request, body);
+        var problem = assertThrows(HttpProblem.class, () -> protectedAuthenticator.authenticate(request, body));
+        assertEquals(401, problem.status());
+        assertEquals("replayed_request", problem.code());
+
+        var unprotectedAuthenticator = new ConfigurableRequestAuthenticator(
+                new SecurityConfiguration(
+                        Set.of("token"),
+                        signingKeys,
+                        Duration.ofMinutes(5),
+                        SecurityConfiguration.ReplayProtection.disabled()),
+                clock);
+        unprotectedAuthenticator.authenticate(request, body);
+        unprotectedAuthenticator.authenticate(request, body);
+
+        var legacyAuthenticator = new ConfigurableRequestAuthenticator(
+                new SecurityConfiguration(Set.of("token"), signingKeys, Duration.ofMinutes(5)), clock);
+        legacyAuthenticator.authenticate(request, body);
+        legacyAuthenticator.authenticate(request, body);
+    }
+
+    @Test
+    @DisplayName("replay detection tells apart requests that differ in method, target, client or Request-Id")
+    void replayKeyCoversRequestLineClientAndRequestId() {
+        var clock = Clock.fixed(Instant.parse("2025-10-30T12:00:00Z"), ZoneOffset.UTC);
+        var timestamp = "2025-10-30T12:00:00Z";
+        var empty = new byte[0];
+        var authenticator = new ConfigurableRequestAuthenticator(
+                new SecurityConfiguration(
+                        Set.of("token", "other"),
+                        Map.of("key1", new SecurityConfiguration.SigningKey.HmacSha256(SECRET)),
+                        Duration.ofMinutes(5),
+                        SecurityConfiguration.ReplayProtection.defaults()),
+                clock);
+        var headers = Map.of(
+                "Authorization", "Bearer token",
+                "Timestamp", timestamp,
+                "Signature", "key1:" + signCanonical(timestamp, ""));
+
+        authenticator.authenticate(request("POST", "/checkout_sessions/csn_000001/cancel", headers), empty);
+        authenticator.authenticate(request("POST", "/checkout_sessions/csn_000002/cancel", headers), empty);
+        authenticator.authenticate(request("DELETE", "/checkout_sessions/csn_000001/cancel", headers), empty);
+        var otherClient = new HashMap<>(headers);
+        otherClient.put("Authorization", "Bearer other");
+        authenticator.authenticate(request("POST", "/checkout_sessions/csn_000001/cancel", otherClient), empty);
+        var firstAttempt = new HashMap<>(headers);
+        firstAttempt.put("Request-Id", "req_1");
+        var secondAttempt = new HashMap<>(headers);
+        secondAttempt.put("Request-Id", "req_2");
+        authenticator.authenticate(request("POST", "/checkout_sessions/csn_000003/cancel", firstAttempt), empty);
+        authenticator.authenticate(request("POST", "/checkout_sessions/csn_000003/cancel", secondAttempt), empty);
+
+        var problem = assertThrows(HttpProblem.class,
+                () -> authenticator.authenticate(request("POST", "/checkout_sessions/csn_000002/cancel", headers), empty));
+        assertEquals("replayed_request", problem.code());
+        problem = assertThrows(HttpProblem.class,
+                () -> authenticator.authenticate(request("POST", "/checkout_sessions/csn_000003/cancel", secondAttempt), empty));
+        assertEquals("replayed_request", problem.code());
+    }
+
+    @Test
+    @DisplayName("replay detection leaves safe methods alone, so identical polls are accepted")
+    void safeMethodsAreNotReplays() {
+        var clock = Clock.fixed(Instant.parse("2025-10-30T12:00:00Z"), ZoneOffset.UTC);
+        var timestamp = "2025-10-30T12:00:00Z";
+        var empty = new byte[0];
+        var authenticator = new ConfigurableRequestAuthenticator(
+                new SecurityConfiguration(
+                        Set.of("token"),
+                        Map.of("key1", new SecurityConfiguration.SigningKey.HmacSha256(SECRET)),
+                        Duration.ofMinutes(5),
+                        SecurityConfiguration.ReplayProtection.defaults()),
+                clock);
+        var headers = Map.of(
+                "Authorization", "Bearer token",
+                "Timestamp", timestamp,
+                "Signature", "key1:" + signCanonical(timestamp, ""));
+
+        for (var i = 0; i < 3; i++) {
+            authenticator.authenticate(request("GET", "/checkout_sessions/csn_000001", headers), empty);
+            authenticator.authenticate(request("HEAD", "/checkout_sessions/csn_000001", headers), empty);
+        }
+    }
+
+    @Test
+    @DisplayName("authenticateRetry lets a repeated signature through and reports it")
+    void authenticateRetryReportsReplay() {
+        var clock = Clock.fixed(Instant.parse("2025-10-30T12:00:00Z"), ZoneOffset.UTC);
+        var timestamp = "2025-10-30T12:00:00Z";
+        var body = "{\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+        var request = request(Map.of(
+                "Authorization", "Bearer token",
+                "Timestamp", timestamp,
+                "Signature", "key1:" + sign(timestamp, body)));
+        var authenticator = new ConfigurableRequestAuthenticator(
+                new SecurityConfiguration(
+                        Set.of("token"),
+                        Map.of("key1", new SecurityConfiguration.SigningKey.HmacSha256(SECRET)),
+                        Duration.ofMinutes(5),
+                        SecurityConfiguration.ReplayProtection.defaults()),
+                clock);
+
+        assertFalse(authenticator.authenticateRetry(request, JsonDocument.of(body)));
+        assertTrue(authenticator.authenticateRetry(request, JsonDocument.of(body)));
+        assertThrows(HttpProblem.class, () -> authenticator.authenticate(request, body));
+    }
+
     @Test
     @DisplayName("authenticate rejects missing timestamp when signature required")
     void authenticateMissingTimestamp() {
@@ -247,4 +413,44 @@ final class ConfigurableRequestAuthenticatorTest {
         assertEquals("missing_signature_key", problem.code());
         assertEquals(ErrorResponse.ErrorType.INVALID_REQUEST, problem.errorType());
     }
+
+    @Test
+    @DisplayName("authenticate streams the same canonical form as the parsed tree")
+    void authenticateStreamedCanonicalForm() {
+        var configuration = new SecurityConfiguration(
+                Set.of("token"),
+                Map.of("key1", new SecurityConfiguration.SigningKey.HmacSha256(SECRET)),
+                Duration.ofMinutes(5));
+        var authenticator = new ConfigurableRequestAuthenticator(configuration, Clock.systemUTC());
+        var bodies = List.of(
+                "{\"a\":1,\"b\":[true,false,null],\"c\":\"x\\ny\"}",
+                " { \"b\" : 1 , \"a\" : { \"z\" : [ ] , \"y\" : { } } } ",
+                "{\"k\":1,\"k\":2,\"j\":{\"k\":[1 , 2]}}",
+                "[-0,-0.0,1.0E2,0.0000001,100e-2,12345678901234567890123,1.5,-7]",
+                "{\"\\u00e9\":\"\\u0041\\/\\u001f\\u007f\",\"\u00e9\":\"\u20ac\ud83d\ude00\",\"\\ud83d\\ude00\":\"\\ud800\"}",
+                "{\"\uffff\":1,\"\ud83d\ude00\":2,\"\\b\":\"\\f\\r\\t\"}",
+                "{} trailing",
+                "[[[{\"b\":\"\\\"\",\"a\":\"\\\\\"}]]]");
+        for (var text : bodies) {
+            var body = text.getBytes(StandardCharsets.UTF_8);
+            var timestamp = Instant.now().toString();
+            var request = request(Map.of(
+                    "Authorization", "Bearer token",
+                    "Timestamp", timestamp,
+                    "Signature", "key1:" + signCanonical(timestamp, treeCanonical(body))));
+
+            authenticator.authenticate(request, body);
+        }
+
+        var timestamp = Instant.now().toString();
+        var request = request(Map.of(
+                "Authorization", "Bearer token",
+                "Timestamp", timestamp,
+                "Signature", "key1:" + signCanonical(timestamp, "")));
+        authenticator.authenticate(request, new byte[0]);
+        for (var invalid : List.of("{\"a\":1,}", "[1 2]", "{\"a\":[1 2],\"a\":1}", "\"\\x\"", "  ")) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> authenticator.authenticate(request, invalid.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
 }
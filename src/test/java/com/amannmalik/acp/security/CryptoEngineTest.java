@@ -0,0 +1,101 @@
+package com.amannmalik.acp.security;
+
+import com.amannmalik.acp.server.security.CryptoEngine;
+import com.amannmalik.acp.server.security.PreparedHmac;
+import com.amannmalik.acp.server.security.SecurityConfiguration;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class CryptoEngineTest {
+    private static final byte[] SECRET = "secret_test_secret123456".getBytes(StandardCharsets.UTF_8);
+
+    private static CryptoEngine.SignedContent content(String text) {
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+        return sink -> {
+            sink.write(bytes, 0, 3);
+            sink.write(bytes, 3, bytes.length - 3);
+        };
+    }
+
+    private static byte[] freshHmac(String text) throws GeneralSecurityException {
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+        return mac.doFinal(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] ed25519(PrivateKey key, byte[] message) throws GeneralSecurityException {
+        var signer = Signature.getInstance("Ed25519");
+        signer.initSign(key);
+        signer.update(message);
+        return signer.sign();
+    }
+
+    @Test
+    @DisplayName("Prepared HMAC matches a freshly initialized Mac across reuses")
+    void preparedHmacMatchesFreshMac() throws Exception {
+        var hmac = new PreparedHmac(SECRET);
+        for (var text : new String[]{"2025-01-01T00:00:00Z.{}", "first", "second payload"}) {
+            assertArrayEquals(freshHmac(text), hmac.sign(content(text)));
+            assertArrayEquals(freshHmac(text), hmac.sign(text.getBytes(StandardCharsets.UTF_8)));
+        }
+        assertTrue(hmac.verify(content("first"), freshHmac("first")));
+        assertFalse(hmac.verify(content("first"), freshHmac("second payload")));
+    }
+
+    @Test
+    @DisplayName("Engine verifies each key id with its own prepared key")
+    void engineVerifiesPerKeyId() throws Exception {
+        var pair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        var engine = new CryptoEngine(Map.of(
+                "hmac", new SecurityConfiguration.SigningKey.HmacSha256(SECRET),
+                "ed", new SecurityConfiguration.SigningKey.Ed25519(pair.getPublic())));
+        var message = "payload".getBytes(StandardCharsets.UTF_8);
+        var signature = ed25519(pair.getPrivate(), message);
+
+        assertTrue(engine.verify("hmac", content("payload"), freshHmac("payload")));
+        assertTrue(engine.verify("ed", content("payload"), signature));
+        assertTrue(engine.verify("ed", content("payload"), signature));
+        assertFalse(engine.verify("ed", content("tampered"), signature));
+        assertTrue(engine.verify("ed", content("payload"), signature));
+        assertThrows(IllegalArgumentException.class, () -> engine.verify("missing", content("payload"), signature));
+    }
+
+    @Test
+    @DisplayName("Concurrent Ed25519 checks share the verifier pool without mixing messages")
+    void concurrentVerificationFlagsInvalidMessages() throws Exception {
+        var pair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        var engine = new CryptoEngine(Map.of("ed", new SecurityConfiguration.SigningKey.Ed25519(pair.getPublic())));
+        var size = 256;
+        var signatures = new ArrayList<byte[]>(size);
+        for (var i = 0; i < size; i++) {
+            var signature = ed25519(pair.getPrivate(), ("message-" + i).getBytes(StandardCharsets.UTF_8));
+            if (i % 5 == 0) {
+                signature[0] ^= 1;
+            }
+            signatures.add(signature);
+        }
+
+        var results = new ArrayList<Future<Boolean>>(size);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var i = 0; i < size; i++) {
+                var index = i;
+                results.add(executor.submit(() -> engine.verify("ed", content("message-" + index), signatures.get(index))));
+            }
+        }
+
+        for (var i = 0; i < size; i++) {
+            assertEquals(i % 5 != 0, results.get(i).get(), "message " + i);
+        }
+    }
+}
@@ -1,15 +1,25 @@
 package com.amannmalik.acp.testsuite.checkout;
 
+import com.amannmalik.acp.api.checkout.CheckoutSessionExpiry;
 import com.amannmalik.acp.api.checkout.CheckoutSessionIdempotencyConflictException;
+import com.amannmalik.acp.api.checkout.CheckoutSessionNotFoundException;
+import com.amannmalik.acp.api.checkout.CheckoutSessionOptions;
 import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
 import com.amannmalik.acp.api.checkout.model.*;
 import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.spi.webhook.DeadLetter;
+import com.amannmalik.acp.spi.webhook.DeadLetterSink;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
 import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
 import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.testutil.MutableClock;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Path;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -93,6 +103,49 @@ final class InMemoryCheckoutSessionServiceTest {
         assertTrue(updateEvent.refunds().isEmpty());
     }
 
+    @Test
+    void refusedInlineWebhooksAreDeadLetteredWithoutFailingTheCompletion() {
+        var endpoint = "https://agent.example.com/webhooks";
+        OrderWebhookPublisher saturated = event -> {
+            throw new RejectedExecutionException("Webhook queue is full (capacity 1)");
+        };
+        OrderWebhookPublisher named = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                saturated.publish(event);
+            }
+
+            @Override
+            public Map<String, OrderWebhookPublisher> endpoints() {
+                return Map.of(endpoint, saturated);
+            }
+        };
+        var deadLetters = new RecordingDeadLetters(new ArrayList<>());
+        var service = new InMemoryCheckoutSessionService(
+                Map.of("item_test", 1200L),
+                FIXED_CLOCK,
+                new CurrencyCode("usd"),
+                CheckoutSessionOptions.defaults().withWebhookPublisher(named).withWebhookDeadLetters(deadLetters));
+        var session = service.create(
+                new CheckoutSessionCreateRequest(List.of(new Item("item_test", 1)), null, null), "idem-refused");
+        var address = new Address("Test Buyer", "123 Test Street", null, "Test City", "CA", "US", "94016");
+        service.update(session.id(), new CheckoutSessionUpdateRequest(null, null, address, session.fulfillmentOptionId()));
+
+        var completed = service.complete(
+                session.id(),
+                new CheckoutSessionCompleteRequest(null, new PaymentData("tok", PaymentProvider.Provider.STRIPE, null)),
+                "complete-refused");
+
+        assertEquals(CheckoutSessionStatus.COMPLETED, completed.status());
+        assertEquals(2, service.inlineWebhookFailures());
+        assertEquals(List.of(OrderWebhookEvent.Type.ORDER_CREATE, OrderWebhookEvent.Type.ORDER_UPDATE),
+                deadLetters.letters().stream().map(letter -> letter.event().type()).toList());
+        deadLetters.letters().forEach(letter -> {
+            assertEquals(endpoint, letter.endpoint());
+            assertEquals("Webhook queue is full (capacity 1)", letter.reason());
+        });
+    }
+
     @Test
     void createIdempotencyReturnsOriginalSnapshotAfterUpdate() {
         var service = new InMemoryCheckoutSessionService(
@@ -110,6 +163,77 @@ final class InMemoryCheckoutSessionServiceTest {
         assertEquals(updated, service.retrieve(original.id()));
     }
 
+    @Test
+    void idleOpenSessionsExpireAndWritesRestartTheirLifetime() {
+        var clock = new MutableClock(Instant.parse("2025-10-25T10:00:00Z"));
+        var service = new InMemoryCheckoutSessionService(
+                Map.of("item_test", 1200L),
+                clock,
+                new CurrencyCode("usd"),
+                CheckoutSessionOptions.defaults().withExpiry(
+                        new CheckoutSessionExpiry(Duration.ofMinutes(30), Duration.ZERO, null)));
+        var request = new CheckoutSessionCreateRequest(List.of(new Item("item_test", 1)), null, null);
+        var idle = service.create(request, "idem-idle");
+        var active = service.create(request, "idem-active");
+
+        clock.advance(Duration.ofMinutes(20));
+        service.update(active.id(), new CheckoutSessionUpdateRequest(
+                List.of(new Item("item_test", 2)), null, null, active.fulfillmentOptionId()));
+        clock.advance(Duration.ofMinutes(11));
+        service.expireSessions();
+
+        assertThrows(CheckoutSessionNotFoundException.class, () -> service.retrieve(idle.id()));
+        assertEquals(2, service.retrieve(active.id()).lineItems().getFirst().item().quantity());
+
+        var canceled = service.cancel(active.id());
+        clock.advance(Duration.ofDays(30));
+        service.expireSessions();
+
+        assertEquals(canceled, service.retrieve(active.id()));
+    }
+
+    /// Keeps appended dead letters in memory; there are no segments to replay.
+    private record RecordingDeadLetters(List<DeadLetter> letters) implements DeadLetterStore {
+        @Override
+        public void append(DeadLetter deadLetter) {
+            letters.add(deadLetter);
+        }
+
+        @Override
+        public DeadLetterSink forEndpoint(String endpoint) {
+            return (event, attempts, cause) -> append(
+                    new DeadLetter(endpoint, event, attempts, cause.getMessage(), FIXED_CLOCK.instant()));
+        }
+
+        @Override
+        public List<Path> sealedSegments() {
+            return List.of();
+        }
+
+        @Override
+        public Path claimSealed() {
+            return null;
+        }
+
+        @Override
+        public void release(Path segment) {
+        }
+
+        @Override
+        public void read(Path segment, Consumer<DeadLetter> sink) {
+            throw new UnsupportedOperationException("No segments");
+        }
+
+        @Override
+        public void delete(Path segment) {
+            throw new UnsupportedOperationException("No segments");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     private record RecordingPublisher(List<OrderWebhookEvent> events) implements OrderWebhookPublisher {
         @Override
         public void publish(OrderWebhookEvent event) {
@@ -0,0 +1,165 @@
+package com.amannmalik.acp.testsuite.checkout;
+
+import com.amannmalik.acp.api.checkout.CheckoutSessionExpiry;
+import com.amannmalik.acp.api.checkout.CheckoutSessionIdempotencyConflictException;
+import com.amannmalik.acp.api.checkout.CheckoutSessionNotFoundException;
+import com.amannmalik.acp.api.checkout.CheckoutSessionOptions;
+import com.amannmalik.acp.api.checkout.MailboxCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator;
+import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.storage.FileCheckoutSessionArchive;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import com.amannmalik.acp.testutil.MutableClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class MailboxCheckoutSessionServiceTest {
+    @TempDir
+    Path directory;
+
+    private static CheckoutSession ready(MailboxCheckoutSessionService service, String idempotencyKey) {
+        var session = service.create(createRequest(1), idempotencyKey);
+        return service.update(session.id(), addressUpdate(session));
+    }
+
+    @Test
+    void lifecycleMatchesComputeEngine() {
+        var events = new CopyOnWriteArrayList<OrderWebhookEvent>();
+        try (var service = mailboxService(events::add, DelegatePaymentTokenValidator.NOOP, CheckoutSessionJournal.NOOP, null)) {
+            var session = ready(service, "idem-1");
+            assertEquals(CheckoutSessionStatus.READY_FOR_PAYMENT, session.status());
+
+            var completed = service.complete(session.id(), completeRequest(), "complete-1");
+
+            assertEquals(CheckoutSessionStatus.COMPLETED, completed.status());
+            assertEquals("ord_000001", completed.order().id());
+            assertEquals(completed, service.complete(session.id(), completeRequest(), "complete-1"));
+            assertEquals(
+                    List.of(OrderWebhookEvent.Type.ORDER_CREATE, OrderWebhookEvent.Type.ORDER_UPDATE),
+                    events.stream().map(OrderWebhookEvent::type).toList());
+            assertThrows(
+                    CheckoutSessionIdempotencyConflictException.class,
+                    () -> service.create(createRequest(2), "idem-1"));
+        }
+    }
+
+    @Test
+    void slowTokenReservationDoesNotBlockOtherSessions() throws Exception {
+        var reserving = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        DelegatePaymentTokenValidator slow = (token, sessionId, total, currency) -> {
+            reserving.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return DelegatePaymentTokenValidator.TokenReservation.NOOP;
+        };
+        try (var service = mailboxService(OrderWebhookPublisher.NOOP, slow, CheckoutSessionJournal.NOOP, null);
+             var callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            var blocked = ready(service, "idem-blocked");
+            var other = ready(service, "idem-other");
+            var completing = callers.submit(() -> service.complete(blocked.id(), completeRequest(), "complete-1"));
+            assertTrue(reserving.await(5, TimeUnit.SECONDS));
+
+            var updated = callers.submit(() -> service.update(
+                    other.id(), new CheckoutSessionUpdateRequest(List.of(new Item("item_test", 3)), null, null, null)));
+            var created = callers.submit(() -> service.create(createRequest(4), "idem-new"));
+
+            assertEquals(3, updated.get(5, TimeUnit.SECONDS).lineItems().getFirst().item().quantity());
+            assertEquals(4, created.get(5, TimeUnit.SECONDS).lineItems().getFirst().item().quantity());
+            assertEquals(blocked, service.retrieve(blocked.id()));
+            assertFalse(completing.isDone());
+
+            release.countDown();
+            assertEquals(CheckoutSessionStatus.COMPLETED, completing.get(5, TimeUnit.SECONDS).status());
+        }
+    }
+
+    @Test
+    void concurrentMutationsOfOneSessionAreSerialized() throws Exception {
+        try (var service = mailboxService(OrderWebhookPublisher.NOOP, DelegatePaymentTokenValidator.NOOP, CheckoutSessionJournal.NOOP, null);
+             var callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            var session = service.create(createRequest(1), "idem-1");
+            var creates = new ArrayList<Future<CheckoutSession>>();
+            var updates = new ArrayList<Future<CheckoutSession>>();
+            for (var i = 0; i < 64; i++) {
+                creates.add(callers.submit(() -> service.create(createRequest(7), "idem-shared")));
+                var quantity = i + 2;
+                updates.add(callers.submit(() -> service.update(
+                        session.id(),
+                        new CheckoutSessionUpdateRequest(List.of(new Item("item_test", quantity)), null, null, null))));
+            }
+
+            var createdIds = new HashSet<CheckoutSessionId>();
+            for (var create : creates) {
+                createdIds.add(create.get(5, TimeUnit.SECONDS).id());
+            }
+            var lineIds = new HashSet<String>();
+            for (var update : updates) {
+                lineIds.add(update.get(5, TimeUnit.SECONDS).lineItems().getFirst().id());
+            }
+
+            assertEquals(1, createdIds.size());
+            assertEquals(64, lineIds.size());
+            var last = service.retrieve(session.id());
+            assertTrue(updates.stream().anyMatch(update -> update.resultNow().equals(last)));
+        }
+    }
+
+    @Test
+    void restartRestoresStateWrittenThroughMailboxes() {
+        CheckoutSession completed;
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory));
+             var service = mailboxService(OrderWebhookPublisher.NOOP, DelegatePaymentTokenValidator.NOOP, journal, null)) {
+            completed = service.complete(ready(service, "idem-1").id(), completeRequest(), "complete-1");
+        }
+
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory));
+             var service = mailboxService(OrderWebhookPublisher.NOOP, DelegatePaymentTokenValidator.NOOP, journal, null)) {
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertEquals(completed, service.complete(completed.id(), completeRequest(), "complete-1"));
+            assertEquals("csn_000002", service.create(createRequest(1), "idem-2").id().value());
+        }
+    }
+
+    @Test
+    void expiredSessionsLeaveMemoryAndTerminalOnesStayRetrievable() {
+        var clock = new MutableClock(Instant.parse("2025-10-25T10:00:00Z"));
+        try (var archive = new FileCheckoutSessionArchive(FileCheckoutSessionArchive.Configuration.defaults(directory));
+             var service = new MailboxCheckoutSessionService(
+                     Map.of("item_test", 1200L),
+                     clock,
+                     new CurrencyCode("usd"),
+                     CheckoutSessionOptions.defaults().withExpiry(
+                             new CheckoutSessionExpiry(Duration.ofMinutes(30), Duration.ofHours(1), archive)))) {
+            var open = ready(service, "idem-open");
+            var completed = service.complete(ready(service, "idem-complete").id(), completeRequest(), "complete-1");
+
+            clock.advance(Duration.ofMinutes(31));
+            service.expireSessions();
+            assertThrows(CheckoutSessionNotFoundException.class, () -> service.retrieve(open.id()));
+            assertEquals(0, archive.size());
+
+            clock.advance(Duration.ofMinutes(30));
+            service.expireSessions();
+            assertEquals(1, archive.size());
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertEquals(completed, service.complete(completed.id(), completeRequest(), "complete-1"));
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.amannmalik.acp.testsuite.checkout;
+
+import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.server.webhook.FanOutOrderWebhookPublisher;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class OrderWebhookOutboxTest {
+    @TempDir
+    Path directory;
+
+    private static CheckoutSession completeCheckout(InMemoryCheckoutSessionService service) {
+        return completeCheckout(service, "outbox");
+    }
+
+    private static CheckoutSession completeCheckout(InMemoryCheckoutSessionService service, String keySuffix) {
+        var session = service.create(createRequest(1), "idem-" + keySuffix);
+        service.update(session.id(), addressUpdate(session));
+        return service.complete(session.id(), completeRequest(), "complete-" + keySuffix);
+    }
+
+    private FileCheckoutSessionJournal journal() {
+        return new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory));
+    }
+
+    @Test
+    void completeDoesNotWaitForWebhookDelivery() throws Exception {
+        var gate = new CountDownLatch(1);
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        OrderWebhookPublisher blocking = event -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            delivered.add(event);
+        };
+        try (var journal = journal(); var service = inMemoryService(blocking, journal, null)) {
+            var completed = completeCheckout(service);
+
+            assertEquals(CheckoutSessionStatus.COMPLETED, completed.status());
+            assertTrue(delivered.isEmpty());
+            gate.countDown();
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, delivered.poll(5, TimeUnit.SECONDS).type());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, delivered.poll(5, TimeUnit.SECONDS).type());
+        }
+    }
+
+    @Test
+    void undeliveredEventsSurviveRestartInOrder() throws Exception {
+        OrderWebhookPublisher unavailable = event -> {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+        };
+        CheckoutSession completed;
+        try (var journal = journal(); var service = inMemoryService(unavailable, journal, null)) {
+            completed = completeCheckout(service);
+        }
+
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        try (var journal = journal(); var service = inMemoryService(delivered::add, journal, null)) {
+            assertEquals(completed, service.retrieve(completed.id()));
+            var created = delivered.poll(5, TimeUnit.SECONDS);
+            var updated = delivered.poll(5, TimeUnit.SECONDS);
+            assertNotNull(created);
+            assertNotNull(updated);
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, created.type());
+            assertEquals(completed.id().value(), created.checkoutSessionId());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, updated.type());
+            assertEquals(OrderWebhookEvent.OrderStatus.CONFIRMED, updated.status());
+        }
+
+        var redelivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        try (var journal = journal(); var service = inMemoryService(redelivered::add, journal, null)) {
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertNull(redelivered.poll(500, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void failingSessionDoesNotHoldBackOtherSessions() throws Exception {
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        OrderWebhookPublisher publisher = event -> {
+            if (event.checkoutSessionId().equals("csn_000001")) {
+                throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+            }
+            delivered.add(event);
+        };
+        try (var journal = journal(); var service = inMemoryService(publisher, journal, null)) {
+            var stuck = completeCheckout(service, "stuck");
+            var second = completeCheckout(service, "second");
+
+            assertEquals("csn_000001", stuck.id().value());
+            var created = delivered.poll(5, TimeUnit.SECONDS);
+            var updated = delivered.poll(5, TimeUnit.SECONDS);
+            assertNotNull(created);
+            assertNotNull(updated);
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, created.type());
+            assertEquals(second.id().value(), created.checkoutSessionId());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, updated.type());
+            assertEquals(second.id().value(), updated.checkoutSessionId());
+        }
+    }
+
+    @Test
+    void inFlightDeliveryHoldsBackOnlyItsOwnSession() throws Exception {
+        var stalled = new CompletableFuture<Void>();
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        var publisher = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                delivered.add(event);
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                if (event.checkoutSessionId().equals("csn_000001")) {
+                    return stalled.thenRun(() -> delivered.add(event));
+                }
+                return OrderWebhookPublisher.super.publishAsync(event);
+            }
+        };
+        try (var journal = journal(); var service = inMemoryService(publisher, journal, null)) {
+            var slow = completeCheckout(service, "slow");
+            var second = completeCheckout(service, "second");
+
+            assertEquals("csn_000001", slow.id().value());
+            assertEquals(second.id().value(), delivered.poll(5, TimeUnit.SECONDS).checkoutSessionId());
+            assertEquals(second.id().value(), delivered.poll(5, TimeUnit.SECONDS).checkoutSessionId());
+            stalled.complete(null);
+            var created = delivered.poll(5, TimeUnit.SECONDS);
+            var updated = delivered.poll(5, TimeUnit.SECONDS);
+            assertEquals(slow.id().value(), created.checkoutSessionId());
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, created.type());
+            assertEquals(slow.id().value(), updated.checkoutSessionId());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, updated.type());
+        }
+    }
+
+    @Test
+    void failingEndpointNeitherHoldsBackNorRepeatsDeliveryToOthers() throws Exception {
+        var healthy = new LinkedBlockingQueue<OrderWebhookEvent>();
+        OrderWebhookPublisher down = event -> {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+        };
+        CheckoutSession completed;
+        try (var journal = journal();
+             var service = inMemoryService(
+                     new FanOutOrderWebhookPublisher(Map.of("healthy", healthy::add, "down", down)), journal, null)) {
+            completed = completeCheckout(service);
+
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, healthy.poll(5, TimeUnit.SECONDS).type());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, healthy.poll(5, TimeUnit.SECONDS).type());
+        }
+
+        var again = new LinkedBlockingQueue<OrderWebhookEvent>();
+        var recovered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        try (var journal = journal();
+             var service = inMemoryService(
+                     new FanOutOrderWebhookPublisher(Map.of("healthy", again::add, "down", recovered::add)),
+                     journal,
+                     null)) {
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, recovered.poll(5, TimeUnit.SECONDS).type());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, recovered.poll(5, TimeUnit.SECONDS).type());
+            assertNull(again.poll(500, TimeUnit.MILLISECONDS));
+        }
+
+        var redelivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        try (var journal = journal();
+             var service = inMemoryService(
+                     new FanOutOrderWebhookPublisher(Map.of("healthy", redelivered::add, "down", redelivered::add)),
+                     journal,
+                     null)) {
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertNull(redelivered.poll(500, TimeUnit.MILLISECONDS));
+        }
+    }
+}
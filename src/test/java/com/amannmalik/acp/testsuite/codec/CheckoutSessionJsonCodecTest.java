@@ -3,6 +3,8 @@ package com.amannmalik.acp.testsuite.codec;
 import com.amannmalik.acp.api.checkout.model.*;
 import com.amannmalik.acp.api.shared.*;
 import com.amannmalik.acp.codec.CheckoutSessionJsonCodec;
+import com.amannmalik.acp.codec.JsonDecodingException;
+import com.amannmalik.acp.codec.JsonDocument;
 import jakarta.json.Json;
 import jakarta.json.JsonObject;
 import org.junit.jupiter.api.Test;
@@ -12,6 +14,7 @@ import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -136,6 +139,94 @@ final class CheckoutSessionJsonCodecTest {
         assertEquals("csn_sample", order.getString("checkout_session_id"));
     }
 
+    @Test
+    void streamedSessionMatchesJsonpOutputAndReportsItsLength() {
+        var codec = new CheckoutSessionJsonCodec();
+        var sample = sampleSession();
+        var awkward = new CheckoutSession(
+                sample.id(),
+                new Buyer("Zoë \"Z\"", "O'Brien\\", "zoe@example.com", null),
+                sample.paymentProvider(),
+                sample.status(),
+                sample.currency(),
+                sample.lineItems(),
+                sample.fulfillmentAddress(),
+                sample.fulfillmentOptions(),
+                sample.fulfillmentOptionId(),
+                sample.totals(),
+                List.of(new Message.Error(
+                        Message.ErrorCode.INVALID, null, Message.ContentType.MARKDOWN, "Line\n\tbreak \u0001 \u00e9 \u20ac \ud83d\ude00")),
+                List.of(),
+                null);
+
+        for (var session : List.of(sample, awkward, sample)) {
+            var output = new ByteArrayOutputStream();
+            var length = new int[1];
+            codec.writeCheckoutSession(output, session, value -> length[0] = value);
+
+            var reencoded = new ByteArrayOutputStream();
+            try (var writer = Json.createWriter(reencoded)) {
+                writer.writeObject(readJson(output));
+            }
+            assertEquals(reencoded.toString(StandardCharsets.UTF_8), output.toString(StandardCharsets.UTF_8));
+            assertEquals(output.size(), length[0]);
+            assertArrayEquals(output.toByteArray(), codec.writeCheckoutSession(session));
+            assertEquals(session, codec.readCheckoutSession(new ByteArrayInputStream(output.toByteArray())));
+        }
+    }
+
+    @Test
+    void requestDecoderSkipsUnknownMembersAndEnforcesLimits() {
+        var codec = new CheckoutSessionJsonCodec();
+        var request = codec.readUpdateRequest(input("""
+                {
+                  "extension": {"nested": [1, -2.5e3, true, null, {"deep": ["x"]}]},
+                  "items": [{"quantity": 3, "note": "ignored", "id": "item_\\u00e9\\"q"}],
+                  "buyer": null
+                }
+                """));
+        assertEquals(List.of(new Item("item_é\"q", 3)), request.items());
+        assertNull(request.buyer());
+        assertNull(request.fulfillmentOptionId());
+
+        var nested = "[".repeat(40) + "]".repeat(40);
+        assertThrows(JsonDecodingException.class, () -> codec.readUpdateRequest(input("{\"x\":" + nested + "}")));
+        assertThrows(JsonDecodingException.class, () -> codec.readUpdateRequest(
+                new ByteArrayInputStream(new byte[(1 << 20) + 1])));
+        assertThrows(JsonDecodingException.class, () -> codec.readUpdateRequest(input("{\"items\":[],}")));
+        assertThrows(JsonDecodingException.class, () -> codec.readUpdateRequest(input("{} {}")));
+        assertThrows(JsonDecodingException.class, () -> codec.readCreateRequest(input("{\"items\":[{\"id\":\"a\",\"quantity\":1.5}]}")));
+        assertThrows(JsonDecodingException.class, () -> codec.readCreateRequest(input("{\"buyer\":null}")));
+    }
+
+    @Test
+    void parsedBodyServesBothCanonicalFormAndDecoder() {
+        var codec = new CheckoutSessionJsonCodec();
+        var body = JsonDocument.of("""
+                {"items": [{"quantity": 2, "id": "item_123"}], "fulfillment_option_id": "ship", "x": 1.50}
+                """.getBytes(StandardCharsets.UTF_8));
+        var canonical = new ByteArrayOutputStream();
+        body.writeCanonical(canonical::write);
+
+        assertEquals(
+                "{\"fulfillment_option_id\":\"ship\",\"items\":[{\"id\":\"item_123\",\"quantity\":2}],\"x\":1.50}",
+                canonical.toString(StandardCharsets.UTF_8));
+        var request = codec.readUpdateRequest(body);
+        assertEquals(List.of(new Item("item_123", 2)), request.items());
+        assertEquals(new FulfillmentOptionId("ship"), request.fulfillmentOptionId());
+
+        var alreadyCanonical = "{\"items\":[{\"id\":\"a\",\"quantity\":1}]}".getBytes(StandardCharsets.UTF_8);
+        var chunks = new ArrayList<byte[]>();
+        JsonDocument.of(alreadyCanonical).writeCanonical((bytes, offset, length) -> chunks.add(bytes));
+        assertSame(alreadyCanonical, chunks.getFirst());
+
+        var trailing = JsonDocument.of("{\"items\":[]} {}".getBytes(StandardCharsets.UTF_8));
+        var ignored = new ByteArrayOutputStream();
+        trailing.writeCanonical(ignored::write);
+        assertEquals("{\"items\":[]}", ignored.toString(StandardCharsets.UTF_8));
+        assertThrows(JsonDecodingException.class, () -> codec.readUpdateRequest(trailing));
+    }
+
     @Test
     void writeErrorProducesFlatStructure() {
         var codec = new CheckoutSessionJsonCodec();
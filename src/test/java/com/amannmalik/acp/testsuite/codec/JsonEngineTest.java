@@ -0,0 +1,39 @@
+package com.amannmalik.acp.testsuite.codec;
+
+import com.amannmalik.acp.codec.JsonEngine;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class JsonEngineTest {
+    @Test
+    void encodesTreesExactlyLikeJsonp() {
+        var value = JsonEngine.createObjectBuilder()
+                .add("text", "quote \" slash \\ tab \t bell \u0007 accent é emoji 😀")
+                .add("numbers", JsonEngine.createArrayBuilder()
+                        .add(0).add(-42L).add(Long.MAX_VALUE).add(new BigDecimal("1.50")).add(new BigDecimal("1e3")))
+                .add("flags", JsonEngine.createArrayBuilder().add(true).add(false).addNull())
+                .add("nested", JsonEngine.createObjectBuilder().add("empty", JsonEngine.createArrayBuilder()))
+                .build();
+
+        var expected = value.toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, JsonEngine.toByteArray(value));
+
+        var out = new ByteArrayOutputStream();
+        JsonEngine.write(value, out);
+        assertArrayEquals(expected, out.toByteArray());
+
+        // Pooled buffers must come back clean.
+        for (var i = 0; i < 3; i++) {
+            assertArrayEquals(expected, JsonEngine.toByteArray(value));
+        }
+        try (var reader = JsonEngine.createReader(new ByteArrayInputStream(expected))) {
+            assertEquals(value, reader.readObject());
+        }
+    }
+}
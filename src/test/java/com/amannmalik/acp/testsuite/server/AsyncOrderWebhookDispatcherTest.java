@@ -0,0 +1,192 @@
+package com.amannmalik.acp.testsuite.server;
+
+import com.amannmalik.acp.server.webhook.AsyncOrderWebhookDispatcher;
+import com.amannmalik.acp.server.webhook.AsyncOrderWebhookDispatcher.OverflowPolicy;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class AsyncOrderWebhookDispatcherTest {
+    private static AsyncOrderWebhookDispatcher.Configuration configuration(
+            int capacity, OverflowPolicy policy, int maxAttempts) {
+        return new AsyncOrderWebhookDispatcher.Configuration(
+                capacity, policy, maxAttempts, Duration.ofMillis(5), Duration.ofMillis(20), Duration.ofSeconds(2), false);
+    }
+
+    private static OrderWebhookEvent update(String sessionId, OrderWebhookEvent.OrderStatus status) {
+        return new OrderWebhookEvent(
+                OrderWebhookEvent.Type.ORDER_UPDATE,
+                sessionId,
+                status,
+                URI.create("https://merchant.example.com/orders/" + sessionId),
+                List.of());
+    }
+
+    private static OrderWebhookEvent event(OrderWebhookEvent.Type type, String sessionId) {
+        return new OrderWebhookEvent(
+                type,
+                sessionId,
+                type == OrderWebhookEvent.Type.ORDER_CREATE
+                        ? OrderWebhookEvent.OrderStatus.CREATED
+                        : OrderWebhookEvent.OrderStatus.CONFIRMED,
+                URI.create("https://merchant.example.com/orders/" + sessionId),
+                List.of());
+    }
+
+    @Test
+    void retriesPreserveOrderWithinSession() throws Exception {
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        var calls = new AtomicInteger();
+        OrderWebhookPublisher flaky = event -> {
+            if (calls.getAndIncrement() == 0) {
+                throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+            }
+            delivered.add(event);
+        };
+        try (var dispatcher = new AsyncOrderWebhookDispatcher(flaky, configuration(16, OverflowPolicy.BLOCK, 3))) {
+            dispatcher.publish(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1"));
+            var last = dispatcher.publishAsync(event(OrderWebhookEvent.Type.ORDER_UPDATE, "csn_1"));
+
+            last.get(5, TimeUnit.SECONDS);
+
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, delivered.poll().type());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, delivered.poll().type());
+            var metrics = dispatcher.metrics();
+            assertEquals(2, metrics.delivered());
+            assertEquals(1, metrics.retried());
+            assertEquals(0, metrics.queueDepth());
+        }
+    }
+
+    @Test
+    void rejectPolicyFailsFastWhenQueueIsFull() {
+        var pending = new CompletableFuture<Void>();
+        var delegate = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                return pending;
+            }
+        };
+        try (var dispatcher = new AsyncOrderWebhookDispatcher(delegate, configuration(1, OverflowPolicy.REJECT, 1))) {
+            dispatcher.publish(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1"));
+
+            assertThrows(
+                    RejectedExecutionException.class,
+                    () -> dispatcher.publish(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_2")));
+            assertEquals(1, dispatcher.metrics().queueDepth());
+            assertEquals(1, dispatcher.metrics().rejected());
+            pending.complete(null);
+        }
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() {
+        OrderWebhookPublisher failing = event -> {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP 500");
+        };
+        try (var dispatcher = new AsyncOrderWebhookDispatcher(failing, configuration(4, OverflowPolicy.BLOCK, 3))) {
+            var result = dispatcher.publishAsync(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1"));
+
+            var error = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertEquals("Webhook endpoint responded with HTTP 500", error.getCause().getMessage());
+            var metrics = dispatcher.metrics();
+            assertEquals(1, metrics.failed());
+            assertEquals(2, metrics.retried());
+            assertEquals(0, metrics.queueDepth());
+        }
+    }
+
+    @Test
+    void queuedUpdatesAreCoalescedBehindInFlightHead() throws Exception {
+        var gate = new CountDownLatch(1);
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        OrderWebhookPublisher gated = event -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            delivered.add(event);
+        };
+        var configuration = new AsyncOrderWebhookDispatcher.Configuration(
+                16, OverflowPolicy.BLOCK, 1, Duration.ofMillis(5), Duration.ofMillis(20), Duration.ofSeconds(2), true);
+        try (var dispatcher = new AsyncOrderWebhookDispatcher(gated, configuration)) {
+            dispatcher.publish(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1"));
+            var confirmed = dispatcher.publishAsync(update("csn_1", OrderWebhookEvent.OrderStatus.CONFIRMED));
+            var shipped = dispatcher.publishAsync(update("csn_1", OrderWebhookEvent.OrderStatus.SHIPPED));
+            gate.countDown();
+
+            CompletableFuture.allOf(confirmed, shipped).get(5, TimeUnit.SECONDS);
+
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, delivered.poll().type());
+            assertEquals(OrderWebhookEvent.OrderStatus.SHIPPED, delivered.poll().status());
+            assertNull(delivered.poll());
+            assertEquals(1, dispatcher.metrics().coalesced());
+        }
+    }
+
+    @Test
+    void callerRunsOverflowKeepsSessionOrder() throws Exception {
+        var gate = new CountDownLatch(1);
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        OrderWebhookPublisher gated = event -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            delivered.add(event);
+        };
+        try (var dispatcher = new AsyncOrderWebhookDispatcher(gated, configuration(1, OverflowPolicy.CALLER_RUNS, 1))) {
+            dispatcher.publish(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1"));
+            var overflow = CompletableFuture.runAsync(
+                    () -> dispatcher.publish(event(OrderWebhookEvent.Type.ORDER_UPDATE, "csn_1")));
+
+            assertThrows(TimeoutException.class, () -> overflow.get(100, TimeUnit.MILLISECONDS));
+            gate.countDown();
+            overflow.get(5, TimeUnit.SECONDS);
+
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, delivered.poll().type());
+            assertEquals(OrderWebhookEvent.Type.ORDER_UPDATE, delivered.poll().type());
+            assertEquals(0, dispatcher.metrics().rejected());
+            assertEquals(0, dispatcher.metrics().queueDepth());
+        }
+    }
+
+    @Test
+    void laterEventsOfAnAbandonedSessionAreNotSent() throws Exception {
+        var sent = new LinkedBlockingQueue<OrderWebhookEvent>();
+        OrderWebhookPublisher createFails = event -> {
+            sent.add(event);
+            if (event.type() == OrderWebhookEvent.Type.ORDER_CREATE) {
+                throw new IllegalStateException("Webhook endpoint responded with HTTP 500");
+            }
+        };
+        try (var dispatcher = new AsyncOrderWebhookDispatcher(createFails, configuration(4, OverflowPolicy.BLOCK, 2))) {
+            var created = dispatcher.publishAsync(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1"));
+            assertThrows(ExecutionException.class, () -> created.get(5, TimeUnit.SECONDS));
+            var updated = dispatcher.publishAsync(event(OrderWebhookEvent.Type.ORDER_UPDATE, "csn_1"));
+
+            var error = assertThrows(ExecutionException.class, () -> updated.get(5, TimeUnit.SECONDS));
+            assertTrue(error.getCause().getMessage().contains("csn_1"));
+            assertEquals(2, sent.size());
+            assertTrue(sent.stream().allMatch(event -> event.type() == OrderWebhookEvent.Type.ORDER_CREATE));
+            assertEquals(2, dispatcher.metrics().failed());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.amannmalik.acp.testsuite.server;
+
+import com.amannmalik.acp.server.webhook.BatchingOrderWebhookPublisher;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class BatchingOrderWebhookPublisherTest {
+    private static OrderWebhookEvent event(
+            OrderWebhookEvent.Type type, String sessionId, OrderWebhookEvent.OrderStatus status) {
+        return new OrderWebhookEvent(
+                type, sessionId, status, URI.create("https://merchant.example.com/orders/" + sessionId), List.of());
+    }
+
+    @Test
+    void lingerWindowCoalescesSupersededUpdatesIntoOneBatch() throws Exception {
+        var batches = new LinkedBlockingQueue<List<OrderWebhookEvent>>();
+        var delegate = new RecordingBatchPublisher(batches);
+        var configuration = new BatchingOrderWebhookPublisher.Configuration(10, Duration.ofMillis(100));
+        try (var publisher = new BatchingOrderWebhookPublisher(delegate, configuration)) {
+            var created = publisher.publishAsync(
+                    event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1", OrderWebhookEvent.OrderStatus.CREATED));
+            var confirmed = publisher.publishAsync(
+                    event(OrderWebhookEvent.Type.ORDER_UPDATE, "csn_1", OrderWebhookEvent.OrderStatus.CONFIRMED));
+            var other = publisher.publishAsync(
+                    event(OrderWebhookEvent.Type.ORDER_UPDATE, "csn_2", OrderWebhookEvent.OrderStatus.CONFIRMED));
+            var shipped = publisher.publishAsync(
+                    event(OrderWebhookEvent.Type.ORDER_UPDATE, "csn_1", OrderWebhookEvent.OrderStatus.SHIPPED));
+
+            CompletableFuture.allOf(created, confirmed, other, shipped).get(5, TimeUnit.SECONDS);
+
+            var batch = batches.poll();
+            assertNotNull(batch);
+            assertNull(batches.poll());
+            assertEquals(3, batch.size());
+            assertEquals(OrderWebhookEvent.Type.ORDER_CREATE, batch.get(0).type());
+            assertEquals(OrderWebhookEvent.OrderStatus.SHIPPED, batch.get(1).status());
+            assertEquals("csn_2", batch.get(2).checkoutSessionId());
+        }
+    }
+
+    @Test
+    void fullBatchIsSentWithoutWaitingForLinger() throws Exception {
+        var batches = new LinkedBlockingQueue<List<OrderWebhookEvent>>();
+        var configuration = new BatchingOrderWebhookPublisher.Configuration(2, Duration.ofMinutes(1));
+        try (var publisher = new BatchingOrderWebhookPublisher(new RecordingBatchPublisher(batches), configuration)) {
+            publisher.publishAsync(event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1", OrderWebhookEvent.OrderStatus.CREATED));
+            var second = publisher.publishAsync(
+                    event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_2", OrderWebhookEvent.OrderStatus.CREATED));
+
+            second.get(1, TimeUnit.SECONDS);
+
+            assertEquals(2, batches.poll().size());
+        }
+    }
+
+    @Test
+    void batchFailureFailsEveryEventInIt() {
+        var configuration = new BatchingOrderWebhookPublisher.Configuration(2, Duration.ofMillis(10));
+        OrderWebhookPublisher failing = event -> {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+        };
+        try (var publisher = new BatchingOrderWebhookPublisher(failing, configuration)) {
+            var error = assertThrows(
+                    IllegalStateException.class,
+                    () -> publisher.publish(
+                            event(OrderWebhookEvent.Type.ORDER_CREATE, "csn_1", OrderWebhookEvent.OrderStatus.CREATED)));
+            assertEquals("Webhook endpoint responded with HTTP 503", error.getMessage());
+        }
+    }
+
+    private record RecordingBatchPublisher(BlockingQueue<List<OrderWebhookEvent>> batches) implements OrderWebhookPublisher {
+        @Override
+        public void publish(OrderWebhookEvent event) {
+            batches.add(List.of(event));
+        }
+
+        @Override
+        public CompletableFuture<Void> publishBatchAsync(List<OrderWebhookEvent> events) {
+            batches.add(List.copyOf(events));
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
@@ -4,11 +4,14 @@ import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
 import com.amannmalik.acp.api.delegatepayment.InMemoryDelegatePaymentService;
 import com.amannmalik.acp.api.shared.ApiVersion;
 import com.amannmalik.acp.server.JettyHttpServer;
+import com.amannmalik.acp.server.RateLimiter;
+import com.amannmalik.acp.server.RequestPipelining;
 import com.amannmalik.acp.server.TlsConfiguration;
 import com.amannmalik.acp.server.security.ConfigurableRequestAuthenticator;
 import com.amannmalik.acp.server.security.SecurityConfiguration;
 import com.amannmalik.acp.testutil.SigningTestSupport;
 import com.amannmalik.acp.testutil.TlsTestSupport;
+import com.amannmalik.acp.util.IdempotencyTable;
 import jakarta.json.Json;
 import jakarta.json.JsonObject;
 import org.junit.jupiter.api.Test;
@@ -366,6 +369,7 @@ final class CheckoutSessionServletTest {
             var secondJson = json(second.body());
             assertEquals(200, second.statusCode());
             assertEquals(firstOrderId, secondJson.getJsonObject("order").getString("id"));
+            assertEquals(first.body(), second.body());
             assertEquals("idem-complete-1", second.headers().firstValue("Idempotency-Key").orElseThrow());
         }
     }
@@ -732,6 +736,32 @@ final class CheckoutSessionServletTest {
         }
     }
 
+    @Test
+    void unknownActionAuthenticatesBeforeAnswering404() throws Exception {
+        try (var tls = TlsTestSupport.createTlsContext();
+             var server = newServer(tls.configuration())) {
+            server.start();
+            var client = HttpClient.newBuilder().sslContext(tls.sslContext()).build();
+            var baseUri = URI.create("https://localhost:" + server.httpsPort());
+            var builder = HttpRequest.newBuilder(baseUri.resolve("/checkout_sessions/csn_1/unknown"))
+                    .header("API-Version", ApiVersion.SUPPORTED)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{}"));
+
+            var anonymous = client.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(401, anonymous.statusCode(), anonymous.body());
+            assertEquals("unauthorized", json(anonymous.body()).getString("code"));
+
+            var wrongToken = client.send(
+                    builder.copy().header("Authorization", "Bearer wrong").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(401, wrongToken.statusCode(), wrongToken.body());
+
+            var authenticated = client.send(
+                    builder.copy().header("Authorization", "Bearer test").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(404, authenticated.statusCode());
+        }
+    }
+
     @Test
     void createRequiresSignatureWhenSigningConfigured() throws Exception {
         var secret = Base64.getUrlDecoder().decode("c2lnbmVkX3Rlc3Qtc2VjcmV0XzEyMzQ1Njc4OTA");
@@ -779,4 +809,171 @@ final class CheckoutSessionServletTest {
             assertTrue(sessionJson.containsKey("id"));
         }
     }
+
+    @Test
+    void signedRetriesAreAnsweredFromRecordedRepliesAndRepeatedGetsAreNotReplays() throws Exception {
+        var secret = Base64.getUrlDecoder().decode("c2lnbmVkX3Rlc3Qtc2VjcmV0XzEyMzQ1Njc4OTA");
+        var securityConfiguration = new SecurityConfiguration(
+                Set.of("test"),
+                Map.of("sig", new SecurityConfiguration.SigningKey.HmacSha256(secret)),
+                Duration.ofMinutes(5),
+                SecurityConfiguration.ReplayProtection.defaults());
+        var clock = Clock.fixed(Instant.parse("2025-11-09T12:00:00Z"), ZoneOffset.UTC);
+        try (var tls = TlsTestSupport.createTlsContext();
+             var server = newServer(tls.configuration(), securityConfiguration, clock)) {
+            server.start();
+            var client = HttpClient.newBuilder().sslContext(tls.sslContext()).build();
+            var baseUri = URI.create("https://localhost:" + server.httpsPort());
+            var body = "{\"items\":[{\"id\":\"item_123\",\"quantity\":1}]}";
+            var timestamp = clock.instant().toString();
+            var create = HttpRequest.newBuilder(baseUri.resolve("/checkout_sessions"))
+                    .header("Authorization", "Bearer test")
+                    .header("API-Version", ApiVersion.SUPPORTED)
+                    .header("Content-Type", "application/json")
+                    .header("Timestamp", timestamp)
+                    .header("Signature", "sig:" + SigningTestSupport.hmacSignature(secret, timestamp, body))
+                    .POST(HttpRequest.BodyPublishers.ofString(body));
+
+            var created = client.send(create.copy().header("Idempotency-Key", "idem-retry").build(), HttpResponse.BodyHandlers.ofString());
+            var retried = client.send(create.copy().header("Idempotency-Key", "idem-retry").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(201, created.statusCode(), created.body());
+            assertEquals(201, retried.statusCode(), retried.body());
+            assertEquals(created.body(), retried.body());
+
+            var replayed = client.send(create.copy().header("Idempotency-Key", "idem-fresh").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(401, replayed.statusCode(), replayed.body());
+            assertEquals("replayed_request", json(replayed.body()).getString("code"));
+
+            var emptyBodySignature = "sig:" + SigningTestSupport.hmacSignature(secret, timestamp, "");
+            var sessionId = json(created.body()).getString("id");
+            for (var path : List.of(
+                    "/checkout_sessions/" + sessionId, "/checkout_sessions/" + sessionId, "/checkout_sessions/csn_missing")) {
+                var response = client.send(
+                        HttpRequest.newBuilder(baseUri.resolve(path))
+                                .header("Authorization", "Bearer test")
+                                .header("API-Version", ApiVersion.SUPPORTED)
+                                .header("Timestamp", timestamp)
+                                .header("Signature", emptyBodySignature)
+                                .GET()
+                                .build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals(path.endsWith("csn_missing") ? 404 : 200, response.statusCode(), response.body());
+            }
+        }
+    }
+
+    @Test
+    void parallelPipeliningReportsAuthenticationBeforeDecodeErrors() throws Exception {
+        var secret = Base64.getUrlDecoder().decode("c2lnbmVkX3Rlc3Qtc2VjcmV0XzEyMzQ1Njc4OTA");
+        var securityConfiguration = new SecurityConfiguration(
+                Set.of("test"),
+                Map.of("sig", new SecurityConfiguration.SigningKey.HmacSha256(secret)),
+                Duration.ofMinutes(5));
+        var clock = Clock.fixed(Instant.parse("2025-11-09T12:00:00Z"), ZoneOffset.UTC);
+        try (var tls = TlsTestSupport.createTlsContext();
+             var server = new JettyHttpServer(
+                     JettyHttpServer.Configuration.httpsOnly(tls.configuration()),
+                     new InMemoryCheckoutSessionService(),
+                     new InMemoryDelegatePaymentService(),
+                     new ConfigurableRequestAuthenticator(securityConfiguration, clock),
+                     IdempotencyTable.Retention.defaults(),
+                     RequestPipelining.PARALLEL)) {
+            server.start();
+            var client = HttpClient.newBuilder().sslContext(tls.sslContext()).build();
+            var baseUri = URI.create("https://localhost:" + server.httpsPort());
+            var timestamp = clock.instant().toString();
+            var valid = "{\"items\":[{\"id\":\"item_123\",\"quantity\":1}]}";
+            var undecodable = "{\"items\":[{\"id\":\"item_123\",\"quantity\":1.5}]}";
+            var cases = List.of(
+                    List.of(valid, SigningTestSupport.hmacSignature(secret, timestamp, valid), "201", ""),
+                    List.of(valid, SigningTestSupport.hmacSignature(secret, timestamp, "{}"), "401", "invalid_signature"),
+                    List.of(undecodable, SigningTestSupport.hmacSignature(secret, timestamp, "{}"), "401", "invalid_signature"),
+                    List.of(undecodable, SigningTestSupport.hmacSignature(secret, timestamp, undecodable), "400", "invalid_request"));
+            for (var i = 0; i < cases.size(); i++) {
+                var testCase = cases.get(i);
+                var request = HttpRequest.newBuilder(baseUri.resolve("/checkout_sessions"))
+                        .header("Authorization", "Bearer test")
+                        .header("API-Version", ApiVersion.SUPPORTED)
+                        .header("Content-Type", "application/json")
+                        .header("Timestamp", timestamp)
+                        .header("Signature", "sig:" + testCase.get(1))
+                        .header("Request-Id", "req-pipelined-" + i)
+                        .header("Idempotency-Key", "idem-pipelined-" + i)
+                        .POST(HttpRequest.BodyPublishers.ofString(testCase.get(0)))
+                        .build();
+                var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+                assertEquals(Integer.parseInt(testCase.get(2)), response.statusCode(), response.body());
+                if (!testCase.get(3).isEmpty()) {
+                    assertEquals(testCase.get(3), json(response.body()).getString("code"));
+                }
+            }
+        }
+    }
+
+    @Test
+    void mappedClientCertificateReplacesBearerAndSignature() throws Exception {
+        var secret = "0123456789abcdef0123456789abcdef".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        var securityConfiguration = new SecurityConfiguration(
+                Set.of("test"),
+                Map.of("sig", new SecurityConfiguration.SigningKey.HmacSha256(secret)),
+                Duration.ofMinutes(5));
+        for (var pinned : List.of(true, false)) {
+            try (var tls = TlsTestSupport.createMutualTlsContext("CN=agent-1, O=Example", "agent-1", pinned);
+                 var server = newServer(tls.configuration(), securityConfiguration, Clock.systemUTC())) {
+                server.start();
+                var baseUri = URI.create("https://localhost:" + server.httpsPort());
+                var body = "{\"items\":[{\"id\":\"item_123\",\"quantity\":1}]}";
+                var request = HttpRequest.newBuilder(baseUri.resolve("/checkout_sessions"))
+                        .header("API-Version", ApiVersion.SUPPORTED)
+                        .header("Content-Type", "application/json")
+                        .header("Request-Id", "req-mtls")
+                        .header("Idempotency-Key", "idem-mtls")
+                        .POST(HttpRequest.BodyPublishers.ofString(body))
+                        .build();
+
+                var withCertificate = HttpClient.newBuilder().sslContext(tls.sslContext()).build();
+                for (var attempt = 0; attempt < 2; attempt++) {
+                    var response = withCertificate.send(request, HttpResponse.BodyHandlers.ofString());
+                    assertEquals(pinned ? 201 : 401, response.statusCode(), response.body());
+                }
+
+                var anonymous = HttpClient.newBuilder().sslContext(tls.anonymousSslContext()).build();
+                var response = anonymous.send(request, HttpResponse.BodyHandlers.ofString());
+                assertEquals(401, response.statusCode(), response.body());
+                assertEquals("unauthorized", json(response.body()).getString("code"));
+            }
+        }
+    }
+
+    @Test
+    void rateLimitedRequestsGet429WithRetryAfter() throws Exception {
+        var rateLimits = new RateLimiter.Configuration(
+                Map.of(RateLimiter.EndpointClass.RETRIEVE, new RateLimiter.Limit(0.5, 1)), 64, false);
+        try (var tls = TlsTestSupport.createTlsContext();
+             var server = new JettyHttpServer(
+                     JettyHttpServer.Configuration.httpsOnly(tls.configuration()),
+                     new InMemoryCheckoutSessionService(),
+                     new InMemoryDelegatePaymentService(),
+                     new ConfigurableRequestAuthenticator(defaultSecurityConfiguration(), Clock.systemUTC()),
+                     IdempotencyTable.Retention.defaults(),
+                     RequestPipelining.SEQUENTIAL,
+                     rateLimits)) {
+            server.start();
+            var client = HttpClient.newBuilder().sslContext(tls.sslContext()).build();
+            var request = HttpRequest.newBuilder(URI.create("https://localhost:" + server.httpsPort() + "/checkout_sessions/cs_missing"))
+                    .header("Authorization", "Bearer test")
+                    .header("API-Version", ApiVersion.SUPPORTED)
+                    .GET()
+                    .build();
+
+            assertEquals(404, client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+            var limited = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+            assertEquals(429, limited.statusCode());
+            assertEquals("rate_limit_exceeded", json(limited.body()).getString("type"));
+            var retryAfter = Integer.parseInt(limited.headers().firstValue("Retry-After").orElseThrow());
+            assertTrue(retryAfter >= 1 && retryAfter <= 2, "Retry-After: " + retryAfter);
+        }
+    }
 }
@@ -0,0 +1,273 @@
+package com.amannmalik.acp.testsuite.server;
+
+import com.amannmalik.acp.api.shared.MinorUnitAmount;
+import com.amannmalik.acp.server.webhook.AsyncOrderWebhookDispatcher;
+import com.amannmalik.acp.server.webhook.DeadLetterReplayer;
+import com.amannmalik.acp.spi.webhook.DeadLetter;
+import com.amannmalik.acp.spi.webhook.DeadLetterSink;
+import com.amannmalik.acp.spi.webhook.DeadLetterStore;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.storage.FileDeadLetterStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class DeadLetterReplayerTest {
+    private static final Clock FIXED_CLOCK = Clock.fixed(Instant.parse("2025-10-25T10:00:00Z"), ZoneOffset.UTC);
+    private static final String ENDPOINT = "https://agent.example.com/webhooks";
+
+    @TempDir
+    Path directory;
+
+    private static OrderWebhookEvent event(String sessionId, OrderWebhookEvent.OrderStatus status) {
+        return new OrderWebhookEvent(
+                status == OrderWebhookEvent.OrderStatus.CREATED
+                        ? OrderWebhookEvent.Type.ORDER_CREATE
+                        : OrderWebhookEvent.Type.ORDER_UPDATE,
+                sessionId,
+                status,
+                URI.create("https://merchant.example.com/orders/" + sessionId),
+                List.of(new OrderWebhookEvent.Refund(OrderWebhookEvent.RefundType.STORE_CREDIT, new MinorUnitAmount(150))));
+    }
+
+    private FileDeadLetterStore store() {
+        return new FileDeadLetterStore(FileDeadLetterStore.Configuration.defaults(directory), FIXED_CLOCK);
+    }
+
+    private List<DeadLetter> readAll(FileDeadLetterStore store) {
+        var letters = new ArrayList<DeadLetter>();
+        for (var segment : store.sealedSegments()) {
+            store.read(segment, letters::add);
+        }
+        return letters;
+    }
+
+    @Test
+    void dispatcherDeadLettersEventsThatExhaustTheirAttempts() throws Exception {
+        OrderWebhookPublisher failing = event -> {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+        };
+        var configuration = new AsyncOrderWebhookDispatcher.Configuration(
+                4, AsyncOrderWebhookDispatcher.OverflowPolicy.BLOCK, 2,
+                Duration.ofMillis(1), Duration.ofMillis(5), Duration.ofSeconds(2), false);
+        try (var store = store();
+             var dispatcher = new AsyncOrderWebhookDispatcher(failing, configuration, store.forEndpoint(ENDPOINT))) {
+            dispatcher.publishAsync(event("csn_1", OrderWebhookEvent.OrderStatus.CREATED)).get(5, TimeUnit.SECONDS);
+
+            assertEquals(1, dispatcher.metrics().deadLettered());
+            assertEquals(1, dispatcher.metrics().failed());
+        }
+
+        try (var store = store()) {
+            var letters = readAll(store);
+            assertEquals(1, letters.size());
+            var letter = letters.getFirst();
+            assertEquals(ENDPOINT, letter.endpoint());
+            assertEquals(2, letter.attempts());
+            assertEquals("Webhook endpoint responded with HTTP 503", letter.reason());
+            assertEquals(FIXED_CLOCK.instant(), letter.failedAt());
+            assertEquals(event("csn_1", OrderWebhookEvent.OrderStatus.CREATED), letter.event());
+        }
+    }
+
+    @Test
+    void replayPreservesSessionOrderAndRecordsFailuresAgain() {
+        try (var store = store()) {
+            for (var i = 0; i < 50; i++) {
+                store.append(new DeadLetter(ENDPOINT, event("csn_" + i, OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+                store.append(new DeadLetter(ENDPOINT, event("csn_" + i, OrderWebhookEvent.OrderStatus.SHIPPED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+            }
+            store.append(new DeadLetter(ENDPOINT, event("csn_poison", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+        }
+
+        var delivered = new ConcurrentHashMap<String, List<OrderWebhookEvent.OrderStatus>>();
+        OrderWebhookPublisher receiver = event -> {
+            if (event.checkoutSessionId().equals("csn_poison")) {
+                throw new IllegalStateException("Webhook endpoint responded with HTTP 410");
+            }
+            delivered.computeIfAbsent(event.checkoutSessionId(), k -> new CopyOnWriteArrayList<>()).add(event.status());
+        };
+        DeadLetterReplayer.Result result;
+        try (var store = store()) {
+            var replayer = new DeadLetterReplayer(
+                    store, endpoint -> receiver, DeadLetterReplayer.Configuration.of(8, 0), FIXED_CLOCK);
+            result = replayer.replay();
+        }
+
+        assertEquals(new DeadLetterReplayer.Result(1, 100, 1), result);
+        assertEquals(50, delivered.size());
+        delivered.values().forEach(statuses -> assertEquals(
+                List.of(OrderWebhookEvent.OrderStatus.CREATED, OrderWebhookEvent.OrderStatus.SHIPPED), statuses));
+        try (var store = store()) {
+            var remaining = readAll(store);
+            assertEquals(1, remaining.size());
+            assertEquals("csn_poison", remaining.getFirst().event().checkoutSessionId());
+            assertEquals(9, remaining.getFirst().attempts());
+            assertEquals("Webhook endpoint responded with HTTP 410", remaining.getFirst().reason());
+        }
+    }
+
+    @Test
+    void tornFinalLineIsSkipped() throws IOException {
+        try (var store = store()) {
+            store.append(new DeadLetter(ENDPOINT, event("csn_1", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+        }
+        try (var files = Files.list(directory)) {
+            var segment = files.filter(path -> path.getFileName().toString().endsWith(".ndjson"))
+                    .findFirst()
+                    .orElseThrow();
+            Files.writeString(segment, "{\"endpoint\":\"https://agent", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+
+        try (var store = store()) {
+            var letters = readAll(store);
+            assertEquals(1, letters.size());
+            assertEquals("csn_1", letters.getFirst().event().checkoutSessionId());
+        }
+    }
+
+    @Test
+    void replayRunsWhileAnotherStoreKeepsWritingItsOwnSegment() {
+        try (var earlier = store()) {
+            earlier.append(new DeadLetter(ENDPOINT, event("csn_1", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+        }
+        var delivered = new CopyOnWriteArrayList<String>();
+        OrderWebhookPublisher receiver = event -> delivered.add(event.checkoutSessionId());
+        try (var live = store()) {
+            live.append(new DeadLetter(ENDPOINT, event("csn_2", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+
+            DeadLetterReplayer.Result result;
+            try (var store = store()) {
+                assertEquals(1, store.sealedSegments().size());
+                result = new DeadLetterReplayer(
+                        store, endpoint -> receiver, DeadLetterReplayer.Configuration.of(2, 0), FIXED_CLOCK).replay();
+            }
+
+            assertEquals(new DeadLetterReplayer.Result(1, 1, 0), result);
+            assertEquals(List.of("csn_1"), delivered);
+            live.append(new DeadLetter(ENDPOINT, event("csn_3", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+        }
+        try (var store = store()) {
+            assertEquals(List.of("csn_2", "csn_3"),
+                    readAll(store).stream().map(letter -> letter.event().checkoutSessionId()).toList());
+        }
+    }
+
+    @Test
+    void sessionsLaterLettersAreHeldBackOnceOneFails() {
+        try (var store = store()) {
+            store.append(new DeadLetter(ENDPOINT, event("csn_1", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+            store.append(new DeadLetter(ENDPOINT, event("csn_1", OrderWebhookEvent.OrderStatus.SHIPPED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+            store.append(new DeadLetter(ENDPOINT, event("csn_2", OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+        }
+        var attempted = new CopyOnWriteArrayList<OrderWebhookEvent>();
+        var failures = new AtomicInteger();
+        OrderWebhookPublisher receiver = event -> {
+            attempted.add(event);
+            if (event.checkoutSessionId().equals("csn_1") && failures.getAndIncrement() == 0) {
+                throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+            }
+        };
+        DeadLetterReplayer.Result result;
+        try (var store = store()) {
+            result = new DeadLetterReplayer(
+                    store, endpoint -> receiver, DeadLetterReplayer.Configuration.of(1, 0), FIXED_CLOCK).replay();
+        }
+
+        assertEquals(new DeadLetterReplayer.Result(1, 1, 2), result);
+        assertEquals(List.of(
+                event("csn_1", OrderWebhookEvent.OrderStatus.CREATED),
+                event("csn_2", OrderWebhookEvent.OrderStatus.CREATED)), attempted);
+        try (var store = store()) {
+            var remaining = readAll(store);
+            assertEquals(List.of(
+                    event("csn_1", OrderWebhookEvent.OrderStatus.CREATED),
+                    event("csn_1", OrderWebhookEvent.OrderStatus.SHIPPED)),
+                    remaining.stream().map(DeadLetter::event).toList());
+            assertEquals(9, remaining.get(0).attempts());
+            assertEquals(8, remaining.get(1).attempts());
+            assertTrue(remaining.get(1).reason().startsWith("Held back"));
+        }
+    }
+
+    @Test
+    void segmentIsKeptWhenAFailureCannotBeRecordedAgain() {
+        try (var store = store()) {
+            for (var i = 0; i < 600; i++) {
+                store.append(new DeadLetter(ENDPOINT, event("csn_" + i, OrderWebhookEvent.OrderStatus.CREATED), 8, "HTTP 503", FIXED_CLOCK.instant()));
+            }
+        }
+        OrderWebhookPublisher receiver = event -> {
+            throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+        };
+        try (var store = new UnwritableStore(store())) {
+            var replayer = new DeadLetterReplayer(
+                    store, endpoint -> receiver, new DeadLetterReplayer.Configuration(1, 0, 1), FIXED_CLOCK);
+
+            var error = assertThrows(IllegalStateException.class, replayer::replay);
+            assertTrue(error.getMessage().contains("the segment was kept"));
+        }
+        try (var store = store()) {
+            assertEquals(600, readAll(store).size());
+        }
+    }
+
+    /// Reads through to a real store but fails every append, as a full disk would.
+    private record UnwritableStore(DeadLetterStore delegate) implements DeadLetterStore {
+        @Override
+        public void append(DeadLetter deadLetter) {
+            throw new UncheckedIOException(new IOException("No space left on device"));
+        }
+
+        @Override
+        public DeadLetterSink forEndpoint(String endpoint) {
+            return (event, attempts, cause) -> append(null);
+        }
+
+        @Override
+        public List<Path> sealedSegments() {
+            return delegate.sealedSegments();
+        }
+
+        @Override
+        public Path claimSealed() {
+            return delegate.claimSealed();
+        }
+
+        @Override
+        public void release(Path segment) {
+            delegate.release(segment);
+        }
+
+        @Override
+        public void read(Path segment, Consumer<DeadLetter> sink) {
+            delegate.read(segment, sink);
+        }
+
+        @Override
+        public void delete(Path segment) {
+            delegate.delete(segment);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
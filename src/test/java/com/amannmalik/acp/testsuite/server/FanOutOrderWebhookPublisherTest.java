@@ -0,0 +1,214 @@
+package com.amannmalik.acp.testsuite.server;
+
+import com.amannmalik.acp.server.webhook.CircuitBreaker;
+import com.amannmalik.acp.server.webhook.FanOutOrderWebhookPublisher;
+import com.amannmalik.acp.server.webhook.GuardedOrderWebhookPublisher;
+import com.amannmalik.acp.spi.webhook.OrderWebhookEvent;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+import com.amannmalik.acp.testutil.MutableClock;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class FanOutOrderWebhookPublisherTest {
+    private static OrderWebhookEvent event(String sessionId) {
+        return new OrderWebhookEvent(
+                OrderWebhookEvent.Type.ORDER_CREATE,
+                sessionId,
+                OrderWebhookEvent.OrderStatus.CREATED,
+                URI.create("https://merchant.example.com/orders/" + sessionId),
+                List.of());
+    }
+
+    @Test
+    void circuitOpensAfterConsecutiveFailuresAndProbesAfterOpenDuration() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var calls = new AtomicInteger();
+        var healthy = new AtomicBoolean();
+        OrderWebhookPublisher endpoint = event -> {
+            calls.incrementAndGet();
+            if (!healthy.get()) {
+                throw new IllegalStateException("Webhook endpoint responded with HTTP 503");
+            }
+        };
+        var breaker = new CircuitBreaker(new CircuitBreaker.Configuration(2, Duration.ofSeconds(30)), clock);
+        var guarded = new GuardedOrderWebhookPublisher("primary", endpoint, 4, breaker);
+
+        assertThrows(IllegalStateException.class, () -> guarded.publish(event("csn_1")));
+        assertThrows(IllegalStateException.class, () -> guarded.publish(event("csn_1")));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+        var shortCircuited = assertThrows(IllegalStateException.class, () -> guarded.publish(event("csn_1")));
+        assertEquals("Circuit open for webhook endpoint primary", shortCircuited.getMessage());
+        assertEquals(2, calls.get());
+
+        clock.advance(Duration.ofSeconds(30));
+        healthy.set(true);
+        guarded.publish(event("csn_1"));
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void failedProbeReopensCircuit() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var breaker = new CircuitBreaker(new CircuitBreaker.Configuration(1, Duration.ofSeconds(10)), clock);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertFalse(breaker.tryAcquire());
+
+        clock.advance(Duration.ofSeconds(10));
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertFalse(breaker.tryAcquire(), "only one probe is admitted while half-open");
+        breaker.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void concurrencyCapQueuesInsteadOfRejecting() {
+        var pending = new CompletableFuture<Void>();
+        var calls = new AtomicInteger();
+        var endpoint = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                calls.incrementAndGet();
+                return pending;
+            }
+        };
+        var breaker = new CircuitBreaker(new CircuitBreaker.Configuration(5, Duration.ofSeconds(30)), null);
+        var guarded = new GuardedOrderWebhookPublisher("slow", endpoint, 1, breaker);
+
+        var first = guarded.publishAsync(event("csn_1"));
+        var second = guarded.publishAsync(event("csn_2"));
+
+        assertFalse(second.isDone(), "a saturated endpoint delays calls instead of failing them");
+        assertEquals(1, calls.get());
+        pending.complete(null);
+        assertDoesNotThrow(() -> first.get(1, TimeUnit.SECONDS));
+        assertDoesNotThrow(() -> second.get(1, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    void openCircuitFailsQueuedCallsWithoutSendingThem() {
+        var pending = new CompletableFuture<Void>();
+        var calls = new AtomicInteger();
+        var endpoint = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                calls.incrementAndGet();
+                return pending;
+            }
+        };
+        var breaker = new CircuitBreaker(new CircuitBreaker.Configuration(1, Duration.ofSeconds(30)), null);
+        var guarded = new GuardedOrderWebhookPublisher("failing", endpoint, 1, breaker);
+
+        var first = guarded.publishAsync(event("csn_1"));
+        var second = guarded.publishAsync(event("csn_2"));
+        pending.completeExceptionally(new IllegalStateException("Webhook endpoint responded with HTTP 503"));
+
+        assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.SECONDS));
+        var error = assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+        assertEquals("Circuit open for webhook endpoint failing", error.getCause().getMessage());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void stalledEndpointDoesNotHoldBackOthersButDelaysCompletion() throws Exception {
+        var stalled = new CompletableFuture<Void>();
+        var delivered = new LinkedBlockingQueue<OrderWebhookEvent>();
+        var stuck = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                return stalled;
+            }
+        };
+        var refusing = new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                throw new RejectedExecutionException("Webhook queue is full");
+            }
+        };
+        var endpoints = new LinkedHashMap<String, OrderWebhookPublisher>();
+        endpoints.put("stuck", stuck);
+        endpoints.put("refusing", refusing);
+        endpoints.put("healthy", delivered::add);
+        try (var fanOut = new FanOutOrderWebhookPublisher(endpoints)) {
+            var first = fanOut.publishAsync(event("csn_1"));
+            fanOut.publish(event("csn_2"));
+
+            assertEquals("csn_1", delivered.poll().checkoutSessionId());
+            assertEquals("csn_2", delivered.poll().checkoutSessionId());
+            assertFalse(first.isDone(), "completion waits for every endpoint");
+            assertEquals(
+                    List.of(
+                            new FanOutOrderWebhookPublisher.EndpointStats("stuck", 2, 0),
+                            new FanOutOrderWebhookPublisher.EndpointStats("refusing", 0, 2),
+                            new FanOutOrderWebhookPublisher.EndpointStats("healthy", 2, 0)),
+                    fanOut.stats());
+            stalled.complete(null);
+            var error = assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(RejectedExecutionException.class, error.getCause());
+        }
+    }
+
+    @Test
+    void completesOnlyOnceEveryEndpointHasDelivered() throws Exception {
+        var slow = new CompletableFuture<Void>();
+        var endpoints = new LinkedHashMap<String, OrderWebhookPublisher>();
+        endpoints.put("fast", event -> {
+        });
+        endpoints.put("slow", new OrderWebhookPublisher() {
+            @Override
+            public void publish(OrderWebhookEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(OrderWebhookEvent event) {
+                return slow;
+            }
+        });
+        try (var fanOut = new FanOutOrderWebhookPublisher(endpoints)) {
+            var result = fanOut.publishAsync(event("csn_1"));
+
+            assertFalse(result.isDone());
+            slow.complete(null);
+            assertDoesNotThrow(() -> result.get(1, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.amannmalik.acp.testsuite.server;
+
+import com.amannmalik.acp.api.shared.ErrorResponse;
+import com.amannmalik.acp.server.HttpProblem;
+import com.amannmalik.acp.server.RateLimiter;
+import com.amannmalik.acp.testutil.MutableClock;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.*;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class RateLimiterTest {
+    private static HttpServletRequest request(String authorization, String address) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getHeader" -> "Authorization".equals(args[0]) ? authorization : null;
+                    case "getRemoteAddr" -> address;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static RateLimiter limiter(MutableClock clock, int maxClients, boolean perClientAddress) {
+        return new RateLimiter(
+                new RateLimiter.Configuration(
+                        Map.of(
+                                RateLimiter.EndpointClass.CREATE, new RateLimiter.Limit(2, 3),
+                                RateLimiter.EndpointClass.RETRIEVE, new RateLimiter.Limit(100, 1)),
+                        maxClients,
+                        perClientAddress),
+                clock);
+    }
+
+    @Test
+    void admitsBurstThenRejectsWithRetryAfterUntilRefilled() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var limiter = limiter(clock, 64, false);
+        var agent = request("Bearer agent", "10.0.0.1");
+
+        for (var i = 0; i < 3; i++) {
+            limiter.acquire(RateLimiter.EndpointClass.CREATE, agent);
+        }
+        var problem = assertThrows(HttpProblem.class, () -> limiter.acquire(RateLimiter.EndpointClass.CREATE, agent));
+        assertEquals(429, problem.status());
+        assertEquals(ErrorResponse.ErrorType.RATE_LIMIT_EXCEEDED, problem.errorType());
+        assertEquals("rate_limit_exceeded", problem.code());
+        assertEquals(Duration.ofMillis(500), problem.retryAfter());
+        assertEquals("1", problem.retryAfterHeader());
+
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, agent);
+        limiter.acquire(RateLimiter.EndpointClass.DELEGATE_PAYMENT, agent);
+        limiter.acquire(RateLimiter.EndpointClass.CREATE, request("Bearer other", "10.0.0.1"));
+
+        clock.advance(Duration.ofMillis(500));
+        limiter.acquire(RateLimiter.EndpointClass.CREATE, agent);
+        assertThrows(HttpProblem.class, () -> limiter.acquire(RateLimiter.EndpointClass.CREATE, agent));
+    }
+
+    @Test
+    void keysByAddressWhenConfiguredOrWithoutToken() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var perToken = limiter(clock, 64, false);
+        var perAddress = limiter(clock, 64, true);
+
+        perToken.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer agent", "10.0.0.1"));
+        assertThrows(HttpProblem.class,
+                () -> perToken.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer agent", "10.0.0.2")));
+        perToken.acquire(RateLimiter.EndpointClass.RETRIEVE, request(null, "10.0.0.1"));
+        perToken.acquire(RateLimiter.EndpointClass.RETRIEVE, request(null, "10.0.0.2"));
+
+        perAddress.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer agent", "10.0.0.1"));
+        perAddress.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer agent", "10.0.0.2"));
+    }
+
+    @Test
+    void spellingsOfOneBearerTokenShareABucket() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var limiter = limiter(clock, 64, false);
+
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer agent", "10.0.0.1"));
+        for (var spelling : List.of("bearer agent", "BEARER agent", "  Bearer   agent ", "Bearer\tagent")) {
+            assertThrows(HttpProblem.class,
+                    () -> limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request(spelling, "10.0.0.1")),
+                    spelling);
+        }
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer AGENT", "10.0.0.1"));
+
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Basic one", "10.0.0.3"));
+        assertThrows(HttpProblem.class,
+                () -> limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Basic two", "10.0.0.3")));
+    }
+
+    @Test
+    void connectionClientIdTakesThePlaceOfTheAuthorizationHeader() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var limiter = limiter(clock, 64, false);
+
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request(null, "10.0.0.1"), "agent-1");
+        assertThrows(HttpProblem.class,
+                () -> limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer other", "10.0.0.2"), "agent-1"));
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request(null, "10.0.0.1"), "agent-2");
+        limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer agent-1", "10.0.0.1"));
+    }
+
+    @Test
+    void unknownTokenStormEvictsIdleBucketsBeforeBusyClients() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var limiter = limiter(clock, 4, false);
+        var agent = request("Bearer agent", "10.0.0.1");
+        for (var i = 0; i < 3; i++) {
+            limiter.acquire(RateLimiter.EndpointClass.CREATE, agent);
+        }
+
+        for (var i = 0; i < 10_000; i++) {
+            limiter.acquire(RateLimiter.EndpointClass.RETRIEVE, request("Bearer unknown-" + i, "10.0.0.9"));
+        }
+
+        assertThrows(HttpProblem.class, () -> limiter.acquire(RateLimiter.EndpointClass.CREATE, agent));
+    }
+}
@@ -0,0 +1,132 @@
+package com.amannmalik.acp.testsuite.storage;
+
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.storage.BTreeCheckoutSessionStore;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class BTreeCheckoutSessionStoreTest {
+    @TempDir
+    Path directory;
+
+    private BTreeCheckoutSessionStore.Configuration smallPages() {
+        return new BTreeCheckoutSessionStore.Configuration(directory.resolve("sessions.btree"), 1024, 16);
+    }
+
+    @Test
+    void splitsSpillsAndSurvivesReopen() {
+        var latest = new ArrayList<CheckoutSession>();
+        try (var store = new BTreeCheckoutSessionStore(smallPages());
+             var service = mailboxService(CheckoutSessionJournal.NOOP, store)) {
+            for (var i = 0; i < 300; i++) {
+                latest.add(service.create(createRequest(1), "idem-" + i));
+            }
+            for (var i = 0; i < latest.size(); i += 3) {
+                latest.set(i, service.update(latest.get(i).id(), updateRequest(2)));
+            }
+        }
+
+        try (var store = new BTreeCheckoutSessionStore(smallPages())) {
+            assertEquals(300, store.size());
+            for (var session : latest) {
+                assertEquals(session, store.get(session.id().value()));
+            }
+            try (var values = store.values()) {
+                assertEquals(latest, values.toList());
+            }
+            for (var i = 0; i < latest.size(); i += 2) {
+                store.remove(latest.get(i).id().value());
+            }
+            var stats = store.stats();
+            assertEquals(150, stats.sessions());
+            assertTrue(stats.cacheHits() > stats.cacheMisses(), stats.toString());
+        }
+
+        try (var store = new BTreeCheckoutSessionStore(smallPages())) {
+            assertEquals(150, store.size());
+            for (var i = 0; i < latest.size(); i++) {
+                var session = latest.get(i);
+                assertEquals(i % 2 == 0 ? null : session, store.get(session.id().value()));
+            }
+            var pages = store.stats().pages();
+            store.put(latest.getFirst());
+            assertEquals(pages, store.stats().pages(), "replaced pages are reused");
+        }
+
+        try (var store = new BTreeCheckoutSessionStore(smallPages());
+             var service = mailboxService(CheckoutSessionJournal.NOOP, store)) {
+            var created = service.create(createRequest(4), "idem-after-reopen");
+            assertTrue(latest.stream().noneMatch(session -> session.id().equals(created.id())), created.id().value());
+            assertEquals(latest.get(1), service.retrieve(latest.get(1).id()));
+            assertEquals(152, store.size());
+        }
+    }
+
+    @Test
+    void batchedCommitsBecomeVisibleToReopenOnlyAfterCheckpoint() {
+        var configuration = new BTreeCheckoutSessionStore.Configuration(directory.resolve("sessions.btree"), 1024, 16, 1000);
+        try (var store = new BTreeCheckoutSessionStore(configuration);
+             var service = mailboxService(CheckoutSessionJournal.NOOP, store)) {
+            var session = service.create(createRequest(1), "idem-1");
+            assertEquals(session, store.get(session.id().value()));
+            try (var reopened = new BTreeCheckoutSessionStore(smallPages())) {
+                assertEquals(0, reopened.size());
+            }
+
+            store.checkpoint();
+            try (var reopened = new BTreeCheckoutSessionStore(smallPages())) {
+                assertEquals(session, reopened.get(session.id().value()));
+            }
+        }
+    }
+
+    @Test
+    void tornCommitFallsBackToPreviousTree() throws IOException {
+        CheckoutSession first;
+        try (var store = new BTreeCheckoutSessionStore(smallPages());
+             var service = mailboxService(CheckoutSessionJournal.NOOP, store)) {
+            first = service.create(createRequest(1), "idem-1");
+            service.create(createRequest(2), "idem-2");
+        }
+        // The second commit went to meta page 0; tear it.
+        try (var channel = FileChannel.open(directory.resolve("sessions.btree"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}), 0);
+        }
+
+        try (var store = new BTreeCheckoutSessionStore(smallPages())) {
+            assertEquals(1, store.size());
+            assertEquals(first, store.get(first.id().value()));
+        }
+    }
+
+    @Test
+    void reopenedStoreFollowsJournalReplay() {
+        CheckoutSession session;
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory.resolve("wal")));
+             var store = new BTreeCheckoutSessionStore(BTreeCheckoutSessionStore.Configuration.defaults(directory.resolve("sessions.btree")));
+             var service = mailboxService(journal, store)) {
+            session = service.update(service.create(createRequest(1), "idem-1").id(), updateRequest(3));
+        }
+
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory.resolve("wal")));
+             var store = new BTreeCheckoutSessionStore(BTreeCheckoutSessionStore.Configuration.defaults(directory.resolve("sessions.btree")));
+             var service = mailboxService(journal, store)) {
+            assertEquals(session, service.retrieve(session.id()));
+            assertEquals(1, store.size());
+            var canceled = service.cancel(session.id());
+            assertEquals(canceled, store.get(session.id().value()));
+        }
+    }
+}
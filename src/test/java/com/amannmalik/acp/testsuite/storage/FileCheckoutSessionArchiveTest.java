@@ -0,0 +1,111 @@
+package com.amannmalik.acp.testsuite.storage;
+
+import com.amannmalik.acp.api.checkout.CheckoutSessionExpiry;
+import com.amannmalik.acp.api.checkout.CheckoutSessionNotFoundException;
+import com.amannmalik.acp.api.checkout.CheckoutSessionOptions;
+import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.spi.storage.CheckoutSessionArchive;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.storage.FileCheckoutSessionArchive;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import com.amannmalik.acp.testutil.MutableClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.*;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class FileCheckoutSessionArchiveTest {
+    @TempDir
+    Path directory;
+
+    private static InMemoryCheckoutSessionService service(
+            Clock clock, CheckoutSessionJournal journal, CheckoutSessionArchive archive) {
+        return new InMemoryCheckoutSessionService(PRICE_BOOK, clock, USD, CheckoutSessionOptions.defaults()
+                .withJournal(journal)
+                .withExpiry(new CheckoutSessionExpiry(Duration.ofHours(1), Duration.ofHours(1), archive)));
+    }
+
+    private FileCheckoutSessionArchive archive() {
+        return new FileCheckoutSessionArchive(FileCheckoutSessionArchive.Configuration.defaults(directory.resolve("archive")));
+    }
+
+    private FileCheckoutSessionJournal journal() {
+        return new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory.resolve("wal")));
+    }
+
+    @Test
+    void expiredTerminalSessionsAreServedFromArchiveAcrossRestarts() {
+        var clock = new MutableClock(Instant.parse("2025-10-25T10:00:00Z"));
+        CheckoutSession abandoned;
+        CheckoutSession completed;
+        try (var journal = journal(); var archive = archive(); var service = service(clock, journal, archive)) {
+            abandoned = service.create(createRequest(1), "idem-abandoned");
+            var session = service.create(createRequest(1), "idem-completed");
+            service.update(session.id(), addressUpdate(session));
+            completed = service.complete(session.id(), completeRequest(), "complete-1");
+
+            clock.advance(Duration.ofHours(2));
+            service.expireSessions();
+
+            assertEquals(1, archive.size());
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertThrows(CheckoutSessionNotFoundException.class, () -> service.retrieve(abandoned.id()));
+        }
+
+        try (var journal = journal(); var archive = archive(); var service = service(clock, journal, archive)) {
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertThrows(CheckoutSessionNotFoundException.class, () -> service.retrieve(abandoned.id()));
+        }
+    }
+
+    @Test
+    void tornTailIsSkippedOnOpen() throws IOException {
+        var clock = new MutableClock(Instant.parse("2025-10-25T10:00:00Z"));
+        CheckoutSession canceled;
+        try (var archive = archive(); var service = service(clock, CheckoutSessionJournal.NOOP, archive)) {
+            canceled = service.cancel(service.create(createRequest(1), "idem-canceled").id());
+            clock.advance(Duration.ofHours(2));
+            service.expireSessions();
+        }
+        try (var segments = Files.newDirectoryStream(directory.resolve("archive"), "archive-*.bin")) {
+            for (var segment : segments) {
+                Files.write(segment, new byte[] {0, 0, 1, 0, 7}, StandardOpenOption.APPEND);
+            }
+        }
+
+        try (var archive = archive()) {
+            assertEquals(1, archive.size());
+            assertEquals(canceled, archive.find(canceled.id().value()).orElseThrow());
+            assertTrue(archive.find("cs_missing").isEmpty());
+        }
+    }
+
+    @Test
+    void idsOfExpiredSessionsAreNotReusedAfterCompaction() {
+        var clock = new MutableClock(Instant.parse("2025-10-25T10:00:00Z"));
+        var configuration = new FileCheckoutSessionJournal.Configuration(directory.resolve("wal"), 4096, 8192);
+        try (var journal = new FileCheckoutSessionJournal(configuration);
+             var service = service(clock, journal, CheckoutSessionArchive.NOOP)) {
+            var kept = service.create(createRequest(1), "idem-kept");
+            service.create(createRequest(1), "idem-expired");
+            clock.advance(Duration.ofMinutes(40));
+            service.update(kept.id(), new CheckoutSessionUpdateRequest(null, null, ADDRESS, null));
+            clock.advance(Duration.ofMinutes(40));
+            service.expireSessions();
+            for (var quantity = 2; quantity < 200; quantity++) {
+                service.update(kept.id(), updateRequest(quantity));
+            }
+        }
+
+        try (var journal = new FileCheckoutSessionJournal(configuration);
+             var service = service(clock, journal, CheckoutSessionArchive.NOOP)) {
+            assertEquals("csn_000003", service.create(createRequest(1), "idem-next").id().value());
+        }
+    }
+}
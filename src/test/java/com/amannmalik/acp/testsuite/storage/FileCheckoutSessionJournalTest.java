@@ -0,0 +1,178 @@
+package com.amannmalik.acp.testsuite.storage;
+
+import com.amannmalik.acp.api.checkout.IdempotentReply;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.spi.storage.JournalRecord;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import com.amannmalik.acp.util.Fingerprint;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.LongStream;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class FileCheckoutSessionJournalTest {
+    @TempDir
+    Path directory;
+
+    private static long count(Path directory, String glob) throws IOException {
+        try (var files = Files.newDirectoryStream(directory, glob)) {
+            var total = 0L;
+            for (var ignored : files) {
+                total++;
+            }
+            return total;
+        }
+    }
+
+    @Test
+    void restartRestoresSessionsIdempotencyAndSequences() {
+        CheckoutSession completed;
+        CheckoutSession canceled;
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory))) {
+            var service = inMemoryService(journal, null);
+            var first = service.create(createRequest(1), "idem-1");
+            service.update(first.id(), addressUpdate(first));
+            completed = service.complete(first.id(), completeRequest(), "complete-1");
+            canceled = service.cancel(service.create(createRequest(2), "idem-2").id());
+        }
+
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory))) {
+            var service = inMemoryService(journal, null);
+
+            assertEquals(completed, service.retrieve(completed.id()));
+            assertEquals(canceled, service.retrieve(canceled.id()));
+            assertEquals(CheckoutSessionStatus.COMPLETED, service.complete(completed.id(), completeRequest(), "complete-1").status());
+            assertEquals("csn_000001", service.create(createRequest(1), "idem-1").id().value());
+
+            var next = service.create(createRequest(3), "idem-3");
+            assertEquals("csn_000003", next.id().value());
+            assertEquals("line_000006", next.lineItems().getFirst().id());
+        }
+    }
+
+    @Test
+    void restartReplaysTheRecordedReplyRatherThanTheCurrentState() {
+        Function<CheckoutSession, IdempotentReply.Encoded> respond =
+                session -> new IdempotentReply.Encoded(session.id(), 201, session.toString().getBytes(StandardCharsets.UTF_8));
+        IdempotentReply.Encoded created;
+        CheckoutSession original;
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory))) {
+            var service = inMemoryService(journal, null);
+            created = service.create(createRequest(1), "idem-http", Fingerprint.of(createRequest(1)), respond);
+            original = service.create(createRequest(2), "idem-java");
+            service.update(original.id(), addressUpdate(original));
+        }
+
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory))) {
+            var service = inMemoryService(journal, null);
+
+            var replayed = service.create(createRequest(1), "idem-http", Fingerprint.of(createRequest(1)), respond);
+            assertEquals(201, replayed.status());
+            assertArrayEquals(created.body(), replayed.body());
+            assertArrayEquals(created.body(), service.replayCreate("idem-http", Fingerprint.of(createRequest(1)), respond).body());
+            assertNull(service.replayCreate("idem-unknown", Fingerprint.of(createRequest(1)), respond));
+            assertEquals(original, service.create(createRequest(2), "idem-java"));
+            assertNotEquals(original, service.retrieve(original.id()));
+        }
+    }
+
+    @Test
+    void compactionWritesSnapshotAndDropsOldSegments() throws IOException {
+        var configuration = new FileCheckoutSessionJournal.Configuration(directory, 4096, 8192);
+        CheckoutSession last;
+        try (var journal = new FileCheckoutSessionJournal(configuration)) {
+            var service = inMemoryService(journal, null);
+            var session = service.create(createRequest(1), "idem-compact");
+            last = session;
+            for (var quantity = 2; quantity < 200; quantity++) {
+                last = service.update(
+                        session.id(),
+                        new CheckoutSessionUpdateRequest(List.of(new Item("item_test", quantity)), null, null, null));
+            }
+        }
+
+        assertTrue(count(directory, "snapshot-*.snap") >= 1);
+        try (var journal = new FileCheckoutSessionJournal(configuration)) {
+            assertEquals(last, inMemoryService(journal, null).retrieve(last.id()));
+        }
+    }
+
+    @Test
+    void snapshotRecordsReachTheSinkInOrderOnTheReplayingThread() {
+        var configuration = new FileCheckoutSessionJournal.Configuration(directory, 4096, 8192);
+        var snapshotted = LongStream.rangeClosed(1, 3000).<JournalRecord>mapToObj(JournalRecord.WebhookDelivered::new).toList();
+        try (var journal = new FileCheckoutSessionJournal(configuration)) {
+            journal.compactFrom(snapshotted::stream);
+            long position = 0;
+            for (var sequence = 1; sequence <= 1000; sequence++) {
+                position = journal.append(new JournalRecord.WebhookDelivered(sequence));
+            }
+            journal.await(position);
+        }
+
+        var replayed = new ArrayList<JournalRecord>();
+        var threads = new HashSet<Thread>();
+        try (var journal = new FileCheckoutSessionJournal(configuration)) {
+            journal.replay(record -> {
+                threads.add(Thread.currentThread());
+                replayed.add(record);
+            });
+        }
+
+        assertEquals(Set.of(Thread.currentThread()), threads);
+        assertEquals(snapshotted, replayed.subList(0, snapshotted.size()));
+    }
+
+    @Test
+    void failedCompactionIsCountedAndTheLogStillReplays() throws IOException {
+        var configuration = new FileCheckoutSessionJournal.Configuration(directory, 4096, 8192);
+        CheckoutSession last;
+        var journal = new FileCheckoutSessionJournal(configuration);
+        try (journal) {
+            var service = inMemoryService(journal, null);
+            journal.compactFrom(() -> {
+                throw new IllegalStateException("Live state unavailable");
+            });
+            var session = service.create(createRequest(1), "idem-compact-failure");
+            last = session;
+            for (var quantity = 2; quantity < 200; quantity++) {
+                last = service.update(
+                        session.id(),
+                        new CheckoutSessionUpdateRequest(List.of(new Item("item_test", quantity)), null, null, null));
+            }
+        }
+
+        assertTrue(journal.compactionFailures() >= 1);
+        assertEquals(0, count(directory, "snapshot-*"));
+        try (var reopened = new FileCheckoutSessionJournal(configuration)) {
+            assertEquals(last, inMemoryService(reopened, null).retrieve(last.id()));
+        }
+    }
+
+    @Test
+    void tornTailIsTruncatedOnReplay() throws IOException {
+        CheckoutSession session;
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory))) {
+            session = inMemoryService(journal, null).create(createRequest(1), "idem-torn");
+        }
+        Path segment;
+        try (var segments = Files.newDirectoryStream(directory, "wal-*.log")) {
+            segment = segments.iterator().next();
+        }
+        var intact = Files.size(segment);
+        Files.write(segment, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory))) {
+            assertEquals(session, inMemoryService(journal, null).retrieve(session.id()));
+        }
+        assertEquals(intact, Files.size(segment));
+    }
+}
@@ -0,0 +1,89 @@
+package com.amannmalik.acp.testsuite.storage;
+
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.storage.FileCheckoutSessionJournal;
+import com.amannmalik.acp.storage.OffHeapCheckoutSessionStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.stream.Collectors;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class OffHeapCheckoutSessionStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void rewritesReclaimGarbageAndScansSeeLatestValues() {
+        try (var store = new OffHeapCheckoutSessionStore(new OffHeapCheckoutSessionStore.Configuration(null, 4096, 16));
+             var service = mailboxService(CheckoutSessionJournal.NOOP, store)) {
+            var latest = new ArrayList<CheckoutSession>();
+            for (var i = 0; i < 200; i++) {
+                latest.add(service.create(createRequest(1), "idem-" + i));
+            }
+            for (var round = 2; round < 6; round++) {
+                for (var i = 0; i < latest.size(); i++) {
+                    latest.set(i, service.update(latest.get(i).id(), updateRequest(round)));
+                }
+            }
+
+            for (var session : latest) {
+                assertEquals(session, service.retrieve(session.id()));
+            }
+            var stats = store.stats();
+            assertEquals(200, stats.sessions());
+            assertTrue(stats.garbageBytes() <= Math.max(stats.liveBytes(), 4096), stats.toString());
+            try (var values = store.values()) {
+                var scanned = values.collect(Collectors.toMap(session -> session.id().value(), session -> session));
+                assertEquals(200, scanned.size());
+                latest.forEach(session -> assertEquals(session, scanned.get(session.id().value())));
+            }
+        }
+    }
+
+    @Test
+    void computeAndRemoveUpdateIndex() {
+        try (var store = new OffHeapCheckoutSessionStore(OffHeapCheckoutSessionStore.Configuration.anonymous());
+             var service = mailboxService(CheckoutSessionJournal.NOOP, store)) {
+            var session = service.create(createRequest(1), "idem-1");
+            var other = service.create(createRequest(2), "idem-2");
+            var updated = service.update(session.id(), updateRequest(3));
+
+            assertNull(store.compute("csn_missing", current -> current));
+            assertEquals(session, store.compute(session.id().value(), current -> {
+                assertEquals(updated, current);
+                return session;
+            }));
+            assertEquals(session, store.get(session.id().value()));
+            assertThrows(IllegalArgumentException.class, () -> store.compute(session.id().value(), current -> other));
+            assertEquals(session, store.get(session.id().value()));
+
+            store.remove(session.id().value());
+            assertNull(store.get(session.id().value()));
+            assertEquals(other, store.get(other.id().value()));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    void mappedStoreRestoresFromJournal() {
+        CheckoutSession session;
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory.resolve("wal")));
+             var store = new OffHeapCheckoutSessionStore(OffHeapCheckoutSessionStore.Configuration.mapped(directory.resolve("heap")));
+             var service = mailboxService(journal, store)) {
+            session = service.update(service.create(createRequest(1), "idem-1").id(), updateRequest(3));
+        }
+
+        try (var journal = new FileCheckoutSessionJournal(FileCheckoutSessionJournal.Configuration.defaults(directory.resolve("wal")));
+             var store = new OffHeapCheckoutSessionStore(OffHeapCheckoutSessionStore.Configuration.mapped(directory.resolve("heap")));
+             var service = mailboxService(journal, store)) {
+            assertEquals(session, service.retrieve(session.id()));
+            assertEquals(1, store.size());
+        }
+    }
+}
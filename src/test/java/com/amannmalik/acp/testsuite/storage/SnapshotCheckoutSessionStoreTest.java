@@ -0,0 +1,88 @@
+package com.amannmalik.acp.testsuite.storage;
+
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.storage.SnapshotCheckoutSessionStore;
+import com.amannmalik.acp.testutil.MutableClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.amannmalik.acp.testutil.CheckoutTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+final class SnapshotCheckoutSessionStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void snapshotStaysFixedWhileWritersContinue() throws Exception {
+        try (var store = new SnapshotCheckoutSessionStore(SnapshotCheckoutSessionStore.Configuration.onDemand());
+             var service = inMemoryService(CheckoutSessionJournal.NOOP, store)) {
+            var sessions = new ArrayList<CheckoutSession>();
+            for (var i = 0; i < 100; i++) {
+                sessions.add(service.create(createRequest(1), "idem-" + i));
+            }
+            var snapshot = store.snapshot();
+
+            var start = new CountDownLatch(1);
+            try (var executor = Executors.newFixedThreadPool(4)) {
+                for (var worker = 0; worker < 4; worker++) {
+                    var offset = worker;
+                    executor.submit(() -> {
+                        start.await();
+                        for (var i = offset; i < sessions.size(); i += 4) {
+                            service.update(sessions.get(i).id(), updateRequest(5));
+                        }
+                        for (var i = 0; i < 25; i++) {
+                            service.create(createRequest(2), "idem-w" + offset + "-" + i);
+                        }
+                        return null;
+                    });
+                }
+                start.countDown();
+            }
+
+            assertEquals(100, snapshot.size());
+            try (var values = snapshot.sessions()) {
+                assertEquals(
+                        sessions.stream().collect(Collectors.toMap(session -> session.id().value(), Function.identity())),
+                        values.collect(Collectors.toMap(session -> session.id().value(), Function.identity())));
+            }
+            assertEquals(200, store.size());
+            sessions.forEach(session -> assertEquals(5, store.get(session.id().value()).lineItems().getFirst().item().quantity()));
+        }
+    }
+
+    @Test
+    void exportsRoundTripAndKeepOnlyTheNewest() throws IOException {
+        var clock = new MutableClock(Instant.parse("2025-10-25T10:00:00Z"));
+        try (var store = new SnapshotCheckoutSessionStore(
+                new SnapshotCheckoutSessionStore.Configuration(null, Duration.ZERO, 2), clock);
+             var service = inMemoryService(CheckoutSessionJournal.NOOP, store)) {
+            var session = service.create(createRequest(1), "idem-1");
+            store.exportTo(directory);
+            clock.advance(Duration.ofSeconds(1));
+            var updated = service.update(session.id(), updateRequest(3));
+            store.exportTo(directory);
+            clock.advance(Duration.ofSeconds(1));
+            var latest = store.exportTo(directory);
+
+            assertEquals(List.of(updated), SnapshotCheckoutSessionStore.readExport(latest));
+            try (var files = Files.list(directory)) {
+                assertEquals(2, files.count());
+            }
+            assertEquals(3, store.stats().exports());
+        }
+    }
+}
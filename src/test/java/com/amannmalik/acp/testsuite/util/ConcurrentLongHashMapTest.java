@@ -0,0 +1,57 @@
+package com.amannmalik.acp.testsuite.util;
+
+import com.amannmalik.acp.util.ConcurrentLongHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class ConcurrentLongHashMapTest {
+    @Test
+    void randomWritesMatchHashMap() {
+        var map = new ConcurrentLongHashMap<String>();
+        var expected = new HashMap<Long, String>();
+        var random = new Random(42);
+        for (var i = 0; i < 200_000; i++) {
+            var key = 1 + random.nextInt(5_000);
+            switch (random.nextInt(3)) {
+                case 0 -> assertEquals(expected.put((long) key, "v" + i), map.put(key, "v" + i));
+                case 1 -> assertEquals(expected.remove((long) key), map.remove(key));
+                default -> assertEquals(expected.get((long) key), map.get(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        assertEquals(expected.size(), map.values().count());
+    }
+
+    @Test
+    void computeIsAtomicPerKeyAndNullRemoves() throws Exception {
+        var map = new ConcurrentLongHashMap<Integer>();
+        var start = new CountDownLatch(1);
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            for (var thread = 0; thread < 8; thread++) {
+                executor.submit(() -> {
+                    start.await();
+                    for (var i = 0; i < 10_000; i++) {
+                        var key = 1 + i % 64;
+                        map.compute(key, current -> current == null ? 1 : current + 1);
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+        }
+        assertEquals(64, map.size());
+        assertEquals(80_000, map.values().mapToInt(Integer::intValue).sum());
+
+        assertNull(map.compute(7, current -> null));
+        assertNull(map.get(7));
+        assertEquals(63, map.size());
+        assertThrows(IllegalArgumentException.class, () -> map.get(0));
+    }
+}
@@ -0,0 +1,44 @@
+package com.amannmalik.acp.testsuite.util;
+
+import com.amannmalik.acp.api.checkout.model.CheckoutSessionCreateRequest;
+import com.amannmalik.acp.api.checkout.model.Item;
+import com.amannmalik.acp.util.Fingerprint;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class FingerprintTest {
+    private static CheckoutSessionCreateRequest request(int quantity) {
+        return new CheckoutSessionCreateRequest(List.of(new Item("item_123", quantity)), null, null);
+    }
+
+    @Test
+    void equalRequestsShareFingerprint() {
+        assertEquals(Fingerprint.of(request(1)), Fingerprint.of(request(1)));
+        assertNotEquals(Fingerprint.of(request(1)), Fingerprint.of(request(2)));
+    }
+
+    @Test
+    void mapOrderDoesNotMatter() {
+        var forward = new LinkedHashMap<String, String>();
+        forward.put("a", "1");
+        forward.put("b", "2");
+        var reverse = new LinkedHashMap<String, String>();
+        reverse.put("b", "2");
+        reverse.put("a", "1");
+
+        assertEquals(Fingerprint.of(forward), Fingerprint.of(reverse));
+        assertNotEquals(Fingerprint.of(forward), Fingerprint.of(Map.of("a", "1", "b", "3")));
+    }
+
+    @Test
+    void stringBoundariesAreUnambiguous() {
+        assertNotEquals(Fingerprint.of(List.of("ab", "c")), Fingerprint.of(List.of("a", "bc")));
+        assertNotEquals(Fingerprint.of(List.of()), Fingerprint.of(Map.of()));
+        assertNotEquals(Fingerprint.of(null), Fingerprint.of(""));
+    }
+}
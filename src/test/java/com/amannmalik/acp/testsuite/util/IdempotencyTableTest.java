@@ -0,0 +1,170 @@
+package com.amannmalik.acp.testsuite.util;
+
+import com.amannmalik.acp.testutil.MutableClock;
+import com.amannmalik.acp.util.IdempotencyTable;
+import org.junit.jupiter.api.Test;
+
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class IdempotencyTableTest {
+    private static IdempotencyTable<String, String, String> table(Duration waitTimeout) {
+        return new IdempotencyTable<>(waitTimeout, IllegalStateException::new);
+    }
+
+    private static IdempotencyTable<String, String, String> table(
+            IdempotencyTable.Retention retention, Clock clock) {
+        return new IdempotencyTable<>(Duration.ofSeconds(5), IllegalStateException::new, retention, clock, String::length);
+    }
+
+    private static void complete(IdempotencyTable<String, String, String> table, String key, String value) {
+        try (var claim = table.claim(key, "request")) {
+            claim.commit(value);
+        }
+    }
+
+    @Test
+    void duplicateWaitsForOwnerAndReplaysItsResult() throws Exception {
+        var table = table(Duration.ofSeconds(5));
+        var executions = new AtomicInteger();
+        var owning = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var first = executor.submit(() -> {
+                try (var claim = table.claim("idem_1", "request")) {
+                    owning.countDown();
+                    release.await();
+                    executions.incrementAndGet();
+                    claim.commit("result");
+                    return "result";
+                }
+            });
+            owning.await();
+            var duplicate = executor.submit(() -> {
+                try (var claim = table.claim("idem_1", "request")) {
+                    assertTrue(claim.isReplay());
+                    return claim.replayed();
+                }
+            });
+            assertThrows(TimeoutException.class, () -> duplicate.get(100, TimeUnit.MILLISECONDS));
+            release.countDown();
+
+            assertEquals("result", first.get(5, TimeUnit.SECONDS));
+            assertEquals("result", duplicate.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, executions.get());
+        assertEquals(1, table.completed().count());
+    }
+
+    @Test
+    void failedOwnerLetsDuplicateExecute() throws Exception {
+        var table = table(Duration.ofSeconds(5));
+        var owning = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var first = executor.submit(() -> {
+                try (var claim = table.claim("idem_1", "request")) {
+                    assertFalse(claim.isReplay());
+                    owning.countDown();
+                    release.await();
+                    throw new IllegalArgumentException("payment declined");
+                }
+            });
+            owning.await();
+            var duplicate = executor.submit(() -> {
+                try (var claim = table.claim("idem_1", "request")) {
+                    assertFalse(claim.isReplay());
+                    claim.commit("retried");
+                    return "retried";
+                }
+            });
+            release.countDown();
+
+            var error = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, error.getCause());
+            assertEquals("retried", duplicate.get(5, TimeUnit.SECONDS));
+        }
+        try (var claim = table.claim("idem_1", "request")) {
+            assertEquals("retried", claim.replayed());
+        }
+    }
+
+    @Test
+    void duplicateGivesUpAfterWaitTimeout() {
+        var table = table(Duration.ofMillis(50));
+        try (var claim = table.claim("idem_1", "request")) {
+            assertFalse(claim.isReplay());
+            var error = assertThrows(IllegalStateException.class, () -> table.claim("idem_1", "request"));
+            assertEquals("A request with this Idempotency-Key is still in progress", error.getMessage());
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void mismatchedRequestConflictsEvenWhileInFlight() {
+        var table = table(Duration.ofSeconds(5));
+        try (var claim = table.claim("idem_1", "request")) {
+            assertFalse(claim.isReplay());
+            var error = assertThrows(IllegalStateException.class, () -> table.claim("idem_1", "other"));
+            assertEquals("Same Idempotency-Key used with different parameters", error.getMessage());
+        }
+    }
+
+    @Test
+    void finishedEntriesExpireAfterTtl() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var table = table(new IdempotencyTable.Retention(Duration.ofHours(24), 0, 0L), clock);
+        complete(table, "idem_1", "first");
+
+        clock.advance(Duration.ofHours(23));
+        try (var claim = table.claim("idem_1", "request")) {
+            assertEquals("first", claim.replayed());
+        }
+        clock.advance(Duration.ofHours(1).plusSeconds(1));
+        try (var claim = table.claim("idem_1", "request")) {
+            assertFalse(claim.isReplay());
+        }
+        assertEquals(new IdempotencyTable.Stats(0, 0L, 1L, 0L), table.stats());
+    }
+
+    @Test
+    void entryCapEvictsLeastRecentlyUsed() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var table = table(new IdempotencyTable.Retention(Duration.ofHours(24), 2, 0L), clock);
+        complete(table, "idem_1", "first");
+        complete(table, "idem_2", "second");
+        try (var claim = table.claim("idem_1", "request")) {
+            assertTrue(claim.isReplay());
+        }
+
+        complete(table, "idem_3", "third");
+
+        try (var claim = table.claim("idem_1", "request")) {
+            assertTrue(claim.isReplay());
+        }
+        try (var claim = table.claim("idem_2", "request")) {
+            assertFalse(claim.isReplay());
+        }
+        var stats = table.stats();
+        assertEquals(2, stats.entries());
+        assertEquals(1, stats.evicted());
+    }
+
+    @Test
+    void byteCapBoundsEstimatedFootprint() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var table = table(new IdempotencyTable.Retention(Duration.ofHours(24), 0, 1_000L), clock);
+        complete(table, "idem_1", "x".repeat(300));
+        var single = table.stats().bytes();
+        complete(table, "idem_2", "x".repeat(300));
+        complete(table, "idem_3", "x".repeat(300));
+
+        var stats = table.stats();
+        assertTrue(stats.bytes() <= 1_000L);
+        assertEquals(stats.entries() * single, stats.bytes());
+        assertEquals(3 - stats.entries(), stats.evicted());
+    }
+}
@@ -0,0 +1,71 @@
+package com.amannmalik.acp.testsuite.util;
+
+import com.amannmalik.acp.util.PersistentHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class PersistentHashMapTest {
+    @Test
+    void randomUpdatesMatchHashMapAndLeaveOldVersionsIntact() {
+        var map = PersistentHashMap.<Integer, String>empty();
+        var expected = new HashMap<Integer, String>();
+        var random = new Random(7);
+        for (var i = 0; i < 50_000; i++) {
+            var key = random.nextInt(4_000);
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+        }
+        var before = map;
+        assertEquals(expected.size(), before.size());
+        assertEquals(expected, collect(before));
+        assertEquals(expected.size(), before.values().count());
+
+        var key = expected.keySet().iterator().next();
+        var after = map.put(key, "changed").remove(-1).put(-1, "added");
+        assertEquals(expected.get(key), before.get(key));
+        assertNull(before.get(-1));
+        assertEquals("changed", after.get(key));
+        assertEquals(before.size() + 1, after.size());
+        assertSame(before, before.remove(-2));
+    }
+
+    @Test
+    void keysWithEqualHashesShareACollisionNode() {
+        var map = PersistentHashMap.<Colliding, Integer>empty();
+        for (var i = 0; i < 10; i++) {
+            map = map.put(new Colliding(i), i);
+        }
+        assertEquals(10, map.size());
+        for (var i = 0; i < 10; i++) {
+            assertEquals(i, map.get(new Colliding(i)));
+        }
+        for (var i = 0; i < 9; i++) {
+            map = map.remove(new Colliding(i));
+        }
+        assertEquals(1, map.size());
+        assertEquals(9, map.get(new Colliding(9)));
+        assertTrue(map.remove(new Colliding(9)).isEmpty());
+    }
+
+    private static <K, V> HashMap<K, V> collect(PersistentHashMap<K, V> map) {
+        var copy = new HashMap<K, V>();
+        map.forEach(copy::put);
+        return copy;
+    }
+
+    private record Colliding(int id) {
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.amannmalik.acp.testsuite.util;
+
+import com.amannmalik.acp.testutil.MutableClock;
+import com.amannmalik.acp.util.RotatingBloomFilter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class RotatingBloomFilterTest {
+    private static byte[] key(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void rejectsRepeatsWithinTheWindowAndForgetsAfterIt() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var filter = new RotatingBloomFilter(Duration.ofMinutes(10), 1 << 16, 1e-6, clock);
+
+        assertTrue(filter.add(key("sig-1")));
+        assertFalse(filter.add(key("sig-1")));
+        clock.advance(Duration.ofMinutes(10));
+        assertFalse(filter.add(key("sig-1")));
+        assertTrue(filter.add(key("sig-2")));
+
+        clock.advance(Duration.ofMinutes(14));
+        assertTrue(filter.add(key("sig-1")));
+        assertFalse(filter.add(key("sig-1")));
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTargetAtCapacity() {
+        var clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+        var filter = new RotatingBloomFilter(Duration.ofMinutes(10), 1 << 20, 1e-3, clock);
+        var inserted = (int) filter.capacityPerGeneration();
+        for (var i = 0; i < inserted; i++) {
+            filter.add(key("seen-" + i));
+        }
+
+        var falsePositives = 0;
+        var probes = 10_000;
+        for (var i = 0; i < probes; i++) {
+            if (!filter.add(key("fresh-" + i))) {
+                falsePositives++;
+            }
+        }
+
+        assertTrue(falsePositives <= probes * 1e-3, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void concurrentAddsAcceptEachKeyAtMostOnce() throws Exception {
+        var filter = new RotatingBloomFilter(Duration.ofMinutes(10), 1 << 20, 1e-6, Clock.systemUTC());
+        var accepted = ConcurrentHashMap.<Integer>newKeySet();
+        var duplicates = new AtomicInteger();
+        try (var executor = Executors.newFixedThreadPool(4)) {
+            for (var thread = 0; thread < 4; thread++) {
+                executor.submit(() -> {
+                    for (var i = 0; i < 5_000; i++) {
+                        if (filter.add(key("request-" + i)) && !accepted.add(i)) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+
+        assertEquals(5_000, accepted.size());
+        assertTrue(duplicates.get() < 50, "duplicates accepted: " + duplicates.get());
+    }
+}
@@ -0,0 +1,71 @@
+package com.amannmalik.acp.testsuite.util;
+
+import com.amannmalik.acp.util.TimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class TimingWheelTest {
+    private static final Instant START = Instant.parse("2025-01-01T00:00:00Z");
+
+    private static List<String> advance(TimingWheel<String> wheel, Duration elapsed) {
+        var fired = new ArrayList<String>();
+        wheel.advance(START.plus(elapsed), fired::add);
+        return fired;
+    }
+
+    @Test
+    void firesAtDeadlineAcrossLevels() {
+        var wheel = new TimingWheel<String>(Duration.ofSeconds(1), START);
+        wheel.schedule("soon", START.plusSeconds(5));
+        wheel.schedule("later", START.plus(Duration.ofMinutes(90)));
+        wheel.schedule("tomorrow", START.plus(Duration.ofHours(24)));
+
+        assertEquals(List.of(), advance(wheel, Duration.ofSeconds(4)));
+        assertEquals(List.of("soon"), advance(wheel, Duration.ofSeconds(5)));
+        assertEquals(List.of(), advance(wheel, Duration.ofMinutes(90).minusSeconds(1)));
+        assertEquals(List.of("later"), advance(wheel, Duration.ofMinutes(90)));
+        assertEquals(List.of(), advance(wheel, Duration.ofHours(24).minusMillis(1)));
+        assertEquals(List.of("tomorrow"), advance(wheel, Duration.ofHours(24)));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void reportsOverdueKeysInDeadlineOrder() {
+        var wheel = new TimingWheel<String>(Duration.ofSeconds(1), START);
+        wheel.schedule("c", START.plus(Duration.ofDays(3)));
+        wheel.schedule("a", START.plusSeconds(30));
+        wheel.schedule("b", START.plus(Duration.ofHours(2)));
+
+        assertEquals(List.of("a", "b", "c"), advance(wheel, Duration.ofDays(400)));
+    }
+
+    @Test
+    void cancelAndRescheduleReplaceEarlierDeadlines() {
+        var wheel = new TimingWheel<String>(Duration.ofSeconds(1), START);
+        wheel.schedule("cancelled", START.plusSeconds(10));
+        wheel.schedule("moved", START.plusSeconds(10));
+        assertTrue(wheel.cancel("cancelled"));
+        wheel.schedule("moved", START.plusSeconds(100));
+
+        assertEquals(List.of(), advance(wheel, Duration.ofSeconds(99)));
+        assertTrue(wheel.contains("moved"));
+        assertEquals(List.of("moved"), advance(wheel, Duration.ofSeconds(100)));
+        assertFalse(wheel.cancel("moved"));
+    }
+
+    @Test
+    void deadlinesBeyondSpanStillFire() {
+        var wheel = new TimingWheel<String>(Duration.ofMillis(1), START);
+        var farAway = Duration.ofDays(30);
+        wheel.schedule("far", START.plus(farAway));
+
+        assertEquals(List.of(), advance(wheel, farAway.minusMillis(1)));
+        assertEquals(List.of("far"), advance(wheel, farAway));
+    }
+}
@@ -0,0 +1,76 @@
+package com.amannmalik.acp.testutil;
+
+import com.amannmalik.acp.api.checkout.CheckoutSessionOptions;
+import com.amannmalik.acp.api.checkout.InMemoryCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.MailboxCheckoutSessionService;
+import com.amannmalik.acp.api.checkout.model.*;
+import com.amannmalik.acp.api.delegatepayment.DelegatePaymentTokenValidator;
+import com.amannmalik.acp.api.shared.CurrencyCode;
+import com.amannmalik.acp.spi.storage.CheckoutSessionJournal;
+import com.amannmalik.acp.spi.storage.CheckoutSessionStore;
+import com.amannmalik.acp.spi.webhook.OrderWebhookPublisher;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+/// Services and requests over a one-item price book, shared by the checkout and storage tests.
+public final class CheckoutTestSupport {
+    public static final Clock FIXED_CLOCK = Clock.fixed(Instant.parse("2025-10-25T10:00:00Z"), ZoneOffset.UTC);
+    public static final Map<String, Long> PRICE_BOOK = Map.of("item_test", 1200L);
+    public static final CurrencyCode USD = new CurrencyCode("usd");
+    public static final Address ADDRESS = new Address(
+            "Test Buyer", "123 Test Street", null, "Test City", "CA", "US", "94016");
+
+    private CheckoutTestSupport() {
+    }
+
+    /// `store` MAY be `null` for the heap store.
+    public static InMemoryCheckoutSessionService inMemoryService(CheckoutSessionJournal journal, CheckoutSessionStore store) {
+        return inMemoryService(OrderWebhookPublisher.NOOP, journal, store);
+    }
+
+    public static InMemoryCheckoutSessionService inMemoryService(
+            OrderWebhookPublisher publisher, CheckoutSessionJournal journal, CheckoutSessionStore store) {
+        return new InMemoryCheckoutSessionService(PRICE_BOOK, FIXED_CLOCK, USD, CheckoutSessionOptions.defaults()
+                .withWebhookPublisher(publisher)
+                .withJournal(journal)
+                .withStore(store));
+    }
+
+    /// `store` MAY be `null` for the heap store.
+    public static MailboxCheckoutSessionService mailboxService(CheckoutSessionJournal journal, CheckoutSessionStore store) {
+        return mailboxService(OrderWebhookPublisher.NOOP, DelegatePaymentTokenValidator.NOOP, journal, store);
+    }
+
+    public static MailboxCheckoutSessionService mailboxService(
+            OrderWebhookPublisher publisher,
+            DelegatePaymentTokenValidator validator,
+            CheckoutSessionJournal journal,
+            CheckoutSessionStore store) {
+        return new MailboxCheckoutSessionService(PRICE_BOOK, FIXED_CLOCK, USD, CheckoutSessionOptions.defaults()
+                .withWebhookPublisher(publisher)
+                .withTokenValidator(validator)
+                .withJournal(journal)
+                .withStore(store));
+    }
+
+    public static CheckoutSessionCreateRequest createRequest(int quantity) {
+        return new CheckoutSessionCreateRequest(List.of(new Item("item_test", quantity)), null, null);
+    }
+
+    public static CheckoutSessionUpdateRequest updateRequest(int quantity) {
+        return new CheckoutSessionUpdateRequest(List.of(new Item("item_test", quantity)), null, null, null);
+    }
+
+    /// Adds the fulfillment address, which makes a fresh session ready for payment.
+    public static CheckoutSessionUpdateRequest addressUpdate(CheckoutSession session) {
+        return new CheckoutSessionUpdateRequest(null, null, ADDRESS, session.fulfillmentOptionId());
+    }
+
+    public static CheckoutSessionCompleteRequest completeRequest() {
+        return new CheckoutSessionCompleteRequest(null, new PaymentData("tok", PaymentProvider.Provider.STRIPE, null));
+    }
+}
@@ -1,15 +1,17 @@
 package com.amannmalik.acp.testutil;
 
 import com.amannmalik.acp.server.TlsConfiguration;
-import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.*;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
+import javax.security.auth.x500.X500Principal;
 import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -19,6 +21,9 @@ import java.security.cert.X509Certificate;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
 
 public final class TlsTestSupport {
     private static final char[] PASSWORD = "changeit".toCharArray();
@@ -39,6 +44,36 @@ public final class TlsTestSupport {
         }
     }
 
+    /// Server with mutual TLS that maps `clientSubject` to `clientId`. With `pinned`, the issued
+    /// client certificate's fingerprint is pinned; otherwise an unrelated fingerprint is, so the
+    /// certificate is trusted by the TLS layer but MUST NOT authenticate the client.
+    public static MutualTlsContext createMutualTlsContext(String clientSubject, String clientId, boolean pinned) {
+        try {
+            var serverKeyPair = generateKeyPair();
+            var serverCertificate = selfSignedCertificate(serverKeyPair);
+            var keyStorePath = writeKeyStore(serverKeyPair, serverCertificate);
+            var clientKeyPair = generateKeyPair();
+            var clientCertificate = selfSignedCertificate(clientKeyPair, clientSubject);
+            var trustStorePath = writeTrustStore(clientCertificate);
+            var fingerprint = HexFormat.of().formatHex(
+                    MessageDigest.getInstance("SHA-256").digest(clientCertificate.getEncoded()));
+            var clientAuthentication = new TlsConfiguration.ClientAuthentication(
+                    trustStorePath,
+                    PASSWORD,
+                    "PKCS12",
+                    Map.of(clientSubject, clientId),
+                    Set.of(pinned ? fingerprint : "00".repeat(32)),
+                    false);
+            var tlsConfiguration = new TlsConfiguration(keyStorePath, PASSWORD, null, "PKCS12", 0, clientAuthentication);
+            return new MutualTlsContext(
+                    tlsConfiguration,
+                    sslContext(serverCertificate, clientKeyPair, clientCertificate),
+                    sslContext(serverCertificate));
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to create mutual TLS test context", e);
+        }
+    }
+
     private static KeyPair generateKeyPair() throws Exception {
         var generator = KeyPairGenerator.getInstance("RSA");
         generator.initialize(2048);
@@ -46,10 +81,14 @@ public final class TlsTestSupport {
     }
 
     private static X509Certificate selfSignedCertificate(KeyPair keyPair) throws Exception {
+        return selfSignedCertificate(keyPair, "CN=localhost");
+    }
+
+    private static X509Certificate selfSignedCertificate(KeyPair keyPair, String subjectName) throws Exception {
         var now = Instant.now();
         var notBefore = Date.from(now.minusSeconds(300));
         var notAfter = Date.from(now.plusSeconds(31536000));
-        var subject = new X500Name("CN=localhost");
+        var subject = new X500Principal(subjectName);
         var serial = new BigInteger(160, new SecureRandom());
         var contentSigner = signer(keyPair);
         var builder = new JcaX509v3CertificateBuilder(
@@ -81,21 +120,58 @@ public final class TlsTestSupport {
         return path;
     }
 
+    private static Path writeTrustStore(X509Certificate certificate) throws Exception {
+        var trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("client", certificate);
+        var path = Files.createTempFile("acp-test-truststore", ".p12");
+        try (var output = Files.newOutputStream(path)) {
+            trustStore.store(output, PASSWORD);
+        }
+        path.toFile().deleteOnExit();
+        return path;
+    }
+
     private static SSLContext sslContext(X509Certificate certificate) throws Exception {
+        return sslContext(certificate, null, null);
+    }
+
+    private static SSLContext sslContext(X509Certificate certificate, KeyPair clientKeyPair, X509Certificate clientCertificate)
+            throws Exception {
         var trustStore = KeyStore.getInstance("PKCS12");
         trustStore.load(null, null);
         trustStore.setCertificateEntry("server", certificate);
         var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
         trustManagerFactory.init(trustStore);
+        var keyManagers = clientKeyPair == null ? null : keyManagers(clientKeyPair, clientCertificate);
         var sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
+        sslContext.init(keyManagers, trustManagerFactory.getTrustManagers(), new SecureRandom());
         return sslContext;
     }
 
+    private static KeyManager[] keyManagers(KeyPair keyPair, X509Certificate certificate) throws Exception {
+        var keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("client", keyPair.getPrivate(), PASSWORD, new Certificate[]{certificate});
+        var keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+        return keyManagerFactory.getKeyManagers();
+    }
+
     public record TestContext(TlsConfiguration configuration, SSLContext sslContext) implements AutoCloseable {
         @Override
         public void close() {
             Arrays.fill(configuration.keyStorePassword(), '\0');
         }
     }
+
+    /// `sslContext` presents the client certificate; `anonymousSslContext` trusts the server but
+    /// presents none.
+    public record MutualTlsContext(TlsConfiguration configuration, SSLContext sslContext, SSLContext anonymousSslContext)
+            implements AutoCloseable {
+        @Override
+        public void close() {
+            Arrays.fill(configuration.keyStorePassword(), '\0');
+        }
+    }
 }